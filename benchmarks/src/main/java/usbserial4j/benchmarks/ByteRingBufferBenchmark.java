@@ -0,0 +1,153 @@
+package usbserial4j.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import usbserial4j.util.ByteRingBuffer;
+
+/**
+ * The handoff between the pipe thread and a reader through the ring of the
+ * background receiver: a producer thread offers chunks while a consumer thread
+ * polls them. Neither side parks, so an offer to a full ring or a poll from an
+ * empty one returns 0 at once. The calls themselves are not the score; the
+ * {@code offered} and {@code polled} counters report the bytes actually moved
+ * per microsecond.
+ * <p>
+ * The {@code locked} group runs the same handoff through a ring guarded by a
+ * lock, as a baseline for the lock-free ring of the {@code handoff} group.
+ * </p>
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ByteRingBufferBenchmark {
+
+	@Param({ "65536" })
+	public int capacity;
+
+	@Param({ "64", "4096" })
+	public int chunk;
+
+	private ByteRingBuffer mRing;
+	private LockedRing mLockedRing;
+	private byte[] mSource;
+	private byte[] mDest;
+
+	/**
+	 * Bytes moved by one thread, reported as a rate next to the score.
+	 */
+	@AuxCounters(AuxCounters.Type.OPERATIONS)
+	@State(Scope.Thread)
+	public static class Bytes {
+		public long offered;
+		public long polled;
+
+		@Setup(Level.Iteration)
+		public void reset() {
+			offered = 0;
+			polled = 0;
+		}
+	}
+
+	/**
+	 * A ring with the semantics of {@link ByteRingBuffer}, guarded by a lock
+	 * instead of ordered index updates.
+	 */
+	static final class LockedRing {
+		private final ReentrantLock mLock = new ReentrantLock();
+		private final byte[] mBuffer;
+		private final int mMask;
+		private long mHead;
+		private long mTail;
+
+		LockedRing(int capacity) {
+			mBuffer = new byte[Integer.highestOneBit(capacity - 1) << 1];
+			mMask = mBuffer.length - 1;
+		}
+
+		int offer(byte[] src, int offset, int length) {
+			mLock.lock();
+			try {
+				final int amount = Math.min(length, mBuffer.length - (int) (mTail - mHead));
+				final int index = (int) mTail & mMask;
+				final int first = Math.min(amount, mBuffer.length - index);
+				System.arraycopy(src, offset, mBuffer, index, first);
+				System.arraycopy(src, offset + first, mBuffer, 0, amount - first);
+				mTail += amount;
+				return amount;
+			} finally {
+				mLock.unlock();
+			}
+		}
+
+		int poll(byte[] dest, int offset, int length) {
+			mLock.lock();
+			try {
+				final int amount = Math.min(length, (int) (mTail - mHead));
+				final int index = (int) mHead & mMask;
+				final int first = Math.min(amount, mBuffer.length - index);
+				System.arraycopy(mBuffer, index, dest, offset, first);
+				System.arraycopy(mBuffer, 0, dest, offset + first, amount - first);
+				mHead += amount;
+				return amount;
+			} finally {
+				mLock.unlock();
+			}
+		}
+	}
+
+	@Setup
+	public void setUp() {
+		mRing = new ByteRingBuffer(capacity);
+		mLockedRing = new LockedRing(capacity);
+		mSource = new byte[chunk];
+		mDest = new byte[chunk];
+	}
+
+	@Benchmark
+	@Group("handoff")
+	@GroupThreads(1)
+	public void offer(Bytes bytes) {
+		bytes.offered += mRing.offer(mSource, 0, chunk);
+	}
+
+	@Benchmark
+	@Group("handoff")
+	@GroupThreads(1)
+	public void poll(Bytes bytes) {
+		bytes.polled += mRing.poll(mDest, 0, chunk);
+	}
+
+	@Benchmark
+	@Group("locked")
+	@GroupThreads(1)
+	public void lockedOffer(Bytes bytes) {
+		bytes.offered += mLockedRing.offer(mSource, 0, chunk);
+	}
+
+	@Benchmark
+	@Group("locked")
+	@GroupThreads(1)
+	public void lockedPoll(Bytes bytes) {
+		bytes.polled += mLockedRing.poll(mDest, 0, chunk);
+	}
+}
@@ -0,0 +1,150 @@
+package usbserial4j.benchmarks;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteOrder;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import usbserial4j.framing.CobsFrameDecoder;
+import usbserial4j.framing.DelimiterFrameDecoder;
+import usbserial4j.framing.FrameDecoder;
+import usbserial4j.framing.LengthPrefixFrameDecoder;
+import usbserial4j.framing.SlipFrameDecoder;
+
+/**
+ * Decoding throughput of the frame decoders. Each operation decodes
+ * {@link #STREAM_SIZE} bytes of encoded frames of random payload the way
+ * {@code FrameReader} does, so the scores times 64 KiB are bytes per
+ * microsecond. The stream is copied into the working buffer first, since
+ * SLIP and COBS decode in place; the reader gets that copy from the port.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FrameDecoderBenchmark {
+
+	static final int STREAM_SIZE = 64 * 1024;
+
+	@Param({ "delimiter", "lengthPrefix", "slip", "cobs" })
+	public String decoder;
+
+	@Param({ "16", "256", "4096" })
+	public int frameSize;
+
+	private FrameDecoder mDecoder;
+	private byte[] mStream;
+	private byte[] mBuffer;
+
+	@Setup
+	public void setUp() {
+		mDecoder = newDecoder();
+		final Random random = new Random(0);
+		final ByteArrayOutputStream stream = new ByteArrayOutputStream();
+		final byte[] payload = new byte[frameSize];
+		while (stream.size() < STREAM_SIZE) {
+			random.nextBytes(payload);
+			encode(payload, stream);
+		}
+		mStream = stream.toByteArray();
+		mBuffer = new byte[mStream.length];
+	}
+
+	private FrameDecoder newDecoder() {
+		switch (decoder) {
+		case "delimiter":
+			return new DelimiterFrameDecoder((byte) '\n');
+		case "lengthPrefix":
+			return new LengthPrefixFrameDecoder(2, ByteOrder.BIG_ENDIAN, 0xffff);
+		case "slip":
+			return new SlipFrameDecoder();
+		case "cobs":
+			return new CobsFrameDecoder();
+		default:
+			throw new IllegalArgumentException("Unknown decoder: " + decoder);
+		}
+	}
+
+	private void encode(byte[] payload, ByteArrayOutputStream out) {
+		switch (decoder) {
+		case "delimiter":
+			for (byte b : payload) {
+				out.write(b == '\n' ? ' ' : b);
+			}
+			out.write('\n');
+			break;
+
+		case "lengthPrefix":
+			out.write(payload.length >> 8);
+			out.write(payload.length);
+			out.write(payload, 0, payload.length);
+			break;
+
+		case "slip":
+			out.write(SlipFrameDecoder.END);
+			for (byte b : payload) {
+				if (b == SlipFrameDecoder.END) {
+					out.write(SlipFrameDecoder.ESC);
+					out.write(SlipFrameDecoder.ESC_END);
+				} else if (b == SlipFrameDecoder.ESC) {
+					out.write(SlipFrameDecoder.ESC);
+					out.write(SlipFrameDecoder.ESC_ESC);
+				} else {
+					out.write(b);
+				}
+			}
+			out.write(SlipFrameDecoder.END);
+			break;
+
+		case "cobs":
+			int start = 0;
+			while (true) {
+				int end = start;
+				while (end < payload.length && payload[end] != 0 && end - start < 254) {
+					end++;
+				}
+				out.write(end - start + 1);
+				out.write(payload, start, end - start);
+				if (end == payload.length) {
+					break;
+				}
+				// A full block stands for no zero, any other for the zero after it
+				start = (end - start == 254 ? end : end + 1);
+			}
+			out.write(0);
+			break;
+
+		default:
+			throw new IllegalArgumentException("Unknown decoder: " + decoder);
+		}
+	}
+
+	@Benchmark
+	public int decode() {
+		System.arraycopy(mStream, 0, mBuffer, 0, mStream.length);
+		int frames = 0;
+		int offset = 0;
+		int consumed;
+		while ((consumed = mDecoder.decode(mBuffer, offset, mBuffer.length - offset)) > 0) {
+			frames += (mDecoder.getFrameLength() >= 0 ? 1 : 0);
+			offset += consumed;
+			mDecoder.reset();
+		}
+		mDecoder.reset();
+		return frames;
+	}
+}
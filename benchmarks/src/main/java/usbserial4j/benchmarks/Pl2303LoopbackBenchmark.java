@@ -0,0 +1,84 @@
+package usbserial4j.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import usbserial4j.driver.ProlificSerialDriver;
+import usbserial4j.driver.UsbDeviceConnection;
+import usbserial4j.driver.UsbSerialPort;
+import usbserial4j.emulator.Pl2303Emulator;
+
+/**
+ * Round trips through the loopback of the PL2303 emulator: a write followed
+ * by reads until every byte came back. Unlike the other benchmarks, transfers
+ * complete on the queue threads of the emulator, as with usb4java, so the
+ * scores include the thread handoffs and the latency injected per IRP.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class Pl2303LoopbackBenchmark {
+
+	private static final int TIMEOUT_MILLIS = 1000;
+
+	@Param({ "64", "4096" })
+	public int size;
+
+	@Param({ "0", "125" })
+	public int latencyMicros;
+
+	private UsbDeviceConnection mConnection;
+	private UsbSerialPort mPort;
+
+	private byte[] mSource;
+	private byte[] mDest;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		final Pl2303Emulator emulator = new Pl2303Emulator();
+		emulator.setIrpLatency(latencyMicros, TimeUnit.MICROSECONDS);
+		mConnection = new UsbDeviceConnection(emulator);
+		mPort = new ProlificSerialDriver(emulator).getPorts().get(0);
+		mPort.open(mConnection);
+
+		mSource = new byte[size];
+		mDest = new byte[size];
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		mPort.close();
+		mConnection.close();
+	}
+
+	@Benchmark
+	public int roundTrip() throws IOException {
+		mPort.write(mSource, TIMEOUT_MILLIS);
+		int received = 0;
+		while (received < size) {
+			final int read = mPort.read(mDest, TIMEOUT_MILLIS);
+			if (read <= 0) {
+				throw new IOException("Loopback lost " + (size - received) + " bytes");
+			}
+			received += read;
+		}
+		return received;
+	}
+}
@@ -0,0 +1,74 @@
+package usbserial4j.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import usbserial4j.benchmarks.fake.FakeUsbDevice;
+import usbserial4j.driver.ProbeTable;
+import usbserial4j.driver.ProlificSerialDriver;
+import usbserial4j.driver.UsbSerialDriver;
+import usbserial4j.driver.UsbSerialProber;
+
+/**
+ * Driver lookups in a probe table holding the default drivers and a number of
+ * synthetic products, by (vendor, product) pair and by device.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProbeTableBenchmark {
+
+	/** Vendor id of the synthetic products, not used by any real driver. */
+	private static final int SYNTHETIC_VENDOR_ID = 0xfff0;
+
+	@Param({ "0", "1000" })
+	public int extraProducts;
+
+	private ProbeTable mTable;
+	private FakeUsbDevice mKnownDevice;
+	private FakeUsbDevice mUnknownDevice;
+
+	@Setup
+	public void setUp() {
+		mTable = UsbSerialProber.getDefaultProbeTable();
+		for (int i = 0; i < extraProducts; ++i) {
+			mTable.addProduct(SYNTHETIC_VENDOR_ID + (i >> 16), i & 0xffff, ProlificSerialDriver.class);
+		}
+		mKnownDevice = FakeUsbDevice.pl2303();
+		mUnknownDevice = new FakeUsbDevice(0x1234, 0x5678);
+	}
+
+	@Benchmark
+	public Class<? extends UsbSerialDriver> findKnownProduct() {
+		return mTable.findDriver(FakeUsbDevice.PROLIFIC_VENDOR_ID, FakeUsbDevice.PL2303_PRODUCT_ID);
+	}
+
+	@Benchmark
+	public Class<? extends UsbSerialDriver> findUnknownProduct() {
+		return mTable.findDriver(0x1234, 0x5678);
+	}
+
+	@Benchmark
+	public Class<? extends UsbSerialDriver> findKnownDevice() {
+		return mTable.findDriver(mKnownDevice);
+	}
+
+	@Benchmark
+	public Class<? extends UsbSerialDriver> findUnknownDevice() {
+		return mTable.findDriver(mUnknownDevice);
+	}
+}
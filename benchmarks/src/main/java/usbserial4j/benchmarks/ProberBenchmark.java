@@ -0,0 +1,96 @@
+package usbserial4j.benchmarks;
+
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import javax.usb.UsbDevice;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import usbserial4j.benchmarks.fake.FakeUsbDevice;
+import usbserial4j.benchmarks.fake.FakeUsbHub;
+import usbserial4j.driver.UsbSerialDriver;
+import usbserial4j.driver.UsbSerialProber;
+
+/**
+ * Enumeration of a synthetic device tree: a root hub with {@code fanout}
+ * hubs, each with {@code fanout} hubs and so on down to {@code depth} levels,
+ * and {@code devicesPerHub} devices on every hub. Every fourth device is a
+ * PL2303, the others are unknown to the prober.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProberBenchmark {
+
+	@Param({ "2", "4" })
+	public int depth;
+
+	@Param({ "4" })
+	public int fanout;
+
+	@Param({ "8" })
+	public int devicesPerHub;
+
+	private FakeUsbHub mRoot;
+	private UsbSerialProber mProber;
+	private ForkJoinPool mPool;
+
+	@Setup
+	public void setUp() {
+		mRoot = new FakeUsbHub(true);
+		populate(mRoot, depth);
+		mProber = UsbSerialProber.getDefaultProber();
+		mPool = new ForkJoinPool();
+	}
+
+	@TearDown
+	public void tearDown() {
+		mPool.shutdown();
+	}
+
+	@Benchmark
+	public List<UsbDevice> getDevices() {
+		return mProber.getDevices(mRoot);
+	}
+
+	@Benchmark
+	public List<UsbSerialDriver> findAllDrivers() {
+		return mProber.findAllDrivers(mRoot);
+	}
+
+	@Benchmark
+	public List<UsbSerialDriver> findAllDriversParallel() {
+		return mProber.findAllDrivers(mRoot, mPool);
+	}
+
+	private void populate(FakeUsbHub hub, int levels) {
+		for (int i = 0; i < devicesPerHub; ++i) {
+			if (i % 4 == 0) {
+				hub.attach(FakeUsbDevice.pl2303());
+			} else {
+				hub.attach(new FakeUsbDevice(0x1234, i));
+			}
+		}
+		if (levels > 0) {
+			for (int i = 0; i < fanout; ++i) {
+				populate(hub.attach(new FakeUsbHub(false)), levels - 1);
+			}
+		}
+	}
+}
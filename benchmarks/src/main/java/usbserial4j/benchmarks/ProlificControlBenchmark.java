@@ -0,0 +1,82 @@
+package usbserial4j.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import usbserial4j.benchmarks.fake.FakeUsbDevice;
+import usbserial4j.driver.ProlificSerialDriver;
+import usbserial4j.driver.UsbDeviceConnection;
+import usbserial4j.driver.UsbSerialPort;
+
+/**
+ * The control transfer paths of a PL2303 port: line settings, control lines,
+ * purges and the whole open and close handshake.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProlificControlBenchmark {
+
+	private FakeUsbDevice mDevice;
+	private UsbDeviceConnection mConnection;
+	private UsbSerialPort mPort;
+
+	private boolean mToggle;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		mDevice = FakeUsbDevice.pl2303();
+		mConnection = new UsbDeviceConnection(mDevice);
+		mPort = new ProlificSerialDriver(mDevice).getPorts().get(0);
+		mPort.open(mConnection);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		mPort.close();
+		mConnection.close();
+	}
+
+	/**
+	 * Alternates between two baud rates, since setting the current
+	 * parameters again sends nothing.
+	 */
+	@Benchmark
+	public void setParameters() throws IOException {
+		mToggle = !mToggle;
+		mPort.setParameters(mToggle ? 115200 : 9600, 8, UsbSerialPort.STOPBITS_1, UsbSerialPort.PARITY_NONE);
+	}
+
+	@Benchmark
+	public void setDTR() throws IOException {
+		mToggle = !mToggle;
+		mPort.setDTR(mToggle);
+	}
+
+	@Benchmark
+	public boolean purgeHwBuffers() throws IOException {
+		return mPort.purgeHwBuffers(true, true);
+	}
+
+	@Benchmark
+	public void openClose() throws IOException {
+		mPort.close();
+		mPort.open(mConnection);
+	}
+}
@@ -0,0 +1,103 @@
+package usbserial4j.benchmarks;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import usbserial4j.benchmarks.fake.FakeUsbDevice;
+import usbserial4j.driver.ProlificSerialDriver;
+import usbserial4j.driver.UsbDeviceConnection;
+import usbserial4j.driver.UsbSerialPort;
+
+/**
+ * Bulk reads and writes of a PL2303 port, across buffer sizes below, at and
+ * above the 16 KiB internal buffers of the port. Reads copy through the
+ * internal read buffer; writes larger than the write buffer are split into
+ * several IRPs.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProlificTransferBenchmark {
+
+	private static final int TIMEOUT_MILLIS = 1000;
+
+	@Param({ "64", "1024", "16384", "65536" })
+	public int size;
+
+	private UsbDeviceConnection mConnection;
+	private UsbSerialPort mPort;
+
+	private byte[] mArray;
+	private ByteBuffer mHeapBuffer;
+	private ByteBuffer mDirectBuffer;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		final FakeUsbDevice device = FakeUsbDevice.pl2303();
+		mConnection = new UsbDeviceConnection(device);
+		mPort = new ProlificSerialDriver(device).getPorts().get(0);
+		mPort.open(mConnection);
+
+		mArray = new byte[size];
+		mHeapBuffer = ByteBuffer.allocate(size);
+		mDirectBuffer = ByteBuffer.allocateDirect(size);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		mPort.close();
+		mConnection.close();
+	}
+
+	@Benchmark
+	public int readArray() throws IOException {
+		return mPort.read(mArray, TIMEOUT_MILLIS);
+	}
+
+	@Benchmark
+	public int readHeapBuffer() throws IOException {
+		mHeapBuffer.clear();
+		return mPort.read(mHeapBuffer, TIMEOUT_MILLIS);
+	}
+
+	@Benchmark
+	public int readDirectBuffer() throws IOException {
+		mDirectBuffer.clear();
+		return mPort.read(mDirectBuffer, TIMEOUT_MILLIS);
+	}
+
+	@Benchmark
+	public int writeArray() throws IOException {
+		return mPort.write(mArray, TIMEOUT_MILLIS);
+	}
+
+	@Benchmark
+	public int writeHeapBuffer() throws IOException {
+		mHeapBuffer.clear();
+		return mPort.write(mHeapBuffer, TIMEOUT_MILLIS);
+	}
+
+	@Benchmark
+	public int writeDirectBuffer() throws IOException {
+		mDirectBuffer.clear();
+		return mPort.write(mDirectBuffer, TIMEOUT_MILLIS);
+	}
+}
@@ -0,0 +1,124 @@
+package usbserial4j.benchmarks.fake;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.usb.UsbAbortException;
+import javax.usb.UsbException;
+import javax.usb.UsbIrp;
+
+/**
+ * Processes the IRPs submitted to a fake pipe or to the control endpoint of a
+ * fake device.
+ * <p>
+ * There is no queue thread: an IRP is processed on the thread submitting it.
+ * An IRP submitted while another one is being processed, typically from the
+ * completion of the previous one, is queued and processed by the thread
+ * already in the loop, so resubmitting from a completion neither recurses nor
+ * blocks.
+ * </p>
+ */
+abstract class FakeIrpQueue {
+
+	private final ArrayDeque<UsbIrp> mPending = new ArrayDeque<UsbIrp>();
+
+	/** IRPs the device did not answer yet. Guarded by {@code this}. */
+	private final List<UsbIrp> mHeld = new ArrayList<UsbIrp>();
+
+	/** Whether a thread is processing {@link #mPending}. Guarded by {@code this}. */
+	private boolean mProcessing = false;
+
+	/**
+	 * Processes one IRP: fills in its data and actual length, or throws the
+	 * error it completes with.
+	 *
+	 * @param irp
+	 *            the IRP
+	 * @return {@code false} to keep the IRP pending until it is aborted or
+	 *         {@link #releaseHeld() released}
+	 * @throws UsbException
+	 *             the error the IRP completes with
+	 */
+	protected abstract boolean process(UsbIrp irp) throws UsbException;
+
+	/**
+	 * Called after an IRP completed, with or without an error.
+	 *
+	 * @param irp
+	 *            the IRP
+	 */
+	protected abstract void finish(UsbIrp irp);
+
+	void submit(UsbIrp irp) {
+		synchronized (this) {
+			mPending.add(irp);
+			if (mProcessing) {
+				return;
+			}
+			mProcessing = true;
+		}
+
+		while (true) {
+			final UsbIrp next;
+			synchronized (this) {
+				next = mPending.poll();
+				if (next == null) {
+					mProcessing = false;
+					return;
+				}
+			}
+			run(next);
+		}
+	}
+
+	/**
+	 * Gives the held IRPs another chance to complete, in the order they were
+	 * submitted.
+	 */
+	void releaseHeld() {
+		final List<UsbIrp> held;
+		synchronized (this) {
+			held = new ArrayList<UsbIrp>(mHeld);
+			mHeld.clear();
+		}
+		for (UsbIrp irp : held) {
+			submit(irp);
+		}
+	}
+
+	/**
+	 * Completes all held IRPs with a {@link UsbAbortException}.
+	 */
+	void abort() {
+		final List<UsbIrp> held;
+		synchronized (this) {
+			held = new ArrayList<UsbIrp>(mHeld);
+			mHeld.clear();
+		}
+		for (UsbIrp irp : held) {
+			irp.setUsbException(new UsbAbortException());
+			irp.complete();
+			finish(irp);
+		}
+	}
+
+	synchronized boolean isBusy() {
+		return mProcessing || !mHeld.isEmpty();
+	}
+
+	private void run(UsbIrp irp) {
+		try {
+			if (!process(irp)) {
+				synchronized (this) {
+					mHeld.add(irp);
+				}
+				return;
+			}
+		} catch (UsbException e) {
+			irp.setUsbException(e);
+		}
+		irp.complete();
+		finish(irp);
+	}
+}
@@ -0,0 +1,83 @@
+package usbserial4j.benchmarks.fake;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.usb.UsbConfiguration;
+import javax.usb.UsbConfigurationDescriptor;
+import javax.usb.UsbConst;
+
+import org.usb4java.javax.descriptors.SimpleUsbConfigurationDescriptor;
+
+/**
+ * The single, always active configuration of a {@link FakeUsbDevice}.
+ */
+public class FakeUsbConfiguration implements UsbConfiguration {
+	private final FakeUsbDevice mDevice;
+	private final UsbConfigurationDescriptor mDescriptor;
+	private final List<FakeUsbInterface> mInterfaces = new ArrayList<FakeUsbInterface>();
+
+	FakeUsbConfiguration(FakeUsbDevice device, int numInterfaces) {
+		mDevice = device;
+		mDescriptor = new SimpleUsbConfigurationDescriptor((byte) 9, UsbConst.DESCRIPTOR_TYPE_CONFIGURATION,
+				(short) 0, (byte) numInterfaces, (byte) 1, (byte) 0, (byte) 0x80, (byte) 50);
+	}
+
+	/**
+	 * Adds an interface.
+	 *
+	 * @param interfaceClass
+	 *            the interface class
+	 * @param interfaceSubclass
+	 *            the interface subclass
+	 * @param interfaceProtocol
+	 *            the interface protocol
+	 * @param endpoints
+	 *            the endpoints, each one given as its address, transfer type
+	 *            and maximum packet size
+	 * @return the interface
+	 */
+	FakeUsbInterface addInterface(int interfaceClass, int interfaceSubclass, int interfaceProtocol,
+			int[][] endpoints) {
+		final FakeUsbInterface usbInterface = new FakeUsbInterface(this, mInterfaces.size(), interfaceClass,
+				interfaceSubclass, interfaceProtocol, endpoints);
+		mInterfaces.add(usbInterface);
+		return usbInterface;
+	}
+
+	@Override
+	public boolean isActive() {
+		return true;
+	}
+
+	@Override
+	public List<FakeUsbInterface> getUsbInterfaces() {
+		return Collections.unmodifiableList(mInterfaces);
+	}
+
+	@Override
+	public FakeUsbInterface getUsbInterface(byte number) {
+		return (number >= 0 && number < mInterfaces.size() ? mInterfaces.get(number) : null);
+	}
+
+	@Override
+	public boolean containsUsbInterface(byte number) {
+		return getUsbInterface(number) != null;
+	}
+
+	@Override
+	public FakeUsbDevice getUsbDevice() {
+		return mDevice;
+	}
+
+	@Override
+	public UsbConfigurationDescriptor getUsbConfigurationDescriptor() {
+		return mDescriptor;
+	}
+
+	@Override
+	public String getConfigurationString() {
+		return null;
+	}
+}
@@ -0,0 +1,259 @@
+package usbserial4j.benchmarks.fake;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.usb.UsbConfiguration;
+import javax.usb.UsbConst;
+import javax.usb.UsbControlIrp;
+import javax.usb.UsbDevice;
+import javax.usb.UsbDeviceDescriptor;
+import javax.usb.UsbException;
+import javax.usb.UsbIrp;
+import javax.usb.UsbPort;
+import javax.usb.UsbStringDescriptor;
+import javax.usb.event.UsbDeviceDataEvent;
+import javax.usb.event.UsbDeviceErrorEvent;
+import javax.usb.event.UsbDeviceListener;
+import javax.usb.util.DefaultUsbControlIrp;
+
+import org.usb4java.javax.descriptors.SimpleUsbDeviceDescriptor;
+
+/**
+ * An in-memory {@link UsbDevice}, for running the library without hardware.
+ * <p>
+ * Every control transfer succeeds: OUT requests are accepted and IN requests
+ * return zeros. Transfers complete on the submitting thread, so the cost
+ * measured is the cost of the library and not that of a USB stack.
+ * </p>
+ */
+public class FakeUsbDevice implements UsbDevice {
+
+	/** Vendor id of Prolific. */
+	public static final int PROLIFIC_VENDOR_ID = 0x067b;
+
+	/** Product id of the PL2303. */
+	public static final int PL2303_PRODUCT_ID = 0x2303;
+
+	private final UsbDeviceDescriptor mDescriptor;
+	private final FakeUsbConfiguration mConfiguration;
+	private final List<UsbDeviceListener> mListeners = new CopyOnWriteArrayList<UsbDeviceListener>();
+	private final FakeIrpQueue mControlQueue = new FakeIrpQueue() {
+		@Override
+		protected boolean process(UsbIrp irp) {
+			return processControl((UsbControlIrp) irp);
+		}
+
+		@Override
+		protected void finish(UsbIrp irp) {
+			fireEvent((UsbControlIrp) irp);
+		}
+	};
+
+	private volatile int mModemStatus = 0;
+
+	/**
+	 * Creates a device without any configuration.
+	 *
+	 * @param vendorId
+	 *            the vendor id
+	 * @param productId
+	 *            the product id
+	 */
+	public FakeUsbDevice(int vendorId, int productId) {
+		this(vendorId, productId, 0, 0, false);
+	}
+
+	FakeUsbDevice(int vendorId, int productId, int deviceClass, int maxPacketSize0, boolean configured) {
+		mDescriptor = new SimpleUsbDeviceDescriptor((byte) 18, UsbConst.DESCRIPTOR_TYPE_DEVICE, (short) 0x0200,
+				(byte) deviceClass, (byte) 0, (byte) 0, (byte) maxPacketSize0, (short) vendorId, (short) productId,
+				(short) 0x0300, (byte) 0, (byte) 0, (byte) 0, (byte) (configured ? 1 : 0));
+		mConfiguration = (configured ? new FakeUsbConfiguration(this, 1) : null);
+	}
+
+	/**
+	 * Creates a PL2303 HX: one vendor specific interface with an interrupt
+	 * status endpoint at 0x81, a bulk OUT endpoint at 0x02 and a bulk IN
+	 * endpoint at 0x83.
+	 *
+	 * @return the device
+	 */
+	public static FakeUsbDevice pl2303() {
+		final FakeUsbDevice device = new FakeUsbDevice(PROLIFIC_VENDOR_ID, PL2303_PRODUCT_ID, 0, 64, true);
+		device.mConfiguration.addInterface(0xff, 0, 0, new int[][] {
+				{ 0x81, UsbConst.ENDPOINT_TYPE_INTERRUPT, 10 },
+				{ 0x02, UsbConst.ENDPOINT_TYPE_BULK, 64 },
+				{ 0x83, UsbConst.ENDPOINT_TYPE_BULK, 64 } });
+		return device;
+	}
+
+	/**
+	 * @return the modem status reported on the interrupt endpoint
+	 */
+	public int getModemStatus() {
+		return mModemStatus;
+	}
+
+	/**
+	 * Sets the modem status reported on the interrupt endpoint, in the
+	 * format of the status byte of a PL2303.
+	 *
+	 * @param status
+	 *            the status
+	 */
+	public void setModemStatus(int status) {
+		mModemStatus = status;
+	}
+
+	@Override
+	public UsbPort getParentUsbPort() {
+		return null;
+	}
+
+	@Override
+	public boolean isUsbHub() {
+		return false;
+	}
+
+	@Override
+	public String getManufacturerString() {
+		return null;
+	}
+
+	@Override
+	public String getSerialNumberString() {
+		return null;
+	}
+
+	@Override
+	public String getProductString() {
+		return null;
+	}
+
+	@Override
+	public Object getSpeed() {
+		return UsbConst.DEVICE_SPEED_FULL;
+	}
+
+	@Override
+	public List<UsbConfiguration> getUsbConfigurations() {
+		return (mConfiguration != null ? Collections.<UsbConfiguration> singletonList(mConfiguration)
+				: Collections.<UsbConfiguration> emptyList());
+	}
+
+	@Override
+	public UsbConfiguration getUsbConfiguration(byte number) {
+		return (number == 1 ? mConfiguration : null);
+	}
+
+	@Override
+	public boolean containsUsbConfiguration(byte number) {
+		return getUsbConfiguration(number) != null;
+	}
+
+	@Override
+	public byte getActiveUsbConfigurationNumber() {
+		return (byte) (mConfiguration != null ? 1 : 0);
+	}
+
+	@Override
+	public FakeUsbConfiguration getActiveUsbConfiguration() {
+		return mConfiguration;
+	}
+
+	@Override
+	public boolean isConfigured() {
+		return mConfiguration != null;
+	}
+
+	@Override
+	public UsbDeviceDescriptor getUsbDeviceDescriptor() {
+		return mDescriptor;
+	}
+
+	@Override
+	public UsbStringDescriptor getUsbStringDescriptor(byte index) {
+		return null;
+	}
+
+	@Override
+	public String getString(byte index) {
+		return null;
+	}
+
+	@Override
+	public void syncSubmit(UsbControlIrp irp) throws UsbException {
+		asyncSubmit(irp);
+		irp.waitUntilComplete();
+		if (irp.isUsbException()) {
+			throw irp.getUsbException();
+		}
+	}
+
+	@Override
+	public void asyncSubmit(UsbControlIrp irp) {
+		if (irp == null) {
+			throw new IllegalArgumentException("irp must not be null");
+		}
+		mControlQueue.submit(irp);
+	}
+
+	@Override
+	@SuppressWarnings("rawtypes")
+	public void syncSubmit(List list) throws UsbException {
+		for (Object irp : list) {
+			syncSubmit((UsbControlIrp) irp);
+		}
+	}
+
+	@Override
+	@SuppressWarnings("rawtypes")
+	public void asyncSubmit(List list) {
+		for (Object irp : list) {
+			asyncSubmit((UsbControlIrp) irp);
+		}
+	}
+
+	@Override
+	public UsbControlIrp createUsbControlIrp(byte bmRequestType, byte bRequest, short wValue, short wIndex) {
+		return new DefaultUsbControlIrp(bmRequestType, bRequest, wValue, wIndex);
+	}
+
+	@Override
+	public void addUsbDeviceListener(UsbDeviceListener listener) {
+		mListeners.add(listener);
+	}
+
+	@Override
+	public void removeUsbDeviceListener(UsbDeviceListener listener) {
+		mListeners.remove(listener);
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%s %04x:%04x", getClass().getSimpleName(), mDescriptor.idVendor() & 0xffff,
+				mDescriptor.idProduct() & 0xffff);
+	}
+
+	private boolean processControl(UsbControlIrp irp) {
+		if ((irp.bmRequestType() & UsbConst.ENDPOINT_DIRECTION_MASK) == UsbConst.ENDPOINT_DIRECTION_IN) {
+			final byte[] data = irp.getData();
+			for (int i = 0; i < irp.getLength(); ++i) {
+				data[irp.getOffset() + i] = 0;
+			}
+		}
+		irp.setActualLength(irp.getLength());
+		return true;
+	}
+
+	private void fireEvent(UsbControlIrp irp) {
+		for (UsbDeviceListener listener : mListeners) {
+			if (irp.isUsbException()) {
+				listener.errorEventOccurred(new UsbDeviceErrorEvent(this, irp));
+			} else {
+				listener.dataEventOccurred(new UsbDeviceDataEvent(this, irp));
+			}
+		}
+	}
+}
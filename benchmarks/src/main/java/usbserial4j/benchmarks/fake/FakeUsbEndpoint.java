@@ -0,0 +1,69 @@
+package usbserial4j.benchmarks.fake;
+
+import javax.usb.UsbConst;
+import javax.usb.UsbEndpoint;
+import javax.usb.UsbEndpointDescriptor;
+import javax.usb.UsbPipe;
+
+import org.usb4java.javax.descriptors.SimpleUsbEndpointDescriptor;
+
+/**
+ * An endpoint of a {@link FakeUsbInterface}, with its {@link FakeUsbPipe}.
+ */
+public class FakeUsbEndpoint implements UsbEndpoint {
+	private final FakeUsbInterface mInterface;
+	private final UsbEndpointDescriptor mDescriptor;
+	private final FakeUsbPipe mPipe;
+
+	/**
+	 * @param usbInterface
+	 *            the interface the endpoint belongs to
+	 * @param address
+	 *            the endpoint address, including the direction bit
+	 * @param type
+	 *            the transfer type, one of the {@code ENDPOINT_TYPE}
+	 *            constants of {@link UsbConst}
+	 * @param maxPacketSize
+	 *            the maximum packet size
+	 */
+	FakeUsbEndpoint(FakeUsbInterface usbInterface, int address, int type, int maxPacketSize) {
+		mInterface = usbInterface;
+		mDescriptor = new SimpleUsbEndpointDescriptor((byte) 7, UsbConst.DESCRIPTOR_TYPE_ENDPOINT,
+				(byte) address, (byte) type, (short) maxPacketSize, (byte) 0);
+		mPipe = new FakeUsbPipe(this);
+	}
+
+	FakeUsbDevice getDevice() {
+		return mInterface.getUsbConfiguration().getUsbDevice();
+	}
+
+	@Override
+	public FakeUsbInterface getUsbInterface() {
+		return mInterface;
+	}
+
+	@Override
+	public UsbEndpointDescriptor getUsbEndpointDescriptor() {
+		return mDescriptor;
+	}
+
+	@Override
+	public byte getDirection() {
+		return (byte) (mDescriptor.bEndpointAddress() & UsbConst.ENDPOINT_DIRECTION_MASK);
+	}
+
+	@Override
+	public byte getType() {
+		return (byte) (mDescriptor.bmAttributes() & UsbConst.ENDPOINT_TYPE_MASK);
+	}
+
+	@Override
+	public UsbPipe getUsbPipe() {
+		return mPipe;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("FakeUsbEndpoint 0x%02x", mDescriptor.bEndpointAddress() & 0xff);
+	}
+}
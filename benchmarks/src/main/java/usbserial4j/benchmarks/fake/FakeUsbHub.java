@@ -0,0 +1,74 @@
+package usbserial4j.benchmarks.fake;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.usb.UsbDevice;
+import javax.usb.UsbHub;
+import javax.usb.UsbPort;
+
+/**
+ * An in-memory {@link UsbHub}. Ports are not emulated: devices are attached
+ * to the hub directly.
+ */
+public class FakeUsbHub extends FakeUsbDevice implements UsbHub {
+
+	/** Device class of hubs. */
+	private static final int HUB_CLASS = 0x09;
+
+	private final boolean mRoot;
+	private final List<UsbDevice> mDevices = new ArrayList<UsbDevice>();
+
+	/**
+	 * @param root
+	 *            whether this is the virtual root hub
+	 */
+	public FakeUsbHub(boolean root) {
+		super(0x1d6b, 0x0002, HUB_CLASS, 64, false);
+		mRoot = root;
+	}
+
+	/**
+	 * Attaches a device to the hub. Hubs must be built before the tree is
+	 * shared between threads.
+	 *
+	 * @param device
+	 *            the device
+	 * @return the device
+	 */
+	public <T extends UsbDevice> T attach(T device) {
+		mDevices.add(device);
+		return device;
+	}
+
+	@Override
+	public boolean isUsbHub() {
+		return true;
+	}
+
+	@Override
+	public byte getNumberOfPorts() {
+		return (byte) mDevices.size();
+	}
+
+	@Override
+	public List<UsbPort> getUsbPorts() {
+		return Collections.emptyList();
+	}
+
+	@Override
+	public UsbPort getUsbPort(byte number) {
+		return null;
+	}
+
+	@Override
+	public List<UsbDevice> getAttachedUsbDevices() {
+		return Collections.unmodifiableList(mDevices);
+	}
+
+	@Override
+	public boolean isRootUsbHub() {
+		return mRoot;
+	}
+}
@@ -0,0 +1,222 @@
+package usbserial4j.benchmarks.fake;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.usb.UsbConst;
+import javax.usb.UsbControlIrp;
+import javax.usb.UsbEndpoint;
+import javax.usb.UsbException;
+import javax.usb.UsbIrp;
+import javax.usb.UsbNotClaimedException;
+import javax.usb.UsbNotOpenException;
+import javax.usb.UsbPipe;
+import javax.usb.event.UsbPipeDataEvent;
+import javax.usb.event.UsbPipeErrorEvent;
+import javax.usb.event.UsbPipeListener;
+import javax.usb.util.DefaultUsbControlIrp;
+import javax.usb.util.DefaultUsbIrp;
+
+/**
+ * The pipe of a {@link FakeUsbEndpoint}.
+ * <p>
+ * A bulk IN pipe always has data: every IRP is filled completely from a
+ * fixed pattern. A bulk OUT pipe accepts every byte. An interrupt IN pipe
+ * reports the modem status of the device once per open and then keeps its
+ * IRPs pending until they are aborted.
+ * </p>
+ */
+public class FakeUsbPipe implements UsbPipe {
+
+	/** Length of the status report of a PL2303. */
+	private static final int STATUS_LENGTH = 10;
+	private static final int STATUS_BYTE_IDX = 8;
+
+	private static final byte[] PATTERN = new byte[64 * 1024];
+
+	static {
+		for (int i = 0; i < PATTERN.length; ++i) {
+			PATTERN[i] = (byte) i;
+		}
+	}
+
+	private final FakeUsbEndpoint mEndpoint;
+	private final List<UsbPipeListener> mListeners = new CopyOnWriteArrayList<UsbPipeListener>();
+	private final FakeIrpQueue mQueue = new FakeIrpQueue() {
+		@Override
+		protected boolean process(UsbIrp irp) throws UsbException {
+			return FakeUsbPipe.this.process(irp);
+		}
+
+		@Override
+		protected void finish(UsbIrp irp) {
+			fireEvent(irp);
+		}
+	};
+
+	private volatile boolean mOpen = false;
+
+	/** Whether the status was reported since the pipe was opened. */
+	private volatile boolean mStatusReported = false;
+
+	FakeUsbPipe(FakeUsbEndpoint endpoint) {
+		mEndpoint = endpoint;
+	}
+
+	@Override
+	public void open() throws UsbException {
+		if (!mEndpoint.getUsbInterface().isClaimed()) {
+			throw new UsbNotClaimedException("Interface is not claimed");
+		}
+		if (mOpen) {
+			throw new UsbException("Pipe is already open");
+		}
+		mStatusReported = false;
+		mOpen = true;
+	}
+
+	@Override
+	public void close() throws UsbException {
+		checkOpen();
+		if (mQueue.isBusy()) {
+			throw new UsbException("Pipe is still busy");
+		}
+		mOpen = false;
+	}
+
+	@Override
+	public boolean isActive() {
+		return true;
+	}
+
+	@Override
+	public boolean isOpen() {
+		return mOpen;
+	}
+
+	@Override
+	public UsbEndpoint getUsbEndpoint() {
+		return mEndpoint;
+	}
+
+	@Override
+	public int syncSubmit(byte[] data) throws UsbException {
+		final UsbIrp irp = asyncSubmit(data);
+		irp.waitUntilComplete();
+		if (irp.isUsbException()) {
+			throw irp.getUsbException();
+		}
+		return irp.getActualLength();
+	}
+
+	@Override
+	public UsbIrp asyncSubmit(byte[] data) throws UsbException {
+		final UsbIrp irp = createUsbIrp();
+		irp.setData(data);
+		asyncSubmit(irp);
+		return irp;
+	}
+
+	@Override
+	public void syncSubmit(UsbIrp irp) throws UsbException {
+		asyncSubmit(irp);
+		irp.waitUntilComplete();
+		if (irp.isUsbException()) {
+			throw irp.getUsbException();
+		}
+	}
+
+	@Override
+	public void asyncSubmit(UsbIrp irp) throws UsbException {
+		if (irp == null) {
+			throw new IllegalArgumentException("irp must not be null");
+		}
+		checkOpen();
+		mQueue.submit(irp);
+	}
+
+	@Override
+	@SuppressWarnings("rawtypes")
+	public void syncSubmit(List list) throws UsbException {
+		for (Object irp : list) {
+			syncSubmit((UsbIrp) irp);
+		}
+	}
+
+	@Override
+	@SuppressWarnings("rawtypes")
+	public void asyncSubmit(List list) throws UsbException {
+		for (Object irp : list) {
+			asyncSubmit((UsbIrp) irp);
+		}
+	}
+
+	@Override
+	public void abortAllSubmissions() {
+		checkOpen();
+		mQueue.abort();
+	}
+
+	@Override
+	public UsbIrp createUsbIrp() {
+		return new DefaultUsbIrp();
+	}
+
+	@Override
+	public UsbControlIrp createUsbControlIrp(byte bmRequestType, byte bRequest, short wValue, short wIndex) {
+		return new DefaultUsbControlIrp(bmRequestType, bRequest, wValue, wIndex);
+	}
+
+	@Override
+	public void addUsbPipeListener(UsbPipeListener listener) {
+		mListeners.add(listener);
+	}
+
+	@Override
+	public void removeUsbPipeListener(UsbPipeListener listener) {
+		mListeners.remove(listener);
+	}
+
+	private void checkOpen() {
+		if (!mOpen) {
+			throw new UsbNotOpenException("Pipe is not open");
+		}
+	}
+
+	private boolean process(UsbIrp irp) {
+		if (mEndpoint.getType() == UsbConst.ENDPOINT_TYPE_INTERRUPT) {
+			if (mStatusReported || irp.getLength() < STATUS_LENGTH) {
+				return false;
+			}
+			mStatusReported = true;
+			final byte[] data = irp.getData();
+			for (int i = 0; i < STATUS_LENGTH; ++i) {
+				data[irp.getOffset() + i] = 0;
+			}
+			data[irp.getOffset() + STATUS_BYTE_IDX] = (byte) mEndpoint.getDevice().getModemStatus();
+			irp.setActualLength(STATUS_LENGTH);
+			return true;
+		}
+
+		if (mEndpoint.getDirection() == UsbConst.ENDPOINT_DIRECTION_IN) {
+			int done = 0;
+			while (done < irp.getLength()) {
+				final int chunk = Math.min(irp.getLength() - done, PATTERN.length);
+				System.arraycopy(PATTERN, 0, irp.getData(), irp.getOffset() + done, chunk);
+				done += chunk;
+			}
+		}
+		irp.setActualLength(irp.getLength());
+		return true;
+	}
+
+	private void fireEvent(UsbIrp irp) {
+		for (UsbPipeListener listener : mListeners) {
+			if (irp.isUsbException()) {
+				listener.errorEventOccurred(new UsbPipeErrorEvent(this, irp));
+			} else {
+				listener.dataEventOccurred(new UsbPipeDataEvent(this, irp));
+			}
+		}
+	}
+}
@@ -0,0 +1,59 @@
+package usbserial4j.driver;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+
+/**
+ * A bulk OUT IRP carrying one chunk of a synchronous write, kept in a pool
+ * and reused across writes. It either points at a region of the caller's
+ * array, or holds a copy of data from a direct buffer in an array of its own.
+ * The chunks of one write are linked in order through {@link #mNext}, so a
+ * write needs no list to track them.
+ */
+final class ChunkIrp extends ParkingUsbIrp {
+	private static final byte[] NO_DATA = new byte[0];
+
+	/** The next chunk of the same write, or {@code null}. */
+	ChunkIrp mNext = null;
+
+	/** The array copies are made in, grown as needed. */
+	private byte[] mBuffer = NO_DATA;
+
+	/**
+	 * Points the IRP at a region of the given array, without copying it.
+	 */
+	void wrap(byte[] data, int offset, int length) {
+		reset(data, offset, length);
+	}
+
+	/**
+	 * Copies a region of the given buffer into the array of the IRP. The
+	 * position of the buffer is left unchanged.
+	 *
+	 * @param src
+	 *            the source buffer
+	 * @param index
+	 *            the index of the first byte to copy
+	 * @param length
+	 *            the number of bytes to copy
+	 */
+	void copy(ByteBuffer src, int index, int length) {
+		if (mBuffer.length < length) {
+			mBuffer = new byte[length];
+		}
+		final int position = src.position();
+		((Buffer) src).position(index);
+		src.get(mBuffer, 0, length);
+		((Buffer) src).position(position);
+		reset(mBuffer, 0, length);
+	}
+
+	/**
+	 * Unlinks the IRP and drops its reference to the caller's array, before
+	 * it goes back to the pool.
+	 */
+	void clear() {
+		mNext = null;
+		setData(NO_DATA);
+	}
+}
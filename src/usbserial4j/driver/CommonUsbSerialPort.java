@@ -1,11 +1,15 @@
 package usbserial4j.driver;
 
 import java.io.IOException;
-import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
+import javax.management.ObjectName;
 import javax.usb.UsbDevice;
-import javax.usb.UsbDisconnectedException;
-import javax.usb.UsbException;
+import javax.usb.UsbEndpoint;
 
 /**
  * A base class shared by several driver implementations.
@@ -23,15 +27,129 @@ abstract class CommonUsbSerialPort implements UsbSerialPort {
 	// non-null when open()
 	protected UsbDeviceConnection mConnection = null;
 
-	protected final Object mReadBufferLock = new Object();
-	protected final Object mWriteBufferLock = new Object();
+	/**
+	 * The identity of the device, cached when the port is first opened so
+	 * that events need not read descriptors, or {@code null} before that.
+	 */
+	protected volatile DeviceInfo mDeviceInfo = null;
+
+	protected final Lock mReadBufferLock = new ReentrantLock();
+	protected final Lock mWriteBufferLock = new ReentrantLock();
 
 	/** Internal read buffer. Guarded by {@link #mReadBufferLock}. */
 	protected byte[] mReadBuffer;
 
+	/**
+	 * Number of bytes of the last single read that did not fit the caller's
+	 * buffer, kept in {@link #mReadBuffer} for the next read. Written with
+	 * {@link #mReadBufferLock} held, read without it.
+	 */
+	protected volatile int mReadRemainder = 0;
+
+	/**
+	 * Index of the first kept byte in {@link #mReadBuffer}. Guarded by
+	 * {@link #mReadBufferLock}.
+	 */
+	protected int mReadRemainderOffset = 0;
+
 	/** Internal write buffer. Guarded by {@link #mWriteBufferLock}. */
 	protected byte[] mWriteBuffer;
 
+	/**
+	 * Number of bulk IN IRPs kept queued, or 0 to read with a single IRP per
+	 * call. Guarded by {@link #mReadBufferLock}.
+	 */
+	protected int mReadQueueDepth = 0;
+
+	/**
+	 * Queue of bulk IN IRPs, non-null while the port is open and reading in
+	 * queued mode. Guarded by {@link #mReadBufferLock}.
+	 */
+	protected UsbReadQueue mReadQueue = null;
+
+	/**
+	 * Requested ring capacity for background receive, or 0 if disabled.
+	 * Guarded by {@link #mReadBufferLock}.
+	 */
+	protected int mReceiveBufferCapacity = 0;
+
+	/**
+	 * The background receiver, non-null while the port is open and receiving
+	 * in the background. Written with {@link #mReadBufferLock} held, read
+	 * without it.
+	 */
+	protected volatile UsbReceiver mReceiver = null;
+
+	/**
+	 * Told whenever the background receiver gets data or fails, or
+	 * {@code null}. Guarded by {@link #mReadBufferLock}.
+	 */
+	protected Runnable mReceiveListener = null;
+
+	/**
+	 * Maximum number of bulk OUT IRPs in flight, or 0 to wait for each chunk
+	 * before sending the next one. Guarded by {@link #mWriteBufferLock}.
+	 */
+	protected int mWriteQueueDepth = 0;
+
+	/**
+	 * Window of bulk OUT IRPs, non-null while the port is open and writing in
+	 * queued mode. Guarded by {@link #mWriteBufferLock}.
+	 */
+	protected UsbWriteQueue mWriteQueue = null;
+
+	/** The size of the write coalescing buffer, or 0 if disabled. */
+	protected volatile int mWriteCoalesceBytes = 0;
+
+	/** The time collected writes wait at most, in microseconds. */
+	protected volatile int mWriteCoalesceMicros = 0;
+
+	/**
+	 * Collects small writes, non-null while the port is open and coalescing
+	 * writes. Guarded by {@link #mWriteBufferLock}.
+	 */
+	protected UsbWriteCoalescer mWriteCoalescer = null;
+
+	/** The number of bytes a read collects before returning. */
+	protected volatile int mReadMinBytes = 0;
+
+	/** The time a read collects data after the first byte, in microseconds. */
+	protected volatile int mReadMaxWaitMicros = 0;
+
+	/** Whether transfer lengths and queue depths adapt to the traffic. */
+	protected volatile boolean mAdaptiveTransfers = false;
+
+	/**
+	 * The line rate set by the driver in characters per second, or 0 if
+	 * unknown. Guarded by {@link #mReadBufferLock}.
+	 */
+	protected int mLineRate = 0;
+
+	/**
+	 * Chooses the lengths of single reads in adaptive mode, created on first
+	 * use. Guarded by {@link #mReadBufferLock}.
+	 */
+	protected TransferSizer mReadSizer = null;
+
+	/** Whether {@link #close()} keeps the port warm. */
+	protected volatile boolean mKeepWarm = false;
+
+	protected final List<ModemStatusListener> mModemStatusListeners = new CopyOnWriteArrayList<ModemStatusListener>();
+
+	/** Told when the port is about to stop its transfers on close. */
+	protected final List<Runnable> mCloseListeners = new CopyOnWriteArrayList<Runnable>();
+
+	protected final UsbPortMetrics mMetrics = new UsbPortMetrics();
+
+	/** Orders the registrations of the metrics MBean. */
+	private final Lock mMetricsLock = new ReentrantLock();
+
+	/**
+	 * The name of the metrics MBean, chosen on first registration. Written
+	 * with {@link #mMetricsLock} held.
+	 */
+	private volatile ObjectName mMetricsName = null;
+
 	public CommonUsbSerialPort(UsbDevice device, int portNumber) {
 		mDevice = device;
 		mPortNumber = portNumber;
@@ -42,12 +160,9 @@ abstract class CommonUsbSerialPort implements UsbSerialPort {
 
 	@Override
 	public String toString() {
-		try {
-			return String.format("<%s device_name=%s device_id=%s port_number=%s>", getClass().getSimpleName(),
-					mDevice.getManufacturerString(), mDevice.getSerialNumberString(), mPortNumber);
-		} catch (UnsupportedEncodingException | UsbDisconnectedException | UsbException e) {
-			return null;
-		}
+		final DeviceInfo info = DeviceInfo.of(mDevice);
+		return String.format("<%s device_name=%s device_id=%s port_number=%s>", getClass().getSimpleName(),
+				info.getManufacturer(), info.getSerialNumber(), mPortNumber);
 	}
 
 	/**
@@ -59,6 +174,29 @@ abstract class CommonUsbSerialPort implements UsbSerialPort {
 		return mDevice;
 	}
 
+	/**
+	 * Returns the connection of the open port.
+	 *
+	 * @return the connection, or {@code null} if the port is closed
+	 */
+	final UsbDeviceConnection getConnection() {
+		return mConnection;
+	}
+
+	/**
+	 * Returns the bulk IN endpoint of the open port.
+	 *
+	 * @return the endpoint, or {@code null} if the port is closed
+	 */
+	abstract UsbEndpoint getReadEndpoint();
+
+	/**
+	 * Returns the bulk OUT endpoint of the open port.
+	 *
+	 * @return the endpoint, or {@code null} if the port is closed
+	 */
+	abstract UsbEndpoint getWriteEndpoint();
+
 	@Override
 	public int getPortNumber() {
 		return mPortNumber;
@@ -71,11 +209,7 @@ abstract class CommonUsbSerialPort implements UsbSerialPort {
 	 */
 	@Override
 	public String getSerial() {
-		try {
-			return mDevice.getSerialNumberString();
-		} catch (UnsupportedEncodingException | UsbDisconnectedException | UsbException e) {
-			return null;
-		}
+		return DeviceInfo.of(mDevice).getSerialNumber();
 	}
 
 	/**
@@ -86,14 +220,332 @@ abstract class CommonUsbSerialPort implements UsbSerialPort {
 	 *            the size in bytes
 	 */
 	public final void setReadBufferSize(int bufferSize) {
-		synchronized (mReadBufferLock) {
+		mReadBufferLock.lock();
+		try {
 			if (bufferSize == mReadBuffer.length) {
 				return;
 			}
-			mReadBuffer = new byte[bufferSize];
+			final byte[] buffer = new byte[bufferSize];
+			final int kept = Math.min(mReadRemainder, bufferSize);
+			System.arraycopy(mReadBuffer, mReadRemainderOffset, buffer, 0, kept);
+			mReadBuffer = buffer;
+			mReadRemainderOffset = 0;
+			mReadRemainder = kept;
+			mReadSizer = null;
+			stopReadQueue();
+		} finally {
+			mReadBufferLock.unlock();
+		}
+	}
+
+	@Override
+	public final void setReadQueueDepth(int depth) {
+		if (depth < 0) {
+			throw new IllegalArgumentException("Negative read queue depth: " + depth);
+		}
+		mReadBufferLock.lock();
+		try {
+			if (depth == mReadQueueDepth) {
+				return;
+			}
+			mReadQueueDepth = depth;
+			stopReadQueue();
+		} finally {
+			mReadBufferLock.unlock();
+		}
+	}
+
+	@Override
+	public final int getReadQueueDepth() {
+		mReadBufferLock.lock();
+		try {
+			return mReadQueueDepth;
+		} finally {
+			mReadBufferLock.unlock();
+		}
+	}
+
+	/**
+	 * Aborts the IRPs of the read queue, if any. The queue is recreated by the
+	 * driver on the next read.
+	 */
+	protected final void stopReadQueue() {
+		mReadBufferLock.lock();
+		try {
+			if (mReadQueue != null) {
+				mReadQueue.stop();
+				mReadQueue = null;
+			}
+		} finally {
+			mReadBufferLock.unlock();
+		}
+	}
+
+	@Override
+	public final void setReceiveBufferCapacity(int capacity) throws IOException {
+		if (capacity < 0) {
+			throw new IllegalArgumentException("Negative receive buffer capacity: " + capacity);
+		}
+		mReadBufferLock.lock();
+		try {
+			if (capacity == mReceiveBufferCapacity) {
+				return;
+			}
+			mReceiveBufferCapacity = capacity;
+			stopReceiver();
+			if (capacity > 0 && mConnection != null) {
+				stopReadQueue();
+				startReceiver();
+			}
+		} finally {
+			mReadBufferLock.unlock();
+		}
+	}
+
+	@Override
+	public final int getReceiveBufferCapacity() {
+		mReadBufferLock.lock();
+		try {
+			return mReceiveBufferCapacity;
+		} finally {
+			mReadBufferLock.unlock();
+		}
+	}
+
+	/**
+	 * Starts the background receiver with the requested capacity, reading
+	 * IRPs of the read buffer size. Must be called with
+	 * {@link #mReadBufferLock} held while the port is open.
+	 *
+	 * @throws IOException
+	 *             if receiving could not be started
+	 */
+	protected final void startReceiver() throws IOException {
+		final UsbReceiver receiver;
+		if (mAdaptiveTransfers) {
+			TransferSizer sizer = TransferSizer.of(getReadEndpoint(), mReadBuffer.length, mLineRate);
+			receiver = new UsbReceiver(mConnection, getReadEndpoint(), mReceiveBufferCapacity,
+					sizer.getQueueDepth(), mReadBuffer.length, sizer);
+		} else {
+			receiver = new UsbReceiver(mConnection, getReadEndpoint(), mReceiveBufferCapacity,
+					UsbReceiver.DEFAULT_DEPTH, mReadBuffer.length);
+		}
+		receiver.setListener(mReceiveListener);
+		receiver.start();
+		mReceiver = receiver;
+	}
+
+	/**
+	 * Sets the listener told whenever the background receiver gets data or
+	 * fails, on the IRP queue thread of the pipe. It carries over to the
+	 * receivers started later.
+	 *
+	 * @param listener
+	 *            the listener, or {@code null} for none
+	 */
+	final void setReceiveListener(Runnable listener) {
+		mReadBufferLock.lock();
+		try {
+			mReceiveListener = listener;
+			if (mReceiver != null) {
+				mReceiver.setListener(listener);
+			}
+		} finally {
+			mReadBufferLock.unlock();
+		}
+	}
+
+	/**
+	 * Adds a listener told when the port is closed, before its transfers are
+	 * stopped and while its pipes are still open, so that IRPs submitted by
+	 * others can be cancelled in time.
+	 *
+	 * @param listener
+	 *            the listener
+	 */
+	final void addCloseListener(Runnable listener) {
+		mCloseListeners.add(listener);
+	}
+
+	final void removeCloseListener(Runnable listener) {
+		mCloseListeners.remove(listener);
+	}
+
+	/**
+	 * Notifies all close listeners. Called by {@link #close()} before the
+	 * transfers of the port are stopped.
+	 */
+	protected final void fireClosing() {
+		for (Runnable listener : mCloseListeners) {
+			listener.run();
+		}
+	}
+
+	/**
+	 * @return whether the background receiver holds data or has failed, so a
+	 *         read returns without waiting
+	 */
+	final boolean isReadReady() {
+		final UsbReceiver receiver = mReceiver;
+		return receiver != null && receiver.isReadable();
+	}
+
+	/**
+	 * @return whether a write can start without waiting for the write queue;
+	 *         {@code false} while another thread is writing
+	 */
+	final boolean isWriteReady() {
+		if (!mWriteBufferLock.tryLock()) {
+			return false;
+		}
+		try {
+			return mWriteQueue == null || mWriteQueue.hasRoom();
+		} finally {
+			mWriteBufferLock.unlock();
+		}
+	}
+
+	/**
+	 * Stops the background receiver, if any.
+	 */
+	protected final void stopReceiver() {
+		mReadBufferLock.lock();
+		try {
+			if (mReceiver != null) {
+				mReceiver.stop();
+				mReceiver = null;
+			}
+		} finally {
+			mReadBufferLock.unlock();
+		}
+	}
+
+	@Override
+	public final void setReadCoalescing(int minBytes, int maxWaitMicros) {
+		if (minBytes < 0) {
+			throw new IllegalArgumentException("Negative minimum read size: " + minBytes);
+		}
+		if (maxWaitMicros < 0) {
+			throw new IllegalArgumentException("Negative maximum read wait: " + maxWaitMicros);
+		}
+		mReadMinBytes = minBytes;
+		mReadMaxWaitMicros = maxWaitMicros;
+	}
+
+	@Override
+	public final int getReadCoalescingMinBytes() {
+		return mReadMinBytes;
+	}
+
+	@Override
+	public final int getReadCoalescingMaxWaitMicros() {
+		return mReadMaxWaitMicros;
+	}
+
+	@Override
+	public final void setAdaptiveTransfers(boolean adaptive) throws IOException {
+		mReadBufferLock.lock();
+		try {
+			if (adaptive == mAdaptiveTransfers) {
+				return;
+			}
+			mAdaptiveTransfers = adaptive;
+			restartReading();
+		} finally {
+			mReadBufferLock.unlock();
 		}
 	}
 
+	@Override
+	public final boolean isAdaptiveTransfers() {
+		return mAdaptiveTransfers;
+	}
+
+	/**
+	 * Records the line rate set on the device. In adaptive mode, the read
+	 * queue and the background receiver are restarted with transfers sized
+	 * for the new rate.
+	 *
+	 * @param lineRate
+	 *            the line rate in characters per second, or 0 if unknown
+	 * @throws IOException
+	 *             if receiving could not be restarted
+	 */
+	protected final void setLineRate(int lineRate) throws IOException {
+		mReadBufferLock.lock();
+		try {
+			if (lineRate == mLineRate) {
+				return;
+			}
+			mLineRate = lineRate;
+			if (mAdaptiveTransfers) {
+				restartReading();
+			}
+		} finally {
+			mReadBufferLock.unlock();
+		}
+	}
+
+	/**
+	 * Drops the read sizer and the read queue, and restarts the background
+	 * receiver if it is running, so that they pick up new settings. Must be
+	 * called with {@link #mReadBufferLock} held.
+	 */
+	private void restartReading() throws IOException {
+		mReadSizer = null;
+		stopReadQueue();
+		if (mReceiver != null) {
+			stopReceiver();
+			startReceiver();
+		}
+	}
+
+	/**
+	 * Returns the sizer of single reads, creating it if necessary. Must be
+	 * called with {@link #mReadBufferLock} held while the port is open.
+	 *
+	 * @return the sizer, or {@code null} if adaptive transfers are disabled
+	 */
+	protected final TransferSizer getReadSizer() {
+		if (!mAdaptiveTransfers) {
+			return null;
+		}
+		if (mReadSizer == null) {
+			mReadSizer = TransferSizer.of(getReadEndpoint(), mReadBuffer.length, mLineRate);
+		}
+		return mReadSizer;
+	}
+
+	/**
+	 * Copies the bytes of {@link #mReadBuffer} from the given offset that fit
+	 * the destination, and keeps the rest for the next read. Must be called
+	 * with {@link #mReadBufferLock} held.
+	 *
+	 * @return the number of bytes copied
+	 */
+	protected final int handOut(int offset, int length, byte[] dest, int destOffset, int destLength) {
+		final int amount = Math.min(length, destLength);
+		System.arraycopy(mReadBuffer, offset, dest, destOffset, amount);
+		mReadRemainderOffset = offset + amount;
+		mReadRemainder = length - amount;
+		return amount;
+	}
+
+	/**
+	 * Copies the bytes of {@link #mReadBuffer} from the given offset that fit
+	 * the remaining space of the destination, and keeps the rest for the next
+	 * read. Must be called with {@link #mReadBufferLock} held.
+	 *
+	 * @return the number of bytes copied
+	 */
+	protected final int handOut(int offset, int length, ByteBuffer dest) {
+		final int amount = Math.min(length, dest.remaining());
+		dest.put(mReadBuffer, offset, amount);
+		mReadRemainderOffset = offset + amount;
+		mReadRemainder = length - amount;
+		return amount;
+	}
+
 	/**
 	 * Sets the size of the internal buffer used to exchange data with the USB
 	 * stack for write operations. Most users should not need to change this.
@@ -102,14 +554,194 @@ abstract class CommonUsbSerialPort implements UsbSerialPort {
 	 *            the size in bytes
 	 */
 	public final void setWriteBufferSize(int bufferSize) {
-		synchronized (mWriteBufferLock) {
+		mWriteBufferLock.lock();
+		try {
 			if (bufferSize == mWriteBuffer.length) {
 				return;
 			}
 			mWriteBuffer = new byte[bufferSize];
+		} finally {
+			mWriteBufferLock.unlock();
+		}
+	}
+
+	@Override
+	public final void setWriteQueueDepth(int depth) {
+		if (depth < 0) {
+			throw new IllegalArgumentException("Negative write queue depth: " + depth);
+		}
+		mWriteBufferLock.lock();
+		try {
+			mWriteQueueDepth = depth;
+		} finally {
+			mWriteBufferLock.unlock();
 		}
 	}
 
+	@Override
+	public final int getWriteQueueDepth() {
+		mWriteBufferLock.lock();
+		try {
+			return mWriteQueueDepth;
+		} finally {
+			mWriteBufferLock.unlock();
+		}
+	}
+
+	@Override
+	public final void setWriteCoalescing(int maxBytes, int maxDelayMicros) {
+		if (maxBytes < 0) {
+			throw new IllegalArgumentException("Negative write coalescing size: " + maxBytes);
+		}
+		if (maxDelayMicros < 0) {
+			throw new IllegalArgumentException("Negative write coalescing delay: " + maxDelayMicros);
+		}
+		mWriteBufferLock.lock();
+		try {
+			mWriteCoalesceBytes = maxBytes;
+			mWriteCoalesceMicros = maxDelayMicros;
+		} finally {
+			mWriteBufferLock.unlock();
+		}
+	}
+
+	@Override
+	public final int getWriteCoalescingMaxBytes() {
+		return mWriteCoalesceBytes;
+	}
+
+	@Override
+	public final int getWriteCoalescingMaxDelayMicros() {
+		return mWriteCoalesceMicros;
+	}
+
+	@Override
+	public void flush(int timeoutMillis) throws IOException {
+		mWriteBufferLock.lock();
+		try {
+			if (mWriteCoalescer != null) {
+				mWriteCoalescer.flush(timeoutMillis);
+			}
+			if (mWriteQueue != null) {
+				mWriteQueue.flush(timeoutMillis);
+			}
+		} finally {
+			mWriteBufferLock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the write queue matching the current depth and write buffer
+	 * size. An existing queue with different settings is flushed and stopped,
+	 * and a new one is started if queueing is enabled. Must be called with
+	 * {@link #mWriteBufferLock} held.
+	 *
+	 * @param endpoint
+	 *            the bulk OUT endpoint of the port
+	 * @param timeoutMillis
+	 *            the time to wait for chunks of a retired queue
+	 * @return the queue, or {@code null} if queueing is disabled
+	 * @throws IOException
+	 *             if a retired queue failed to flush, or the new queue could
+	 *             not be started
+	 */
+	protected final UsbWriteQueue getWriteQueue(UsbEndpoint endpoint, int timeoutMillis) throws IOException {
+		if (mWriteQueue != null && (mWriteQueue.getWindow() != mWriteQueueDepth
+				|| mWriteQueue.getChunkSize() != mWriteBuffer.length)) {
+			stopWriteQueue(timeoutMillis);
+		}
+		if (mWriteQueue == null && mWriteQueueDepth > 0) {
+			UsbWriteQueue writeQueue = new UsbWriteQueue(mConnection, endpoint, mWriteQueueDepth,
+					mWriteBuffer.length);
+			writeQueue.start();
+			mWriteQueue = writeQueue;
+		}
+		return mWriteQueue;
+	}
+
+	/**
+	 * Flushes and stops the write queue, if any.
+	 *
+	 * @param timeoutMillis
+	 *            the time to wait for each chunk still in flight
+	 * @throws IOException
+	 *             if a chunk failed or did not complete in time
+	 */
+	protected final void stopWriteQueue(int timeoutMillis) throws IOException {
+		mWriteBufferLock.lock();
+		try {
+			if (mWriteQueue != null) {
+				try {
+					mWriteQueue.stop(timeoutMillis);
+				} finally {
+					mWriteQueue = null;
+				}
+			}
+		} finally {
+			mWriteBufferLock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the write coalescer matching the current settings. An existing
+	 * coalescer with different settings sends its data and is stopped, and a
+	 * new one is created if coalescing is enabled. Must be called with
+	 * {@link #mWriteBufferLock} held.
+	 *
+	 * @param sink
+	 *            sends the collected data
+	 * @param timeoutMillis
+	 *            the timeout for sending the data of a retired coalescer
+	 * @return the coalescer, or {@code null} if coalescing is disabled
+	 * @throws IOException
+	 *             if a retired coalescer failed to send its data
+	 */
+	protected final UsbWriteCoalescer getWriteCoalescer(UsbWriteCoalescer.Sink sink, int timeoutMillis)
+			throws IOException {
+		if (mWriteCoalescer != null && (mWriteCoalescer.getMaxBytes() != mWriteCoalesceBytes
+				|| mWriteCoalescer.getMaxDelayMicros() != mWriteCoalesceMicros)) {
+			stopWriteCoalescer(timeoutMillis);
+		}
+		if (mWriteCoalescer == null && mWriteCoalesceBytes > 0) {
+			mWriteCoalescer = new UsbWriteCoalescer(mWriteBufferLock, sink, mMetrics, mWriteCoalesceBytes,
+					mWriteCoalesceMicros);
+		}
+		return mWriteCoalescer;
+	}
+
+	/**
+	 * Sends the data collected by the write coalescer and stops it, if any.
+	 *
+	 * @param timeoutMillis
+	 *            the timeout for sending the data
+	 * @throws IOException
+	 *             if the data could not be sent
+	 */
+	protected final void stopWriteCoalescer(int timeoutMillis) throws IOException {
+		mWriteBufferLock.lock();
+		try {
+			if (mWriteCoalescer != null) {
+				try {
+					mWriteCoalescer.stop(timeoutMillis);
+				} finally {
+					mWriteCoalescer = null;
+				}
+			}
+		} finally {
+			mWriteBufferLock.unlock();
+		}
+	}
+
+	@Override
+	public void setKeepWarm(boolean keepWarm) throws IOException {
+		mKeepWarm = keepWarm;
+	}
+
+	@Override
+	public final boolean isKeepWarm() {
+		return mKeepWarm;
+	}
+
 	@Override
 	public abstract void open(UsbDeviceConnection connection) throws IOException;
 
@@ -122,6 +754,15 @@ abstract class CommonUsbSerialPort implements UsbSerialPort {
 	@Override
 	public abstract int write(final byte[] src, final int timeoutMillis) throws IOException;
 
+	@Override
+	public abstract int read(final ByteBuffer dest, final int timeoutMillis) throws IOException;
+
+	@Override
+	public abstract int write(final ByteBuffer src, final int timeoutMillis) throws IOException;
+
+	@Override
+	public abstract long write(final ByteBuffer[] srcs, final int timeoutMillis) throws IOException;
+
 	@Override
 	public abstract void setParameters(int baudRate, int dataBits, int stopBits, int parity) throws IOException;
 
@@ -134,6 +775,30 @@ abstract class CommonUsbSerialPort implements UsbSerialPort {
 	@Override
 	public abstract boolean getDSR() throws IOException;
 
+	@Override
+	public void addModemStatusListener(ModemStatusListener listener) {
+		mModemStatusListeners.add(listener);
+	}
+
+	@Override
+	public void removeModemStatusListener(ModemStatusListener listener) {
+		mModemStatusListeners.remove(listener);
+	}
+
+	/**
+	 * Notifies all modem status listeners.
+	 *
+	 * @param lines
+	 *            the lines that are set
+	 * @param changed
+	 *            the lines that changed
+	 */
+	protected final void fireModemStatusChanged(int lines, int changed) {
+		for (ModemStatusListener listener : mModemStatusListeners) {
+			listener.onModemStatusChanged(this, lines, changed);
+		}
+	}
+
 	@Override
 	public abstract boolean getDTR() throws IOException;
 
@@ -154,4 +819,40 @@ abstract class CommonUsbSerialPort implements UsbSerialPort {
 		return !flushReadBuffers && !flushWriteBuffers;
 	}
 
+	@Override
+	public final UsbPortMetrics getMetrics() {
+		return mMetrics;
+	}
+
+	/**
+	 * Publishes the metrics MBean of the port, under the same name each time
+	 * the port is opened.
+	 */
+	protected final void registerMetrics() {
+		// Describing the device reads its string descriptors, so not under the lock
+		final ObjectName name = (mMetricsName != null ? null
+				: UsbMBeans.newName("UsbSerialPort", UsbMBeans.describe(mDevice) + " port " + mPortNumber));
+		mMetricsLock.lock();
+		try {
+			if (mMetricsName == null) {
+				mMetricsName = name;
+			}
+			UsbMBeans.register(mMetricsName, mMetrics);
+		} finally {
+			mMetricsLock.unlock();
+		}
+	}
+
+	/**
+	 * Withdraws the metrics MBean of the port, if it is published.
+	 */
+	protected final void unregisterMetrics() {
+		mMetricsLock.lock();
+		try {
+			UsbMBeans.unregister(mMetricsName);
+		} finally {
+			mMetricsLock.unlock();
+		}
+	}
+
 }
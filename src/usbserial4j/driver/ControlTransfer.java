@@ -0,0 +1,88 @@
+package usbserial4j.driver;
+
+/**
+ * One step of a control transfer sequence, for
+ * {@link UsbDeviceConnection#controlTransfer(java.util.List, int)}. The
+ * fields have the same meaning as the parameters of
+ * {@link UsbDeviceConnection#controlTransfer(int, int, int, int, byte[], int, int, int)}.
+ */
+public final class ControlTransfer {
+	final int requestType;
+	final int request;
+	final int value;
+	final int index;
+	final byte[] buffer;
+	final int offset;
+	final int length;
+
+	/**
+	 * Creates a step without a data stage.
+	 *
+	 * @param requestType
+	 *            request type for this transaction
+	 * @param request
+	 *            request ID for this transaction
+	 * @param value
+	 *            value field for this transaction
+	 * @param index
+	 *            index field for this transaction
+	 */
+	public ControlTransfer(int requestType, int request, int value, int index) {
+		this(requestType, request, value, index, null, 0, 0);
+	}
+
+	/**
+	 * Creates a step transferring data starting from index 0 in the buffer.
+	 *
+	 * @param requestType
+	 *            request type for this transaction
+	 * @param request
+	 *            request ID for this transaction
+	 * @param value
+	 *            value field for this transaction
+	 * @param index
+	 *            index field for this transaction
+	 * @param buffer
+	 *            buffer for data portion of transaction, or null if no data
+	 *            needs to be sent or received
+	 * @param length
+	 *            the length of the data to send or receive
+	 */
+	public ControlTransfer(int requestType, int request, int value, int index, byte[] buffer, int length) {
+		this(requestType, request, value, index, buffer, 0, length);
+	}
+
+	/**
+	 * Creates a step.
+	 *
+	 * @param requestType
+	 *            request type for this transaction
+	 * @param request
+	 *            request ID for this transaction
+	 * @param value
+	 *            value field for this transaction
+	 * @param index
+	 *            index field for this transaction
+	 * @param buffer
+	 *            buffer for data portion of transaction, or null if no data
+	 *            needs to be sent or received
+	 * @param offset
+	 *            the index of the first byte in the buffer to send or receive
+	 * @param length
+	 *            the length of the data to send or receive
+	 */
+	public ControlTransfer(int requestType, int request, int value, int index, byte[] buffer, int offset,
+			int length) {
+		final int bufferLength = (buffer != null ? buffer.length : 0);
+		if (offset < 0 || length < 0 || offset + length > bufferLength) {
+			throw new IllegalArgumentException("Buffer start or length out of bounds.");
+		}
+		this.requestType = requestType;
+		this.request = request;
+		this.value = value;
+		this.index = index;
+		this.buffer = buffer;
+		this.offset = offset;
+		this.length = length;
+	}
+}
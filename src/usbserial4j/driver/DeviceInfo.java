@@ -0,0 +1,254 @@
+package usbserial4j.driver;
+
+import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.usb.UsbDevice;
+import javax.usb.UsbDeviceDescriptor;
+import javax.usb.UsbDisconnectedException;
+import javax.usb.UsbException;
+import javax.usb.event.UsbDeviceDataEvent;
+import javax.usb.event.UsbDeviceErrorEvent;
+import javax.usb.event.UsbDeviceEvent;
+import javax.usb.event.UsbDeviceListener;
+
+import usbserial4j.util.UsbUtil;
+
+/**
+ * An immutable snapshot of the identity of a device: its device descriptor,
+ * both as raw bytes and decoded, and its manufacturer, product and serial
+ * number strings.
+ * <p>
+ * Reading the strings costs a control transfer each, so the snapshot is built
+ * once per device, on the first call to {@link #of(UsbDevice)}, and cached
+ * until the device is detached. Snapshots of devices that are already
+ * detached are not cached.
+ * </p>
+ */
+public final class DeviceInfo {
+
+	/** Length of the standard device descriptor in bytes. */
+	public static final int DEVICE_DESCRIPTOR_LENGTH = 18;
+
+	/** The cached snapshots, held by the listeners that drop them. */
+	private static final ConcurrentMap<UsbDevice, DetachListener> CACHE = new ConcurrentHashMap<UsbDevice, DetachListener>();
+
+	private final byte[] mDescriptor;
+	private final int mVendorId;
+	private final int mProductId;
+	private final int mDeviceClass;
+	private final int mDeviceSubclass;
+	private final int mDeviceProtocol;
+	private final int mMaxPacketSize0;
+	private final int mUsbVersion;
+	private final int mDeviceVersion;
+	private final int mNumConfigurations;
+	private final String mManufacturer;
+	private final String mProduct;
+	private final String mSerialNumber;
+
+	private DeviceInfo(UsbDevice device) {
+		final UsbDeviceDescriptor descriptor = device.getUsbDeviceDescriptor();
+		mVendorId = descriptor.idVendor() & 0xffff;
+		mProductId = descriptor.idProduct() & 0xffff;
+		mDeviceClass = descriptor.bDeviceClass() & 0xff;
+		mDeviceSubclass = descriptor.bDeviceSubClass() & 0xff;
+		mDeviceProtocol = descriptor.bDeviceProtocol() & 0xff;
+		mMaxPacketSize0 = descriptor.bMaxPacketSize0() & 0xff;
+		mUsbVersion = descriptor.bcdUSB() & 0xffff;
+		mDeviceVersion = descriptor.bcdDevice() & 0xffff;
+		mNumConfigurations = descriptor.bNumConfigurations() & 0xff;
+
+		mDescriptor = new byte[DEVICE_DESCRIPTOR_LENGTH];
+		mDescriptor[0] = (byte) DEVICE_DESCRIPTOR_LENGTH;
+		mDescriptor[1] = descriptor.bDescriptorType();
+		putShort(mDescriptor, 2, mUsbVersion);
+		mDescriptor[4] = (byte) mDeviceClass;
+		mDescriptor[5] = (byte) mDeviceSubclass;
+		mDescriptor[6] = (byte) mDeviceProtocol;
+		mDescriptor[7] = (byte) mMaxPacketSize0;
+		putShort(mDescriptor, 8, mVendorId);
+		putShort(mDescriptor, 10, mProductId);
+		putShort(mDescriptor, 12, mDeviceVersion);
+		mDescriptor[14] = descriptor.iManufacturer();
+		mDescriptor[15] = descriptor.iProduct();
+		mDescriptor[16] = descriptor.iSerialNumber();
+		mDescriptor[17] = (byte) mNumConfigurations;
+
+		mManufacturer = readString(device, descriptor.iManufacturer());
+		mProduct = readString(device, descriptor.iProduct());
+		mSerialNumber = readString(device, descriptor.iSerialNumber());
+	}
+
+	/**
+	 * Returns the snapshot of the given device, building it on the first call.
+	 *
+	 * @param device
+	 *            the device
+	 * @return the snapshot
+	 */
+	public static DeviceInfo of(UsbDevice device) {
+		final DetachListener cached = CACHE.get(device);
+		if (cached != null) {
+			return cached.mInfo;
+		}
+
+		final DeviceInfo info = new DeviceInfo(device);
+		if (!UsbUtil.isAttached(device)) {
+			return info;
+		}
+		final DetachListener listener = new DetachListener(device, info);
+		final DetachListener existing = CACHE.putIfAbsent(device, listener);
+		if (existing != null) {
+			return existing.mInfo;
+		}
+		device.addUsbDeviceListener(listener);
+		if (!UsbUtil.isAttached(device)) {
+			// Detached before the listener was added
+			invalidate(device);
+		}
+		return info;
+	}
+
+	/**
+	 * Drops the cached snapshot of the given device, so that the next call to
+	 * {@link #of(UsbDevice)} reads the device again. Called automatically when
+	 * the device is detached.
+	 *
+	 * @param device
+	 *            the device
+	 */
+	public static void invalidate(UsbDevice device) {
+		final DetachListener listener = CACHE.remove(device);
+		if (listener != null) {
+			device.removeUsbDeviceListener(listener);
+		}
+	}
+
+	/**
+	 * @return a copy of the device descriptor, in its wire format
+	 */
+	public byte[] getDescriptor() {
+		return Arrays.copyOf(mDescriptor, mDescriptor.length);
+	}
+
+	public int getVendorId() {
+		return mVendorId;
+	}
+
+	public int getProductId() {
+		return mProductId;
+	}
+
+	public int getDeviceClass() {
+		return mDeviceClass;
+	}
+
+	public int getDeviceSubclass() {
+		return mDeviceSubclass;
+	}
+
+	public int getDeviceProtocol() {
+		return mDeviceProtocol;
+	}
+
+	/**
+	 * @return the maximum packet size of endpoint zero
+	 */
+	public int getMaxPacketSize0() {
+		return mMaxPacketSize0;
+	}
+
+	/**
+	 * @return the USB specification release number, in binary-coded decimal
+	 */
+	public int getUsbVersion() {
+		return mUsbVersion;
+	}
+
+	/**
+	 * @return the device release number, in binary-coded decimal
+	 */
+	public int getDeviceVersion() {
+		return mDeviceVersion;
+	}
+
+	public int getNumConfigurations() {
+		return mNumConfigurations;
+	}
+
+	/**
+	 * @return the manufacturer string, or {@code null} if the device has none
+	 *         or it could not be read
+	 */
+	public String getManufacturer() {
+		return mManufacturer;
+	}
+
+	/**
+	 * @return the product string, or {@code null} if the device has none or
+	 *         it could not be read
+	 */
+	public String getProduct() {
+		return mProduct;
+	}
+
+	/**
+	 * @return the serial number string, or {@code null} if the device has none
+	 *         or it could not be read
+	 */
+	public String getSerialNumber() {
+		return mSerialNumber;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("<DeviceInfo vendor_id=%04x product_id=%04x manufacturer=%s product=%s serial=%s>",
+				mVendorId, mProductId, mManufacturer, mProduct, mSerialNumber);
+	}
+
+	private static void putShort(byte[] buffer, int offset, int value) {
+		buffer[offset] = (byte) value;
+		buffer[offset + 1] = (byte) (value >> 8);
+	}
+
+	private static String readString(UsbDevice device, byte index) {
+		if (index == 0) {
+			return null;
+		}
+		try {
+			return device.getString(index);
+		} catch (UnsupportedEncodingException | UsbDisconnectedException | UsbException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Drops the snapshot of a device when it is detached.
+	 */
+	private static final class DetachListener implements UsbDeviceListener {
+		private final UsbDevice mDevice;
+		private final DeviceInfo mInfo;
+
+		DetachListener(UsbDevice device, DeviceInfo info) {
+			mDevice = device;
+			mInfo = info;
+		}
+
+		@Override
+		public void usbDeviceDetached(UsbDeviceEvent event) {
+			invalidate(mDevice);
+			mDevice.removeUsbDeviceListener(this);
+		}
+
+		@Override
+		public void errorEventOccurred(UsbDeviceErrorEvent event) {
+		}
+
+		@Override
+		public void dataEventOccurred(UsbDeviceDataEvent event) {
+		}
+	}
+}
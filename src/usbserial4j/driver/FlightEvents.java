@@ -0,0 +1,181 @@
+package usbserial4j.driver;
+
+import javax.usb.UsbIrp;
+
+/**
+ * Java Flight Recorder events of the USB transfers and of the port
+ * lifecycle, so that latency spikes can be lined up with GC pauses and
+ * thread scheduling in the same recording.
+ * <p>
+ * The events themselves live in {@link JfrEvents}, which is only loaded if
+ * the runtime has {@code jdk.jfr}; on older runtimes every {@code begin}
+ * method returns {@code null}. The {@code begin} methods also return
+ * {@code null} when the event is disabled, and the callers skip the event
+ * then. An event is only allocated once it is known to be enabled.
+ * </p>
+ * <p>
+ * Transfer events have a default threshold of 1 ms, port events none. Both
+ * can be changed in the recording settings, e.g.
+ * {@code usbserial4j.ControlTransfer#threshold=0 ms}.
+ * </p>
+ */
+final class FlightEvents {
+
+	static final String OUTCOME_OK = "OK";
+	static final String OUTCOME_TIMEOUT = "Timeout";
+
+	/** The recorder of the events, or {@code null} without Flight Recorder. */
+	private static final Recorder RECORDER = loadRecorder();
+
+	private FlightEvents() {
+	}
+
+	/**
+	 * A bulk or interrupt transfer, from submission to completion.
+	 */
+	interface BulkTransfer {
+		/**
+		 * Ends the event and commits it if it passes the threshold.
+		 */
+		void finish(int endpoint, int length, int actualLength, String outcome);
+	}
+
+	/**
+	 * A control transfer on endpoint zero, from submission to completion.
+	 */
+	interface ControlTransfer {
+		/**
+		 * Ends the event and commits it if it passes the threshold.
+		 */
+		void finish(int requestType, int request, int value, int index, int length, int actualLength,
+				String outcome);
+	}
+
+	/**
+	 * A call on a serial port, from its start to its return.
+	 */
+	interface PortOperation {
+		/**
+		 * Ends the event and commits it if it passes the threshold.
+		 *
+		 * @param info
+		 *            the identity of the device as cached by the port, or
+		 *            {@code null} if it is not known yet
+		 * @param portNumber
+		 *            the number of the port
+		 * @param failure
+		 *            the exception the operation threw, or {@code null}
+		 */
+		void finish(DeviceInfo info, int portNumber, Throwable failure);
+	}
+
+	interface PortOpen extends PortOperation {
+		void setWarm(boolean warm);
+	}
+
+	interface PortClose extends PortOperation {
+		void setKeptWarm(boolean keptWarm);
+	}
+
+	interface PortParameters extends PortOperation {
+		void setParameters(int baudRate, int dataBits, int stopBits, int parity);
+	}
+
+	/**
+	 * Creates the events. Implemented by {@link JfrEvents}.
+	 */
+	interface Recorder {
+		BulkTransfer beginBulkTransfer();
+
+		ControlTransfer beginControlTransfer();
+
+		PortOpen beginPortOpen();
+
+		PortClose beginPortClose();
+
+		PortParameters beginPortParameters();
+
+		void modemLinesChanged(DeviceInfo info, int portNumber, int lines, int changed);
+	}
+
+	/**
+	 * Returns the outcome of a transfer, as recorded in the events.
+	 *
+	 * @param irp
+	 *            the IRP, complete or not
+	 * @return {@link #OUTCOME_OK}, {@link #OUTCOME_TIMEOUT}, or the simple
+	 *         name of the exception the IRP failed with
+	 */
+	static String outcomeOf(UsbIrp irp) {
+		if (!irp.isComplete()) {
+			return OUTCOME_TIMEOUT;
+		}
+		return (irp.isUsbException() ? outcomeOf(irp.getUsbException()) : OUTCOME_OK);
+	}
+
+	/**
+	 * @return the simple name of the exception, or {@link #OUTCOME_OK} if
+	 *         there is none
+	 */
+	static String outcomeOf(Throwable e) {
+		return (e != null ? e.getClass().getSimpleName() : OUTCOME_OK);
+	}
+
+	static BulkTransfer beginBulkTransfer() {
+		return (RECORDER != null ? RECORDER.beginBulkTransfer() : null);
+	}
+
+	static ControlTransfer beginControlTransfer() {
+		return (RECORDER != null ? RECORDER.beginControlTransfer() : null);
+	}
+
+	static PortOpen beginPortOpen() {
+		return (RECORDER != null ? RECORDER.beginPortOpen() : null);
+	}
+
+	static PortClose beginPortClose() {
+		return (RECORDER != null ? RECORDER.beginPortClose() : null);
+	}
+
+	static PortParameters beginPortParameters() {
+		return (RECORDER != null ? RECORDER.beginPortParameters() : null);
+	}
+
+	/**
+	 * Records a change of the modem lines reported by a port.
+	 *
+	 * @param info
+	 *            the identity of the device as cached by the port, or
+	 *            {@code null}
+	 * @param portNumber
+	 *            the number of the port
+	 * @param lines
+	 *            the lines that are set
+	 * @param changed
+	 *            the lines that changed
+	 */
+	static void modemLinesChanged(DeviceInfo info, int portNumber, int lines, int changed) {
+		if (RECORDER != null) {
+			RECORDER.modemLinesChanged(info, portNumber, lines, changed);
+		}
+	}
+
+	/**
+	 * Loads {@link JfrEvents} by name if the runtime has Flight Recorder, so
+	 * that no {@code jdk.jfr} class is touched on runtimes without it.
+	 */
+	private static Recorder loadRecorder() {
+		final ClassLoader loader = FlightEvents.class.getClassLoader();
+		try {
+			Class.forName("jdk.jfr.FlightRecorder", false, loader);
+		} catch (ClassNotFoundException e) {
+			return null;
+		}
+		try {
+			return (Recorder) Class.forName("usbserial4j.driver.JfrEvents", true, loader)
+					.getDeclaredConstructor().newInstance();
+		} catch (ReflectiveOperationException | LinkageError e) {
+			return null;
+		}
+	}
+}
@@ -0,0 +1,290 @@
+package usbserial4j.driver;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * The Flight Recorder events behind {@link FlightEvents}. This class is only
+ * loaded, by name, on runtimes that have {@code jdk.jfr}.
+ * <p>
+ * Whether an event is enabled is read from its {@link EventType} before the
+ * event is allocated, so a disabled event costs a field read and no garbage.
+ * </p>
+ */
+final class JfrEvents implements FlightEvents.Recorder {
+
+	private final EventType mBulkTransferType = EventType.getEventType(BulkTransfer.class);
+	private final EventType mControlTransferType = EventType.getEventType(ControlTransfer.class);
+	private final EventType mPortOpenType = EventType.getEventType(PortOpen.class);
+	private final EventType mPortCloseType = EventType.getEventType(PortClose.class);
+	private final EventType mPortParametersType = EventType.getEventType(PortParameters.class);
+	private final EventType mModemLinesChangeType = EventType.getEventType(ModemLinesChange.class);
+
+	@Override
+	public FlightEvents.BulkTransfer beginBulkTransfer() {
+		if (!mBulkTransferType.isEnabled()) {
+			return null;
+		}
+		final BulkTransfer event = new BulkTransfer();
+		event.begin();
+		return event;
+	}
+
+	@Override
+	public FlightEvents.ControlTransfer beginControlTransfer() {
+		if (!mControlTransferType.isEnabled()) {
+			return null;
+		}
+		final ControlTransfer event = new ControlTransfer();
+		event.begin();
+		return event;
+	}
+
+	@Override
+	public FlightEvents.PortOpen beginPortOpen() {
+		if (!mPortOpenType.isEnabled()) {
+			return null;
+		}
+		final PortOpen event = new PortOpen();
+		event.begin();
+		return event;
+	}
+
+	@Override
+	public FlightEvents.PortClose beginPortClose() {
+		if (!mPortCloseType.isEnabled()) {
+			return null;
+		}
+		final PortClose event = new PortClose();
+		event.begin();
+		return event;
+	}
+
+	@Override
+	public FlightEvents.PortParameters beginPortParameters() {
+		if (!mPortParametersType.isEnabled()) {
+			return null;
+		}
+		final PortParameters event = new PortParameters();
+		event.begin();
+		return event;
+	}
+
+	@Override
+	public void modemLinesChanged(DeviceInfo info, int portNumber, int lines, int changed) {
+		if (!mModemLinesChangeType.isEnabled()) {
+			return;
+		}
+		final ModemLinesChange event = new ModemLinesChange();
+		if (event.shouldCommit()) {
+			event.setPort(info, portNumber);
+			event.lines = lines;
+			event.changed = changed;
+			event.commit();
+		}
+	}
+
+	@Name("usbserial4j.BulkTransfer")
+	@Label("USB Bulk Transfer")
+	@Description("A bulk or interrupt transfer, from submission to completion")
+	@Category({ "usbserial4j", "USB" })
+	@Threshold("1 ms")
+	@StackTrace(false)
+	static final class BulkTransfer extends Event implements FlightEvents.BulkTransfer {
+		@Label("Endpoint")
+		@Description("The address of the endpoint, with the direction bit")
+		int endpoint;
+
+		@Label("Length")
+		@DataAmount
+		int length;
+
+		@Label("Actual Length")
+		@DataAmount
+		int actualLength;
+
+		@Label("Outcome")
+		String outcome;
+
+		@Override
+		public void finish(int endpoint, int length, int actualLength, String outcome) {
+			end();
+			if (shouldCommit()) {
+				this.endpoint = endpoint;
+				this.length = length;
+				this.actualLength = actualLength;
+				this.outcome = outcome;
+				commit();
+			}
+		}
+	}
+
+	@Name("usbserial4j.ControlTransfer")
+	@Label("USB Control Transfer")
+	@Description("A control transfer on endpoint zero, from submission to completion")
+	@Category({ "usbserial4j", "USB" })
+	@Threshold("1 ms")
+	@StackTrace(false)
+	static final class ControlTransfer extends Event implements FlightEvents.ControlTransfer {
+		@Label("Request Type")
+		int requestType;
+
+		@Label("Request")
+		int request;
+
+		@Label("Value")
+		int value;
+
+		@Label("Index")
+		int index;
+
+		@Label("Length")
+		@DataAmount
+		int length;
+
+		@Label("Actual Length")
+		@DataAmount
+		int actualLength;
+
+		@Label("Outcome")
+		String outcome;
+
+		@Override
+		public void finish(int requestType, int request, int value, int index, int length, int actualLength,
+				String outcome) {
+			end();
+			if (shouldCommit()) {
+				this.requestType = requestType & 0xff;
+				this.request = request & 0xff;
+				this.value = value & 0xffff;
+				this.index = index & 0xffff;
+				this.length = length;
+				this.actualLength = actualLength;
+				this.outcome = outcome;
+				commit();
+			}
+		}
+	}
+
+	/**
+	 * Fields shared by the events of a serial port.
+	 */
+	@Category({ "usbserial4j", "Serial Port" })
+	abstract static class PortEvent extends Event {
+		@Label("Vendor Id")
+		int vendorId;
+
+		@Label("Product Id")
+		int productId;
+
+		@Label("Serial Number")
+		String serialNumber;
+
+		@Label("Port Number")
+		int portNumber;
+
+		/**
+		 * Fills in the port from values cached by the port, so that no
+		 * descriptor is read while the event commits.
+		 */
+		void setPort(DeviceInfo info, int portNumber) {
+			if (info != null) {
+				vendorId = info.getVendorId();
+				productId = info.getProductId();
+				serialNumber = info.getSerialNumber();
+			}
+			this.portNumber = portNumber;
+		}
+	}
+
+	/**
+	 * A call on a serial port, from its start to its return.
+	 */
+	abstract static class PortOperation extends PortEvent implements FlightEvents.PortOperation {
+		@Label("Outcome")
+		String outcome;
+
+		@Override
+		public void finish(DeviceInfo info, int portNumber, Throwable failure) {
+			end();
+			if (shouldCommit()) {
+				setPort(info, portNumber);
+				outcome = FlightEvents.outcomeOf(failure);
+				commit();
+			}
+		}
+	}
+
+	@Name("usbserial4j.PortOpen")
+	@Label("Serial Port Open")
+	@Threshold("0 ms")
+	static final class PortOpen extends PortOperation implements FlightEvents.PortOpen {
+		@Label("Warm")
+		@Description("Whether the port was reopened on the connection it was kept warm on")
+		boolean warm;
+
+		@Override
+		public void setWarm(boolean warm) {
+			this.warm = warm;
+		}
+	}
+
+	@Name("usbserial4j.PortClose")
+	@Label("Serial Port Close")
+	@Threshold("0 ms")
+	static final class PortClose extends PortOperation implements FlightEvents.PortClose {
+		@Label("Kept Warm")
+		boolean keptWarm;
+
+		@Override
+		public void setKeptWarm(boolean keptWarm) {
+			this.keptWarm = keptWarm;
+		}
+	}
+
+	@Name("usbserial4j.PortParameters")
+	@Label("Serial Port Parameters")
+	@Threshold("0 ms")
+	static final class PortParameters extends PortOperation implements FlightEvents.PortParameters {
+		@Label("Baud Rate")
+		int baudRate;
+
+		@Label("Data Bits")
+		int dataBits;
+
+		@Label("Stop Bits")
+		int stopBits;
+
+		@Label("Parity")
+		int parity;
+
+		@Override
+		public void setParameters(int baudRate, int dataBits, int stopBits, int parity) {
+			this.baudRate = baudRate;
+			this.dataBits = dataBits;
+			this.stopBits = stopBits;
+			this.parity = parity;
+		}
+	}
+
+	@Name("usbserial4j.ModemLinesChange")
+	@Label("Modem Lines Change")
+	@Description("A change of the modem lines reported by the status endpoint")
+	@StackTrace(false)
+	static final class ModemLinesChange extends PortEvent {
+		@Label("Lines")
+		@Description("The lines that are set, a combination of the LINE flags of UsbSerialPort")
+		int lines;
+
+		@Label("Changed")
+		@Description("The lines that changed")
+		int changed;
+	}
+}
@@ -0,0 +1,173 @@
+package usbserial4j.driver;
+
+import java.beans.ConstructorProperties;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of latencies with one bucket per power of two nanoseconds.
+ * <p>
+ * Recording increments a few atomic counters; it neither blocks nor
+ * allocates, so histograms can stay enabled on every transfer. The price is
+ * the resolution: percentiles are reported as the upper bound of their
+ * bucket, which is at most twice the actual value.
+ * </p>
+ */
+public final class LatencyHistogram {
+
+	/**
+	 * Bucket {@code i} holds the values below {@code 2^i} and at least
+	 * {@code 2^(i-1)}, bucket 0 the value 0.
+	 */
+	private static final int BUCKETS = 64;
+
+	private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKETS);
+	private final AtomicLong mCount = new AtomicLong();
+	private final AtomicLong mSum = new AtomicLong();
+	private final AtomicLong mMax = new AtomicLong();
+
+	/**
+	 * Records a latency.
+	 *
+	 * @param nanos
+	 *            the latency in nanoseconds, negative values count as 0
+	 */
+	public void record(long nanos) {
+		if (nanos < 0) {
+			nanos = 0;
+		}
+		mBuckets.incrementAndGet(BUCKETS - Long.numberOfLeadingZeros(nanos));
+		mCount.incrementAndGet();
+		mSum.addAndGet(nanos);
+		long max = mMax.get();
+		while (nanos > max && !mMax.compareAndSet(max, nanos)) {
+			max = mMax.get();
+		}
+	}
+
+	/**
+	 * Records the time elapsed since the given start.
+	 *
+	 * @param startNanos
+	 *            the start, in {@link System#nanoTime()} time
+	 */
+	public void recordSince(long startNanos) {
+		record(System.nanoTime() - startNanos);
+	}
+
+	/**
+	 * @return the number of latencies recorded
+	 */
+	public long getCount() {
+		return mCount.get();
+	}
+
+	/**
+	 * Returns a copy of the current state. Concurrent recordings may be
+	 * partially included.
+	 *
+	 * @return the snapshot
+	 */
+	public Snapshot getSnapshot() {
+		final long[] buckets = new long[BUCKETS];
+		for (int i = 0; i < BUCKETS; ++i) {
+			buckets[i] = mBuckets.get(i);
+		}
+		return new Snapshot(mCount.get(), mSum.get(), mMax.get(), buckets);
+	}
+
+	/**
+	 * An immutable copy of a histogram, exposed as composite data by the
+	 * metrics MBeans.
+	 */
+	public static final class Snapshot {
+		private final long mCount;
+		private final long mSumNanos;
+		private final long mMaxNanos;
+		private final long[] mBuckets;
+
+		@ConstructorProperties({ "count", "sumNanos", "maxNanos", "buckets" })
+		public Snapshot(long count, long sumNanos, long maxNanos, long[] buckets) {
+			mCount = count;
+			mSumNanos = sumNanos;
+			mMaxNanos = maxNanos;
+			mBuckets = buckets.clone();
+		}
+
+		public long getCount() {
+			return mCount;
+		}
+
+		public long getSumNanos() {
+			return mSumNanos;
+		}
+
+		public long getMaxNanos() {
+			return mMaxNanos;
+		}
+
+		public long getMeanNanos() {
+			return mCount > 0 ? mSumNanos / mCount : 0;
+		}
+
+		/**
+		 * @return the counts per bucket; bucket {@code i} holds the latencies
+		 *         from {@code 2^(i-1)} up to {@code 2^i - 1} nanoseconds, and
+		 *         bucket 0 those of 0 nanoseconds
+		 */
+		public long[] getBuckets() {
+			return mBuckets.clone();
+		}
+
+		public long getP50Nanos() {
+			return getPercentileNanos(0.5);
+		}
+
+		public long getP90Nanos() {
+			return getPercentileNanos(0.9);
+		}
+
+		public long getP99Nanos() {
+			return getPercentileNanos(0.99);
+		}
+
+		public long getP999Nanos() {
+			return getPercentileNanos(0.999);
+		}
+
+		/**
+		 * Returns an upper bound of the given percentile.
+		 *
+		 * @param fraction
+		 *            the percentile as a fraction, between 0 and 1
+		 * @return the upper bound of the bucket holding the percentile, but
+		 *         not more than the maximum recorded, or 0 if nothing was
+		 *         recorded
+		 */
+		public long getPercentileNanos(double fraction) {
+			long total = 0;
+			for (long count : mBuckets) {
+				total += count;
+			}
+			if (total == 0) {
+				return 0;
+			}
+			final long rank = Math.max(1, (long) Math.ceil(fraction * total));
+			long seen = 0;
+			for (int i = 0; i < mBuckets.length; ++i) {
+				seen += mBuckets[i];
+				if (seen >= rank) {
+					final long upper = (i == 0 ? 0 : i >= 63 ? Long.MAX_VALUE : (1L << i) - 1);
+					return Math.min(upper, mMaxNanos);
+				}
+			}
+			return mMaxNanos;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("count=%d mean=%dns p50=%dns p99=%dns max=%dns", mCount, getMeanNanos(),
+					getP50Nanos(), getP99Nanos(), mMaxNanos);
+		}
+	}
+}
@@ -0,0 +1,23 @@
+package usbserial4j.driver;
+
+/**
+ * Receives changes of the modem status lines (CD, CTS, DSR and RI) of a
+ * {@link UsbSerialPort}.
+ * <p>
+ * Listeners of all ports are called from a single shared thread, so they
+ * should return quickly and must not block on the port.
+ * </p>
+ */
+public interface ModemStatusListener {
+
+    /**
+     * Called when one or more modem status lines changed.
+     *
+     * @param port the port whose lines changed
+     * @param lines the lines that are now set, a combination of
+     *            {@link UsbSerialPort#LINE_CD}, {@link UsbSerialPort#LINE_CTS},
+     *            {@link UsbSerialPort#LINE_DSR} and {@link UsbSerialPort#LINE_RI}
+     * @param changed the lines whose state changed, using the same flags
+     */
+    public void onModemStatusChanged(UsbSerialPort port, int lines, int changed);
+}
@@ -0,0 +1,73 @@
+package usbserial4j.driver;
+
+import javax.usb.util.DefaultUsbControlIrp;
+
+/**
+ * A control IRP whose waiters park on a {@link UsbCompletion} instead of a
+ * monitor.
+ */
+class ParkingUsbControlIrp extends DefaultUsbControlIrp {
+	private final UsbCompletion mCompletion = new UsbCompletion();
+
+	ParkingUsbControlIrp(byte bmRequestType, byte bRequest, short wValue, short wIndex) {
+		super(bmRequestType, bRequest, wValue, wIndex);
+	}
+
+	/**
+	 * Prepares the IRP for another request, so that it can be reused.
+	 *
+	 * @param bmRequestType
+	 *            the request type
+	 * @param bRequest
+	 *            the request
+	 * @param wValue
+	 *            the value field
+	 * @param wIndex
+	 *            the index field
+	 * @param data
+	 *            the data buffer
+	 * @param offset
+	 *            the index of the first byte in the buffer
+	 * @param length
+	 *            the number of bytes to transfer
+	 */
+	void reset(byte bmRequestType, byte bRequest, short wValue, short wIndex, byte[] data, int offset, int length) {
+		this.bmRequestType = bmRequestType;
+		this.bRequest = bRequest;
+		this.wValue = wValue;
+		this.wIndex = wIndex;
+		setData(data, offset, length);
+		setActualLength(0);
+		setUsbException(null);
+		mCompletion.reset();
+	}
+
+	@Override
+	public boolean isComplete() {
+		return mCompletion.isDone();
+	}
+
+	@Override
+	public void setComplete(boolean complete) {
+		if (complete) {
+			mCompletion.signal();
+		} else {
+			mCompletion.reset();
+		}
+	}
+
+	@Override
+	public void complete() {
+		mCompletion.signal();
+	}
+
+	@Override
+	public void waitUntilComplete() {
+		mCompletion.await(0);
+	}
+
+	@Override
+	public void waitUntilComplete(long timeout) {
+		mCompletion.await(timeout);
+	}
+}
@@ -0,0 +1,78 @@
+package usbserial4j.driver;
+
+import javax.usb.util.DefaultUsbIrp;
+
+/**
+ * An IRP whose waiters park on a {@link UsbCompletion} instead of a monitor.
+ */
+class ParkingUsbIrp extends DefaultUsbIrp {
+	private final UsbCompletion mCompletion = new UsbCompletion();
+
+	ParkingUsbIrp() {
+		super();
+	}
+
+	ParkingUsbIrp(byte[] data) {
+		super(data);
+	}
+
+	ParkingUsbIrp(byte[] data, int offset, int length, boolean acceptShortPacket) {
+		super(data, offset, length, acceptShortPacket);
+	}
+
+	/**
+	 * Prepares the IRP for another transfer, so that it can be reused.
+	 *
+	 * @param data
+	 *            the data buffer
+	 * @param offset
+	 *            the index of the first byte in the buffer
+	 * @param length
+	 *            the number of bytes to transfer
+	 */
+	void reset(byte[] data, int offset, int length) {
+		setData(data, offset, length);
+		setActualLength(0);
+		setUsbException(null);
+		mCompletion.reset();
+	}
+
+	@Override
+	public boolean isComplete() {
+		return mCompletion.isDone();
+	}
+
+	@Override
+	public void setComplete(boolean complete) {
+		if (complete) {
+			mCompletion.signal();
+		} else {
+			mCompletion.reset();
+		}
+	}
+
+	@Override
+	public void complete() {
+		mCompletion.signal();
+	}
+
+	@Override
+	public void waitUntilComplete() {
+		mCompletion.await(0);
+	}
+
+	@Override
+	public void waitUntilComplete(long timeout) {
+		mCompletion.await(timeout);
+	}
+
+	/**
+	 * Waits until the IRP is complete or the timeout elapsed.
+	 *
+	 * @param timeoutNanos
+	 *            the maximum time to wait; returns at once if 0 or less
+	 */
+	void waitUntilCompleteNanos(long timeoutNanos) {
+		mCompletion.awaitNanos(timeoutNanos);
+	}
+}
@@ -2,20 +2,48 @@ package usbserial4j.driver;
 
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
-import java.util.LinkedHashMap;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
 
-import usbserial4j.util.Pair;
+import javax.usb.UsbConfiguration;
+import javax.usb.UsbDevice;
+import javax.usb.UsbDeviceDescriptor;
+import javax.usb.UsbInterface;
+import javax.usb.UsbInterfaceDescriptor;
 
 /**
- * Maps (vendor id, product id) pairs to the corresponding serial driver.
+ * Maps (vendor id, product id) pairs to the corresponding serial driver, with
+ * a fallback on the class, subclass and protocol of the device's interfaces.
+ * <p>
+ * The pairs are packed into an {@code int} and kept in an open-addressing
+ * hash table, so a lookup neither boxes nor allocates. Interface rules are
+ * kept as parallel arrays of values and masks and are all tested in a single
+ * pass over each interface.
+ * </p>
+ * <p>
+ * The table is meant to be built once and then shared: lookups may run
+ * concurrently, but not while the table is being modified.
+ * </p>
  *
  * @author mike wakerly (opensource@hoho.com)
  */
 public class ProbeTable {
 
-    private final Map<Pair<Integer, Integer>, Class<? extends UsbSerialDriver>> mProbeTable =
-            new LinkedHashMap<Pair<Integer,Integer>, Class<? extends UsbSerialDriver>>();
+    /** Matches any class, subclass or protocol in an interface rule. */
+    public static final int ANY = -1;
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    /** Packed (vendor id, product id) keys. A slot is used if its driver is set. */
+    private int[] mKeys = new int[INITIAL_CAPACITY];
+    private Class<?>[] mDrivers = new Class<?>[INITIAL_CAPACITY];
+    private int mSize = 0;
+
+    /** Interface rules, packed as class, subclass and protocol bytes. */
+    private int[] mRuleValues = new int[0];
+    private int[] mRuleMasks = new int[0];
+    private Class<?>[] mRuleDrivers = new Class<?>[0];
 
     /**
      * Adds or updates a (vendor, product) pair in the table.
@@ -27,7 +55,57 @@ public class ProbeTable {
      */
     public ProbeTable addProduct(int vendorId, int productId,
             Class<? extends UsbSerialDriver> driverClass) {
-        mProbeTable.put(Pair.create(vendorId, productId), driverClass);
+        if (driverClass == null) {
+            throw new IllegalArgumentException("Driver class must not be null");
+        }
+        if ((mSize + 1) * 2 > mKeys.length) {
+            resize(mKeys.length * 2);
+        }
+        final int key = pack(vendorId, productId);
+        final int slot = findSlot(mKeys, mDrivers, key);
+        if (mDrivers[slot] == null) {
+            mKeys[slot] = key;
+            mSize++;
+        }
+        mDrivers[slot] = driverClass;
+        return this;
+    }
+
+    /**
+     * Adds a rule matching devices by the class, subclass and protocol of any
+     * of their interfaces, for devices whose (vendor, product) pair is not in
+     * the table. Rules are tested in the order they were added.
+     *
+     * @param interfaceClass the interface class, or {@link #ANY}
+     * @param interfaceSubclass the interface subclass, or {@link #ANY}
+     * @param interfaceProtocol the interface protocol, or {@link #ANY}
+     * @param driverClass the driver class responsible for matching devices
+     * @return {@code this}, for chaining
+     */
+    public ProbeTable addInterface(int interfaceClass, int interfaceSubclass, int interfaceProtocol,
+            Class<? extends UsbSerialDriver> driverClass) {
+        if (driverClass == null) {
+            throw new IllegalArgumentException("Driver class must not be null");
+        }
+        int value = 0;
+        int mask = 0;
+        final int[] fields = { interfaceClass, interfaceSubclass, interfaceProtocol };
+        for (int field : fields) {
+            value <<= 8;
+            mask <<= 8;
+            if (field != ANY) {
+                value |= field & 0xff;
+                mask |= 0xff;
+            }
+        }
+
+        final int rules = mRuleValues.length;
+        mRuleValues = Arrays.copyOf(mRuleValues, rules + 1);
+        mRuleMasks = Arrays.copyOf(mRuleMasks, rules + 1);
+        mRuleDrivers = Arrays.copyOf(mRuleDrivers, rules + 1);
+        mRuleValues[rules] = value;
+        mRuleMasks[rules] = mask;
+        mRuleDrivers[rules] = driverClass;
         return this;
     }
 
@@ -79,9 +157,111 @@ public class ProbeTable {
      * @param productId the USB product id
      * @return the driver class matching this pair, or {@code null}
      */
+    @SuppressWarnings("unchecked")
     public Class<? extends UsbSerialDriver> findDriver(int vendorId, int productId) {
-        final Pair<Integer, Integer> pair = Pair.create(vendorId, productId);
-        return mProbeTable.get(pair);
+        final int key = pack(vendorId, productId);
+        return (Class<? extends UsbSerialDriver>) mDrivers[findSlot(mKeys, mDrivers, key)];
+    }
+
+    /**
+     * Returns the driver for the given interface, or {@code null} if no
+     * interface rule matches.
+     *
+     * @param interfaceClass the interface class
+     * @param interfaceSubclass the interface subclass
+     * @param interfaceProtocol the interface protocol
+     * @return the driver class of the first matching rule, or {@code null}
+     */
+    @SuppressWarnings("unchecked")
+    public Class<? extends UsbSerialDriver> findDriver(int interfaceClass, int interfaceSubclass,
+            int interfaceProtocol) {
+        final int packed = ((interfaceClass & 0xff) << 16) | ((interfaceSubclass & 0xff) << 8)
+                | (interfaceProtocol & 0xff);
+        for (int i = 0; i < mRuleValues.length; ++i) {
+            if ((packed & mRuleMasks[i]) == mRuleValues[i]) {
+                return (Class<? extends UsbSerialDriver>) mRuleDrivers[i];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the driver for the given device: the driver of its (vendor,
+     * product) pair if there is one, otherwise the driver of the first
+     * interface rule matching one of the interfaces of its active
+     * configuration.
+     *
+     * @param device the device
+     * @return the driver class, or {@code null} if no match
+     */
+    @SuppressWarnings("unchecked")
+    public Class<? extends UsbSerialDriver> findDriver(UsbDevice device) {
+        final UsbDeviceDescriptor descriptor = device.getUsbDeviceDescriptor();
+        final Class<? extends UsbSerialDriver> driverClass =
+                findDriver(descriptor.idVendor(), descriptor.idProduct());
+        if (driverClass != null || mRuleValues.length == 0) {
+            return driverClass;
+        }
+
+        final UsbConfiguration configuration = device.getActiveUsbConfiguration();
+        if (configuration == null) {
+            return null;
+        }
+        final List<UsbInterface> interfaces = configuration.getUsbInterfaces();
+        for (int i = 0; i < interfaces.size(); ++i) {
+            final UsbInterfaceDescriptor ifDescriptor = interfaces.get(i).getUsbInterfaceDescriptor();
+            final Class<? extends UsbSerialDriver> ifDriverClass = findDriver(ifDescriptor.bInterfaceClass(),
+                    ifDescriptor.bInterfaceSubClass(), ifDescriptor.bInterfaceProtocol());
+            if (ifDriverClass != null) {
+                return ifDriverClass;
+            }
+        }
+        return null;
+    }
+
+    private static int pack(int vendorId, int productId) {
+        return ((vendorId & 0xffff) << 16) | (productId & 0xffff);
+    }
+
+    /**
+     * Spreads the bits of a packed key, so that pairs with close vendor and
+     * product ids do not cluster (the finalizer of MurmurHash3).
+     */
+    private static int hash(int key) {
+        int h = key;
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    /**
+     * Returns the slot holding the given key, or the free slot where it
+     * belongs. The table must have at least one free slot.
+     */
+    private static int findSlot(int[] keys, Class<?>[] drivers, int key) {
+        final int mask = keys.length - 1;
+        int slot = hash(key) & mask;
+        while (drivers[slot] != null && keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void resize(int capacity) {
+        final int[] keys = new int[capacity];
+        final Class<?>[] drivers = new Class<?>[capacity];
+        for (int i = 0; i < mKeys.length; ++i) {
+            if (mDrivers[i] != null) {
+                final int slot = findSlot(keys, drivers, mKeys[i]);
+                keys[slot] = mKeys[i];
+                drivers[slot] = mDrivers[i];
+            }
+        }
+        mKeys = keys;
+        mDrivers = drivers;
     }
 
 }
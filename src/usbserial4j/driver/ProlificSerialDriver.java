@@ -1,16 +1,26 @@
 package usbserial4j.driver;
 
 import java.io.IOException;
-import java.lang.reflect.Method;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 import javax.usb.UsbConst;
 import javax.usb.UsbDevice;
+import javax.usb.UsbDisconnectedException;
 import javax.usb.UsbEndpoint;
+import javax.usb.UsbException;
 import javax.usb.UsbInterface;
+import javax.usb.UsbNotActiveException;
+import javax.usb.UsbNotOpenException;
+import javax.usb.UsbPipe;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -40,7 +50,6 @@ public class ProlificSerialDriver implements UsbSerialDriver {
 	
     class ProlificSerialPort extends CommonUsbSerialPort {
 
-        private static final int USB_READ_TIMEOUT_MILLIS = 1000;
         private static final int USB_WRITE_TIMEOUT_MILLIS = 5000;
 
         private static final int USB_RECIP_INTERFACE = 0x01;
@@ -78,6 +87,14 @@ public class ProlificSerialDriver implements UsbSerialDriver {
         private static final int STATUS_BUFFER_SIZE = 10;
         private static final int STATUS_BYTE_IDX = 8;
 
+        /** How long reading the status waits for the first report after polling started. */
+        private static final int INITIAL_STATUS_TIMEOUT_MILLIS = 100;
+
+        private static final int VENDOR_IN_BUFFER_SIZE = 1;
+
+        /** Number of chunk IRPs kept for synchronous writes. */
+        private static final int WRITE_IRP_POOL_SIZE = 8;
+
         private static final int DEVICE_TYPE_HX = 0;
         private static final int DEVICE_TYPE_0 = 1;
         private static final int DEVICE_TYPE_1 = 2;
@@ -90,13 +107,30 @@ public class ProlificSerialDriver implements UsbSerialDriver {
 
         private int mControlLinesValue = 0;
 
+        /** The IRPs of synchronous writes, reused across writes. */
+        private final UsbIrpPool<ChunkIrp> mWriteIrps = new UsbIrpPool<ChunkIrp>(WRITE_IRP_POOL_SIZE);
+
+        /**
+         * Receives the data of vendor reads. The driver never looks at it, so
+         * concurrent reads may share the buffer.
+         */
+        private final byte[] mVendorInBuffer = new byte[VENDOR_IN_BUFFER_SIZE];
+
         private int mBaudRate = -1, mDataBits = -1, mStopBits = -1, mParity = -1;
 
-        private int mStatus = 0;
-        private volatile Thread mReadStatusThread = null;
-        private final Object mReadStatusThreadLock = new Object();
-        boolean mStopReadStatusThread = false;
-        private IOException mReadStatusException = null;
+        private volatile int mStatus = 0;
+        private final Lock mStatusLock = new ReentrantLock();
+        /** Non-null while the status endpoint is polled. Guarded by {@link #mStatusLock}. */
+        private UsbStatusPoller.Registration mStatusRegistration = null;
+        /** Signalled by the first report after polling started, or by its failure. */
+        private final UsbCompletion mInitialStatus = new UsbCompletion();
+        private volatile IOException mReadStatusException = null;
+
+        /**
+         * The connection of a port closed while kept warm, with the interface
+         * still claimed and the device initialized, or {@code null}.
+         */
+        private UsbDeviceConnection mWarmConnection = null;
 
 
         public ProlificSerialPort(UsbDevice device, int portNumber) {
@@ -108,17 +142,14 @@ public class ProlificSerialDriver implements UsbSerialDriver {
             return ProlificSerialDriver.this;
         }
 
-        private final byte[] inControlTransfer(int requestType, int request,
-                int value, int index, int length) throws IOException {
-            byte[] buffer = new byte[length];
-            int result = mConnection.controlTransfer(requestType, request, value,
-                    index, buffer, length, USB_READ_TIMEOUT_MILLIS);
-            if (result != length) {
-                throw new IOException(
-                        String.format("ControlTransfer with value 0x%x failed: %d",
-                                value, result));
-            }
-            return buffer;
+        @Override
+        UsbEndpoint getReadEndpoint() {
+            return mConnection != null ? mReadEndpoint : null;
+        }
+
+        @Override
+        UsbEndpoint getWriteEndpoint() {
+            return mConnection != null ? mWriteEndpoint : null;
         }
 
         private final void outControlTransfer(int requestType, int request,
@@ -133,18 +164,6 @@ public class ProlificSerialDriver implements UsbSerialDriver {
             }
         }
 
-        private final byte[] vendorIn(int value, int index, int length)
-                throws IOException {
-            return inControlTransfer(PROLIFIC_VENDOR_IN_REQTYPE,
-                    PROLIFIC_VENDOR_READ_REQUEST, value, index, length);
-        }
-
-        private final void vendorOut(int value, int index, byte[] data)
-                throws IOException {
-            outControlTransfer(PROLIFIC_VENDOR_OUT_REQTYPE,
-                    PROLIFIC_VENDOR_WRITE_REQUEST, value, index, data);
-        }
-
         private void resetDevice() throws IOException {
             purgeHwBuffers(true, true);
         }
@@ -155,18 +174,61 @@ public class ProlificSerialDriver implements UsbSerialDriver {
                     data);
         }
 
-        private void doBlackMagic() throws IOException {
-            vendorIn(0x8484, 0, 1);
-            vendorOut(0x0404, 0, null);
-            vendorIn(0x8484, 0, 1);
-            vendorIn(0x8383, 0, 1);
-            vendorIn(0x8484, 0, 1);
-            vendorOut(0x0404, 1, null);
-            vendorIn(0x8484, 0, 1);
-            vendorIn(0x8383, 0, 1);
-            vendorOut(0, 1, null);
-            vendorOut(1, 0, null);
-            vendorOut(2, (mDeviceType == DEVICE_TYPE_HX) ? 0x44 : 0x24, null);
+        private final ControlTransfer vendorInStep(int value, int index, int length) {
+            return new ControlTransfer(PROLIFIC_VENDOR_IN_REQTYPE,
+                    PROLIFIC_VENDOR_READ_REQUEST, value, index, mVendorInBuffer, length);
+        }
+
+        private final ControlTransfer vendorOutStep(int value, int index) {
+            return new ControlTransfer(PROLIFIC_VENDOR_OUT_REQTYPE,
+                    PROLIFIC_VENDOR_WRITE_REQUEST, value, index);
+        }
+
+        private final ControlTransfer ctrlOutStep(int request, int value, int index, byte[] data) {
+            return new ControlTransfer(PROLIFIC_CTRL_OUT_REQTYPE, request, value, index,
+                    data, (data == null) ? 0 : data.length);
+        }
+
+        /**
+         * Runs the given control transfers as one pipelined sequence, which
+         * stops at the first step that fails.
+         */
+        private void controlSequence(List<ControlTransfer> steps) throws IOException {
+            int[] results = mConnection.controlTransfer(steps,
+                    USB_WRITE_TIMEOUT_MILLIS);
+            for (int i = 0; i < steps.size(); ++i) {
+                ControlTransfer step = steps.get(i);
+                int result = (i < results.length) ? results[i] : -1;
+                if (result != step.length) {
+                    throw new IOException(
+                            String.format("ControlTransfer %d of %d with value 0x%x failed: %d",
+                                    i + 1, steps.size(), step.value, result));
+                }
+            }
+        }
+
+        private void addPurgeSteps(List<ControlTransfer> steps,
+                boolean purgeReadBuffers, boolean purgeWriteBuffers) {
+            if (purgeReadBuffers) {
+                steps.add(vendorOutStep(FLUSH_RX_REQUEST, 0));
+            }
+            if (purgeWriteBuffers) {
+                steps.add(vendorOutStep(FLUSH_TX_REQUEST, 0));
+            }
+        }
+
+        private void addBlackMagicSteps(List<ControlTransfer> steps) {
+            steps.add(vendorInStep(0x8484, 0, 1));
+            steps.add(vendorOutStep(0x0404, 0));
+            steps.add(vendorInStep(0x8484, 0, 1));
+            steps.add(vendorInStep(0x8383, 0, 1));
+            steps.add(vendorInStep(0x8484, 0, 1));
+            steps.add(vendorOutStep(0x0404, 1));
+            steps.add(vendorInStep(0x8484, 0, 1));
+            steps.add(vendorInStep(0x8383, 0, 1));
+            steps.add(vendorOutStep(0, 1));
+            steps.add(vendorOutStep(1, 0));
+            steps.add(vendorOutStep(2, (mDeviceType == DEVICE_TYPE_HX) ? 0x44 : 0x24));
         }
 
         private void setControlLines(int newControlLinesValue) throws IOException {
@@ -174,60 +236,100 @@ public class ProlificSerialDriver implements UsbSerialDriver {
             mControlLinesValue = newControlLinesValue;
         }
 
-        private final void readStatusThreadFunction() {
-            try {
-                while (!mStopReadStatusThread) {
-                    byte[] buffer = new byte[STATUS_BUFFER_SIZE];
-                    int readBytesCount = mConnection.bulkTransfer(mInterruptEndpoint,
-                            buffer,
-                            STATUS_BUFFER_SIZE,
-                            500);
-                    if (readBytesCount > 0) {
-                        if (readBytesCount == STATUS_BUFFER_SIZE) {
-                            mStatus = buffer[STATUS_BYTE_IDX] & 0xff;
-                        } else {
-                            throw new IOException(
-                                    String.format("Invalid CTS / DSR / CD / RI status buffer received, expected %d bytes, but received %d",
-                                            STATUS_BUFFER_SIZE,
-                                            readBytesCount));
-                        }
-                    }
-                }
-            } catch (IOException e) {
-                mReadStatusException = e;
+        private void updateStatus(int status) {
+            int changed = status ^ mStatus;
+            mStatus = status;
+            mMetrics.statusUpdated(changed != 0);
+            if (changed != 0) {
+                FlightEvents.modemLinesChanged(mDeviceInfo, mPortNumber, toLines(status), toLines(changed));
+                fireModemStatusChanged(toLines(status), toLines(changed));
             }
         }
 
-        private final int getStatus() throws IOException {
-            if ((mReadStatusThread == null) && (mReadStatusException == null)) {
-                synchronized (mReadStatusThreadLock) {
-                    if (mReadStatusThread == null) {
-                        byte[] buffer = new byte[STATUS_BUFFER_SIZE];                        
-                        int readBytes = mConnection.bulkTransfer(mInterruptEndpoint,
-                                buffer,
-                                STATUS_BUFFER_SIZE,
-                                100);
-                        if (readBytes != STATUS_BUFFER_SIZE) {
-                            LOG.warn("Could not read initial CTS / DSR / CD / RI status");
-                        } else {
-                            mStatus = buffer[STATUS_BYTE_IDX] & 0xff;
-                        }
+        private int toLines(int status) {
+            int lines = 0;
+            if ((status & STATUS_FLAG_CD) != 0) {
+                lines |= LINE_CD;
+            }
+            if ((status & STATUS_FLAG_CTS) != 0) {
+                lines |= LINE_CTS;
+            }
+            if ((status & STATUS_FLAG_DSR) != 0) {
+                lines |= LINE_DSR;
+            }
+            if ((status & STATUS_FLAG_RI) != 0) {
+                lines |= LINE_RI;
+            }
+            return lines;
+        }
+
+        /**
+         * Starts polling the status endpoint, unless it is polled already. The
+         * device reports its status once polling started and then on every
+         * change; the first report sets the initial status without notifying
+         * the listeners.
+         *
+         * @return whether polling was started by this call
+         */
+        private boolean startStatusPolling() throws IOException {
+            mStatusLock.lock();
+            try {
+                if (mStatusRegistration != null && mStatusRegistration.isActive()) {
+                    return false;
+                }
+
+                mInitialStatus.reset();
+                mStatusRegistration = UsbStatusPoller.getInstance().register(mConnection,
+                        mInterruptEndpoint, STATUS_BUFFER_SIZE, new UsbStatusPoller.Callback() {
+                            @Override
+                            public void onStatus(byte[] data, int length) {
+                                if (length == STATUS_BUFFER_SIZE) {
+                                    if (mInitialStatus.isDone()) {
+                                        updateStatus(data[STATUS_BYTE_IDX] & 0xff);
+                                    } else {
+                                        mStatus = data[STATUS_BYTE_IDX] & 0xff;
+                                        mInitialStatus.signal();
+                                    }
+                                } else if (length > 0) {
+                                    mReadStatusException = new IOException(
+                                            String.format("Invalid CTS / DSR / CD / RI status buffer received, expected %d bytes, but received %d",
+                                                    STATUS_BUFFER_SIZE,
+                                                    length));
+                                }
+                            }
 
-                        mReadStatusThread = new Thread(new Runnable() {
                             @Override
-                            public void run() {
-                                readStatusThreadFunction();
+                            public void onError(IOException e) {
+                                mReadStatusException = e;
+                                mInitialStatus.signal();
                             }
                         });
-                        mReadStatusThread.setDaemon(true);
-                        mReadStatusThread.start();
-                    }
+                return true;
+            } finally {
+                mStatusLock.unlock();
+            }
+        }
+
+        private void stopStatusPolling() {
+            mStatusLock.lock();
+            try {
+                if (mStatusRegistration != null) {
+                    UsbStatusPoller.getInstance().unregister(mStatusRegistration);
+                    mStatusRegistration = null;
                 }
+            } finally {
+                mStatusLock.unlock();
             }
+        }
 
-            /* throw and clear an exception which occured in the status read thread */
+        private final int getStatus() throws IOException {
+            if (mReadStatusException == null && startStatusPolling()) {
+                mInitialStatus.await(INITIAL_STATUS_TIMEOUT_MILLIS);
+            }
+
+            /* throw and clear an exception which occured while polling the status */
             IOException readStatusException = mReadStatusException;
-            if (mReadStatusException != null) {
+            if (readStatusException != null) {
                 mReadStatusException = null;
                 throw readStatusException;
             }
@@ -241,6 +343,29 @@ public class ProlificSerialDriver implements UsbSerialDriver {
 
         @Override
         public void open(UsbDeviceConnection connection) throws IOException {
+            final FlightEvents.PortOpen event = FlightEvents.beginPortOpen();
+            if (event == null) {
+                openConnection(connection);
+                return;
+            }
+            Throwable failure = null;
+            try {
+                event.setWarm(openConnection(connection));
+            } catch (IOException | RuntimeException e) {
+                failure = e;
+                throw e;
+            } finally {
+                event.finish(mDeviceInfo, mPortNumber, failure);
+            }
+        }
+
+        /**
+         * Opens the port on the given connection.
+         *
+         * @return {@code true} if the port was reopened on the connection it
+         *         was kept warm on
+         */
+        private boolean openConnection(UsbDeviceConnection connection) throws IOException {
             if (mConnection != null) {
                 throw new IOException("Already open");
             }
@@ -249,6 +374,22 @@ public class ProlificSerialDriver implements UsbSerialDriver {
 
             if (usbInterface == null)
             	throw new IOException("USB interface 0 not found");
+
+            if (mWarmConnection != null) {
+                if (mWarmConnection == connection && mKeepWarm && usbInterface.isClaimed()) {
+                    // Claimed and initialized already, only restart reading
+                    mWarmConnection = null;
+                    mConnection = connection;
+                    startReading();
+                    registerMetrics();
+                    return true;
+                }
+                try {
+                    releaseWarmConnection();
+                } catch (IOException e) {
+                    LOG.warn("Could not release the warm connection", e);
+                }
+            }
             
             if (!connection.claimInterface(usbInterface, true)) {
                 throw new IOException("Error claiming Prolific interface 0");
@@ -275,40 +416,29 @@ public class ProlificSerialDriver implements UsbSerialDriver {
                     }
                 }
 
-                if (mDevice.getUsbDeviceDescriptor().bDeviceClass() == 0x02) {
+                final DeviceInfo info = DeviceInfo.of(mDevice);
+                mDeviceInfo = info;
+                if (info.getDeviceClass() == 0x02) {
                     mDeviceType = DEVICE_TYPE_0;
+                } else if (info.getMaxPacketSize0() == 64) {
+                    mDeviceType = DEVICE_TYPE_HX;
+                } else if ((info.getDeviceClass() == 0x00)
+                        || (info.getDeviceClass() == 0xff)) {
+                    mDeviceType = DEVICE_TYPE_1;
                 } else {
-                    try {
-                        Method getRawDescriptorsMethod
-                            = mConnection.getClass().getMethod("getRawDescriptors");
-                        byte[] rawDescriptors
-                            = (byte[]) getRawDescriptorsMethod.invoke(mConnection);
-                        byte maxPacketSize0 = rawDescriptors[7];
-                        if (maxPacketSize0 == 64) {
-                            mDeviceType = DEVICE_TYPE_HX;
-                        } else if ((mDevice.getUsbDeviceDescriptor().bDeviceClass() == 0x00)
-                                || (mDevice.getUsbDeviceDescriptor().bDeviceClass() == 0xff)) {
-                            mDeviceType = DEVICE_TYPE_1;
-                        } else {
-                        	LOG.warn("Could not detect PL2303 subtype, "
-                              + "Assuming that it is a HX device");
-                          mDeviceType = DEVICE_TYPE_HX;
-                        }
-                    } catch (NoSuchMethodException e) {
-                    	LOG.warn("Method UsbDeviceConnection.getRawDescriptors, "
-                                + "required for PL2303 subtype detection, not "
-                                + "available! Assuming that it is a HX device");
-                        mDeviceType = DEVICE_TYPE_HX;
-                    } catch (Exception e) {
-                    	LOG.warn("An unexpected exception occured while trying "
-                                + "to detect PL2303 subtype", e);
-                    }
+                    LOG.warn("Could not detect PL2303 subtype, "
+                            + "Assuming that it is a HX device");
+                    mDeviceType = DEVICE_TYPE_HX;
                 }
 
-                setControlLines(mControlLinesValue);
-                resetDevice();
+                List<ControlTransfer> init = new ArrayList<ControlTransfer>();
+                init.add(ctrlOutStep(SET_CONTROL_REQUEST, mControlLinesValue, 0, null));
+                addPurgeSteps(init, true, true);
+                addBlackMagicSteps(init);
+                controlSequence(init);
 
-                doBlackMagic();
+                startReading();
+                registerMetrics();
                 opened = true;
             } finally {
                 if (!opened) {
@@ -316,24 +446,122 @@ public class ProlificSerialDriver implements UsbSerialDriver {
                     connection.releaseInterface(usbInterface);
                 }
             }
+            return false;
+        }
+
+        /**
+         * Starts the background receiver or the read queue, whichever is
+         * enabled, and the status polling if there are listeners.
+         */
+        private void startReading() throws IOException {
+            mReadBufferLock.lock();
+            try {
+                mReadSizer = null;
+                if (mReceiveBufferCapacity > 0) {
+                    startReceiver();
+                } else if (mReadQueueDepth > 0) {
+                    startReadQueue();
+                }
+            } finally {
+                mReadBufferLock.unlock();
+            }
+            if (!mModemStatusListeners.isEmpty()) {
+                startStatusPolling();
+            }
+        }
+
+        private void startReadQueue() throws IOException {
+            final UsbReadQueue readQueue;
+            if (mAdaptiveTransfers) {
+                TransferSizer sizer = TransferSizer.of(mReadEndpoint, mReadBuffer.length, mLineRate);
+                readQueue = new UsbReadQueue(mConnection, mReadEndpoint,
+                        sizer.getQueueDepth(), mReadBuffer.length, sizer);
+            } else {
+                readQueue = new UsbReadQueue(mConnection, mReadEndpoint,
+                        mReadQueueDepth, mReadBuffer.length);
+            }
+            readQueue.start();
+            mReadQueue = readQueue;
         }
 
         @Override
         public void close() throws IOException {
+            final FlightEvents.PortClose event = FlightEvents.beginPortClose();
+            if (event == null) {
+                closeConnection();
+                return;
+            }
+            Throwable failure = null;
+            try {
+                event.setKeptWarm(closeConnection());
+            } catch (IOException | RuntimeException e) {
+                failure = e;
+                throw e;
+            } finally {
+                event.finish(mDeviceInfo, mPortNumber, failure);
+            }
+        }
+
+        /**
+         * Closes the port, or only stops its transfers if it is kept warm.
+         *
+         * @return {@code true} if the connection was kept warm
+         */
+        private boolean closeConnection() throws IOException {
             if (mConnection == null) {
                 throw new IOException("Already closed");
             }
+            unregisterMetrics();
+            fireClosing();
+            stopReceiver();
+            stopReadQueue();
+            mReadBufferLock.lock();
             try {
-                mStopReadStatusThread = true;
-                synchronized (mReadStatusThreadLock) {
-                    if (mReadStatusThread != null) {
-                        try {
-                            mReadStatusThread.join();
-                        } catch (Exception e) {
-                        	LOG.warn("An error occured while waiting for status read thread", e);
-                        }
-                    }
-                }
+                mReadRemainder = 0;
+            } finally {
+                mReadBufferLock.unlock();
+            }
+            try {
+                stopWriteCoalescer(USB_WRITE_TIMEOUT_MILLIS);
+            } catch (IOException e) {
+                LOG.warn("Data collected for writing was not sent", e);
+            }
+            try {
+                stopWriteQueue(USB_WRITE_TIMEOUT_MILLIS);
+            } catch (IOException e) {
+                LOG.warn("Data queued for writing was not sent completely", e);
+            }
+
+            if (mKeepWarm) {
+                mWarmConnection = mConnection;
+                mConnection = null;
+                return true;
+            }
+            shutdown();
+            return false;
+        }
+
+        @Override
+        public void setKeepWarm(boolean keepWarm) throws IOException {
+            super.setKeepWarm(keepWarm);
+            if (!keepWarm && mWarmConnection != null) {
+                releaseWarmConnection();
+            }
+        }
+
+        private void releaseWarmConnection() throws IOException {
+            mConnection = mWarmConnection;
+            mWarmConnection = null;
+            shutdown();
+        }
+
+        /**
+         * Stops the status polling, purges the device and releases the
+         * interface.
+         */
+        private void shutdown() throws IOException {
+            try {
+                stopStatusPolling();
                 resetDevice();
             } finally {
                 try {
@@ -346,56 +574,453 @@ public class ProlificSerialDriver implements UsbSerialDriver {
 
         @Override
         public int read(byte[] dest, int timeoutMillis) throws IOException {
-            synchronized (mReadBufferLock) {
-                int readAmt = Math.min(dest.length, mReadBuffer.length);
+            final long start = System.nanoTime();
+            try {
+                final int numBytesRead = doRead(dest, timeoutMillis);
+                mMetrics.readCompleted(start, numBytesRead);
+                return numBytesRead;
+            } catch (IOException e) {
+                mMetrics.readFailed();
+                throw e;
+            }
+        }
+
+        private int doRead(byte[] dest, int timeoutMillis) throws IOException {
+            final UsbReceiver receiver = mReceiver;
+            if (receiver != null && mReadRemainder == 0) {
+                return receiver.read(dest, 0, dest.length, timeoutMillis,
+                        mReadMinBytes, TimeUnit.MICROSECONDS.toNanos(mReadMaxWaitMicros));
+            }
+
+            mReadBufferLock.lock();
+            try {
+                if (mReadRemainder > 0) {
+                    return handOut(mReadRemainderOffset, mReadRemainder, dest, 0, dest.length);
+                }
+                if (receiver != null) {
+                    return receiver.read(dest, 0, dest.length, timeoutMillis,
+                            mReadMinBytes, TimeUnit.MICROSECONDS.toNanos(mReadMaxWaitMicros));
+                }
+                if (mReadQueueDepth > 0) {
+                    if (mReadQueue == null) {
+                        startReadQueue();
+                    }
+                    return mReadQueue.read(dest, 0, dest.length, timeoutMillis,
+                            mReadMinBytes, TimeUnit.MICROSECONDS.toNanos(mReadMaxWaitMicros));
+                }
+
+                final TransferSizer sizer = getReadSizer();
+                int readAmt = (sizer != null ? sizer.getLength(dest.length)
+                        : Math.min(dest.length, mReadBuffer.length));
                 int numBytesRead = mConnection.bulkTransfer(mReadEndpoint, mReadBuffer,
                         readAmt, timeoutMillis);
                 if (numBytesRead < 0) {
                     return 0;
                 }
-                System.arraycopy(mReadBuffer, 0, dest, 0, numBytesRead);
-                return numBytesRead;
+                if (sizer != null) {
+                    sizer.completed(readAmt, numBytesRead);
+                }
+                // The sizer reads at least one packet, which may not all fit
+                return handOut(0, numBytesRead, dest, 0, dest.length);
+            } finally {
+                mReadBufferLock.unlock();
             }
         }
 
         @Override
         public int write(byte[] src, int timeoutMillis) throws IOException {
-            int offset = 0;
+            final long start = System.nanoTime();
+            try {
+                final int written = doWrite(src, timeoutMillis);
+                mMetrics.writeCompleted(start, written);
+                return written;
+            } catch (IOException e) {
+                mMetrics.writeFailed();
+                throw e;
+            }
+        }
 
-            while (offset < src.length) {
-                final int writeLength;
-                final int amtWritten;
+        private int doWrite(byte[] src, int timeoutMillis) throws IOException {
+            mWriteBufferLock.lock();
+            try {
+                UsbWriteCoalescer coalescer = getWriteCoalescer(mCoalescedSink, timeoutMillis);
+                if (coalescer != null) {
+                    if (coalescer.accepts(src.length)) {
+                        coalescer.write(src, 0, src.length, timeoutMillis);
+                        return src.length;
+                    }
+                    // Longer writes go out on their own, after the data collected before them
+                    coalescer.flush(timeoutMillis);
+                }
+                UsbWriteQueue writeQueue = getWriteQueue(mWriteEndpoint, timeoutMillis);
+                if (writeQueue != null) {
+                    return writeQueue.write(src, 0, src.length, timeoutMillis);
+                }
+            } finally {
+                mWriteBufferLock.unlock();
+            }
+
+            return writeArray(src, 0, src.length, timeoutMillis);
+        }
 
-                synchronized (mWriteBufferLock) {
-                    final byte[] writeBuffer;
+        @Override
+        public int read(ByteBuffer dest, int timeoutMillis) throws IOException {
+            final long start = System.nanoTime();
+            try {
+                final int numBytesRead = doRead(dest, timeoutMillis);
+                mMetrics.readCompleted(start, numBytesRead);
+                return numBytesRead;
+            } catch (IOException e) {
+                mMetrics.readFailed();
+                throw e;
+            }
+        }
 
-                    writeLength = Math.min(src.length - offset, mWriteBuffer.length);
-                    if (offset == 0) {
-                        writeBuffer = src;
-                    } else {
-                        // bulkTransfer does not support offsets, make a copy.
-                        System.arraycopy(src, offset, mWriteBuffer, 0, writeLength);
-                        writeBuffer = mWriteBuffer;
+        private int doRead(ByteBuffer dest, int timeoutMillis) throws IOException {
+            final UsbReceiver receiver = mReceiver;
+            if (receiver != null && mReadRemainder == 0) {
+                return receiver.read(dest, timeoutMillis,
+                        mReadMinBytes, TimeUnit.MICROSECONDS.toNanos(mReadMaxWaitMicros));
+            }
+
+            mReadBufferLock.lock();
+            try {
+                if (mReadRemainder > 0) {
+                    return handOut(mReadRemainderOffset, mReadRemainder, dest);
+                }
+                if (receiver != null) {
+                    return receiver.read(dest, timeoutMillis,
+                            mReadMinBytes, TimeUnit.MICROSECONDS.toNanos(mReadMaxWaitMicros));
+                }
+                if (mReadQueueDepth > 0) {
+                    if (mReadQueue == null) {
+                        startReadQueue();
+                    }
+                    return mReadQueue.read(dest, timeoutMillis,
+                            mReadMinBytes, TimeUnit.MICROSECONDS.toNanos(mReadMaxWaitMicros));
+                }
+
+                final TransferSizer sizer = getReadSizer();
+                int readAmt = (sizer != null ? sizer.getLength(dest.remaining())
+                        : Math.min(dest.remaining(), mReadBuffer.length));
+                int numBytesRead = mConnection.bulkTransfer(mReadEndpoint, mReadBuffer,
+                        readAmt, timeoutMillis);
+                if (numBytesRead < 0) {
+                    return 0;
+                }
+                if (sizer != null) {
+                    sizer.completed(readAmt, numBytesRead);
+                }
+                return handOut(0, numBytesRead, dest);
+            } finally {
+                mReadBufferLock.unlock();
+            }
+        }
+
+        @Override
+        public int write(ByteBuffer src, int timeoutMillis) throws IOException {
+            final long start = System.nanoTime();
+            try {
+                final int written = doWrite(src, timeoutMillis);
+                mMetrics.writeCompleted(start, written);
+                return written;
+            } catch (IOException e) {
+                mMetrics.writeFailed();
+                throw e;
+            }
+        }
+
+        private int doWrite(ByteBuffer src, int timeoutMillis) throws IOException {
+            mWriteBufferLock.lock();
+            try {
+                UsbWriteCoalescer coalescer = getWriteCoalescer(mCoalescedSink, timeoutMillis);
+                if (coalescer != null) {
+                    final int length = src.remaining();
+                    if (coalescer.accepts(length)) {
+                        coalescer.write(src, timeoutMillis);
+                        return length;
                     }
+                    coalescer.flush(timeoutMillis);
+                }
+                UsbWriteQueue writeQueue = getWriteQueue(mWriteEndpoint, timeoutMillis);
+                if (writeQueue != null) {
+                    return writeQueue.write(src, timeoutMillis);
+                }
+            } finally {
+                mWriteBufferLock.unlock();
+            }
+
+            if (src.hasArray()) {
+                int written = writeArray(src.array(), src.arrayOffset() + src.position(),
+                        src.remaining(), timeoutMillis);
+                ((Buffer) src).position(src.position() + written);
+                return written;
+            }
+
+            final int length = src.remaining();
+            int offset = 0;
 
+            while (src.hasRemaining()) {
+                final int writeLength;
+                final int amtWritten;
+
+                mWriteBufferLock.lock();
+                try {
+                    writeLength = Math.min(src.remaining(), mWriteBuffer.length);
+                    src.get(mWriteBuffer, 0, writeLength);
                     amtWritten = mConnection.bulkTransfer(mWriteEndpoint,
-                            writeBuffer, writeLength, timeoutMillis);
+                            mWriteBuffer, writeLength, timeoutMillis);
+                } finally {
+                    mWriteBufferLock.unlock();
                 }
 
                 if (amtWritten <= 0) {
+                    ((Buffer) src).position(src.position() - writeLength);
                     throw new IOException("Error writing " + writeLength
                             + " bytes at offset " + offset + " length="
-                            + src.length);
+                            + length);
                 }
 
+                // Hand back the bytes the device did not accept
+                ((Buffer) src).position(src.position() - (writeLength - amtWritten));
                 offset += amtWritten;
             }
             return offset;
         }
 
+        @Override
+        public long write(ByteBuffer[] srcs, int timeoutMillis) throws IOException {
+            final long start = System.nanoTime();
+            try {
+                final long written = doWrite(srcs, timeoutMillis);
+                mMetrics.writeCompleted(start, written);
+                return written;
+            } catch (IOException e) {
+                mMetrics.writeFailed();
+                throw e;
+            }
+        }
+
+        private long doWrite(ByteBuffer[] srcs, int timeoutMillis) throws IOException {
+            long total = 0;
+            mWriteBufferLock.lock();
+            try {
+                UsbWriteCoalescer coalescer = getWriteCoalescer(mCoalescedSink, timeoutMillis);
+                if (coalescer != null) {
+                    long length = 0;
+                    for (ByteBuffer src : srcs) {
+                        length += src.remaining();
+                    }
+                    if (coalescer.accepts(length)) {
+                        for (ByteBuffer src : srcs) {
+                            coalescer.write(src, timeoutMillis);
+                        }
+                        return length;
+                    }
+                    coalescer.flush(timeoutMillis);
+                }
+                UsbWriteQueue writeQueue = getWriteQueue(mWriteEndpoint, timeoutMillis);
+                if (writeQueue != null) {
+                    return writeQueue.write(srcs, timeoutMillis);
+                }
+            } finally {
+                mWriteBufferLock.unlock();
+            }
+
+            final UsbPipe pipe = openWritePipe();
+            final int chunkSize = getWriteChunkSize();
+            ChunkIrp head = null;
+            ChunkIrp tail = null;
+            for (ByteBuffer src : srcs) {
+                final int length = src.remaining();
+                for (int chunk = 0; chunk < length; chunk += chunkSize) {
+                    final ChunkIrp irp = takeWriteIrp();
+                    final int chunkLength = Math.min(length - chunk, chunkSize);
+                    if (src.hasArray()) {
+                        irp.wrap(src.array(), src.arrayOffset() + src.position() + chunk, chunkLength);
+                    } else {
+                        // IRPs carry arrays, so direct buffers are copied into the IRP's own
+                        irp.copy(src, src.position() + chunk, chunkLength);
+                    }
+                    if (head == null) {
+                        head = irp;
+                    } else {
+                        tail.mNext = irp;
+                    }
+                    tail = irp;
+                }
+                total += length;
+            }
+
+            long written = submitWriteIrps(pipe, head, timeoutMillis);
+
+            long remaining = written;
+            for (ByteBuffer src : srcs) {
+                int advance = (int) Math.min(remaining, src.remaining());
+                ((Buffer) src).position(src.position() + advance);
+                remaining -= advance;
+            }
+
+            if (written < total) {
+                throw new IOException("Error writing " + total + " bytes from "
+                        + srcs.length + " buffers, " + written + " bytes written");
+            }
+            return written;
+        }
+
+        /**
+         * Writes a region of an array in chunks of at most the write buffer
+         * size, passing the array to the USB stack without copying it.
+         */
+        private int writeArray(byte[] src, int srcOffset, int length, int timeoutMillis)
+                throws IOException {
+            final UsbPipe pipe = openWritePipe();
+            final int chunkSize = getWriteChunkSize();
+            ChunkIrp head = null;
+            ChunkIrp tail = null;
+            for (int chunk = 0; chunk < length; chunk += chunkSize) {
+                final ChunkIrp irp = takeWriteIrp();
+                irp.wrap(src, srcOffset + chunk, Math.min(length - chunk, chunkSize));
+                if (head == null) {
+                    head = irp;
+                } else {
+                    tail.mNext = irp;
+                }
+                tail = irp;
+            }
+
+            int written = (int) submitWriteIrps(pipe, head, timeoutMillis);
+            if (written < length) {
+                throw new IOException("Error writing " + (length - written)
+                        + " bytes at offset " + written + " length="
+                        + length);
+            }
+            return written;
+        }
+
+        /**
+         * Sends the data collected by the write coalescer through the write
+         * queue, or in chunks of at most the write buffer size.
+         */
+        private final UsbWriteCoalescer.Sink mCoalescedSink = new UsbWriteCoalescer.Sink() {
+            @Override
+            public int send(byte[] data, int offset, int length, int timeoutMillis) throws IOException {
+                UsbWriteQueue writeQueue = getWriteQueue(mWriteEndpoint, timeoutMillis);
+                if (writeQueue != null) {
+                    return writeQueue.write(data, offset, length, timeoutMillis);
+                }
+                return writeArray(data, offset, length, timeoutMillis);
+            }
+        };
+
+        private UsbPipe openWritePipe() throws IOException {
+            final UsbPipe pipe = mConnection.openPipe(mWriteEndpoint);
+            if (pipe == null) {
+                throw new IOException("Error opening write pipe");
+            }
+            return pipe;
+        }
+
+        private int getWriteChunkSize() {
+            mWriteBufferLock.lock();
+            try {
+                if (mAdaptiveTransfers) {
+                    return TransferSizer.align(mWriteBuffer.length,
+                            mWriteEndpoint.getUsbEndpointDescriptor().wMaxPacketSize() & 0xffff);
+                }
+                return mWriteBuffer.length;
+            } finally {
+                mWriteBufferLock.unlock();
+            }
+        }
+
+        /**
+         * Takes a chunk IRP from the pool, or creates one if the pool is
+         * empty.
+         */
+        private ChunkIrp takeWriteIrp() {
+            final ChunkIrp irp = mWriteIrps.poll();
+            return (irp != null ? irp : new ChunkIrp());
+        }
+
+        /**
+         * Submits the chain of IRPs as one sequence and waits for them in
+         * order, then returns them to the pool. The write lock is only held
+         * while submitting, so other writers can queue their data while this
+         * one waits, without interleaving with it.
+         *
+         * @param head
+         *            the first IRP of the chain, or {@code null} if there is
+         *            no data
+         * @return the number of bytes accepted by the device before the first
+         *         IRP that failed or did not complete in time
+         */
+        private long submitWriteIrps(UsbPipe pipe, ChunkIrp head, int timeoutMillis)
+                throws IOException {
+            try {
+                mWriteBufferLock.lock();
+                try {
+                    for (ChunkIrp irp = head; irp != null; irp = irp.mNext) {
+                        mConnection.submit(pipe, irp, this);
+                    }
+                } catch (UsbException | UsbNotActiveException | UsbNotOpenException
+                        | UsbDisconnectedException | IllegalArgumentException e) {
+                    throw new IOException("Error submitting write", e);
+                } finally {
+                    mWriteBufferLock.unlock();
+                }
+
+                long written = 0;
+                for (ChunkIrp irp = head; irp != null; irp = irp.mNext) {
+                    irp.waitUntilComplete(timeoutMillis);
+                    if (!irp.isComplete()) {
+                        mConnection.irpTimedOut(mWriteEndpoint, irp);
+                        break;
+                    }
+                    mConnection.irpCompleted(mWriteEndpoint, irp);
+                    if (irp.isUsbException()) {
+                        break;
+                    }
+                    written += irp.getActualLength();
+                    if (irp.getActualLength() < irp.getLength()) {
+                        break;
+                    }
+                }
+                return written;
+            } finally {
+                // IRPs still in flight, or never submitted, are not pooled again
+                ChunkIrp irp = head;
+                while (irp != null) {
+                    final ChunkIrp next = irp.mNext;
+                    irp.clear();
+                    mWriteIrps.offer(irp);
+                    irp = next;
+                }
+            }
+        }
+
         @Override
         public void setParameters(int baudRate, int dataBits, int stopBits,
                 int parity) throws IOException {
+            final FlightEvents.PortParameters event = FlightEvents.beginPortParameters();
+            if (event == null) {
+                applyParameters(baudRate, dataBits, stopBits, parity);
+                return;
+            }
+            event.setParameters(baudRate, dataBits, stopBits, parity);
+            Throwable failure = null;
+            try {
+                applyParameters(baudRate, dataBits, stopBits, parity);
+            } catch (IOException | RuntimeException e) {
+                failure = e;
+                throw e;
+            } finally {
+                event.finish(mDeviceInfo, mPortNumber, failure);
+            }
+        }
+
+        private void applyParameters(int baudRate, int dataBits, int stopBits,
+                int parity) throws IOException {
             if ((mBaudRate == baudRate) && (mDataBits == dataBits)
                     && (mStopBits == stopBits) && (mParity == parity)) {
                 // Make sure no action is performed if there is nothing to change
@@ -453,14 +1078,16 @@ public class ProlificSerialDriver implements UsbSerialDriver {
 
             lineRequestData[6] = (byte) dataBits;
 
-            ctrlOut(SET_LINE_REQUEST, 0, 0, lineRequestData);
-
-            resetDevice();
+            List<ControlTransfer> steps = new ArrayList<ControlTransfer>();
+            steps.add(ctrlOutStep(SET_LINE_REQUEST, 0, 0, lineRequestData));
+            addPurgeSteps(steps, true, true);
+            controlSequence(steps);
 
             mBaudRate = baudRate;
             mDataBits = dataBits;
             mStopBits = stopBits;
             mParity = parity;
+            setLineRate(TransferSizer.lineRate(baudRate, dataBits, stopBits, parity));
         }
 
         @Override
@@ -478,6 +1105,18 @@ public class ProlificSerialDriver implements UsbSerialDriver {
             return testStatusFlag(STATUS_FLAG_DSR);
         }
 
+        @Override
+        public void addModemStatusListener(ModemStatusListener listener) {
+            super.addModemStatusListener(listener);
+            if (mConnection != null) {
+                try {
+                    startStatusPolling();
+                } catch (IOException e) {
+                    LOG.warn("Could not start polling the modem status", e);
+                }
+            }
+        }
+
         @Override
         public boolean getDTR() throws IOException {
             return ((mControlLinesValue & CONTROL_DTR) == CONTROL_DTR);
@@ -517,12 +1156,10 @@ public class ProlificSerialDriver implements UsbSerialDriver {
 
         @Override
         public boolean purgeHwBuffers(boolean purgeReadBuffers, boolean purgeWriteBuffers) throws IOException {
-            if (purgeReadBuffers) {
-                vendorOut(FLUSH_RX_REQUEST, 0, null);
-            }
-
-            if (purgeWriteBuffers) {
-                vendorOut(FLUSH_TX_REQUEST, 0, null);
+            List<ControlTransfer> steps = new ArrayList<ControlTransfer>(2);
+            addPurgeSteps(steps, purgeReadBuffers, purgeWriteBuffers);
+            if (!steps.isEmpty()) {
+                controlSequence(steps);
             }
 
             return purgeReadBuffers || purgeWriteBuffers;
@@ -0,0 +1,197 @@
+package usbserial4j.driver;
+
+import javax.usb.UsbEndpoint;
+
+/**
+ * Chooses the length of the bulk IN transfers of a port in adaptive mode.
+ * <p>
+ * Lengths are whole multiples of the endpoint's maximum packet size, so a
+ * transfer never ends in the middle of a packet. The first length holds
+ * {@link #TARGET_FILL_MICROS} of data at the line rate. After that it follows
+ * the measured fill: it doubles after {@link #ADAPT_AFTER} transfers in a row
+ * came back full, and halves after as many came back less than a quarter
+ * full. Large transfers cut the per-transfer overhead at high rates; small
+ * ones keep the buffers of the queued transfers short at low rates.
+ * </p>
+ * <p>
+ * This class is not thread-safe, callers must serialize access.
+ * </p>
+ */
+final class TransferSizer {
+
+	/** The time a transfer of the initial length takes to fill at the line rate. */
+	static final int TARGET_FILL_MICROS = 8000;
+
+	/** The amount of data the queued transfers together can hold. */
+	static final int QUEUE_COVER_MICROS = 20000;
+
+	/** Bounds of the number of transfers kept queued. */
+	static final int MIN_QUEUE_DEPTH = 2;
+	static final int MAX_QUEUE_DEPTH = 8;
+
+	/** Number of transfers in a row that must agree before the length changes. */
+	static final int ADAPT_AFTER = 4;
+
+	/** Packet size assumed when the endpoint does not report one. */
+	private static final int DEFAULT_MAX_PACKET_SIZE = 64;
+
+	private final int mMaxPacketSize;
+	private final int mMaxLength;
+	private final int mLineRate;
+
+	private int mLength;
+
+	/** Number of full transfers in a row. */
+	private int mFull = 0;
+
+	/** Number of mostly empty transfers in a row. */
+	private int mSparse = 0;
+
+	/**
+	 * @param maxPacketSize
+	 *            the maximum packet size of the endpoint
+	 * @param maxLength
+	 *            the largest length to choose, usually the read buffer size
+	 * @param lineRate
+	 *            the line rate in bytes per second, or 0 if unknown
+	 */
+	TransferSizer(int maxPacketSize, int maxLength, int lineRate) {
+		mMaxPacketSize = (maxPacketSize > 0 ? maxPacketSize : DEFAULT_MAX_PACKET_SIZE);
+		mMaxLength = align(maxLength, mMaxPacketSize);
+		mLineRate = lineRate;
+		mLength = (lineRate > 0 ? clamp(bytesIn(TARGET_FILL_MICROS)) : mMaxLength);
+	}
+
+	/**
+	 * Creates a sizer for the given endpoint.
+	 *
+	 * @param endpoint
+	 *            the bulk IN endpoint
+	 * @param maxLength
+	 *            the largest length to choose
+	 * @param lineRate
+	 *            the line rate in bytes per second, or 0 if unknown
+	 * @return the sizer
+	 */
+	static TransferSizer of(UsbEndpoint endpoint, int maxLength, int lineRate) {
+		return new TransferSizer(endpoint.getUsbEndpointDescriptor().wMaxPacketSize() & 0xffff, maxLength,
+				lineRate);
+	}
+
+	/**
+	 * Returns the line rate of an asynchronous serial line.
+	 *
+	 * @param baudRate
+	 *            the baud rate
+	 * @param dataBits
+	 *            the number of data bits
+	 * @param stopBits
+	 *            one of the {@code STOPBITS} constants of
+	 *            {@link UsbSerialPort}
+	 * @param parity
+	 *            one of the {@code PARITY} constants of {@link UsbSerialPort}
+	 * @return the number of characters per second, 0 if the baud rate is not
+	 *         positive
+	 */
+	static int lineRate(int baudRate, int dataBits, int stopBits, int parity) {
+		if (baudRate <= 0) {
+			return 0;
+		}
+		// In half bits, for one and a half stop bits
+		int halfBits = 2 * (1 + dataBits);
+		halfBits += (parity != UsbSerialPort.PARITY_NONE ? 2 : 0);
+		halfBits += (stopBits == UsbSerialPort.STOPBITS_1_5 ? 3 : 2 * stopBits);
+		return (int) Math.max(1, 2L * baudRate / halfBits);
+	}
+
+	/**
+	 * Rounds a length down to a whole number of packets. Lengths shorter than
+	 * one packet are returned unchanged, and so are all lengths if the packet
+	 * size is unknown.
+	 *
+	 * @param length
+	 *            the length in bytes
+	 * @param maxPacketSize
+	 *            the maximum packet size of the endpoint
+	 * @return the aligned length
+	 */
+	static int align(int length, int maxPacketSize) {
+		if (maxPacketSize <= 0 || length < maxPacketSize) {
+			return length;
+		}
+		return length - length % maxPacketSize;
+	}
+
+	/**
+	 * @return the length of the next transfer
+	 */
+	int getLength() {
+		return mLength;
+	}
+
+	/**
+	 * Returns the length of the next transfer for a caller with the given
+	 * space. The length is never less than one packet, since the device may
+	 * send a full packet to any transfer and a shorter one would overflow; the
+	 * caller keeps what does not fit for the next read.
+	 *
+	 * @param space
+	 *            the number of bytes the caller can take
+	 * @return the length, a whole number of packets
+	 */
+	int getLength(int space) {
+		return align(Math.min(Math.max(space, mMaxPacketSize), mLength), mMaxPacketSize);
+	}
+
+	/**
+	 * Returns the number of transfers to keep queued, so that together they
+	 * hold {@link #QUEUE_COVER_MICROS} of data at the line rate.
+	 *
+	 * @return the queue depth
+	 */
+	int getQueueDepth() {
+		if (mLineRate <= 0) {
+			return MIN_QUEUE_DEPTH;
+		}
+		final long depth = (bytesIn(QUEUE_COVER_MICROS) + mLength - 1) / mLength;
+		return (int) Math.max(MIN_QUEUE_DEPTH, Math.min(MAX_QUEUE_DEPTH, depth));
+	}
+
+	/**
+	 * Records a completed transfer.
+	 *
+	 * @param length
+	 *            the length of the transfer
+	 * @param actualLength
+	 *            the number of bytes received
+	 */
+	void completed(int length, int actualLength) {
+		if (actualLength >= length) {
+			mSparse = 0;
+			if (++mFull >= ADAPT_AFTER) {
+				mFull = 0;
+				mLength = clamp(2L * mLength);
+			}
+		} else if (actualLength < length / 4) {
+			mFull = 0;
+			if (++mSparse >= ADAPT_AFTER) {
+				mSparse = 0;
+				mLength = clamp(mLength / 2);
+			}
+		} else {
+			mFull = 0;
+			mSparse = 0;
+		}
+	}
+
+	private long bytesIn(int micros) {
+		return (long) mLineRate * micros / 1000000;
+	}
+
+	private int clamp(long length) {
+		if (length >= mMaxLength) {
+			return mMaxLength;
+		}
+		return Math.min(Math.max(align((int) length, mMaxPacketSize), mMaxPacketSize), mMaxLength);
+	}
+}
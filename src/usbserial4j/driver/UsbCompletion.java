@@ -0,0 +1,140 @@
+package usbserial4j.driver;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.concurrent.locks.AbstractQueuedSynchronizer;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A resettable completion flag for IRPs. Waiting threads are parked with
+ * {@link java.util.concurrent.locks.LockSupport} instead of waiting on a
+ * monitor, so a virtual thread waiting for a transfer releases its carrier
+ * thread.
+ * <p>
+ * The first waiter parks on its own without queueing, so that waiting for a
+ * transfer allocates nothing; further waiters queue on the synchronizer.
+ * </p>
+ */
+final class UsbCompletion extends AbstractQueuedSynchronizer {
+	private static final long serialVersionUID = 1L;
+
+	private static final AtomicReferenceFieldUpdater<UsbCompletion, Thread> WAITER =
+			AtomicReferenceFieldUpdater.newUpdater(UsbCompletion.class, Thread.class, "mWaiter");
+
+	/** The thread parked without queueing, if any. */
+	private transient volatile Thread mWaiter = null;
+
+	@Override
+	protected int tryAcquireShared(int ignored) {
+		return getState() != 0 ? 1 : -1;
+	}
+
+	@Override
+	protected boolean tryReleaseShared(int ignored) {
+		setState(1);
+		return true;
+	}
+
+	boolean isDone() {
+		return getState() != 0;
+	}
+
+	/**
+	 * Marks the completion as done and wakes up all waiters.
+	 */
+	void signal() {
+		releaseShared(1);
+		final Thread waiter = mWaiter;
+		if (waiter != null) {
+			LockSupport.unpark(waiter);
+		}
+	}
+
+	/**
+	 * Marks the completion as not done, before the IRP is submitted again.
+	 */
+	void reset() {
+		setState(0);
+	}
+
+	/**
+	 * Waits until the completion is done or the timeout elapsed. Interrupts
+	 * do not end the wait, but the interrupt status is kept.
+	 *
+	 * @param timeoutMillis
+	 *            the maximum time to wait, or 0 or less to wait forever
+	 */
+	void await(long timeoutMillis) {
+		if (timeoutMillis <= 0) {
+			if (isDone()) {
+				return;
+			}
+			final Thread current = Thread.currentThread();
+			if (!WAITER.compareAndSet(this, null, current)) {
+				acquireShared(1);
+				return;
+			}
+			boolean interrupted = false;
+			try {
+				while (!isDone()) {
+					LockSupport.park(this);
+					// A pending interrupt would keep park from blocking
+					interrupted |= Thread.interrupted();
+				}
+			} finally {
+				mWaiter = null;
+			}
+			if (interrupted) {
+				current.interrupt();
+			}
+			return;
+		}
+		awaitNanos(TimeUnit.MILLISECONDS.toNanos(timeoutMillis));
+	}
+
+	/**
+	 * Waits until the completion is done or the timeout elapsed. Interrupts
+	 * do not end the wait, but the interrupt status is kept.
+	 *
+	 * @param timeoutNanos
+	 *            the maximum time to wait; returns at once if 0 or less
+	 */
+	void awaitNanos(long timeoutNanos) {
+		if (timeoutNanos <= 0 || isDone()) {
+			return;
+		}
+		final Thread current = Thread.currentThread();
+		if (WAITER.compareAndSet(this, null, current)) {
+			boolean interrupted = false;
+			try {
+				final long deadline = System.nanoTime() + timeoutNanos;
+				long remaining = timeoutNanos;
+				while (remaining > 0 && !isDone()) {
+					LockSupport.parkNanos(this, remaining);
+					interrupted |= Thread.interrupted();
+					remaining = deadline - System.nanoTime();
+				}
+			} finally {
+				mWaiter = null;
+			}
+			if (interrupted) {
+				current.interrupt();
+			}
+			return;
+		}
+		boolean interrupted = false;
+		final long deadline = System.nanoTime() + timeoutNanos;
+		long remaining = timeoutNanos;
+		while (remaining > 0 && !isDone()) {
+			try {
+				tryAcquireSharedNanos(1, remaining);
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+			remaining = deadline - System.nanoTime();
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
@@ -1,11 +1,12 @@
 package usbserial4j.driver;
 
-import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
+import javax.management.ObjectName;
 import javax.usb.UsbConfiguration;
-import javax.usb.UsbControlIrp;
 import javax.usb.UsbDevice;
 import javax.usb.UsbDisconnectedException;
 import javax.usb.UsbEndpoint;
@@ -17,13 +18,48 @@ import javax.usb.UsbNotActiveException;
 import javax.usb.UsbNotClaimedException;
 import javax.usb.UsbNotOpenException;
 import javax.usb.UsbPipe;
+import javax.usb.util.DefaultUsbControlIrp;
 
+/**
+ * An open device: claims interfaces, opens pipes and performs transfers.
+ * <p>
+ * The transfers are counted in a {@link UsbTransferMetrics}, which is
+ * published as an MBean from construction until {@link #close()}. The
+ * synchronous and sequenced transfers are also recorded as Flight Recorder
+ * events, see {@link FlightEvents}.
+ * </p>
+ */
 public class UsbDeviceConnection {
+	private static final byte[] NO_DATA = new byte[0];
+
+	/** Number of IRPs of each kind kept for reuse by synchronous transfers. */
+	private static final int IRP_POOL_SIZE = 4;
+
 	private final UsbDevice mDevice;
 	private List<UsbEndpoint> openedEndpoints = new ArrayList<>();
 
+	private final UsbIrpPool<ParkingUsbControlIrp> mControlIrps = new UsbIrpPool<>(IRP_POOL_SIZE);
+	private final UsbIrpPool<ParkingUsbIrp> mBulkIrps = new UsbIrpPool<>(IRP_POOL_SIZE);
+
+	/** The IRPs pending on each pipe opened by {@link #openPipe}. */
+	private final Map<UsbPipe, UsbPipeIrps> mPipeIrps = new ConcurrentHashMap<>();
+
+	private final UsbTransferMetrics mMetrics = new UsbTransferMetrics();
+	private final ObjectName mMetricsName;
+
 	public UsbDeviceConnection(UsbDevice device) {
 		mDevice = device;
+		mMetricsName = UsbMBeans.newName("UsbDeviceConnection", UsbMBeans.describe(device));
+		UsbMBeans.register(mMetricsName, mMetrics);
+	}
+
+	/**
+	 * Returns the transfer counters of this connection.
+	 *
+	 * @return the metrics
+	 */
+	public UsbTransferMetrics getMetrics() {
+		return mMetrics;
 	}
 
 	/**
@@ -33,8 +69,12 @@ public class UsbDeviceConnection {
 	 * reestablish communication with the device.
 	 */
 	@SuppressWarnings("unchecked")
-	public void close() {
+	public synchronized void close() {
 		try {
+			for (UsbPipeIrps irps : mPipeIrps.values()) {
+				irps.close();
+			}
+			mPipeIrps.clear();
 			for (UsbEndpoint endpoint : openedEndpoints) {
 				// Close all opened endpoints
 				UsbPipe usbPipe = endpoint.getUsbPipe();
@@ -52,6 +92,8 @@ public class UsbDeviceConnection {
 			}
 		} catch (Exception e) {
 			e.printStackTrace();
+		} finally {
+			UsbMBeans.unregister(mMetricsName);
 		}
 	}
 
@@ -88,22 +130,7 @@ public class UsbDeviceConnection {
 	 * @return raw USB descriptors
 	 */
 	public byte[] getRawDescriptors() {
-		byte[] descriptor = new byte[18];
-		descriptor[0] = (byte) descriptor.length;
-		descriptor[1] = mDevice.getUsbDeviceDescriptor().bDescriptorType();
-		descriptor[2] = (byte) mDevice.getUsbDeviceDescriptor().bcdUSB();
-		descriptor[4] = mDevice.getUsbDeviceDescriptor().bDeviceClass();
-		descriptor[5] = mDevice.getUsbDeviceDescriptor().bDeviceSubClass();
-		descriptor[6] = mDevice.getUsbDeviceDescriptor().bDeviceProtocol();
-		descriptor[7] = mDevice.getUsbDeviceDescriptor().bMaxPacketSize0();
-		descriptor[8] = (byte) mDevice.getUsbDeviceDescriptor().idVendor();
-		descriptor[10] = (byte) mDevice.getUsbDeviceDescriptor().idProduct();
-		descriptor[12] = (byte) mDevice.getUsbDeviceDescriptor().bcdDevice();
-		descriptor[14] = (byte) mDevice.getUsbDeviceDescriptor().iManufacturer();
-		descriptor[15] = (byte) mDevice.getUsbDeviceDescriptor().iProduct();
-		descriptor[16] = (byte) mDevice.getUsbDeviceDescriptor().iSerialNumber();
-		descriptor[17] = (byte) mDevice.getUsbDeviceDescriptor().bNumConfigurations();
-		return descriptor;
+		return DeviceInfo.of(mDevice).getDescriptor();
 	}
 
 	/**
@@ -186,22 +213,64 @@ public class UsbDeviceConnection {
 			int length, int timeout) {
 		checkBounds(buffer, offset, length);
 
-		UsbControlIrp irp = mDevice.createUsbControlIrp((byte) requestType, (byte) request, (short) value,
-				(short) index);
-
-		if (buffer != null)
-			irp.setData(buffer);
+		ParkingUsbControlIrp irp = mControlIrps.poll();
+		if (irp == null) {
+			irp = new ParkingUsbControlIrp((byte) requestType, (byte) request, (short) value, (short) index);
+		}
+		irp.reset((byte) requestType, (byte) request, (short) value, (short) index,
+				(buffer != null ? buffer : NO_DATA), offset, length);
 
-		irp.setOffset(offset);
-		irp.setLength(length);
+		final FlightEvents.ControlTransfer event = FlightEvents.beginControlTransfer();
+		String outcome = null;
+		mMetrics.controlSubmitted();
+		final long start = System.nanoTime();
 		try {
 			mDevice.asyncSubmit(irp);
 			irp.waitUntilComplete(timeout);
+			if (event != null) {
+				outcome = FlightEvents.outcomeOf(irp);
+			}
+			if (!irp.isComplete()) {
+				mMetrics.timedOut();
+				return -1;
+			}
+			mMetrics.controlCompleted(irp, start);
+			return (irp.isUsbException() ? -1 : irp.getActualLength());
 		} catch (IllegalArgumentException | UsbDisconnectedException | UsbException e) {
+			outcome = FlightEvents.outcomeOf(e);
+			mMetrics.failed(e);
 			return -1;
+		} finally {
+			if (event != null) {
+				event.finish(requestType, request, value, index, length,
+						(irp.isComplete() ? irp.getActualLength() : 0), outcome);
+			}
+			release(mControlIrps, irp);
 		}
+	}
 
-		return (irp.isUsbException() || !irp.isComplete() ? -1 : irp.getActualLength());
+	/**
+	 * Performs a sequence of control transactions on endpoint zero in one
+	 * exchange. Each step is submitted by the completion of the previous one,
+	 * so the steps run back to back without waking up the calling thread in
+	 * between. The sequence stops at the first step that fails: no later step
+	 * is submitted.
+	 *
+	 * @param transfers
+	 *            the steps, in order
+	 * @param timeout
+	 *            for the whole sequence, in milliseconds
+	 * @return one entry per step that was submitted, holding the length of
+	 *         data transferred (or zero) for success, or a negative value if
+	 *         the step failed or did not complete in time; the array is
+	 *         shorter than the list if a step failed, and the failed step is
+	 *         the last entry
+	 */
+	public int[] controlTransfer(List<ControlTransfer> transfers, int timeout) {
+		if (transfers.isEmpty()) {
+			return new int[0];
+		}
+		return new ControlSequence(transfers).run(timeout);
 	}
 
 	/**
@@ -248,30 +317,156 @@ public class UsbDeviceConnection {
 	public int bulkTransfer(UsbEndpoint endpoint, byte[] buffer, int offset, int length, int timeout) {
 		checkBounds(buffer, offset, length);
 
+		UsbPipe usbPipe = openPipe(endpoint);
+		if (usbPipe == null) {
+			// Failed to open pipe
+			return -1;
+		}
+
+		ParkingUsbIrp irp = mBulkIrps.poll();
+		if (irp == null) {
+			irp = new ParkingUsbIrp();
+		}
+		irp.reset(buffer, offset, length);
+
+		try {
+			submit(usbPipe, irp, this);
+			irp.waitUntilComplete(timeout);
+			if (!irp.isComplete()) {
+				irpTimedOut(endpoint, irp);
+				return -1;
+			}
+			irpCompleted(endpoint, irp);
+			return (irp.isUsbException() ? -1 : irp.getActualLength());
+		} catch (UsbNotActiveException | UsbNotOpenException | UsbDisconnectedException | UsbException e) {
+			mMetrics.failed(e);
+			return -1;
+		} finally {
+			release(mBulkIrps, irp);
+		}
+	}
+
+	/**
+	 * Returns a completed IRP to its pool, without keeping a reference to the
+	 * caller's buffer. An IRP that timed out is still queued and is left to
+	 * the garbage collector once it completes.
+	 */
+	private static <T extends UsbIrp> void release(UsbIrpPool<T> pool, T irp) {
+		if (irp.isComplete()) {
+			irp.setData(NO_DATA);
+			pool.offer(irp);
+		}
+	}
+
+	/**
+	 * Returns the pipe of the given endpoint, opening it first if necessary.
+	 * Pipes opened here are closed by {@link #close()}.
+	 *
+	 * @param endpoint
+	 *            the endpoint whose pipe is requested
+	 * @return the open pipe, or {@code null} if it could not be opened
+	 */
+	synchronized UsbPipe openPipe(UsbEndpoint endpoint) {
 		UsbPipe usbPipe = endpoint.getUsbPipe();
 		if (!usbPipe.isOpen()) {
 			try {
 				usbPipe.open();
-				
+
 				if (!openedEndpoints.contains(endpoint))
 					openedEndpoints.add(endpoint);
 			} catch (UsbNotActiveException | UsbNotClaimedException | UsbDisconnectedException | UsbException e) {
-				// Failed to open pipe
-				return -1;
+				return null;
 			}
 		}
+		if (!mPipeIrps.containsKey(usbPipe)) {
+			mPipeIrps.put(usbPipe, new UsbPipeIrps(usbPipe));
+		}
+		return usbPipe;
+	}
 
-		UsbIrp irp = usbPipe.createUsbIrp();
-		irp.setData(buffer, offset, length);
+	/**
+	 * Submits an IRP to a pipe returned by {@link #openPipe} on behalf of the
+	 * given owner, so that the owner can cancel it later with
+	 * {@link #cancel(UsbPipe, Object)} without touching the IRPs of others.
+	 * The transfer is recorded as a Flight Recorder event once the owner
+	 * reports it with {@link #irpCompleted(UsbEndpoint, UsbIrp)} or
+	 * {@link #irpTimedOut(UsbEndpoint, UsbIrp)}.
+	 *
+	 * @param pipe
+	 *            the pipe
+	 * @param irp
+	 *            the IRP, not complete
+	 * @param owner
+	 *            the component the IRP belongs to
+	 */
+	void submit(UsbPipe pipe, UsbIrp irp, Object owner) throws UsbException {
+		final UsbPipeIrps irps = mPipeIrps.get(pipe);
+		if (irps != null) {
+			irps.submit(irp, owner);
+		} else {
+			pipe.asyncSubmit(irp);
+		}
+	}
 
-		try {
-			usbPipe.asyncSubmit(irp);
-			irp.waitUntilComplete(timeout);
-		} catch (UsbNotActiveException | UsbNotOpenException | UsbDisconnectedException | UsbException e) {
-			return -1;
+	/**
+	 * Records an IRP submitted with {@link #submit(UsbPipe, UsbIrp, Object)}
+	 * that completed, in the metrics and as a Flight Recorder event. Called by
+	 * the owner when it reaps the IRP, before reusing it.
+	 *
+	 * @param endpoint
+	 *            the endpoint the IRP was submitted to
+	 * @param irp
+	 *            the completed IRP
+	 */
+	void irpCompleted(UsbEndpoint endpoint, UsbIrp irp) {
+		mMetrics.irpCompleted(endpoint, irp);
+		finished(endpoint, irp);
+	}
+
+	/**
+	 * Records an IRP submitted with {@link #submit(UsbPipe, UsbIrp, Object)}
+	 * that its owner stopped waiting for.
+	 *
+	 * @param endpoint
+	 *            the endpoint the IRP was submitted to
+	 * @param irp
+	 *            the IRP, not complete
+	 */
+	void irpTimedOut(UsbEndpoint endpoint, UsbIrp irp) {
+		mMetrics.timedOut();
+		finished(endpoint, irp);
+	}
+
+	private void finished(UsbEndpoint endpoint, UsbIrp irp) {
+		final UsbPipeIrps irps = mPipeIrps.get(endpoint.getUsbPipe());
+		if (irps != null) {
+			irps.finished(irp, FlightEvents.outcomeOf(irp));
 		}
+	}
 
-		return (irp.isUsbException() || !irp.isComplete() ? -1 : irp.getActualLength());
+	/**
+	 * Cancels the IRPs the given owner submitted to a pipe. The pipe is only
+	 * aborted if no other owner has IRPs pending on it; then the IRPs of the
+	 * owner are complete on return. Otherwise they are left to complete
+	 * normally, and the owner must ignore them.
+	 *
+	 * @param pipe
+	 *            the pipe
+	 * @param owner
+	 *            the component whose IRPs are cancelled
+	 * @return whether the pipe was aborted
+	 */
+	boolean cancel(UsbPipe pipe, Object owner) {
+		final UsbPipeIrps irps = mPipeIrps.get(pipe);
+		if (irps != null) {
+			return irps.cancel(owner);
+		}
+		try {
+			pipe.abortAllSubmissions();
+		} catch (UsbNotActiveException | UsbNotOpenException | UsbDisconnectedException e) {
+			// Nothing left to abort
+		}
+		return true;
 	}
 
 	/**
@@ -299,10 +494,139 @@ public class UsbDeviceConnection {
 	 * @return the device serial number
 	 */
 	public String getSerial() {
-		try {
-			return mDevice.getSerialNumberString();
-		} catch (UnsupportedEncodingException | UsbDisconnectedException | UsbException e) {
-			return null;
+		return DeviceInfo.of(mDevice).getSerialNumber();
+	}
+
+	/**
+	 * A control IRP that hands its completion to the sequence it belongs to.
+	 */
+	private static final class SequenceIrp extends DefaultUsbControlIrp {
+		private final ControlSequence mSequence;
+
+		/** When the step was submitted, in {@link System#nanoTime()} time. */
+		long mSubmitted;
+
+		/** Whether the step was accepted by the device. */
+		boolean mInFlight;
+
+		/**
+		 * Whether the caller stopped waiting for the step and counted it as
+		 * timed out. Guarded by the sequence.
+		 */
+		boolean mTimedOut;
+
+		/** The event of the step, or {@code null} if it is not recorded. */
+		FlightEvents.ControlTransfer mEvent;
+
+		SequenceIrp(ControlSequence sequence, ControlTransfer transfer) {
+			super((transfer.buffer != null ? transfer.buffer : NO_DATA), transfer.offset, transfer.length, true,
+					(byte) transfer.requestType, (byte) transfer.request, (short) transfer.value,
+					(short) transfer.index);
+			mSequence = sequence;
+		}
+
+		@Override
+		public void complete() {
+			super.complete();
+			mSequence.onComplete(this);
+		}
+	}
+
+	/**
+	 * Runs the steps of {@link #controlTransfer(List, int)}, submitting each
+	 * one from the completion of the previous one.
+	 */
+	private final class ControlSequence {
+		private final SequenceIrp[] mIrps;
+		private final UsbCompletion mDone = new UsbCompletion();
+
+		/** Index of the last step submitted. Guarded by {@code this}. */
+		private int mLast = -1;
+
+		/** Set when the caller stopped waiting. Guarded by {@code this}. */
+		private boolean mCancelled = false;
+
+		ControlSequence(List<ControlTransfer> transfers) {
+			mIrps = new SequenceIrp[transfers.size()];
+			for (int i = 0; i < mIrps.length; ++i) {
+				mIrps[i] = new SequenceIrp(this, transfers.get(i));
+			}
+		}
+
+		int[] run(int timeout) {
+			synchronized (this) {
+				if (!submitNext()) {
+					return new int[] { -1 };
+				}
+			}
+			mDone.await(timeout);
+
+			synchronized (this) {
+				// A step still in flight after a timeout must not submit the next
+				mCancelled = true;
+				final int[] results = new int[mLast + 1];
+				for (int i = 0; i < results.length; ++i) {
+					final SequenceIrp irp = mIrps[i];
+					// A step that failed to submit was counted as a failure already
+					if (irp.mInFlight && !irp.isComplete()) {
+						irp.mTimedOut = true;
+						mMetrics.timedOut();
+						finishEvent(irp, FlightEvents.OUTCOME_TIMEOUT);
+					}
+					results[i] = (irp.isComplete() && !irp.isUsbException() ? irp.getActualLength() : -1);
+				}
+				return results;
+			}
+		}
+
+		void onComplete(SequenceIrp irp) {
+			synchronized (this) {
+				// A late step was counted as timed out already
+				if (!irp.mTimedOut) {
+					mMetrics.controlCompleted(irp, irp.mSubmitted);
+				}
+				finishEvent(irp, FlightEvents.outcomeOf(irp));
+				if (!mCancelled && !irp.isUsbException() && mLast + 1 < mIrps.length && submitNext()) {
+					return;
+				}
+			}
+			mDone.signal();
+		}
+
+		/**
+		 * Submits the step after the last one. Must be called with the lock
+		 * held.
+		 *
+		 * @return {@code false} if the step could not be submitted
+		 */
+		private boolean submitNext() {
+			mLast++;
+			mMetrics.controlSubmitted();
+			final SequenceIrp irp = mIrps[mLast];
+			irp.mEvent = FlightEvents.beginControlTransfer();
+			irp.mSubmitted = System.nanoTime();
+			try {
+				mDevice.asyncSubmit(irp);
+				irp.mInFlight = true;
+				return true;
+			} catch (IllegalArgumentException | UsbDisconnectedException | UsbException e) {
+				mMetrics.failed(e);
+				finishEvent(irp, FlightEvents.outcomeOf(e));
+				return false;
+			}
+		}
+
+		/**
+		 * Ends the event of a step, once: the completion of a step that timed
+		 * out may still come in later. Must be called with the lock held.
+		 */
+		private void finishEvent(SequenceIrp irp, String outcome) {
+			final FlightEvents.ControlTransfer event = irp.mEvent;
+			irp.mEvent = null;
+			if (event != null) {
+				event.finish(irp.bmRequestType(), irp.bRequest(), irp.wValue(), irp.wIndex(), irp.getLength(),
+						(irp.isComplete() ? irp.getActualLength() : 0), outcome);
+			}
 		}
 	}
 
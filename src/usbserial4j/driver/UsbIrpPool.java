@@ -0,0 +1,62 @@
+package usbserial4j.driver;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import javax.usb.UsbIrp;
+
+/**
+ * A small, fixed-size pool of IRPs, so that synchronous transfers do not
+ * allocate a new IRP each time.
+ * <p>
+ * The pool is a set of slots taken and filled with compare-and-set; neither
+ * operation blocks or allocates. Only IRPs that have completed are accepted,
+ * since an IRP whose wait timed out is still queued on the pipe and may be
+ * completed later. When all slots are taken, {@link #poll()} returns
+ * {@code null} and the caller allocates a new IRP.
+ * </p>
+ */
+final class UsbIrpPool<T extends UsbIrp> {
+	private final AtomicReferenceArray<T> mSlots;
+
+	/**
+	 * @param size
+	 *            the number of IRPs kept, which bounds the number of
+	 *            concurrent transfers served without allocating
+	 */
+	UsbIrpPool(int size) {
+		mSlots = new AtomicReferenceArray<T>(size);
+	}
+
+	/**
+	 * Takes a pooled IRP.
+	 *
+	 * @return a completed IRP, or {@code null} if the pool is empty
+	 */
+	T poll() {
+		for (int i = 0; i < mSlots.length(); ++i) {
+			final T irp = mSlots.get(i);
+			if (irp != null && mSlots.compareAndSet(i, irp, null)) {
+				return irp;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Returns an IRP to the pool. IRPs that have not completed, and IRPs that
+	 * do not fit, are dropped.
+	 *
+	 * @param irp
+	 *            the IRP
+	 */
+	void offer(T irp) {
+		if (!irp.isComplete()) {
+			return;
+		}
+		for (int i = 0; i < mSlots.length(); ++i) {
+			if (mSlots.get(i) == null && mSlots.compareAndSet(i, null, irp)) {
+				return;
+			}
+		}
+	}
+}
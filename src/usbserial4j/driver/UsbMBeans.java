@@ -0,0 +1,118 @@
+package usbserial4j.driver;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import javax.usb.UsbDevice;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Registers the metrics MBeans on the platform MBean server, in the
+ * {@value #DOMAIN} domain. Failures are logged and otherwise ignored: metrics
+ * are recorded whether they are published or not.
+ */
+final class UsbMBeans {
+	private static final Log LOG = LogFactory.getLog(UsbMBeans.class);
+
+	static final String DOMAIN = "usbserial4j";
+
+	/** Makes the names of connections and ports unique. */
+	private static final AtomicLong NEXT_ID = new AtomicLong();
+
+	private UsbMBeans() {
+	}
+
+	/**
+	 * Returns a name for an MBean, unique in this JVM.
+	 *
+	 * @param type
+	 *            the value of the {@code type} key
+	 * @param name
+	 *            the value of the {@code name} key, quoted as needed
+	 * @return the name, or {@code null} if it is not valid
+	 */
+	static ObjectName newName(String type, String name) {
+		try {
+			return new ObjectName(DOMAIN + ":type=" + type + ",name="
+					+ ObjectName.quote(name + " #" + NEXT_ID.incrementAndGet()));
+		} catch (JMException e) {
+			LOG.debug("Invalid MBean name for " + name, e);
+			return null;
+		}
+	}
+
+	/**
+	 * Returns the name of an MBean of which there is only one per JVM.
+	 *
+	 * @param type
+	 *            the value of the {@code type} key
+	 * @return the name
+	 */
+	static ObjectName singletonName(String type) {
+		try {
+			return new ObjectName(DOMAIN + ":type=" + type);
+		} catch (JMException e) {
+			LOG.debug("Invalid MBean name for " + type, e);
+			return null;
+		}
+	}
+
+	/**
+	 * Returns the part of an MBean name identifying a device: its vendor and
+	 * product id, and its serial number if it has one.
+	 *
+	 * @param device
+	 *            the device
+	 * @return the description
+	 */
+	static String describe(UsbDevice device) {
+		final DeviceInfo info = DeviceInfo.of(device);
+		final String ids = String.format("%04x:%04x", info.getVendorId(), info.getProductId());
+		return (info.getSerialNumber() != null ? ids + " " + info.getSerialNumber() : ids);
+	}
+
+	/**
+	 * Registers an MBean, replacing the one registered under the same name.
+	 *
+	 * @param name
+	 *            the name, may be {@code null} to do nothing
+	 * @param mbean
+	 *            the MBean
+	 */
+	static void register(ObjectName name, Object mbean) {
+		if (name == null) {
+			return;
+		}
+		try {
+			if (ManagementFactory.getPlatformMBeanServer().isRegistered(name)) {
+				ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+			}
+			ManagementFactory.getPlatformMBeanServer().registerMBean(mbean, name);
+		} catch (JMException | RuntimeException e) {
+			LOG.debug("Could not register MBean " + name, e);
+		}
+	}
+
+	/**
+	 * Unregisters an MBean, if it is registered.
+	 *
+	 * @param name
+	 *            the name, may be {@code null} to do nothing
+	 */
+	static void unregister(ObjectName name) {
+		if (name == null) {
+			return;
+		}
+		try {
+			if (ManagementFactory.getPlatformMBeanServer().isRegistered(name)) {
+				ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+			}
+		} catch (JMException | RuntimeException e) {
+			LOG.debug("Could not unregister MBean " + name, e);
+		}
+	}
+}
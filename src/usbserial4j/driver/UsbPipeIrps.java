@@ -0,0 +1,249 @@
+package usbserial4j.driver;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.usb.UsbAbortException;
+import javax.usb.UsbDisconnectedException;
+import javax.usb.UsbException;
+import javax.usb.UsbIrp;
+import javax.usb.UsbNotActiveException;
+import javax.usb.UsbNotOpenException;
+import javax.usb.UsbPipe;
+import javax.usb.event.UsbPipeDataEvent;
+import javax.usb.event.UsbPipeErrorEvent;
+import javax.usb.event.UsbPipeListener;
+
+/**
+ * Keeps track of the IRPs submitted to a pipe shared by several components,
+ * so that one of them can cancel its own IRPs without dropping the others'.
+ * <p>
+ * javax.usb can only abort all IRPs of a pipe at once, and usb4java drops the
+ * queued ones without completing them. The pipe is therefore only aborted when
+ * every pending IRP belongs to the component cancelling; otherwise its IRPs
+ * are left to complete normally. IRPs submitted while an abort runs are held
+ * back and submitted when it is over.
+ * </p>
+ * <p>
+ * The tracker also keeps the Flight Recorder event of each pending IRP, begun
+ * when it is submitted and finished when its owner reaps it, see
+ * {@link #finished(UsbIrp, String)}. The event of an IRP that is never reaped
+ * is dropped.
+ * </p>
+ * <p>
+ * Submitting allocates nothing once the table of pending IRPs has grown to
+ * the number in flight, unless the events are recorded.
+ * </p>
+ */
+final class UsbPipeIrps implements UsbPipeListener {
+	private final UsbPipe mPipe;
+	private final int mEndpointAddress;
+
+	private final ReentrantLock mLock = new ReentrantLock();
+
+	/** Pending IRPs and their owners. Guarded by {@link #mLock}. */
+	private final IdentityHashMap<UsbIrp, Object> mOwners = new IdentityHashMap<>();
+
+	/**
+	 * Events of pending IRPs, only those that are recorded. Guarded by
+	 * {@link #mLock}.
+	 */
+	private final IdentityHashMap<UsbIrp, FlightEvents.BulkTransfer> mEvents = new IdentityHashMap<>();
+
+	/** IRPs submitted during an abort. Guarded by {@link #mLock}. */
+	private final ArrayList<UsbIrp> mHeld = new ArrayList<>();
+
+	/** Whether the pipe is being aborted. Guarded by {@link #mLock}. */
+	private boolean mAborting = false;
+
+	UsbPipeIrps(UsbPipe pipe) {
+		mPipe = pipe;
+		mEndpointAddress = pipe.getUsbEndpoint().getUsbEndpointDescriptor().bEndpointAddress() & 0xff;
+		pipe.addUsbPipeListener(this);
+	}
+
+	/**
+	 * Submits an IRP to the pipe on behalf of the given owner.
+	 *
+	 * @param irp
+	 *            the IRP, not complete
+	 * @param owner
+	 *            the component the IRP belongs to
+	 */
+	void submit(UsbIrp irp, Object owner) throws UsbException {
+		final FlightEvents.BulkTransfer event = FlightEvents.beginBulkTransfer();
+		mLock.lock();
+		try {
+			mOwners.put(irp, owner);
+			if (event != null) {
+				mEvents.put(irp, event);
+			} else if (!mEvents.isEmpty()) {
+				// An event of an earlier submission that was never reaped
+				mEvents.remove(irp);
+			}
+			if (mAborting) {
+				mHeld.add(irp);
+				return;
+			}
+		} finally {
+			mLock.unlock();
+		}
+		try {
+			mPipe.asyncSubmit(irp);
+		} catch (UsbNotActiveException | UsbNotOpenException | UsbDisconnectedException | UsbException e) {
+			finished(irp, FlightEvents.outcomeOf(e));
+			forget(irp);
+			throw e;
+		}
+	}
+
+	/**
+	 * Finishes the event of an IRP, when its owner reaps it or gives up
+	 * waiting for it. Does nothing if the IRP is not recorded.
+	 *
+	 * @param irp
+	 *            the IRP
+	 * @param outcome
+	 *            the outcome of the transfer
+	 */
+	void finished(UsbIrp irp, String outcome) {
+		final FlightEvents.BulkTransfer event;
+		mLock.lock();
+		try {
+			if (mEvents.isEmpty()) {
+				return;
+			}
+			event = mEvents.remove(irp);
+		} finally {
+			mLock.unlock();
+		}
+		if (event != null) {
+			event.finish(mEndpointAddress, irp.getLength(), (irp.isComplete() ? irp.getActualLength() : 0), outcome);
+		}
+	}
+
+	/**
+	 * Cancels the pending IRPs of the given owner. If no other owner has IRPs
+	 * pending, the pipe is aborted and the IRPs of the owner are complete on
+	 * return, those dropped by the abort with a {@link UsbAbortException}.
+	 * Otherwise nothing is aborted and the IRPs complete normally.
+	 *
+	 * @param owner
+	 *            the component whose IRPs are cancelled
+	 * @return whether the pipe was aborted
+	 */
+	boolean cancel(Object owner) {
+		mLock.lock();
+		try {
+			if (mAborting) {
+				return false;
+			}
+			final Iterator<Map.Entry<UsbIrp, Object>> it = mOwners.entrySet().iterator();
+			while (it.hasNext()) {
+				final Map.Entry<UsbIrp, Object> entry = it.next();
+				if (entry.getKey().isComplete()) {
+					it.remove();
+				} else if (entry.getValue() != owner) {
+					return false;
+				}
+			}
+			mAborting = true;
+		} finally {
+			mLock.unlock();
+		}
+
+		final ArrayList<UsbIrp> dropped = new ArrayList<>();
+		final ArrayList<UsbIrp> held;
+		try {
+			mPipe.abortAllSubmissions();
+		} catch (UsbNotActiveException | UsbNotOpenException | UsbDisconnectedException e) {
+			// Nothing left to abort
+		} finally {
+			mLock.lock();
+			try {
+				mAborting = false;
+				final Iterator<Map.Entry<UsbIrp, Object>> it = mOwners.entrySet().iterator();
+				while (it.hasNext()) {
+					final Map.Entry<UsbIrp, Object> entry = it.next();
+					final UsbIrp irp = entry.getKey();
+					if (entry.getValue() == owner) {
+						it.remove();
+						if (!irp.isComplete()) {
+							dropped.add(irp);
+						}
+					}
+				}
+				held = new ArrayList<>(mHeld);
+				mHeld.clear();
+			} finally {
+				mLock.unlock();
+			}
+		}
+
+		for (UsbIrp irp : dropped) {
+			irp.setUsbException(new UsbAbortException("IRP was aborted"));
+			irp.complete();
+		}
+		for (UsbIrp irp : held) {
+			try {
+				mPipe.asyncSubmit(irp);
+			} catch (UsbNotActiveException | UsbNotOpenException | UsbDisconnectedException | UsbException e) {
+				finished(irp, FlightEvents.outcomeOf(e));
+				forget(irp);
+				irp.setUsbException(e instanceof UsbException ? (UsbException) e : new UsbException(e.toString()));
+				irp.complete();
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Stops tracking the pipe, when it is closed.
+	 */
+	void close() {
+		mPipe.removeUsbPipeListener(this);
+		mLock.lock();
+		try {
+			mOwners.clear();
+			mEvents.clear();
+			mHeld.clear();
+		} finally {
+			mLock.unlock();
+		}
+	}
+
+	@Override
+	public void dataEventOccurred(UsbPipeDataEvent event) {
+		completed(event.getUsbIrp());
+	}
+
+	@Override
+	public void errorEventOccurred(UsbPipeErrorEvent event) {
+		completed(event.getUsbIrp());
+	}
+
+	private void completed(UsbIrp irp) {
+		mLock.lock();
+		try {
+			// A pooled IRP may have been reset and submitted again already
+			if (irp.isComplete()) {
+				mOwners.remove(irp);
+			}
+		} finally {
+			mLock.unlock();
+		}
+	}
+
+	private void forget(UsbIrp irp) {
+		mLock.lock();
+		try {
+			mOwners.remove(irp);
+			mHeld.remove(irp);
+		} finally {
+			mLock.unlock();
+		}
+	}
+}
@@ -0,0 +1,153 @@
+package usbserial4j.driver;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The call counters of a serial port. Recording only updates atomic counters
+ * and never allocates.
+ */
+public final class UsbPortMetrics implements UsbPortMetricsMXBean {
+
+	private final AtomicLong mReads = new AtomicLong();
+	private final AtomicLong mBytesRead = new AtomicLong();
+	private final AtomicLong mReadTimeouts = new AtomicLong();
+	private final AtomicLong mReadErrors = new AtomicLong();
+	private final LatencyHistogram mReadLatency = new LatencyHistogram();
+	private final AtomicLong mWrites = new AtomicLong();
+	private final AtomicLong mBytesWritten = new AtomicLong();
+	private final AtomicLong mWriteErrors = new AtomicLong();
+	private final LatencyHistogram mWriteLatency = new LatencyHistogram();
+	private final AtomicLong mCoalescedWrites = new AtomicLong();
+	private final AtomicLong mCoalescedTransfers = new AtomicLong();
+	private final AtomicLong mStatusUpdates = new AtomicLong();
+	private final AtomicLong mModemStatusChanges = new AtomicLong();
+
+	/**
+	 * Records a read call that returned.
+	 *
+	 * @param startNanos
+	 *            when the call started, in {@link System#nanoTime()} time
+	 * @param length
+	 *            the number of bytes returned
+	 */
+	void readCompleted(long startNanos, int length) {
+		mReads.incrementAndGet();
+		if (length > 0) {
+			mBytesRead.addAndGet(length);
+			mReadLatency.recordSince(startNanos);
+		} else {
+			mReadTimeouts.incrementAndGet();
+		}
+	}
+
+	void readFailed() {
+		mReadErrors.incrementAndGet();
+	}
+
+	/**
+	 * Records a write call that returned.
+	 *
+	 * @param startNanos
+	 *            when the call started, in {@link System#nanoTime()} time
+	 * @param length
+	 *            the number of bytes accepted
+	 */
+	void writeCompleted(long startNanos, long length) {
+		mWrites.incrementAndGet();
+		mBytesWritten.addAndGet(length);
+		mWriteLatency.recordSince(startNanos);
+	}
+
+	void writeFailed() {
+		mWriteErrors.incrementAndGet();
+	}
+
+	/**
+	 * Records a transfer of coalesced writes.
+	 *
+	 * @param writes
+	 *            the number of writes collected in the transfer
+	 */
+	void writesCoalesced(int writes) {
+		mCoalescedWrites.addAndGet(writes);
+		mCoalescedTransfers.incrementAndGet();
+	}
+
+	/**
+	 * Records a status report.
+	 *
+	 * @param changed
+	 *            whether a modem line changed
+	 */
+	void statusUpdated(boolean changed) {
+		mStatusUpdates.incrementAndGet();
+		if (changed) {
+			mModemStatusChanges.incrementAndGet();
+		}
+	}
+
+	@Override
+	public long getReads() {
+		return mReads.get();
+	}
+
+	@Override
+	public long getBytesRead() {
+		return mBytesRead.get();
+	}
+
+	@Override
+	public long getReadTimeouts() {
+		return mReadTimeouts.get();
+	}
+
+	@Override
+	public long getReadErrors() {
+		return mReadErrors.get();
+	}
+
+	@Override
+	public LatencyHistogram.Snapshot getReadLatency() {
+		return mReadLatency.getSnapshot();
+	}
+
+	@Override
+	public long getWrites() {
+		return mWrites.get();
+	}
+
+	@Override
+	public long getBytesWritten() {
+		return mBytesWritten.get();
+	}
+
+	@Override
+	public long getWriteErrors() {
+		return mWriteErrors.get();
+	}
+
+	@Override
+	public LatencyHistogram.Snapshot getWriteLatency() {
+		return mWriteLatency.getSnapshot();
+	}
+
+	@Override
+	public long getCoalescedWrites() {
+		return mCoalescedWrites.get();
+	}
+
+	@Override
+	public long getCoalescedTransfers() {
+		return mCoalescedTransfers.get();
+	}
+
+	@Override
+	public long getStatusUpdates() {
+		return mStatusUpdates.get();
+	}
+
+	@Override
+	public long getModemStatusChanges() {
+		return mModemStatusChanges.get();
+	}
+}
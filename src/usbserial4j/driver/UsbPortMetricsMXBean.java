@@ -0,0 +1,52 @@
+package usbserial4j.driver;
+
+/**
+ * Counters of the calls made on a {@link UsbSerialPort}, published under
+ * {@code usbserial4j:type=UsbSerialPort} while the port is open. All counts
+ * are totals since the port was created; the transfers behind the calls are
+ * counted by the {@link UsbTransferMetricsMXBean} of the connection.
+ */
+public interface UsbPortMetricsMXBean {
+
+	/** @return the number of read calls that returned */
+	long getReads();
+
+	/** @return the number of bytes returned by read calls */
+	long getBytesRead();
+
+	/** @return the number of read calls that returned no data */
+	long getReadTimeouts();
+
+	/** @return the number of read calls that threw */
+	long getReadErrors();
+
+	/** @return the time spent in read calls that returned data */
+	LatencyHistogram.Snapshot getReadLatency();
+
+	/** @return the number of write calls that returned */
+	long getWrites();
+
+	/** @return the number of bytes accepted by write calls */
+	long getBytesWritten();
+
+	/** @return the number of write calls that threw */
+	long getWriteErrors();
+
+	/** @return the time spent in write calls that returned */
+	LatencyHistogram.Snapshot getWriteLatency();
+
+	/** @return the number of write calls collected by write coalescing */
+	long getCoalescedWrites();
+
+	/**
+	 * @return the number of transfers write coalescing sent them in; the
+	 *         coalesced writes divided by this is the coalescing ratio
+	 */
+	long getCoalescedTransfers();
+
+	/** @return the number of status reports received from the device */
+	long getStatusUpdates();
+
+	/** @return the number of status reports that changed a modem line */
+	long getModemStatusChanges();
+}
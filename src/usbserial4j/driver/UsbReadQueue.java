@@ -0,0 +1,372 @@
+package usbserial4j.driver;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import javax.usb.UsbAbortException;
+import javax.usb.UsbDisconnectedException;
+import javax.usb.UsbEndpoint;
+import javax.usb.UsbException;
+import javax.usb.UsbIrp;
+import javax.usb.UsbNotActiveException;
+import javax.usb.UsbNotOpenException;
+import javax.usb.UsbPipe;
+
+/**
+ * Keeps a fixed number of bulk IN IRPs queued on an endpoint, so that the host
+ * always has a request outstanding, and hands back the received data in the
+ * order the IRPs were submitted.
+ * <p>
+ * Every IRP owns its own buffer. Once the data of the oldest IRP has been
+ * fully consumed by {@link #read(byte[], int, int, int)} the IRP is submitted
+ * again at the tail of the queue. Data of an IRP that is larger than the
+ * caller's buffer is handed out over several reads.
+ * </p>
+ * <p>
+ * With a {@link TransferSizer}, each IRP is resubmitted with the length the
+ * sizer chooses from the fill of the previous ones, up to the size of its
+ * buffer.
+ * </p>
+ * <p>
+ * The coalescing reads keep taking data from IRPs that complete until the
+ * caller has a minimum number of bytes or a maximum wait since the first
+ * byte has passed, like the latency timer of FTDI chips.
+ * </p>
+ * <p>
+ * This class is not thread-safe, callers must serialize access.
+ * </p>
+ */
+class UsbReadQueue {
+
+	private final UsbDeviceConnection mConnection;
+	private final UsbEndpoint mEndpoint;
+	private final ParkingUsbIrp[] mIrps;
+	private final int mTransferSize;
+
+	/** Chooses the IRP lengths, or {@code null} to use the transfer size. */
+	private final TransferSizer mSizer;
+
+	private UsbPipe mPipe;
+
+	/** Index of the oldest submitted IRP. */
+	private int mHead = 0;
+
+	/** Number of bytes of the head IRP already handed out. */
+	private int mHeadOffset = 0;
+
+	/**
+	 * @param connection
+	 *            the connection used to open the pipe of the endpoint
+	 * @param endpoint
+	 *            the bulk IN endpoint to read from
+	 * @param depth
+	 *            the number of IRPs kept queued, at least 1
+	 * @param transferSize
+	 *            the length in bytes of each IRP
+	 */
+	UsbReadQueue(UsbDeviceConnection connection, UsbEndpoint endpoint, int depth, int transferSize) {
+		this(connection, endpoint, depth, transferSize, null);
+	}
+
+	/**
+	 * @param connection
+	 *            the connection used to open the pipe of the endpoint
+	 * @param endpoint
+	 *            the bulk IN endpoint to read from
+	 * @param depth
+	 *            the number of IRPs kept queued, at least 1
+	 * @param transferSize
+	 *            the size in bytes of the buffer of each IRP
+	 * @param sizer
+	 *            chooses the length of each IRP, or {@code null} to transfer
+	 *            whole buffers
+	 */
+	UsbReadQueue(UsbDeviceConnection connection, UsbEndpoint endpoint, int depth, int transferSize,
+			TransferSizer sizer) {
+		if (depth < 1) {
+			throw new IllegalArgumentException("Queue depth must be at least 1: " + depth);
+		}
+		if (transferSize < 1) {
+			throw new IllegalArgumentException("Transfer size must be at least 1: " + transferSize);
+		}
+		mConnection = connection;
+		mEndpoint = endpoint;
+		mIrps = new ParkingUsbIrp[depth];
+		mTransferSize = transferSize;
+		mSizer = sizer;
+	}
+
+	/**
+	 * Returns the number of IRPs kept queued.
+	 *
+	 * @return the queue depth
+	 */
+	int getDepth() {
+		return mIrps.length;
+	}
+
+	/**
+	 * Opens the pipe of the endpoint and submits all IRPs.
+	 *
+	 * @throws IOException
+	 *             if the pipe could not be opened or an IRP could not be
+	 *             submitted
+	 */
+	void start() throws IOException {
+		mPipe = mConnection.openPipe(mEndpoint);
+		if (mPipe == null) {
+			throw new IOException("Error opening pipe of endpoint " + mEndpoint);
+		}
+
+		try {
+			for (int i = 0; i < mIrps.length; ++i) {
+				ParkingUsbIrp irp = new ParkingUsbIrp(new byte[mTransferSize]);
+				if (mSizer != null) {
+					irp.setLength(Math.min(mSizer.getLength(), mTransferSize));
+				}
+				mIrps[i] = irp;
+				submit(irp);
+			}
+		} catch (IOException e) {
+			stop();
+			throw e;
+		}
+		mHead = 0;
+		mHeadOffset = 0;
+	}
+
+	/**
+	 * Cancels the outstanding IRPs of the queue, leaving those of other
+	 * components on the same pipe alone. Data that has been received but not
+	 * read yet is discarded.
+	 */
+	void stop() {
+		if (mPipe == null) {
+			return;
+		}
+		try {
+			mConnection.cancel(mPipe, this);
+		} finally {
+			mPipe = null;
+		}
+	}
+
+	/**
+	 * Copies data of the oldest completed IRP into the destination buffer,
+	 * waiting for it to complete if necessary.
+	 *
+	 * @param dest
+	 *            the destination buffer
+	 * @param offset
+	 *            the index of the first byte in the buffer to fill
+	 * @param length
+	 *            the maximum number of bytes to read
+	 * @param timeoutMillis
+	 *            the time to wait for the oldest IRP to complete, or 0 to wait
+	 *            forever
+	 * @return the number of bytes copied, 0 on timeout
+	 * @throws IOException
+	 *             if the IRP failed or could not be submitted again
+	 */
+	int read(byte[] dest, int offset, int length, int timeoutMillis) throws IOException {
+		final UsbIrp irp = awaitHead(timeoutMillis);
+		if (irp == null) {
+			return 0;
+		}
+
+		final int amount = Math.min(irp.getActualLength() - mHeadOffset, length);
+		System.arraycopy(irp.getData(), irp.getOffset() + mHeadOffset, dest, offset, amount);
+		consume(irp, amount);
+		return amount;
+	}
+
+	/**
+	 * Copies data of the oldest completed IRP into the remaining space of the
+	 * destination buffer, waiting for it to complete if necessary. The position
+	 * of the buffer is advanced by the number of bytes copied.
+	 *
+	 * @param dest
+	 *            the destination buffer, heap or direct
+	 * @param timeoutMillis
+	 *            the time to wait for the oldest IRP to complete, or 0 to wait
+	 *            forever
+	 * @return the number of bytes copied, 0 on timeout
+	 * @throws IOException
+	 *             if the IRP failed or could not be submitted again
+	 */
+	int read(ByteBuffer dest, int timeoutMillis) throws IOException {
+		final UsbIrp irp = awaitHead(timeoutMillis);
+		if (irp == null) {
+			return 0;
+		}
+
+		final int amount = Math.min(irp.getActualLength() - mHeadOffset, dest.remaining());
+		dest.put(irp.getData(), irp.getOffset() + mHeadOffset, amount);
+		consume(irp, amount);
+		return amount;
+	}
+
+	/**
+	 * Copies data of completed IRPs into the destination buffer, waiting for
+	 * the oldest IRP to complete if necessary. Once data has been copied, it
+	 * keeps copying from the following IRPs until the minimum number of bytes
+	 * has been read or the maximum wait has passed.
+	 *
+	 * @param dest
+	 *            the destination buffer
+	 * @param offset
+	 *            the index of the first byte in the buffer to fill
+	 * @param length
+	 *            the maximum number of bytes to read
+	 * @param timeoutMillis
+	 *            the time to wait for the first data, or 0 to wait forever
+	 * @param minBytes
+	 *            the number of bytes to collect before returning
+	 * @param maxWaitNanos
+	 *            the time to collect data once the first data was read
+	 * @return the number of bytes copied, 0 on timeout
+	 * @throws IOException
+	 *             if the first IRP failed or an IRP could not be submitted
+	 *             again; a failure after data was read is reported by the
+	 *             next read
+	 */
+	int read(byte[] dest, int offset, int length, int timeoutMillis, int minBytes, long maxWaitNanos)
+			throws IOException {
+		final int wanted = Math.min(minBytes, length);
+		int amount = read(dest, offset, length, timeoutMillis);
+		if (amount == 0 || amount >= wanted) {
+			return amount;
+		}
+
+		final long deadline = System.nanoTime() + maxWaitNanos;
+		while (amount < wanted) {
+			final ParkingUsbIrp irp = awaitHeadUntil(deadline);
+			if (irp == null) {
+				break;
+			}
+			final int part = Math.min(irp.getActualLength() - mHeadOffset, length - amount);
+			System.arraycopy(irp.getData(), irp.getOffset() + mHeadOffset, dest, offset + amount, part);
+			consume(irp, part);
+			amount += part;
+		}
+		return amount;
+	}
+
+	/**
+	 * Copies data of completed IRPs into the remaining space of the
+	 * destination buffer, like {@link #read(byte[], int, int, int, int, long)}.
+	 * The position of the buffer is advanced by the number of bytes copied.
+	 *
+	 * @param dest
+	 *            the destination buffer, heap or direct
+	 * @param timeoutMillis
+	 *            the time to wait for the first data, or 0 to wait forever
+	 * @param minBytes
+	 *            the number of bytes to collect before returning
+	 * @param maxWaitNanos
+	 *            the time to collect data once the first data was read
+	 * @return the number of bytes copied, 0 on timeout
+	 * @throws IOException
+	 *             if the first IRP failed or an IRP could not be submitted
+	 *             again; a failure after data was read is reported by the
+	 *             next read
+	 */
+	int read(ByteBuffer dest, int timeoutMillis, int minBytes, long maxWaitNanos) throws IOException {
+		final int wanted = Math.min(minBytes, dest.remaining());
+		int amount = read(dest, timeoutMillis);
+		if (amount == 0 || amount >= wanted) {
+			return amount;
+		}
+
+		final long deadline = System.nanoTime() + maxWaitNanos;
+		while (amount < wanted) {
+			final ParkingUsbIrp irp = awaitHeadUntil(deadline);
+			if (irp == null) {
+				break;
+			}
+			final int part = Math.min(irp.getActualLength() - mHeadOffset, dest.remaining());
+			dest.put(irp.getData(), irp.getOffset() + mHeadOffset, part);
+			consume(irp, part);
+			amount += part;
+		}
+		return amount;
+	}
+
+	/**
+	 * Waits for the oldest IRP to complete until the deadline of a coalescing
+	 * read.
+	 *
+	 * @return the completed IRP, or {@code null} if it did not complete in
+	 *         time or failed; a failed IRP is left at the head for the next
+	 *         read to report
+	 */
+	private ParkingUsbIrp awaitHeadUntil(long deadline) {
+		final ParkingUsbIrp irp = mIrps[mHead];
+		if (!irp.isComplete()) {
+			irp.waitUntilCompleteNanos(deadline - System.nanoTime());
+		}
+		return (irp.isComplete() && !irp.isUsbException() ? irp : null);
+	}
+
+	/**
+	 * Waits for the oldest IRP to complete.
+	 *
+	 * @return the completed IRP, or {@code null} on timeout or abort
+	 */
+	private UsbIrp awaitHead(int timeoutMillis) throws IOException {
+		if (mPipe == null) {
+			throw new IOException("Read queue not started");
+		}
+
+		final UsbIrp irp = mIrps[mHead];
+		if (!irp.isComplete()) {
+			irp.waitUntilComplete(timeoutMillis);
+			if (!irp.isComplete()) {
+				// Timed out, the IRP stays queued and keeps its place
+				return null;
+			}
+		}
+
+		if (irp.isUsbException()) {
+			UsbException e = irp.getUsbException();
+			recycleHead();
+			if (e instanceof UsbAbortException) {
+				return null;
+			}
+			throw new IOException("Error reading from endpoint " + mEndpoint, e);
+		}
+		return irp;
+	}
+
+	private void consume(UsbIrp irp, int amount) throws IOException {
+		mHeadOffset += amount;
+		if (mHeadOffset >= irp.getActualLength()) {
+			recycleHead();
+		}
+	}
+
+	private void recycleHead() throws IOException {
+		final UsbIrp irp = mIrps[mHead];
+		mHead = (mHead + 1) % mIrps.length;
+		mHeadOffset = 0;
+
+		mConnection.irpCompleted(mEndpoint, irp);
+
+		if (mSizer != null && !irp.isUsbException()) {
+			mSizer.completed(irp.getLength(), irp.getActualLength());
+			irp.setLength(Math.min(mSizer.getLength(), mTransferSize));
+		}
+		irp.setComplete(false);
+		irp.setActualLength(0);
+		irp.setUsbException(null);
+		submit(irp);
+	}
+
+	private void submit(UsbIrp irp) throws IOException {
+		try {
+			mConnection.submit(mPipe, irp, this);
+		} catch (UsbNotActiveException | UsbNotOpenException | UsbDisconnectedException | UsbException e) {
+			throw new IOException("Error submitting IRP to endpoint " + mEndpoint, e);
+		}
+	}
+}
@@ -0,0 +1,511 @@
+package usbserial4j.driver;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.usb.UsbAbortException;
+import javax.usb.UsbDisconnectedException;
+import javax.usb.UsbEndpoint;
+import javax.usb.UsbException;
+import javax.usb.UsbIrp;
+import javax.usb.UsbNotActiveException;
+import javax.usb.UsbNotOpenException;
+import javax.usb.UsbPipe;
+import javax.usb.event.UsbPipeDataEvent;
+import javax.usb.event.UsbPipeErrorEvent;
+import javax.usb.event.UsbPipeListener;
+import javax.usb.util.DefaultUsbIrp;
+
+import usbserial4j.util.ByteRingBuffer;
+
+/**
+ * Receives data from a bulk IN endpoint in the background into a
+ * {@link ByteRingBuffer}.
+ * <p>
+ * A fixed set of IRPs stays submitted on the endpoint. Their completions are
+ * delivered on the IRP queue thread of the pipe, which is the only producer of
+ * the ring; it copies the data in and submits the IRP again. The reading
+ * thread is the only consumer and drains the ring without taking a lock. Each
+ * side parks only when the ring is full or empty, and is unparked by the other
+ * side.
+ * </p>
+ * <p>
+ * When the ring is full the producer waits for the consumer, which holds back
+ * the following IRPs and leaves the device to its own flow control. An error
+ * of the endpoint is reported by {@link #read} once the data received before
+ * it has been drained.
+ * </p>
+ * <p>
+ * The coalescing reads wait until the ring holds a minimum number of bytes,
+ * or a maximum time has passed since the first of them arrived, like the
+ * latency timer of FTDI chips. The producer only wakes up the consumer once
+ * the ring holds as many bytes as it waits for, so a reader collecting many
+ * small IRPs is woken up twice per read rather than once per IRP.
+ * </p>
+ * <p>
+ * With a {@link TransferSizer}, each IRP is resubmitted with the length the
+ * sizer chooses from the fill of the previous ones, up to the size of its
+ * buffer.
+ * </p>
+ * <p>
+ * Only one thread at a time may call the read methods.
+ * </p>
+ */
+class UsbReceiver implements UsbPipeListener {
+
+	/** Number of IRPs kept submitted, so the next one is ready at completion. */
+	static final int DEFAULT_DEPTH = 2;
+
+	private final UsbDeviceConnection mConnection;
+	private final UsbEndpoint mEndpoint;
+	private final ByteRingBuffer mRing;
+	private final UsbIrp[] mIrps;
+	private final int mTransferSize;
+
+	/**
+	 * Chooses the IRP lengths, or {@code null} to use the transfer size. Once
+	 * started, only used by the IRP queue thread of the pipe.
+	 */
+	private final TransferSizer mSizer;
+
+	private UsbPipe mPipe;
+
+	/**
+	 * Held while submitting and while stopping, so that no IRP is submitted
+	 * again once {@link #stop()} cancelled them.
+	 */
+	private final Lock mSubmitLock = new ReentrantLock();
+
+	/** Set with {@link #mSubmitLock} held. */
+	private volatile boolean mStopped = false;
+	private volatile IOException mError = null;
+
+	/** The producer while it waits for space, or {@code null}. */
+	private volatile Thread mProducerWaiting = null;
+
+	/** The consumer while it waits for data, or {@code null}. */
+	private volatile Thread mConsumerWaiting = null;
+
+	/** The number of bytes the waiting consumer must be woken up for. */
+	private volatile int mConsumerWanted = 1;
+
+	/**
+	 * When the oldest byte in the ring arrived, in {@link System#nanoTime()}
+	 * time. Written by the producer when it fills an empty ring.
+	 */
+	private volatile long mFirstByteNanos = 0;
+
+	/** Told whenever data arrives or the endpoint fails, or {@code null}. */
+	private volatile Runnable mListener = null;
+
+	private final class ReceiverIrp extends DefaultUsbIrp {
+		ReceiverIrp(byte[] data) {
+			super(data);
+		}
+
+		UsbReceiver getOwner() {
+			return UsbReceiver.this;
+		}
+	}
+
+	/**
+	 * @param connection
+	 *            the connection used to open the pipe of the endpoint
+	 * @param endpoint
+	 *            the bulk IN endpoint to read from
+	 * @param capacity
+	 *            the capacity of the ring in bytes, rounded up to a power of
+	 *            two
+	 * @param depth
+	 *            the number of IRPs kept submitted, at least 1
+	 * @param transferSize
+	 *            the length in bytes of each IRP
+	 */
+	UsbReceiver(UsbDeviceConnection connection, UsbEndpoint endpoint, int capacity, int depth, int transferSize) {
+		this(connection, endpoint, capacity, depth, transferSize, null);
+	}
+
+	/**
+	 * @param connection
+	 *            the connection used to open the pipe of the endpoint
+	 * @param endpoint
+	 *            the bulk IN endpoint to read from
+	 * @param capacity
+	 *            the capacity of the ring in bytes, rounded up to a power of
+	 *            two
+	 * @param depth
+	 *            the number of IRPs kept submitted, at least 1
+	 * @param transferSize
+	 *            the size in bytes of the buffer of each IRP
+	 * @param sizer
+	 *            chooses the length of each IRP, or {@code null} to transfer
+	 *            whole buffers
+	 */
+	UsbReceiver(UsbDeviceConnection connection, UsbEndpoint endpoint, int capacity, int depth, int transferSize,
+			TransferSizer sizer) {
+		if (depth < 1) {
+			throw new IllegalArgumentException("Depth must be at least 1: " + depth);
+		}
+		if (transferSize < 1) {
+			throw new IllegalArgumentException("Transfer size must be at least 1: " + transferSize);
+		}
+		mConnection = connection;
+		mEndpoint = endpoint;
+		mRing = new ByteRingBuffer(capacity);
+		mIrps = new UsbIrp[depth];
+		mTransferSize = transferSize;
+		mSizer = sizer;
+	}
+
+	/**
+	 * @return the capacity of the ring in bytes
+	 */
+	int getCapacity() {
+		return mRing.capacity();
+	}
+
+	/**
+	 * @return the number of bytes received and not read yet
+	 */
+	int available() {
+		return mRing.size();
+	}
+
+	/**
+	 * @return whether a read would return without waiting, with data or with
+	 *         the error of the endpoint
+	 */
+	boolean isReadable() {
+		return mRing.size() > 0 || mError != null;
+	}
+
+	/**
+	 * Sets the listener told whenever data arrives or the endpoint fails. It
+	 * is called on the IRP queue thread of the pipe and must return quickly.
+	 *
+	 * @param listener
+	 *            the listener, or {@code null} for none
+	 */
+	void setListener(Runnable listener) {
+		mListener = listener;
+	}
+
+	/**
+	 * Opens the pipe of the endpoint and submits all IRPs.
+	 *
+	 * @throws IOException
+	 *             if the pipe could not be opened or an IRP could not be
+	 *             submitted
+	 */
+	void start() throws IOException {
+		mPipe = mConnection.openPipe(mEndpoint);
+		if (mPipe == null) {
+			throw new IOException("Error opening pipe of endpoint " + mEndpoint);
+		}
+		mPipe.addUsbPipeListener(this);
+
+		try {
+			for (int i = 0; i < mIrps.length; ++i) {
+				mIrps[i] = new ReceiverIrp(new byte[mTransferSize]);
+				if (mSizer != null) {
+					mIrps[i].setLength(Math.min(mSizer.getLength(), mTransferSize));
+				}
+				submit(mIrps[i]);
+			}
+		} catch (UsbNotActiveException | UsbNotOpenException | UsbDisconnectedException | UsbException e) {
+			stop();
+			throw new IOException("Error submitting IRP to endpoint " + mEndpoint, e);
+		}
+	}
+
+	/**
+	 * Stops receiving and cancels the outstanding IRPs of the receiver,
+	 * leaving those of other components on the same pipe alone. Data that has
+	 * been received but not read yet is discarded.
+	 */
+	void stop() {
+		final UsbPipe pipe = mPipe;
+		if (pipe == null) {
+			return;
+		}
+		mSubmitLock.lock();
+		try {
+			mStopped = true;
+		} finally {
+			mSubmitLock.unlock();
+		}
+		// A producer waiting for space would keep the pipe busy and make the
+		// abort wait forever
+		LockSupport.unpark(mProducerWaiting);
+		LockSupport.unpark(mConsumerWaiting);
+
+		pipe.removeUsbPipeListener(this);
+		try {
+			mConnection.cancel(pipe, this);
+		} finally {
+			mPipe = null;
+		}
+	}
+
+	/**
+	 * Reads received data into the destination array, waiting for data if none
+	 * is available.
+	 *
+	 * @param dest
+	 *            the destination array
+	 * @param offset
+	 *            the index of the first byte to fill
+	 * @param length
+	 *            the maximum number of bytes to read
+	 * @param timeoutMillis
+	 *            the time to wait for data, or 0 to wait forever
+	 * @return the number of bytes read, 0 on timeout or when stopped
+	 * @throws IOException
+	 *             if the endpoint failed and all data received before the
+	 *             error has been read
+	 */
+	int read(byte[] dest, int offset, int length, int timeoutMillis) throws IOException {
+		return read(dest, offset, length, timeoutMillis, 1, 0);
+	}
+
+	/**
+	 * Reads received data into the destination array, waiting for data if
+	 * less than the minimum number of bytes is available.
+	 *
+	 * @param dest
+	 *            the destination array
+	 * @param offset
+	 *            the index of the first byte to fill
+	 * @param length
+	 *            the maximum number of bytes to read
+	 * @param timeoutMillis
+	 *            the time to wait for the first data, or 0 to wait forever
+	 * @param minBytes
+	 *            the number of bytes to wait for
+	 * @param maxWaitNanos
+	 *            the time to wait for them, from the arrival of the first
+	 * @return the number of bytes read, 0 on timeout or when stopped
+	 * @throws IOException
+	 *             if the endpoint failed and all data received before the
+	 *             error has been read
+	 */
+	int read(byte[] dest, int offset, int length, int timeoutMillis, int minBytes, long maxWaitNanos)
+			throws IOException {
+		final int wanted = Math.max(1, Math.min(minBytes, length));
+		if (length > 0 && mRing.size() < wanted) {
+			awaitData(timeoutMillis, wanted, maxWaitNanos);
+		}
+		final int amount = mRing.poll(dest, offset, length);
+		if (amount > 0) {
+			LockSupport.unpark(mProducerWaiting);
+		}
+		return amount;
+	}
+
+	/**
+	 * Reads received data into the remaining space of the destination buffer,
+	 * waiting for data if none is available. The position of the buffer is
+	 * advanced by the number of bytes read.
+	 *
+	 * @param dest
+	 *            the destination buffer, heap or direct
+	 * @param timeoutMillis
+	 *            the time to wait for data, or 0 to wait forever
+	 * @return the number of bytes read, 0 on timeout or when stopped
+	 * @throws IOException
+	 *             if the endpoint failed and all data received before the
+	 *             error has been read
+	 */
+	int read(ByteBuffer dest, int timeoutMillis) throws IOException {
+		return read(dest, timeoutMillis, 1, 0);
+	}
+
+	/**
+	 * Reads received data into the remaining space of the destination buffer,
+	 * waiting for data if less than the minimum number of bytes is available.
+	 * The position of the buffer is advanced by the number of bytes read.
+	 *
+	 * @param dest
+	 *            the destination buffer, heap or direct
+	 * @param timeoutMillis
+	 *            the time to wait for the first data, or 0 to wait forever
+	 * @param minBytes
+	 *            the number of bytes to wait for
+	 * @param maxWaitNanos
+	 *            the time to wait for them, from the arrival of the first
+	 * @return the number of bytes read, 0 on timeout or when stopped
+	 * @throws IOException
+	 *             if the endpoint failed and all data received before the
+	 *             error has been read
+	 */
+	int read(ByteBuffer dest, int timeoutMillis, int minBytes, long maxWaitNanos) throws IOException {
+		final int wanted = Math.max(1, Math.min(minBytes, dest.remaining()));
+		if (dest.hasRemaining() && mRing.size() < wanted) {
+			awaitData(timeoutMillis, wanted, maxWaitNanos);
+		}
+		final int amount = mRing.poll(dest);
+		if (amount > 0) {
+			LockSupport.unpark(mProducerWaiting);
+		}
+		return amount;
+	}
+
+	/**
+	 * Waits until the ring holds the wanted number of bytes, or holds some
+	 * and the maximum wait since the first of them arrived has passed.
+	 *
+	 * @param wanted
+	 *            the number of bytes to wait for, at least 1
+	 */
+	private void awaitData(int timeoutMillis, int wanted, long maxWaitNanos) throws IOException {
+		// A full ring does not grow until it is read
+		wanted = Math.min(wanted, mRing.capacity());
+		final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+		mConsumerWaiting = Thread.currentThread();
+		try {
+			while (true) {
+				final int size = mRing.size();
+				if (size >= wanted) {
+					return;
+				}
+				if (size > 0) {
+					// Some data arrived: wait for the rest until the latency timer expires
+					final long remaining = mFirstByteNanos + maxWaitNanos - System.nanoTime();
+					if (remaining <= 0 || mError != null || mStopped) {
+						return;
+					}
+					mConsumerWanted = wanted;
+					if (mRing.size() < wanted) {
+						LockSupport.parkNanos(this, remaining);
+					}
+					continue;
+				}
+
+				if (mError != null) {
+					throw new IOException("Error reading from endpoint " + mEndpoint, mError);
+				}
+				if (mStopped) {
+					return;
+				}
+				mConsumerWanted = 1;
+				if (timeoutMillis > 0) {
+					final long remaining = deadline - System.nanoTime();
+					if (remaining <= 0) {
+						return;
+					}
+					LockSupport.parkNanos(this, remaining);
+				} else {
+					LockSupport.park(this);
+				}
+			}
+		} finally {
+			mConsumerWaiting = null;
+			mConsumerWanted = 1;
+		}
+	}
+
+	@Override
+	public void dataEventOccurred(UsbPipeDataEvent event) {
+		final UsbIrp irp = event.getUsbIrp();
+		if (!isOwn(irp)) {
+			return;
+		}
+		mConnection.irpCompleted(mEndpoint, irp);
+
+		final byte[] data = irp.getData();
+		int offset = irp.getOffset();
+		int remaining = irp.getActualLength();
+		while (remaining > 0 && !mStopped) {
+			if (mRing.size() == 0) {
+				mFirstByteNanos = System.nanoTime();
+			}
+			final int amount = mRing.offer(data, offset, remaining);
+			offset += amount;
+			remaining -= amount;
+			if (amount > 0) {
+				if (mRing.size() >= mConsumerWanted) {
+					LockSupport.unpark(mConsumerWaiting);
+				}
+				notifyListener();
+			}
+			if (remaining > 0) {
+				awaitSpace();
+			}
+		}
+
+		if (mStopped) {
+			return;
+		}
+		if (mSizer != null) {
+			mSizer.completed(irp.getLength(), irp.getActualLength());
+			irp.setLength(Math.min(mSizer.getLength(), mTransferSize));
+		}
+		try {
+			submit(irp);
+		} catch (UsbNotActiveException | UsbNotOpenException | UsbDisconnectedException | UsbException e) {
+			fail(e);
+		}
+	}
+
+	@Override
+	public void errorEventOccurred(UsbPipeErrorEvent event) {
+		final UsbIrp irp = event.getUsbIrp();
+		if (!isOwn(irp)) {
+			return;
+		}
+		mConnection.irpCompleted(mEndpoint, irp);
+		if (mStopped || irp.getUsbException() instanceof UsbAbortException) {
+			return;
+		}
+		fail(irp.getUsbException());
+	}
+
+	private void awaitSpace() {
+		mProducerWaiting = Thread.currentThread();
+		try {
+			while (mRing.size() == mRing.capacity() && !mStopped) {
+				LockSupport.park(this);
+			}
+		} finally {
+			mProducerWaiting = null;
+		}
+	}
+
+	private void fail(Exception e) {
+		mError = (e instanceof IOException ? (IOException) e : new IOException(e));
+		LockSupport.unpark(mConsumerWaiting);
+		notifyListener();
+	}
+
+	private void notifyListener() {
+		final Runnable listener = mListener;
+		if (listener != null) {
+			listener.run();
+		}
+	}
+
+	private boolean isOwn(UsbIrp irp) {
+		return irp instanceof ReceiverIrp && ((ReceiverIrp) irp).getOwner() == this;
+	}
+
+	/**
+	 * Submits an IRP again, unless the receiver was stopped.
+	 */
+	private void submit(UsbIrp irp) throws UsbException {
+		irp.setComplete(false);
+		irp.setActualLength(0);
+		irp.setUsbException(null);
+		mSubmitLock.lock();
+		try {
+			if (!mStopped) {
+				mConnection.submit(mPipe, irp, this);
+			}
+		} finally {
+			mSubmitLock.unlock();
+		}
+	}
+}
@@ -0,0 +1,191 @@
+package usbserial4j.driver;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.usb.UsbDevice;
+import javax.usb.UsbException;
+import javax.usb.UsbServices;
+import javax.usb.event.UsbServicesEvent;
+import javax.usb.event.UsbServicesListener;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import usbserial4j.util.UsbUtil;
+
+/**
+ * Keeps an up-to-date index of the serial drivers of all attached devices.
+ * <p>
+ * The registry scans the device tree once when it is started and from then on
+ * follows the attach and detach events of javax.usb, probing only the device
+ * each event is about. Listeners are told about every change as it happens,
+ * so there is no need to rescan the tree periodically.
+ * </p>
+ * <p>
+ * Listener methods are called on the thread that delivered the javax.usb
+ * event, or on the thread calling {@link #start(UsbServices)} for the devices
+ * found by the initial scan, and must not block.
+ * </p>
+ */
+public class UsbSerialDeviceRegistry implements UsbServicesListener {
+	private static final Log LOG = LogFactory.getLog(UsbSerialDeviceRegistry.class);
+
+	/**
+	 * Receives changes of the registry.
+	 */
+	public interface Listener {
+		/**
+		 * Called when a device with a compatible driver has been attached, or
+		 * was found by the initial scan.
+		 *
+		 * @param driver
+		 *            the driver of the device
+		 */
+		void onDriverAttached(UsbSerialDriver driver);
+
+		/**
+		 * Called when a device with a compatible driver has been detached.
+		 * Its ports can no longer be used.
+		 *
+		 * @param driver
+		 *            the driver of the device
+		 */
+		void onDriverDetached(UsbSerialDriver driver);
+	}
+
+	private final UsbSerialProber mProber;
+	private final ConcurrentMap<UsbDevice, UsbSerialDriver> mDrivers = new ConcurrentHashMap<UsbDevice, UsbSerialDriver>();
+	private final List<Listener> mListeners = new CopyOnWriteArrayList<Listener>();
+
+	private UsbServices mServices;
+
+	/**
+	 * @param prober
+	 *            the prober used to find the driver of each device
+	 */
+	public UsbSerialDeviceRegistry(UsbSerialProber prober) {
+		mProber = prober;
+	}
+
+	/**
+	 * Subscribes to the attach and detach events of the given services and
+	 * scans the devices attached already.
+	 *
+	 * @param services
+	 *            the javax.usb services
+	 * @throws UsbException
+	 *             if the root hub could not be retrieved
+	 */
+	public synchronized void start(UsbServices services) throws UsbException {
+		if (mServices != null) {
+			throw new IllegalStateException("Registry already started");
+		}
+		// Subscribe before scanning, so that no device attached in between is
+		// missed; a device seen twice is only indexed once
+		services.addUsbServicesListener(this);
+		mServices = services;
+		try {
+			for (UsbDevice device : mProber.getDevices(services.getRootUsbHub())) {
+				attach(device);
+			}
+		} catch (UsbException | RuntimeException e) {
+			stop();
+			throw e;
+		}
+	}
+
+	/**
+	 * Unsubscribes from the javax.usb events and clears the index. No detach
+	 * events are sent for the devices still attached.
+	 */
+	public synchronized void stop() {
+		if (mServices != null) {
+			mServices.removeUsbServicesListener(this);
+			mServices = null;
+		}
+		mDrivers.clear();
+	}
+
+	public void addListener(Listener listener) {
+		mListeners.add(listener);
+	}
+
+	public void removeListener(Listener listener) {
+		mListeners.remove(listener);
+	}
+
+	/**
+	 * Returns the drivers of all attached devices.
+	 *
+	 * @return a snapshot of the index, possibly empty
+	 */
+	public List<UsbSerialDriver> getDrivers() {
+		return new ArrayList<UsbSerialDriver>(mDrivers.values());
+	}
+
+	/**
+	 * Returns the driver of the given device.
+	 *
+	 * @param device
+	 *            the device
+	 * @return the driver, or {@code null} if the device is not attached or has
+	 *         no compatible driver
+	 */
+	public UsbSerialDriver getDriver(UsbDevice device) {
+		return mDrivers.get(device);
+	}
+
+	@Override
+	public void usbDeviceAttached(UsbServicesEvent event) {
+		attach(event.getUsbDevice());
+	}
+
+	@Override
+	public void usbDeviceDetached(UsbServicesEvent event) {
+		final UsbSerialDriver driver = mDrivers.remove(event.getUsbDevice());
+		if (driver == null) {
+			return;
+		}
+		for (Listener listener : mListeners) {
+			try {
+				listener.onDriverDetached(driver);
+			} catch (RuntimeException e) {
+				LOG.warn("Registry listener failed", e);
+			}
+		}
+	}
+
+	private void attach(UsbDevice device) {
+		if (mDrivers.containsKey(device)) {
+			return;
+		}
+
+		final UsbSerialDriver driver;
+		try {
+			driver = mProber.probeDevice(device);
+		} catch (RuntimeException e) {
+			LOG.warn("Could not probe device " + device, e);
+			return;
+		}
+		if (driver == null || mDrivers.putIfAbsent(device, driver) != null) {
+			return;
+		}
+		if (!UsbUtil.isAttached(device)) {
+			// Detached while it was probed by the initial scan, before it was
+			// indexed, so the detach event found nothing to remove
+			mDrivers.remove(device, driver);
+			return;
+		}
+		for (Listener listener : mListeners) {
+			try {
+				listener.onDriverAttached(driver);
+			} catch (RuntimeException e) {
+				LOG.warn("Registry listener failed", e);
+			}
+		}
+	}
+}
@@ -1,6 +1,7 @@
 package usbserial4j.driver;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 /**
  * Interface for a single serial port.
@@ -60,6 +61,18 @@ public interface UsbSerialPort {
     /** 2 stop bits. */
     public static final int STOPBITS_2 = 2;
 
+    /** CD (Carrier Detect) modem status line. */
+    public static final int LINE_CD = 0x01;
+
+    /** CTS (Clear To Send) modem status line. */
+    public static final int LINE_CTS = 0x02;
+
+    /** DSR (Data Set Ready) modem status line. */
+    public static final int LINE_DSR = 0x04;
+
+    /** RI (Ring Indicator) modem status line. */
+    public static final int LINE_RI = 0x08;
+
     public UsbSerialDriver getDriver();
     
     /**
@@ -101,14 +114,281 @@ public interface UsbSerialPort {
 
     /**
      * Writes as many bytes as possible from the source buffer.
+     * <p>
+     * With a write queue, see {@link #setWriteQueueDepth(int)}, this returns
+     * the number of bytes queued, which may be less than the length of the
+     * buffer: if the queue stayed full for the whole timeout, or if a request
+     * failed after part of the data was queued. That failure is then thrown
+     * by the next write or flush; a write only throws if it queued nothing.
+     * </p>
      *
      * @param src the source byte buffer
      * @param timeoutMillis the timeout for writing
-     * @return the actual number of bytes written
+     * @return the actual number of bytes written, or queued with a write queue
      * @throws IOException if an error occurred during writing
      */
     public int write(final byte[] src, final int timeoutMillis) throws IOException;
 
+    /**
+     * Reads as many bytes as possible into the remaining space of the
+     * destination buffer, that is between its position and its limit. The
+     * position is advanced by the number of bytes read.
+     * <p>
+     * Both heap and direct buffers are accepted. The received data is copied
+     * into the buffer once, without going through an intermediate array.
+     * </p>
+     *
+     * @param dest the destination buffer
+     * @param timeoutMillis the timeout for reading
+     * @return the actual number of bytes read
+     * @throws IOException if an error occurred during reading
+     */
+    public int read(ByteBuffer dest, int timeoutMillis) throws IOException;
+
+    /**
+     * Writes the remaining bytes of the source buffer, that is between its
+     * position and its limit. The position is advanced by the number of bytes
+     * written.
+     * <p>
+     * The backing array of a heap buffer is handed to the USB stack without
+     * copying. A direct buffer is copied in chunks of the write buffer size.
+     * </p>
+     * <p>
+     * With a write queue this may return short, as described for
+     * {@link #write(byte[], int)}.
+     * </p>
+     *
+     * @param src the source buffer
+     * @param timeoutMillis the timeout for writing
+     * @return the actual number of bytes written, or queued with a write
+     *         queue
+     * @throws IOException if an error occurred during writing
+     */
+    public int write(ByteBuffer src, int timeoutMillis) throws IOException;
+
+    /**
+     * Writes the remaining bytes of several buffers, in order, as one
+     * contiguous stream; for example a header, a payload and a checksum. The
+     * positions of the buffers are advanced by the number of bytes written
+     * from each of them.
+     * <p>
+     * The data is not copied into the port's write buffer: the backing arrays
+     * of heap buffers are handed to the USB stack directly, only direct
+     * buffers are copied into a temporary array. All transfers are submitted
+     * at once, and the port is only locked while submitting, so concurrent
+     * writes are never interleaved with this one.
+     * </p>
+     * <p>
+     * With a write queue this may return short, as described for
+     * {@link #write(byte[], int)}.
+     * </p>
+     *
+     * @param srcs the source buffers
+     * @param timeoutMillis the timeout for each transfer
+     * @return the actual number of bytes written, or queued with a write
+     *         queue
+     * @throws IOException if an error occurred during writing
+     */
+    public long write(ByteBuffer[] srcs, int timeoutMillis) throws IOException;
+
+    /**
+     * Sets the number of bulk IN requests kept queued on the device while the
+     * port is open. With a depth of 1 or more the host always has a request
+     * outstanding, so data arriving between two calls to
+     * {@link #read(byte[], int)} is not lost, and completed requests are
+     * returned in order. A depth of 0, the default, submits a single request
+     * per read. Changing the depth discards data that was received but not
+     * read yet.
+     *
+     * @param depth the number of queued requests, or 0 to disable queueing
+     */
+    public void setReadQueueDepth(int depth);
+
+    /**
+     * Returns the number of bulk IN requests kept queued.
+     *
+     * @return the queue depth, or 0 if queueing is disabled
+     */
+    public int getReadQueueDepth();
+
+    /**
+     * Enables background receive. While the port is open, bulk IN requests
+     * are kept submitted and their data is copied into a lock-free ring
+     * buffer of the given capacity, rounded up to a power of two. The read
+     * methods then drain the ring without taking the port's read lock; only
+     * one thread may read at a time. When the ring is full, receiving pauses
+     * until data has been read. Background receive takes precedence over the
+     * read queue. A capacity of 0, the default, disables it. Changing the
+     * capacity discards data that was received but not read yet.
+     *
+     * @param capacity the minimum ring capacity in bytes, or 0 to disable
+     *            background receive
+     * @throws IOException if the port is open and receiving could not be
+     *             restarted
+     */
+    public void setReceiveBufferCapacity(int capacity) throws IOException;
+
+    /**
+     * Returns the ring capacity requested for background receive.
+     *
+     * @return the capacity in bytes, or 0 if background receive is disabled
+     */
+    public int getReceiveBufferCapacity();
+
+    /**
+     * Sets the receive policy of the read methods, like the latency timer of
+     * FTDI chips. Once a read has data, it keeps collecting until it holds
+     * {@code minBytes} bytes, its buffer is full, or {@code maxWaitMicros}
+     * have passed since the first byte arrived, whichever comes first. The
+     * timeout of the read only bounds the wait for the first byte. This trades
+     * latency for fewer, larger reads: with background receive the reader is
+     * not woken up for each transfer. The policy applies to the read queue
+     * and background receive; without either, a read returns the data of one
+     * transfer, since a transfer that timed out would lose the data it
+     * receives later. A {@code minBytes} of 0 or 1, the default, returns as
+     * soon as any data is available.
+     *
+     * @param minBytes the number of bytes to collect before returning
+     * @param maxWaitMicros the maximum time to collect them, from the arrival
+     *            of the first byte
+     */
+    public void setReadCoalescing(int minBytes, int maxWaitMicros);
+
+    /**
+     * Returns the number of bytes a read collects before returning.
+     *
+     * @return the minimum, 0 or 1 if reads are not coalesced
+     */
+    public int getReadCoalescingMinBytes();
+
+    /**
+     * Returns the maximum time a read collects data after the first byte.
+     *
+     * @return the time in microseconds
+     */
+    public int getReadCoalescingMaxWaitMicros();
+
+    /**
+     * Enables adaptive transfers. Bulk IN transfers are then sized in whole
+     * packets of the read endpoint, starting with a few milliseconds of data
+     * at the rate set by {@link #setParameters(int, int, int, int)}, growing
+     * while they come back full and shrinking while they come back mostly
+     * empty, up to the read buffer size. The read queue and the background
+     * receiver keep as many transfers queued as hold about 20 ms of data, and
+     * writes are split into whole packets of the write endpoint. This replaces
+     * the manual tuning of the read buffer size and the queue depths; a depth
+     * of 0 still disables the read queue. Disabled by default. Changing the
+     * mode, or the rate while enabled, discards data that was received but
+     * not read yet.
+     *
+     * @param adaptive true to size transfers automatically
+     * @throws IOException if the port is open and receiving could not be
+     *             restarted
+     */
+    public void setAdaptiveTransfers(boolean adaptive) throws IOException;
+
+    /**
+     * Returns whether transfers are sized automatically.
+     *
+     * @return true if adaptive transfers are enabled
+     */
+    public boolean isAdaptiveTransfers();
+
+    /**
+     * Keeps the port warm between {@link #close()} and the next
+     * {@link #open(UsbDeviceConnection)}. While enabled, closing the port
+     * stops reading and writing but keeps the interface claimed, the pipes
+     * open, the modem status polled and the device initialized. Opening it
+     * again with the same connection only restarts reading, skipping the
+     * claim, the endpoint scan and the device init sequence. Data the device
+     * receives while the port is closed is not purged; call
+     * {@link #purgeHwBuffers(boolean, boolean)} to drop it. Opening with a
+     * different connection, or disabling keep-warm while the port is closed,
+     * releases the warm connection.
+     *
+     * @param keepWarm true to keep the port warm when closed
+     * @throws IOException if the warm connection could not be released
+     */
+    public void setKeepWarm(boolean keepWarm) throws IOException;
+
+    /**
+     * Returns whether the port is kept warm when closed.
+     *
+     * @return true if keep-warm is enabled
+     */
+    public boolean isKeepWarm();
+
+    /**
+     * Sets the maximum number of bulk OUT requests kept in flight while
+     * writing. With a depth of 1 or more, {@link #write(byte[], int)} copies
+     * the data into the queued requests and returns once all of it is queued,
+     * so consecutive chunks do not wait for each other's round trip. Use
+     * {@link #flush(int)} to wait until queued data has been sent. A chunk
+     * that fails is reported by the next write or flush, and a write may
+     * return short, see {@link #write(byte[], int)}. A depth of 0, the
+     * default, sends one chunk at a time and returns when all data was sent.
+     *
+     * @param depth the number of requests in flight, or 0 to disable queueing
+     */
+    public void setWriteQueueDepth(int depth);
+
+    /**
+     * Returns the maximum number of bulk OUT requests kept in flight.
+     *
+     * @return the queue depth, or 0 if queueing is disabled
+     */
+    public int getWriteQueueDepth();
+
+    /**
+     * Enables write coalescing. Writes shorter than {@code maxBytes} are then
+     * collected in a buffer of that size and sent together in one transfer
+     * when the buffer is full, when the next write does not fit, when
+     * {@link #flush(int)} is called, or {@code maxDelayMicros} after the
+     * first byte was collected, whichever comes first. A write returns once
+     * its data is collected; longer writes send the collected data first and
+     * then go out on their own, so the order of the data is kept. This trades
+     * latency for fewer, fuller transfers when a protocol writes a few bytes
+     * at a time. The deadline is kept by a thread of the port, which ends
+     * while the port is idle; a transfer that fails there is reported by the
+     * next write or flush, and with the write queue enabled it only queues
+     * the data. Since a write returns before its data is sent, data that a
+     * write reported as written is dropped if its transfer fails later. A
+     * {@code maxDelayMicros} of 0
+     * sends only when the buffer is full or flushed. A {@code maxBytes} of 0,
+     * the default, disables coalescing. New settings take effect at the next
+     * write, which sends the data collected with the old ones.
+     *
+     * @param maxBytes the size of the buffer, or 0 to disable coalescing
+     * @param maxDelayMicros the maximum time collected data waits, or 0 to
+     *            wait for a full buffer or a flush
+     */
+    public void setWriteCoalescing(int maxBytes, int maxDelayMicros);
+
+    /**
+     * Returns the size of the write coalescing buffer.
+     *
+     * @return the size in bytes, or 0 if writes are not coalesced
+     */
+    public int getWriteCoalescingMaxBytes();
+
+    /**
+     * Returns the maximum time collected writes wait before they are sent.
+     *
+     * @return the time in microseconds, or 0 for no deadline
+     */
+    public int getWriteCoalescingMaxDelayMicros();
+
+    /**
+     * Sends the data collected by write coalescing, then waits until all data
+     * queued by {@link #write(byte[], int)} has been sent to the device.
+     * Returns immediately if neither is enabled.
+     *
+     * @param timeoutMillis the time to wait for each queued request
+     * @throws IOException if a queued request failed or did not complete in
+     *             time
+     */
+    public void flush(int timeoutMillis) throws IOException;
+
     /**
      * Sets various serial port parameters.
      *
@@ -149,6 +429,24 @@ public interface UsbSerialPort {
      */
     public boolean getDSR() throws IOException;
 
+    /**
+     * Registers a listener for changes of the CD, CTS, DSR and RI lines. The
+     * lines are watched while the port is open and at least one listener is
+     * registered, or after one of the getters above has been called, so
+     * changes are reported regardless of how often the getters are called.
+     *
+     * @param listener the listener to add
+     */
+    public void addModemStatusListener(ModemStatusListener listener);
+
+    /**
+     * Unregisters a listener added with
+     * {@link #addModemStatusListener(ModemStatusListener)}.
+     *
+     * @param listener the listener to remove
+     */
+    public void removeModemStatusListener(ModemStatusListener listener);
+
     /**
      * Gets the DTR (Data Terminal Ready) bit from the underlying UART.
      *
@@ -201,4 +499,13 @@ public interface UsbSerialPort {
      */
     public boolean purgeHwBuffers(boolean flushRX, boolean flushTX) throws IOException;
 
+    /**
+     * Returns the counters of the calls made on this port. They are published
+     * as an MBean while the port is open; the transfers are counted by
+     * {@link UsbDeviceConnection#getMetrics()}.
+     *
+     * @return the metrics
+     */
+    public UsbPortMetrics getMetrics();
+
 }
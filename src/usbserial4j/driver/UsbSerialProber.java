@@ -25,7 +25,10 @@ package usbserial4j.driver;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 import javax.usb.UsbDevice;
 import javax.usb.UsbDeviceDescriptor;
@@ -37,6 +40,21 @@ import javax.usb.UsbHub;
  */
 public class UsbSerialProber {
 
+	/**
+	 * Receives the drivers found by
+	 * {@link UsbSerialProber#findAllDrivers(UsbHub, ForkJoinPool, DriverCallback)}.
+	 */
+	public interface DriverCallback {
+		/**
+		 * Called for every device a compatible driver was found for. May be
+		 * called from several threads at once.
+		 *
+		 * @param driver
+		 *            the driver
+		 */
+		void onDriverFound(UsbSerialDriver driver);
+	}
+
 	private final ProbeTable mProbeTable;
 
 	public UsbSerialProber(ProbeTable probeTable) {
@@ -79,37 +97,76 @@ public class UsbSerialProber {
 		return result;
 	}
 
-	@SuppressWarnings("unchecked")
+	/**
+	 * Finds all compatible drivers like {@link #findAllDrivers(UsbHub)}, but
+	 * scans sibling hubs concurrently on the given pool and hands each driver
+	 * to the callback as soon as its device has been probed. Returns when the
+	 * whole tree has been scanned.
+	 *
+	 * @param usbHub
+	 *            the hub to scan, usually the virtual root hub
+	 * @param pool
+	 *            the pool running the scan
+	 * @param callback
+	 *            receives the drivers, possibly from several threads at once
+	 */
+	public void findAllDrivers(final UsbHub usbHub, final ForkJoinPool pool, final DriverCallback callback) {
+		pool.invoke(new ProbeHubTask(usbHub, callback));
+	}
+
+	/**
+	 * Finds all compatible drivers like {@link #findAllDrivers(UsbHub)}, but
+	 * scans sibling hubs concurrently on the given pool. The order of the
+	 * drivers in the result is unspecified.
+	 *
+	 * @param usbHub
+	 *            the hub to scan, usually the virtual root hub
+	 * @param pool
+	 *            the pool running the scan
+	 * @return a list, possibly empty, of all compatible drivers
+	 */
+	public List<UsbSerialDriver> findAllDrivers(final UsbHub usbHub, final ForkJoinPool pool) {
+		final List<UsbSerialDriver> result = Collections.synchronizedList(new ArrayList<UsbSerialDriver>());
+		findAllDrivers(usbHub, pool, new DriverCallback() {
+			@Override
+			public void onDriverFound(UsbSerialDriver driver) {
+				result.add(driver);
+			}
+		});
+		return new ArrayList<UsbSerialDriver>(result);
+	}
+
 	public List<UsbDevice> getDevices(UsbHub hub) {
 		List<UsbDevice> usbDevices = new ArrayList<>();
+		collectDevices(hub, usbDevices);
+		return usbDevices;
+	}
 
+	@SuppressWarnings("unchecked")
+	private static void collectDevices(UsbHub hub, List<UsbDevice> usbDevices) {
 		for (UsbDevice device : (List<UsbDevice>) hub.getAttachedUsbDevices()) {
 			usbDevices.add(device);
-			
-			if (device.isUsbHub()) {
-				List<UsbDevice> devices = getDevices((UsbHub) device);
-				if (devices.size() > 0)
-					usbDevices.addAll(devices);
-			}
+
+			if (device.isUsbHub())
+				collectDevices((UsbHub) device, usbDevices);
 		}
-		return usbDevices;
 	}
 
-	@SuppressWarnings("unchecked")
 	public List<UsbDevice> findDevice(UsbHub hub, short vendorId, short productId) {
 		List<UsbDevice> usbDevices = new ArrayList<>();
+		collectDevices(hub, vendorId, productId, usbDevices);
+		return usbDevices;
+	}
 
+	@SuppressWarnings("unchecked")
+	private static void collectDevices(UsbHub hub, short vendorId, short productId, List<UsbDevice> usbDevices) {
 		for (UsbDevice device : (List<UsbDevice>) hub.getAttachedUsbDevices()) {
 			UsbDeviceDescriptor desc = device.getUsbDeviceDescriptor();
 			if (desc.idVendor() == vendorId && desc.idProduct() == productId)
 				usbDevices.add(device);
-			if (device.isUsbHub()) {
-				List<UsbDevice> devices = findDevice((UsbHub) device, vendorId, productId);
-				if (devices.size() > 0)
-					usbDevices.addAll(devices);
-			}
+			if (device.isUsbHub())
+				collectDevices((UsbHub) device, vendorId, productId, usbDevices);
 		}
-		return usbDevices;
 	}
 
 	/**
@@ -121,10 +178,7 @@ public class UsbSerialProber {
 	 *         {@code null} if none available.
 	 */
 	public UsbSerialDriver probeDevice(final UsbDevice usbDevice) {
-		final int vendorId = usbDevice.getUsbDeviceDescriptor().idVendor();
-		final int productId = usbDevice.getUsbDeviceDescriptor().idProduct();
-
-		final Class<? extends UsbSerialDriver> driverClass = mProbeTable.findDriver(vendorId, productId);
+		final Class<? extends UsbSerialDriver> driverClass = mProbeTable.findDriver(usbDevice);
 		if (driverClass != null) {
 			final UsbSerialDriver driver;
 			try {
@@ -146,4 +200,50 @@ public class UsbSerialProber {
 		return null;
 	}
 
+	/**
+	 * Probes the devices attached to one hub, scanning each child hub in its
+	 * own subtask so that sibling hubs are walked concurrently.
+	 */
+	private final class ProbeHubTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final UsbHub mHub;
+		private final DriverCallback mCallback;
+
+		ProbeHubTask(UsbHub hub, DriverCallback callback) {
+			mHub = hub;
+			mCallback = callback;
+		}
+
+		@Override
+		@SuppressWarnings("unchecked")
+		protected void compute() {
+			final List<UsbDevice> devices = (List<UsbDevice>) mHub.getAttachedUsbDevices();
+			List<ProbeHubTask> subtasks = null;
+			for (UsbDevice device : devices) {
+				if (device.isUsbHub()) {
+					final ProbeHubTask subtask = new ProbeHubTask((UsbHub) device, mCallback);
+					subtask.fork();
+					if (subtasks == null) {
+						subtasks = new ArrayList<ProbeHubTask>();
+					}
+					subtasks.add(subtask);
+				}
+			}
+
+			for (UsbDevice device : devices) {
+				final UsbSerialDriver driver = probeDevice(device);
+				if (driver != null) {
+					mCallback.onDriverFound(driver);
+				}
+			}
+
+			if (subtasks != null) {
+				for (ProbeHubTask subtask : subtasks) {
+					subtask.join();
+				}
+			}
+		}
+	}
+
 }
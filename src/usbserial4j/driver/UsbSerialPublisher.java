@@ -0,0 +1,347 @@
+package usbserial4j.driver;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.usb.UsbAbortException;
+import javax.usb.UsbDisconnectedException;
+import javax.usb.UsbException;
+import javax.usb.UsbIrp;
+import javax.usb.UsbNotActiveException;
+import javax.usb.UsbNotOpenException;
+import javax.usb.UsbPipe;
+import javax.usb.event.UsbPipeDataEvent;
+import javax.usb.event.UsbPipeErrorEvent;
+import javax.usb.event.UsbPipeListener;
+import javax.usb.util.DefaultUsbIrp;
+
+/**
+ * Publishes the data received by an open port as a {@link Flow.Publisher}.
+ * <p>
+ * Bulk IN IRPs are only submitted while the subscriber has outstanding
+ * demand, at most one per requested item and never more than the configured
+ * number at a time. Without demand no IRP is pending, so the device is
+ * throttled by the USB flow control instead of data piling up on the host.
+ * Every item is a buffer of at most the configured size holding the data of
+ * one IRP; the buffer is handed over to the subscriber without copying.
+ * </p>
+ * <p>
+ * Items are signalled on the thread that completed the IRP. The publisher is
+ * unicast: it accepts one subscriber at a time. The subscription completes
+ * when the port is closed. A port being published must not be read with the
+ * blocking read methods at the same time.
+ * </p>
+ * <p>
+ * This class uses {@link java.util.concurrent.Flow} and therefore requires
+ * Java 9 or later at runtime, unlike the rest of the library.
+ * </p>
+ */
+public class UsbSerialPublisher implements Flow.Publisher<ByteBuffer> {
+
+	public static final int DEFAULT_BUFFER_SIZE = 4 * 1024;
+	public static final int DEFAULT_MAX_IN_FLIGHT = 2;
+
+	private final CommonUsbSerialPort mPort;
+	private final int mBufferSize;
+	private final int mMaxInFlight;
+	private final AtomicBoolean mSubscribed = new AtomicBoolean();
+
+	/**
+	 * Creates a publisher reading up to {@link #DEFAULT_MAX_IN_FLIGHT} IRPs of
+	 * {@link #DEFAULT_BUFFER_SIZE} bytes at a time.
+	 *
+	 * @param port
+	 *            an open port
+	 */
+	public UsbSerialPublisher(UsbSerialPort port) {
+		this(port, DEFAULT_BUFFER_SIZE, DEFAULT_MAX_IN_FLIGHT);
+	}
+
+	/**
+	 * @param port
+	 *            an open port
+	 * @param bufferSize
+	 *            the length of each bulk IN IRP and the maximum size of each
+	 *            item
+	 * @param maxInFlight
+	 *            the maximum number of IRPs submitted at a time
+	 */
+	public UsbSerialPublisher(UsbSerialPort port, int bufferSize, int maxInFlight) {
+		if (!(port instanceof CommonUsbSerialPort)) {
+			throw new IllegalArgumentException("Unsupported port implementation: " + port.getClass());
+		}
+		if (bufferSize < 1 || maxInFlight < 1) {
+			throw new IllegalArgumentException("Buffer size and IRPs in flight must be at least 1");
+		}
+		mPort = (CommonUsbSerialPort) port;
+		mBufferSize = bufferSize;
+		mMaxInFlight = maxInFlight;
+	}
+
+	@Override
+	public void subscribe(Flow.Subscriber<? super ByteBuffer> subscriber) {
+		if (subscriber == null) {
+			throw new NullPointerException("subscriber");
+		}
+		if (!mSubscribed.compareAndSet(false, true)) {
+			subscriber.onSubscribe(CANCELLED);
+			subscriber.onError(new IllegalStateException("Publisher already has a subscriber"));
+			return;
+		}
+
+		final UsbDeviceConnection connection = mPort.getConnection();
+		final UsbPipe pipe = (connection != null ? connection.openPipe(mPort.getReadEndpoint()) : null);
+		if (pipe == null) {
+			mSubscribed.set(false);
+			subscriber.onSubscribe(CANCELLED);
+			subscriber.onError(new IOException("Port not open: " + mPort));
+			return;
+		}
+
+		final PortSubscription subscription = new PortSubscription(subscriber, connection, pipe);
+		pipe.addUsbPipeListener(subscription);
+		mPort.addCloseListener(subscription.mClosing);
+		subscriber.onSubscribe(subscription);
+	}
+
+	private static final Flow.Subscription CANCELLED = new Flow.Subscription() {
+		@Override
+		public void request(long n) {
+		}
+
+		@Override
+		public void cancel() {
+		}
+	};
+
+	private static final class PublisherIrp extends DefaultUsbIrp {
+		private final PortSubscription mOwner;
+
+		PublisherIrp(PortSubscription owner, byte[] data) {
+			super(data);
+			mOwner = owner;
+		}
+	}
+
+	private final class PortSubscription implements Flow.Subscription, UsbPipeListener {
+		private final Flow.Subscriber<? super ByteBuffer> mSubscriber;
+		private final UsbDeviceConnection mConnection;
+		private final UsbPipe mPipe;
+
+		/** Requested items not delivered yet. Guarded by {@code this}. */
+		private long mDemand = 0;
+
+		/** Submitted IRPs not completed yet. Guarded by {@code this}. */
+		private int mInFlight = 0;
+
+		private volatile boolean mDone = false;
+
+		/** The thread currently signalling the subscriber, if any. */
+		private volatile Thread mSignalling;
+
+		/** Whether {@code onNext} is being called. Guarded by {@code this}. */
+		private boolean mEmitting = false;
+
+		/**
+		 * Whether a terminal signal waits for {@code onNext} to return, and
+		 * its error, {@code null} to complete. Guarded by {@code this}.
+		 */
+		private boolean mTerminalPending = false;
+		private Throwable mTerminalError = null;
+
+		/** Completes the subscription when the port is closed. */
+		final Runnable mClosing = new Runnable() {
+			@Override
+			public void run() {
+				complete();
+			}
+		};
+
+		PortSubscription(Flow.Subscriber<? super ByteBuffer> subscriber, UsbDeviceConnection connection, UsbPipe pipe) {
+			mSubscriber = subscriber;
+			mConnection = connection;
+			mPipe = pipe;
+		}
+
+		@Override
+		public void request(long n) {
+			if (n <= 0) {
+				fail(new IllegalArgumentException("Non-positive request: " + n));
+				return;
+			}
+			synchronized (this) {
+				mDemand += n;
+				if (mDemand < 0) {
+					// Overflow, demand is unbounded from now on
+					mDemand = Long.MAX_VALUE;
+				}
+			}
+			fill();
+		}
+
+		@Override
+		public void cancel() {
+			terminate();
+		}
+
+		/**
+		 * Submits IRPs until every outstanding item has one, up to the
+		 * maximum in flight.
+		 */
+		private void fill() {
+			synchronized (this) {
+				while (!mDone && mInFlight < mMaxInFlight && mInFlight < mDemand) {
+					try {
+						mConnection.submit(mPipe, new PublisherIrp(this, new byte[mBufferSize]), this);
+					} catch (UsbNotActiveException | UsbNotOpenException | UsbDisconnectedException | UsbException e) {
+						fail(new IOException("Error submitting read IRP for " + mPort, e));
+						return;
+					}
+					mInFlight++;
+				}
+			}
+		}
+
+		@Override
+		public void dataEventOccurred(UsbPipeDataEvent event) {
+			final UsbIrp irp = event.getUsbIrp();
+			if (!(irp instanceof PublisherIrp) || ((PublisherIrp) irp).mOwner != this) {
+				return;
+			}
+			mConnection.irpCompleted(mPipe.getUsbEndpoint(), irp);
+			synchronized (this) {
+				mInFlight--;
+				if (irp.getActualLength() > 0) {
+					mDemand--;
+				}
+				if (mDone) {
+					return;
+				}
+				mEmitting = (irp.getActualLength() > 0);
+			}
+			if (irp.getActualLength() > 0) {
+				mSignalling = Thread.currentThread();
+				try {
+					mSubscriber.onNext(ByteBuffer.wrap(irp.getData(), irp.getOffset(), irp.getActualLength()));
+				} finally {
+					mSignalling = null;
+					emitted();
+				}
+			}
+			fill();
+		}
+
+		@Override
+		public void errorEventOccurred(UsbPipeErrorEvent event) {
+			final UsbIrp irp = event.getUsbIrp();
+			if (!(irp instanceof PublisherIrp) || ((PublisherIrp) irp).mOwner != this) {
+				return;
+			}
+			mConnection.irpCompleted(mPipe.getUsbEndpoint(), irp);
+			synchronized (this) {
+				mInFlight--;
+			}
+			if (irp.getUsbException() instanceof UsbAbortException) {
+				// The pipe was aborted by someone else
+				complete();
+			} else {
+				fail(new IOException("Error reading from " + mPort, irp.getUsbException()));
+			}
+		}
+
+		private void complete() {
+			if (terminate()) {
+				signalTerminal(null);
+			}
+		}
+
+		private void fail(Throwable t) {
+			if (terminate()) {
+				signalTerminal(t);
+			}
+		}
+
+		/**
+		 * Signals {@code onComplete}, or {@code onError} with the given error.
+		 * While {@code onNext} is being called, possibly on another thread, the
+		 * signal is left to that thread once it returns, so that signals are
+		 * never concurrent.
+		 */
+		private void signalTerminal(Throwable error) {
+			synchronized (this) {
+				if (mEmitting) {
+					mTerminalPending = true;
+					mTerminalError = error;
+					return;
+				}
+			}
+			deliverTerminal(error);
+		}
+
+		/**
+		 * Called after {@code onNext} returned, delivers a terminal signal that
+		 * came in meanwhile.
+		 */
+		private void emitted() {
+			final boolean pending;
+			final Throwable error;
+			synchronized (this) {
+				mEmitting = false;
+				pending = mTerminalPending;
+				error = mTerminalError;
+				mTerminalPending = false;
+				mTerminalError = null;
+			}
+			if (pending) {
+				deliverTerminal(error);
+			}
+		}
+
+		private void deliverTerminal(Throwable error) {
+			if (error == null) {
+				mSubscriber.onComplete();
+			} else {
+				mSubscriber.onError(error);
+			}
+		}
+
+		/**
+		 * Ends the subscription and cancels the IRPs in flight.
+		 *
+		 * @return {@code false} if the subscription had already ended
+		 */
+		private boolean terminate() {
+			synchronized (this) {
+				if (mDone) {
+					return false;
+				}
+				mDone = true;
+			}
+			mPort.removeCloseListener(mClosing);
+			mPipe.removeUsbPipeListener(this);
+			mSubscribed.set(false);
+
+			if (mSignalling == Thread.currentThread()) {
+				// Called from onNext on the IRP queue thread of the pipe, which
+				// would wait for itself while aborting
+				Thread aborter = new Thread(new Runnable() {
+					@Override
+					public void run() {
+						abort();
+					}
+				}, "usbserial4j publisher abort");
+				aborter.setDaemon(true);
+				aborter.start();
+			} else {
+				abort();
+			}
+			return true;
+		}
+
+		private void abort() {
+			mConnection.cancel(mPipe, this);
+		}
+	}
+}
@@ -0,0 +1,466 @@
+package usbserial4j.driver;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.usb.UsbAbortException;
+import javax.usb.UsbDisconnectedException;
+import javax.usb.UsbException;
+import javax.usb.UsbIrp;
+import javax.usb.UsbNotActiveException;
+import javax.usb.UsbNotOpenException;
+import javax.usb.UsbPipe;
+import javax.usb.event.UsbPipeDataEvent;
+import javax.usb.event.UsbPipeErrorEvent;
+import javax.usb.event.UsbPipeListener;
+import javax.usb.util.DefaultUsbIrp;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Drives reads and writes of any number of open ports without blocking a
+ * thread per port.
+ * <p>
+ * Every registered port keeps a few bulk IN IRPs submitted with
+ * {@link UsbPipe#asyncSubmit(UsbIrp)}. Completions are picked up through
+ * {@link UsbPipeListener}s and dispatched to a small fixed pool of threads,
+ * which call the port's {@link Handler} and submit the IRPs again. Writes are
+ * submitted the same way and report back through a {@link WriteCallback}.
+ * Callbacks of one port are always called one at a time and in completion
+ * order; callbacks of different ports run in parallel on the pool.
+ * </p>
+ * <p>
+ * A registered port must not be read with the blocking
+ * {@link UsbSerialPort#read(byte[], int)} methods at the same time. Closing
+ * a registered port unregisters it, also when the port is kept warm.
+ * </p>
+ */
+public class UsbSerialReactor {
+	private static final Log LOG = LogFactory.getLog(UsbSerialReactor.class);
+
+	public static final int DEFAULT_READ_DEPTH = 2;
+	public static final int DEFAULT_READ_SIZE = 4 * 1024;
+
+	/**
+	 * Receives the data read from a registered port.
+	 */
+	public interface Handler {
+		/**
+		 * Called with data received from the port.
+		 *
+		 * @param port
+		 *            the port
+		 * @param data
+		 *            the buffer holding the data, only valid during the call
+		 * @param offset
+		 *            the index of the first byte received
+		 * @param length
+		 *            the number of bytes received
+		 */
+		void onData(UsbSerialPort port, byte[] data, int offset, int length);
+
+		/**
+		 * Called when reading from the port failed. No more data is delivered
+		 * for the port afterwards.
+		 *
+		 * @param port
+		 *            the port
+		 * @param e
+		 *            the error
+		 */
+		void onError(UsbSerialPort port, IOException e);
+	}
+
+	/**
+	 * Receives the outcome of a write submitted through the reactor.
+	 */
+	public interface WriteCallback {
+		/**
+		 * Called when the device accepted all data of the write.
+		 *
+		 * @param port
+		 *            the port
+		 * @param length
+		 *            the number of bytes written
+		 */
+		void onWriteComplete(UsbSerialPort port, int length);
+
+		/**
+		 * Called when the write failed or was only partially accepted.
+		 *
+		 * @param port
+		 *            the port
+		 * @param e
+		 *            the error
+		 */
+		void onWriteFailed(UsbSerialPort port, IOException e);
+	}
+
+	private static final class ReadIrp extends DefaultUsbIrp {
+		private final Channel mChannel;
+
+		ReadIrp(Channel channel, int size) {
+			super(new byte[size]);
+			mChannel = channel;
+		}
+	}
+
+	private static final class WriteIrp extends DefaultUsbIrp {
+		private final Channel mChannel;
+		private final WriteCallback mCallback;
+
+		WriteIrp(Channel channel, byte[] data, int offset, int length, WriteCallback callback) {
+			super(data, offset, length, true);
+			mChannel = channel;
+			mCallback = callback;
+		}
+	}
+
+	/**
+	 * State of a registered port. Completed IRPs are queued here and drained
+	 * by at most one pool thread at a time.
+	 */
+	private final class Channel implements UsbPipeListener, Runnable {
+		private final CommonUsbSerialPort mPort;
+		private final Handler mHandler;
+		private final UsbDeviceConnection mConnection;
+		private final UsbPipe mReadPipe;
+		private final UsbPipe mWritePipe;
+		private final ReadIrp[] mReadIrps;
+
+		/**
+		 * Whether IRPs are submitted. Only cleared with {@code this} held, so
+		 * that no read is submitted again once {@link #stop()} checked it.
+		 */
+		private volatile boolean mActive = true;
+
+		/** Completed IRPs waiting for dispatch. Guarded by {@code this}. */
+		private final ArrayDeque<UsbIrp> mCompleted = new ArrayDeque<UsbIrp>();
+
+		/** Whether a drain task is scheduled. Guarded by {@code this}. */
+		private boolean mScheduled = false;
+
+		/** Unregisters the port when it is closed. */
+		final Runnable mClosing = new Runnable() {
+			@Override
+			public void run() {
+				if (mChannels.remove(mPort, Channel.this)) {
+					stop();
+				}
+			}
+		};
+
+		Channel(CommonUsbSerialPort port, Handler handler, UsbDeviceConnection connection, UsbPipe readPipe,
+				UsbPipe writePipe) {
+			mPort = port;
+			mHandler = handler;
+			mConnection = connection;
+			mReadPipe = readPipe;
+			mWritePipe = writePipe;
+			mReadIrps = new ReadIrp[mReadDepth];
+			for (int i = 0; i < mReadIrps.length; ++i) {
+				mReadIrps[i] = new ReadIrp(this, mReadSize);
+			}
+		}
+
+		@Override
+		public void dataEventOccurred(UsbPipeDataEvent event) {
+			completed(event.getUsbIrp());
+		}
+
+		@Override
+		public void errorEventOccurred(UsbPipeErrorEvent event) {
+			completed(event.getUsbIrp());
+		}
+
+		private void completed(UsbIrp irp) {
+			if (!owns(irp)) {
+				return;
+			}
+			synchronized (this) {
+				mCompleted.add(irp);
+				if (mScheduled) {
+					return;
+				}
+				mScheduled = true;
+			}
+			mExecutor.execute(this);
+		}
+
+		/**
+		 * @return whether the IRP was submitted by this channel; the pipes may
+		 *         be shared with other reactors and components of the port
+		 */
+		private boolean owns(UsbIrp irp) {
+			if (irp instanceof ReadIrp) {
+				return ((ReadIrp) irp).mChannel == this;
+			}
+			return irp instanceof WriteIrp && ((WriteIrp) irp).mChannel == this;
+		}
+
+		@Override
+		public void run() {
+			while (true) {
+				final UsbIrp irp;
+				synchronized (this) {
+					irp = mCompleted.poll();
+					if (irp == null) {
+						mScheduled = false;
+						return;
+					}
+				}
+				try {
+					if (irp instanceof ReadIrp) {
+						dispatchRead((ReadIrp) irp);
+					} else {
+						dispatchWrite((WriteIrp) irp);
+					}
+				} catch (RuntimeException e) {
+					LOG.warn("Reactor callback failed for " + mPort, e);
+				}
+			}
+		}
+
+		private void dispatchRead(ReadIrp irp) {
+			mConnection.irpCompleted(mReadPipe.getUsbEndpoint(), irp);
+			if (!mActive) {
+				return;
+			}
+			if (irp.isUsbException()) {
+				if (!(irp.getUsbException() instanceof UsbAbortException)) {
+					deactivate();
+					mHandler.onError(mPort, new IOException("Error reading from " + mPort, irp.getUsbException()));
+				}
+				return;
+			}
+			if (irp.getActualLength() > 0) {
+				mHandler.onData(mPort, irp.getData(), irp.getOffset(), irp.getActualLength());
+			}
+			try {
+				submitRead(irp);
+			} catch (IOException e) {
+				deactivate();
+				mHandler.onError(mPort, e);
+			}
+		}
+
+		private void dispatchWrite(WriteIrp irp) {
+			mConnection.irpCompleted(mWritePipe.getUsbEndpoint(), irp);
+			if (irp.isUsbException()) {
+				irp.mCallback.onWriteFailed(mPort, new IOException("Error writing to " + mPort, irp.getUsbException()));
+			} else if (irp.getActualLength() != irp.getLength()) {
+				irp.mCallback.onWriteFailed(mPort, new IOException("Error writing to " + mPort + ": "
+						+ irp.getActualLength() + " of " + irp.getLength() + " bytes written"));
+			} else {
+				irp.mCallback.onWriteComplete(mPort, irp.getLength());
+			}
+		}
+
+		void start() throws IOException {
+			mReadPipe.addUsbPipeListener(this);
+			if (mWritePipe != mReadPipe) {
+				mWritePipe.addUsbPipeListener(this);
+			}
+			for (ReadIrp irp : mReadIrps) {
+				submitRead(irp);
+			}
+		}
+
+		/**
+		 * Stops submitting and cancels the IRPs of this channel, leaving those
+		 * of other components on the same pipes alone.
+		 */
+		void stop() {
+			deactivate();
+			mPort.removeCloseListener(mClosing);
+			mReadPipe.removeUsbPipeListener(this);
+			mWritePipe.removeUsbPipeListener(this);
+			mConnection.cancel(mReadPipe, this);
+			if (mWritePipe != mReadPipe) {
+				mConnection.cancel(mWritePipe, this);
+			}
+		}
+
+		private synchronized void deactivate() {
+			mActive = false;
+		}
+
+		/**
+		 * Submits a read IRP again, unless the channel was stopped.
+		 */
+		private void submitRead(ReadIrp irp) throws IOException {
+			irp.setComplete(false);
+			irp.setActualLength(0);
+			irp.setUsbException(null);
+			synchronized (this) {
+				if (!mActive) {
+					return;
+				}
+				try {
+					mConnection.submit(mReadPipe, irp, this);
+				} catch (UsbNotActiveException | UsbNotOpenException | UsbDisconnectedException | UsbException e) {
+					throw new IOException("Error submitting read IRP for " + mPort, e);
+				}
+			}
+		}
+
+		void submitWrite(WriteIrp irp) throws IOException {
+			synchronized (this) {
+				if (!mActive) {
+					throw new IOException("Port not registered: " + mPort);
+				}
+				try {
+					mConnection.submit(mWritePipe, irp, this);
+				} catch (UsbNotActiveException | UsbNotOpenException | UsbDisconnectedException | UsbException e) {
+					throw new IOException("Error submitting write IRP for " + mPort, e);
+				}
+			}
+		}
+	}
+
+	private final ExecutorService mExecutor;
+	private final int mReadDepth;
+	private final int mReadSize;
+	private final ConcurrentMap<UsbSerialPort, Channel> mChannels = new ConcurrentHashMap<UsbSerialPort, Channel>();
+
+	/**
+	 * Creates a reactor with {@link #DEFAULT_READ_DEPTH} read IRPs of
+	 * {@link #DEFAULT_READ_SIZE} bytes per port.
+	 *
+	 * @param threads
+	 *            the number of dispatcher threads
+	 */
+	public UsbSerialReactor(int threads) {
+		this(threads, DEFAULT_READ_DEPTH, DEFAULT_READ_SIZE);
+	}
+
+	/**
+	 * @param threads
+	 *            the number of dispatcher threads
+	 * @param readDepth
+	 *            the number of bulk IN IRPs kept submitted per port
+	 * @param readSize
+	 *            the length of each bulk IN IRP in bytes
+	 */
+	public UsbSerialReactor(int threads, int readDepth, int readSize) {
+		if (readDepth < 1 || readSize < 1) {
+			throw new IllegalArgumentException("Read depth and size must be at least 1");
+		}
+		mReadDepth = readDepth;
+		mReadSize = readSize;
+		mExecutor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			private final AtomicInteger mCount = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "usbserial4j reactor " + mCount.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Starts reading from an open port and delivering its data to the given
+	 * handler.
+	 *
+	 * @param port
+	 *            an open port
+	 * @param handler
+	 *            receives the data of the port
+	 * @throws IOException
+	 *             if the pipes of the port could not be opened or the read IRPs
+	 *             not submitted
+	 */
+	public void register(UsbSerialPort port, Handler handler) throws IOException {
+		final CommonUsbSerialPort commonPort = toCommonPort(port);
+		final UsbDeviceConnection connection = commonPort.getConnection();
+		if (connection == null) {
+			throw new IOException("Port not open: " + port);
+		}
+		final UsbPipe readPipe = connection.openPipe(commonPort.getReadEndpoint());
+		final UsbPipe writePipe = connection.openPipe(commonPort.getWriteEndpoint());
+		if (readPipe == null || writePipe == null) {
+			throw new IOException("Error opening pipes of " + port);
+		}
+
+		final Channel channel = new Channel(commonPort, handler, connection, readPipe, writePipe);
+		if (mChannels.putIfAbsent(port, channel) != null) {
+			throw new IllegalStateException("Port already registered: " + port);
+		}
+		commonPort.addCloseListener(channel.mClosing);
+		try {
+			channel.start();
+		} catch (IOException e) {
+			mChannels.remove(port, channel);
+			channel.stop();
+			throw e;
+		}
+	}
+
+	/**
+	 * Stops reading from a port. The outstanding IRPs of the reactor are
+	 * aborted, unless other components of the port have IRPs pending on the
+	 * same pipe; then they are left to complete unseen. Writes that have not
+	 * completed yet are discarded without callback.
+	 *
+	 * @param port
+	 *            a registered port
+	 */
+	public void unregister(UsbSerialPort port) {
+		final Channel channel = mChannels.remove(port);
+		if (channel != null) {
+			channel.stop();
+		}
+	}
+
+	/**
+	 * Submits a write to a registered port and returns immediately. The data
+	 * is not copied and must not be modified until the callback was called.
+	 *
+	 * @param port
+	 *            a registered port
+	 * @param data
+	 *            the buffer holding the data
+	 * @param offset
+	 *            the index of the first byte to write
+	 * @param length
+	 *            the number of bytes to write
+	 * @param callback
+	 *            receives the outcome of the write
+	 * @throws IOException
+	 *             if the write could not be submitted
+	 */
+	public void write(UsbSerialPort port, byte[] data, int offset, int length, WriteCallback callback)
+			throws IOException {
+		final Channel channel = mChannels.get(port);
+		if (channel == null) {
+			throw new IOException("Port not registered: " + port);
+		}
+		channel.submitWrite(new WriteIrp(channel, data, offset, length, callback));
+	}
+
+	/**
+	 * Unregisters all ports and stops the dispatcher threads.
+	 */
+	public void shutdown() {
+		for (UsbSerialPort port : mChannels.keySet()) {
+			unregister(port);
+		}
+		mExecutor.shutdown();
+	}
+
+	private static CommonUsbSerialPort toCommonPort(UsbSerialPort port) {
+		if (!(port instanceof CommonUsbSerialPort)) {
+			throw new IllegalArgumentException("Unsupported port implementation: " + port.getClass());
+		}
+		return (CommonUsbSerialPort) port;
+	}
+}
@@ -0,0 +1,483 @@
+package usbserial4j.driver;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.usb.UsbPipe;
+import javax.usb.event.UsbPipeDataEvent;
+import javax.usb.event.UsbPipeErrorEvent;
+import javax.usb.event.UsbPipeListener;
+
+/**
+ * Waits for any number of open ports to become readable, writable or to
+ * change their modem status, so that one thread can serve them all with the
+ * usual blocking calls, like a {@link java.nio.channels.Selector}.
+ * <p>
+ * Nothing is polled. A port registered for {@link #OP_READ} receives in the
+ * background, with bulk IN IRPs always submitted (see
+ * {@link UsbSerialPort#setReceiveBufferCapacity(int)}), and
+ * {@link #OP_MODEM_STATUS} keeps the interrupt endpoint of the port polled
+ * through a {@link ModemStatusListener}. Their completions, and those of the
+ * bulk OUT IRPs for {@link #OP_WRITE}, only queue the key of the port and
+ * unpark the selecting thread. {@link #select(int)} then checks the queued
+ * keys, so its cost grows with the number of ports that had traffic rather
+ * than with the number registered.
+ * </p>
+ * <p>
+ * Readiness is level-triggered for reads and writes: a key selected once is
+ * checked again by the next selection, and stays selected as long as a read
+ * or a write would still not wait. A modem status change is reported by one
+ * selection only.
+ * </p>
+ * <ul>
+ * <li>{@link #OP_READ}: data has been received, or receiving failed, so a
+ * read returns without waiting.</li>
+ * <li>{@link #OP_WRITE}: a write does not wait for the window of the write
+ * queue (see {@link UsbSerialPort#setWriteQueueDepth(int)}). Without a write
+ * queue the port is always writable.</li>
+ * <li>{@link #OP_MODEM_STATUS}: the modem lines changed since the last
+ * selection; see {@link Key#getModemLines()}.</li>
+ * </ul>
+ * <p>
+ * A port can be registered with one selector at a time, and its key should
+ * be cancelled before the port is closed. Keys can be registered and
+ * cancelled from any thread; one thread at a time selects.
+ * </p>
+ */
+public class UsbSerialSelector {
+
+	public static final int OP_READ = 1;
+	public static final int OP_WRITE = 4;
+	public static final int OP_MODEM_STATUS = 16;
+
+	/**
+	 * The receive buffer capacity given to a port registered for reading that
+	 * does not receive in the background yet.
+	 */
+	public static final int DEFAULT_RECEIVE_CAPACITY = 64 * 1024;
+
+	private static final int ALL_OPS = OP_READ | OP_WRITE | OP_MODEM_STATUS;
+
+	/**
+	 * The registration of a port with a selector.
+	 */
+	public final class Key {
+		private final CommonUsbSerialPort mPort;
+		private final UsbPipe mWritePipe;
+		private final Object mAttachment;
+
+		private volatile int mInterestOps = 0;
+
+		/** The ops whose sources are set up. Guarded by this key. */
+		private int mAttachedOps = 0;
+
+		/** Written by the selecting thread only. */
+		private volatile int mReadyOps = 0;
+
+		private volatile boolean mValid = true;
+		private volatile int mModemLines = 0;
+		private final AtomicBoolean mModemChanged = new AtomicBoolean();
+
+		/** Whether the key is in the queue of keys to check. */
+		private final AtomicBoolean mQueued = new AtomicBoolean();
+
+		private final Runnable mReceiveListener = new Runnable() {
+			@Override
+			public void run() {
+				signal();
+			}
+		};
+
+		private final ModemStatusListener mModemListener = new ModemStatusListener() {
+			@Override
+			public void onModemStatusChanged(UsbSerialPort port, int lines, int changed) {
+				mModemLines = lines;
+				mModemChanged.set(true);
+				signal();
+			}
+		};
+
+		private final UsbPipeListener mWriteListener = new UsbPipeListener() {
+			@Override
+			public void dataEventOccurred(UsbPipeDataEvent event) {
+				signal();
+			}
+
+			@Override
+			public void errorEventOccurred(UsbPipeErrorEvent event) {
+				signal();
+			}
+		};
+
+		Key(CommonUsbSerialPort port, UsbPipe writePipe, Object attachment) {
+			mPort = port;
+			mWritePipe = writePipe;
+			mAttachment = attachment;
+		}
+
+		/**
+		 * @return the registered port
+		 */
+		public UsbSerialPort getPort() {
+			return mPort;
+		}
+
+		/**
+		 * @return the object given at registration, or {@code null}
+		 */
+		public Object getAttachment() {
+			return mAttachment;
+		}
+
+		/**
+		 * @return the ops the key is selected for
+		 */
+		public int getInterestOps() {
+			return mInterestOps;
+		}
+
+		/**
+		 * Changes the ops the key is selected for. Adding {@link #OP_READ}
+		 * enables background receive on the port if it is off; removing it
+		 * leaves it on.
+		 *
+		 * @param ops
+		 *            a combination of {@link #OP_READ}, {@link #OP_WRITE} and
+		 *            {@link #OP_MODEM_STATUS}
+		 * @throws IOException
+		 *             if background receive could not be started
+		 */
+		public void setInterestOps(int ops) throws IOException {
+			if ((ops & ~ALL_OPS) != 0) {
+				throw new IllegalArgumentException("Invalid interest ops: " + ops);
+			}
+			synchronized (this) {
+				if (!mValid) {
+					throw new IllegalStateException("Key cancelled");
+				}
+				attach(ops & ~mAttachedOps);
+				mInterestOps = ops;
+			}
+			// The port may be ready for the new ops already
+			signal();
+		}
+
+		/**
+		 * @return the ops the port was found ready for by the last selection
+		 *         that selected the key
+		 */
+		public int getReadyOps() {
+			return mReadyOps;
+		}
+
+		public boolean isReadable() {
+			return (mReadyOps & OP_READ) != 0;
+		}
+
+		public boolean isWritable() {
+			return (mReadyOps & OP_WRITE) != 0;
+		}
+
+		public boolean isModemStatusChanged() {
+			return (mReadyOps & OP_MODEM_STATUS) != 0;
+		}
+
+		/**
+		 * @return the modem lines that were set at the last change reported
+		 *         to the key, a combination of {@link UsbSerialPort#LINE_CD},
+		 *         {@link UsbSerialPort#LINE_CTS}, {@link UsbSerialPort#LINE_DSR}
+		 *         and {@link UsbSerialPort#LINE_RI}
+		 */
+		public int getModemLines() {
+			return mModemLines;
+		}
+
+		/**
+		 * @return whether the key has not been cancelled
+		 */
+		public boolean isValid() {
+			return mValid;
+		}
+
+		/**
+		 * Removes the port from the selector. The background receive of the
+		 * port stays on.
+		 */
+		public void cancel() {
+			synchronized (this) {
+				if (!mValid) {
+					return;
+				}
+				mValid = false;
+				detach();
+			}
+			mKeys.remove(mPort, this);
+		}
+
+		/**
+		 * Sets up the sources of the given ops. Must be called with the key
+		 * locked.
+		 */
+		private void attach(int ops) throws IOException {
+			if ((ops & OP_READ) != 0) {
+				if (mPort.getReceiveBufferCapacity() == 0) {
+					mPort.setReceiveBufferCapacity(DEFAULT_RECEIVE_CAPACITY);
+				}
+				mPort.setReceiveListener(mReceiveListener);
+				mAttachedOps |= OP_READ;
+			}
+			if ((ops & OP_WRITE) != 0) {
+				mWritePipe.addUsbPipeListener(mWriteListener);
+				mAttachedOps |= OP_WRITE;
+			}
+			if ((ops & OP_MODEM_STATUS) != 0) {
+				mPort.addModemStatusListener(mModemListener);
+				mAttachedOps |= OP_MODEM_STATUS;
+			}
+		}
+
+		private void detach() {
+			if ((mAttachedOps & OP_READ) != 0) {
+				mPort.setReceiveListener(null);
+			}
+			if ((mAttachedOps & OP_WRITE) != 0) {
+				mWritePipe.removeUsbPipeListener(mWriteListener);
+			}
+			if ((mAttachedOps & OP_MODEM_STATUS) != 0) {
+				mPort.removeModemStatusListener(mModemListener);
+			}
+			mAttachedOps = 0;
+		}
+
+		/**
+		 * Queues the key to be checked and wakes up the selecting thread.
+		 */
+		private void signal() {
+			if (enqueue()) {
+				LockSupport.unpark(mSelecting);
+			}
+		}
+
+		private boolean enqueue() {
+			if (!mQueued.compareAndSet(false, true)) {
+				return false;
+			}
+			mSignalled.add(this);
+			return true;
+		}
+
+		/**
+		 * Finds the ops the port is ready for. Called by the selecting thread.
+		 *
+		 * @return whether the port is ready for any op of interest
+		 */
+		private boolean update() {
+			if (!mValid) {
+				return false;
+			}
+			final int interestOps = mInterestOps;
+			int readyOps = 0;
+			if ((interestOps & OP_READ) != 0 && mPort.isReadReady()) {
+				readyOps |= OP_READ;
+			}
+			if ((interestOps & OP_WRITE) != 0 && mPort.isWriteReady()) {
+				readyOps |= OP_WRITE;
+			}
+			if ((interestOps & OP_MODEM_STATUS) != 0 && mModemChanged.getAndSet(false)) {
+				readyOps |= OP_MODEM_STATUS;
+			}
+			if (readyOps == 0) {
+				return false;
+			}
+			mReadyOps = readyOps;
+			return true;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("<%s port=%s interest=%d ready=%d>", getClass().getSimpleName(), mPort,
+					mInterestOps, mReadyOps);
+		}
+	}
+
+	private final ConcurrentMap<UsbSerialPort, Key> mKeys = new ConcurrentHashMap<UsbSerialPort, Key>();
+
+	/** Keys whose ports had an event since they were last checked. */
+	private final ConcurrentLinkedQueue<Key> mSignalled = new ConcurrentLinkedQueue<Key>();
+
+	/** The keys found ready by the last selection. Guarded by this selector. */
+	private final List<Key> mSelectedKeys = new ArrayList<Key>();
+
+	private final List<Key> mSelectedKeysView = Collections.unmodifiableList(mSelectedKeys);
+
+	/** The thread in {@link #select(int)}, or {@code null}. */
+	private volatile Thread mSelecting = null;
+
+	private final AtomicBoolean mWakeup = new AtomicBoolean();
+
+	/**
+	 * Registers an open port.
+	 *
+	 * @param port
+	 *            the open port
+	 * @param ops
+	 *            a combination of {@link #OP_READ}, {@link #OP_WRITE} and
+	 *            {@link #OP_MODEM_STATUS}
+	 * @param attachment
+	 *            an object handed back by {@link Key#getAttachment()}, or
+	 *            {@code null}
+	 * @return the key of the port
+	 * @throws IOException
+	 *             if the port is not open, or background receive could not be
+	 *             started
+	 */
+	public Key register(UsbSerialPort port, int ops, Object attachment) throws IOException {
+		final CommonUsbSerialPort commonPort = toCommonPort(port);
+		final UsbDeviceConnection connection = commonPort.getConnection();
+		if (connection == null) {
+			throw new IOException("Port not open: " + port);
+		}
+		final UsbPipe writePipe = connection.openPipe(commonPort.getWriteEndpoint());
+		if (writePipe == null) {
+			throw new IOException("Error opening write pipe of " + port);
+		}
+
+		final Key key = new Key(commonPort, writePipe, attachment);
+		if (mKeys.putIfAbsent(port, key) != null) {
+			throw new IllegalStateException("Port already registered: " + port);
+		}
+		try {
+			key.setInterestOps(ops);
+		} catch (IOException | RuntimeException e) {
+			key.cancel();
+			throw e;
+		}
+		return key;
+	}
+
+	/**
+	 * Returns the key of a registered port.
+	 *
+	 * @param port
+	 *            the port
+	 * @return the key, or {@code null} if the port is not registered
+	 */
+	public Key keyFor(UsbSerialPort port) {
+		return mKeys.get(port);
+	}
+
+	/**
+	 * @return the keys of all registered ports
+	 */
+	public Collection<Key> keys() {
+		return Collections.unmodifiableCollection(mKeys.values());
+	}
+
+	/**
+	 * Waits until at least one registered port is ready for an op of
+	 * interest, {@link #wakeup()} is called, or the timeout passes.
+	 *
+	 * @param timeoutMillis
+	 *            the time to wait, or 0 to wait forever
+	 * @return the number of keys selected, see {@link #selectedKeys()}
+	 */
+	public int select(int timeoutMillis) {
+		if (timeoutMillis < 0) {
+			throw new IllegalArgumentException("Negative timeout: " + timeoutMillis);
+		}
+		return doSelect(true, timeoutMillis);
+	}
+
+	/**
+	 * Selects the ports that are ready without waiting.
+	 *
+	 * @return the number of keys selected, see {@link #selectedKeys()}
+	 */
+	public int selectNow() {
+		return doSelect(false, 0);
+	}
+
+	private synchronized int doSelect(boolean block, int timeoutMillis) {
+		// Keys that were ready stay candidates until they are found not ready
+		for (Key key : mSelectedKeys) {
+			key.enqueue();
+		}
+		mSelectedKeys.clear();
+
+		final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+		mSelecting = Thread.currentThread();
+		try {
+			while (true) {
+				Key key;
+				while ((key = mSignalled.poll()) != null) {
+					// Events from here on queue the key again
+					key.mQueued.set(false);
+					if (key.update()) {
+						mSelectedKeys.add(key);
+					}
+				}
+				if (!mSelectedKeys.isEmpty() || !block || mWakeup.get()) {
+					break;
+				}
+				if (timeoutMillis > 0) {
+					final long remaining = deadline - System.nanoTime();
+					if (remaining <= 0) {
+						break;
+					}
+					LockSupport.parkNanos(this, remaining);
+				} else {
+					LockSupport.park(this);
+				}
+			}
+		} finally {
+			mSelecting = null;
+			mWakeup.set(false);
+		}
+		return mSelectedKeys.size();
+	}
+
+	/**
+	 * Returns the keys found ready by the last selection. The list is reused
+	 * and only valid until the next selection.
+	 *
+	 * @return the selected keys
+	 */
+	public List<Key> selectedKeys() {
+		return mSelectedKeysView;
+	}
+
+	/**
+	 * Makes the current selection return at once, or the next one if no
+	 * thread is selecting.
+	 */
+	public void wakeup() {
+		mWakeup.set(true);
+		LockSupport.unpark(mSelecting);
+	}
+
+	/**
+	 * Cancels all keys. The selector can be used again afterwards.
+	 */
+	public void close() {
+		for (Key key : mKeys.values()) {
+			key.cancel();
+		}
+		wakeup();
+	}
+
+	private static CommonUsbSerialPort toCommonPort(UsbSerialPort port) {
+		if (!(port instanceof CommonUsbSerialPort)) {
+			throw new IllegalArgumentException("Unsupported port implementation: " + port.getClass());
+		}
+		return (CommonUsbSerialPort) port;
+	}
+}
@@ -0,0 +1,308 @@
+package usbserial4j.driver;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.usb.UsbAbortException;
+import javax.usb.UsbDisconnectedException;
+import javax.usb.UsbEndpoint;
+import javax.usb.UsbException;
+import javax.usb.UsbIrp;
+import javax.usb.UsbNotActiveException;
+import javax.usb.UsbNotOpenException;
+import javax.usb.UsbPipe;
+import javax.usb.event.UsbPipeDataEvent;
+import javax.usb.event.UsbPipeErrorEvent;
+import javax.usb.event.UsbPipeListener;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Polls the status endpoints of all open ports from a single shared thread.
+ * <p>
+ * Every registration keeps one IRP with a preallocated buffer submitted on its
+ * endpoint. When the IRP completes, the registration is queued for the poller
+ * thread, which hands the data to the registration's callback and submits the
+ * IRP again. No thread is started per port and nothing is allocated per
+ * status update.
+ * </p>
+ * <p>
+ * The poller counts its wakeups and dispatches, and publishes the counts as
+ * an MBean when its thread starts.
+ * </p>
+ */
+class UsbStatusPoller implements UsbStatusPollerMXBean {
+	private static final Log LOG = LogFactory.getLog(UsbStatusPoller.class);
+
+	private static final UsbStatusPoller INSTANCE = new UsbStatusPoller();
+
+	/**
+	 * Receives the data read from a status endpoint. Callbacks are invoked on
+	 * the poller thread, one at a time, and must not block.
+	 */
+	interface Callback {
+		/**
+		 * Called with the data of a completed status IRP.
+		 *
+		 * @param data
+		 *            the IRP buffer, only valid during the call
+		 * @param length
+		 *            the number of bytes received
+		 */
+		void onStatus(byte[] data, int length);
+
+		/**
+		 * Called when a status IRP failed. Polling of the endpoint stops, the
+		 * registration becomes inactive.
+		 *
+		 * @param e
+		 *            the error
+		 */
+		void onError(IOException e);
+	}
+
+	/**
+	 * A status endpoint being polled.
+	 */
+	static final class Registration implements UsbPipeListener {
+		private final UsbStatusPoller mPoller;
+		private final UsbDeviceConnection mConnection;
+		private final UsbPipe mPipe;
+		private final UsbIrp mIrp;
+		private final Callback mCallback;
+		/** Only cleared with the registration held, see {@link #submit()}. */
+		private volatile boolean mActive = true;
+
+		/** Next registration in the completion queue. Guarded by the poller. */
+		private Registration mNext;
+
+		private Registration(UsbStatusPoller poller, UsbDeviceConnection connection, UsbPipe pipe, int length,
+				Callback callback) {
+			mPoller = poller;
+			mConnection = connection;
+			mPipe = pipe;
+			mIrp = pipe.createUsbIrp();
+			mIrp.setData(new byte[length]);
+			mCallback = callback;
+		}
+
+		@Override
+		public void dataEventOccurred(UsbPipeDataEvent event) {
+			if (event.getUsbIrp() == mIrp) {
+				mPoller.enqueue(this);
+			}
+		}
+
+		@Override
+		public void errorEventOccurred(UsbPipeErrorEvent event) {
+			if (event.getUsbIrp() == mIrp) {
+				mPoller.enqueue(this);
+			}
+		}
+
+		/**
+		 * @return {@code false} once the registration has been unregistered or
+		 *         polling stopped because of an error
+		 */
+		boolean isActive() {
+			return mActive;
+		}
+
+		/**
+		 * Submits the IRP again, unless the registration was deactivated.
+		 */
+		private synchronized void submit() throws UsbException {
+			if (!mActive) {
+				return;
+			}
+			mIrp.setComplete(false);
+			mIrp.setActualLength(0);
+			mIrp.setUsbException(null);
+			mConnection.submit(mPipe, mIrp, this);
+		}
+
+		private synchronized void deactivate() {
+			mActive = false;
+		}
+	}
+
+	private final Object mLock = new Object();
+
+	/** Head and tail of the completion queue. Guarded by {@link #mLock}. */
+	private Registration mFirst, mLast;
+
+	/** The poller thread, started with the first registration. */
+	private Thread mThread;
+
+	private final AtomicLong mWakeups = new AtomicLong();
+	private final AtomicLong mDispatches = new AtomicLong();
+	private final AtomicLong mErrors = new AtomicLong();
+	private final AtomicLong mCallbackFailures = new AtomicLong();
+
+	static UsbStatusPoller getInstance() {
+		return INSTANCE;
+	}
+
+	/**
+	 * Starts polling the given endpoint.
+	 *
+	 * @param connection
+	 *            the connection used to open the pipe of the endpoint
+	 * @param endpoint
+	 *            the interrupt IN endpoint to poll
+	 * @param length
+	 *            the length of the status IRP in bytes
+	 * @param callback
+	 *            receives the status data
+	 * @return the registration, to be passed to {@link #unregister}
+	 * @throws IOException
+	 *             if the pipe could not be opened or the IRP not submitted
+	 */
+	Registration register(UsbDeviceConnection connection, UsbEndpoint endpoint, int length, Callback callback)
+			throws IOException {
+		final UsbPipe pipe = connection.openPipe(endpoint);
+		if (pipe == null) {
+			throw new IOException("Error opening pipe of status endpoint " + endpoint);
+		}
+
+		final Registration registration = new Registration(this, connection, pipe, length, callback);
+		pipe.addUsbPipeListener(registration);
+
+		synchronized (mLock) {
+			if (mThread == null) {
+				mThread = new Thread(new Runnable() {
+					@Override
+					public void run() {
+						pollerThreadFunction();
+					}
+				}, "usbserial4j status poller");
+				mThread.setDaemon(true);
+				mThread.start();
+				UsbMBeans.register(UsbMBeans.singletonName("UsbStatusPoller"), this);
+			}
+		}
+
+		try {
+			registration.submit();
+		} catch (UsbNotActiveException | UsbNotOpenException | UsbDisconnectedException | UsbException e) {
+			pipe.removeUsbPipeListener(registration);
+			throw new IOException("Error submitting status IRP", e);
+		}
+		return registration;
+	}
+
+	/**
+	 * Stops polling and cancels the outstanding status IRP, leaving the IRPs
+	 * of other components on the same pipe alone.
+	 *
+	 * @param registration
+	 *            the registration returned by {@link #register}
+	 */
+	void unregister(Registration registration) {
+		registration.deactivate();
+		registration.mPipe.removeUsbPipeListener(registration);
+		registration.mConnection.cancel(registration.mPipe, registration);
+	}
+
+	private void enqueue(Registration registration) {
+		synchronized (mLock) {
+			registration.mNext = null;
+			if (mLast == null) {
+				mFirst = registration;
+			} else {
+				mLast.mNext = registration;
+			}
+			mLast = registration;
+			mLock.notify();
+		}
+	}
+
+	private Registration take() throws InterruptedException {
+		synchronized (mLock) {
+			while (mFirst == null) {
+				mLock.wait();
+				mWakeups.incrementAndGet();
+			}
+			final Registration registration = mFirst;
+			mFirst = registration.mNext;
+			if (mFirst == null) {
+				mLast = null;
+			}
+			registration.mNext = null;
+			return registration;
+		}
+	}
+
+	private void pollerThreadFunction() {
+		while (true) {
+			final Registration registration;
+			try {
+				registration = take();
+			} catch (InterruptedException e) {
+				return;
+			}
+			if (registration.mActive) {
+				dispatch(registration);
+			}
+		}
+	}
+
+	private void dispatch(Registration registration) {
+		mDispatches.incrementAndGet();
+		final UsbIrp irp = registration.mIrp;
+		registration.mConnection.irpCompleted(registration.mPipe.getUsbEndpoint(), irp);
+		if (irp.isUsbException()) {
+			final UsbException e = irp.getUsbException();
+			if (!(e instanceof UsbAbortException)) {
+				stop(registration, new IOException("Error reading status endpoint", e));
+			}
+			return;
+		}
+
+		try {
+			registration.mCallback.onStatus(irp.getData(), irp.getActualLength());
+		} catch (RuntimeException e) {
+			mCallbackFailures.incrementAndGet();
+			LOG.warn("Status callback failed", e);
+		}
+
+		try {
+			registration.submit();
+		} catch (UsbNotActiveException | UsbNotOpenException | UsbDisconnectedException | UsbException e) {
+			stop(registration, new IOException("Error submitting status IRP", e));
+		}
+	}
+
+	private void stop(Registration registration, IOException e) {
+		mErrors.incrementAndGet();
+		registration.deactivate();
+		registration.mPipe.removeUsbPipeListener(registration);
+		try {
+			registration.mCallback.onError(e);
+		} catch (RuntimeException re) {
+			mCallbackFailures.incrementAndGet();
+			LOG.warn("Status callback failed", re);
+		}
+	}
+
+	@Override
+	public long getWakeups() {
+		return mWakeups.get();
+	}
+
+	@Override
+	public long getDispatches() {
+		return mDispatches.get();
+	}
+
+	@Override
+	public long getErrors() {
+		return mErrors.get();
+	}
+
+	@Override
+	public long getCallbackFailures() {
+		return mCallbackFailures.get();
+	}
+}
@@ -0,0 +1,21 @@
+package usbserial4j.driver;
+
+/**
+ * Counters of the thread polling the status endpoints of all ports,
+ * published under {@code usbserial4j:type=UsbStatusPoller} once the thread
+ * has started.
+ */
+public interface UsbStatusPollerMXBean {
+
+	/** @return the number of times the poller thread woke up from waiting */
+	long getWakeups();
+
+	/** @return the number of completed status IRPs handled */
+	long getDispatches();
+
+	/** @return the number of status endpoints whose polling stopped on an error */
+	long getErrors();
+
+	/** @return the number of callbacks that threw */
+	long getCallbackFailures();
+}
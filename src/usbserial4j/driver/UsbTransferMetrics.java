@@ -0,0 +1,199 @@
+package usbserial4j.driver;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.usb.UsbAbortException;
+import javax.usb.UsbConst;
+import javax.usb.UsbDisconnectedException;
+import javax.usb.UsbEndpoint;
+import javax.usb.UsbIrp;
+import javax.usb.UsbPlatformException;
+import javax.usb.UsbStallException;
+
+import org.usb4java.LibUsb;
+
+/**
+ * The transfer counters of a {@link UsbDeviceConnection}.
+ * <p>
+ * IRPs are counted by whoever waits for their completion: the connection
+ * for synchronous transfers, and the read and write queues, the background
+ * receiver, the publishers, the reactor and the status poller for theirs.
+ * They record an IRP before they reuse it, since a pipe listener could see
+ * it already reset. Recording only updates atomic counters and never
+ * allocates.
+ * </p>
+ */
+public final class UsbTransferMetrics implements UsbTransferMetricsMXBean {
+
+	private final AtomicLong mBulkInIrps = new AtomicLong();
+	private final AtomicLong mBulkInBytes = new AtomicLong();
+	private final AtomicLong mShortReads = new AtomicLong();
+	private final AtomicLong mBulkOutIrps = new AtomicLong();
+	private final AtomicLong mBulkOutBytes = new AtomicLong();
+	private final AtomicLong mInterruptIrps = new AtomicLong();
+	private final AtomicLong mControlTransfers = new AtomicLong();
+	private final LatencyHistogram mControlLatency = new LatencyHistogram();
+	private final AtomicLong mTimeouts = new AtomicLong();
+	private final AtomicLong mStalls = new AtomicLong();
+	private final AtomicLong mAborts = new AtomicLong();
+	private final AtomicLong mDisconnects = new AtomicLong();
+	private final AtomicLong mOtherErrors = new AtomicLong();
+
+	/**
+	 * Records a completed bulk or interrupt IRP.
+	 *
+	 * @param endpoint
+	 *            the endpoint the IRP was submitted to
+	 * @param irp
+	 *            the completed IRP, not yet reused
+	 */
+	void irpCompleted(UsbEndpoint endpoint, UsbIrp irp) {
+		if (irp.isUsbException()) {
+			failed(irp.getUsbException());
+			return;
+		}
+		final int length = irp.getActualLength();
+		if (endpoint.getType() == UsbConst.ENDPOINT_TYPE_INTERRUPT) {
+			mInterruptIrps.incrementAndGet();
+		} else if (endpoint.getDirection() == UsbConst.ENDPOINT_DIRECTION_IN) {
+			mBulkInIrps.incrementAndGet();
+			mBulkInBytes.addAndGet(length);
+			if (length < irp.getLength()) {
+				mShortReads.incrementAndGet();
+			}
+		} else {
+			mBulkOutIrps.incrementAndGet();
+			mBulkOutBytes.addAndGet(length);
+		}
+	}
+
+	/**
+	 * Counts a control transfer about to be submitted.
+	 */
+	void controlSubmitted() {
+		mControlTransfers.incrementAndGet();
+	}
+
+	/**
+	 * Records the outcome of a completed control transfer.
+	 *
+	 * @param irp
+	 *            the completed IRP
+	 * @param startNanos
+	 *            when it was submitted, in {@link System#nanoTime()} time
+	 */
+	void controlCompleted(UsbIrp irp, long startNanos) {
+		if (irp.isUsbException()) {
+			failed(irp.getUsbException());
+		} else {
+			mControlLatency.recordSince(startNanos);
+		}
+	}
+
+	/**
+	 * Counts a synchronous transfer that did not complete in time.
+	 */
+	void timedOut() {
+		mTimeouts.incrementAndGet();
+	}
+
+	/**
+	 * Counts a failed transfer by its cause.
+	 *
+	 * @param e
+	 *            the exception of the IRP, or the one thrown when submitting
+	 *            it
+	 */
+	void failed(Throwable e) {
+		if (e instanceof UsbAbortException) {
+			mAborts.incrementAndGet();
+		} else if (e instanceof UsbStallException) {
+			mStalls.incrementAndGet();
+		} else if (e instanceof UsbDisconnectedException) {
+			mDisconnects.incrementAndGet();
+		} else if (e instanceof UsbPlatformException) {
+			// usb4java reports libusb errors with their code
+			switch (((UsbPlatformException) e).getErrorCode()) {
+			case LibUsb.ERROR_PIPE:
+				mStalls.incrementAndGet();
+				break;
+			case LibUsb.ERROR_TIMEOUT:
+				mTimeouts.incrementAndGet();
+				break;
+			case LibUsb.ERROR_NO_DEVICE:
+				mDisconnects.incrementAndGet();
+				break;
+			default:
+				mOtherErrors.incrementAndGet();
+				break;
+			}
+		} else {
+			mOtherErrors.incrementAndGet();
+		}
+	}
+
+	@Override
+	public long getBulkInIrps() {
+		return mBulkInIrps.get();
+	}
+
+	@Override
+	public long getBulkInBytes() {
+		return mBulkInBytes.get();
+	}
+
+	@Override
+	public long getShortReads() {
+		return mShortReads.get();
+	}
+
+	@Override
+	public long getBulkOutIrps() {
+		return mBulkOutIrps.get();
+	}
+
+	@Override
+	public long getBulkOutBytes() {
+		return mBulkOutBytes.get();
+	}
+
+	@Override
+	public long getInterruptIrps() {
+		return mInterruptIrps.get();
+	}
+
+	@Override
+	public long getControlTransfers() {
+		return mControlTransfers.get();
+	}
+
+	@Override
+	public LatencyHistogram.Snapshot getControlLatency() {
+		return mControlLatency.getSnapshot();
+	}
+
+	@Override
+	public long getTimeouts() {
+		return mTimeouts.get();
+	}
+
+	@Override
+	public long getStalls() {
+		return mStalls.get();
+	}
+
+	@Override
+	public long getAborts() {
+		return mAborts.get();
+	}
+
+	@Override
+	public long getDisconnects() {
+		return mDisconnects.get();
+	}
+
+	@Override
+	public long getOtherErrors() {
+		return mOtherErrors.get();
+	}
+}
@@ -0,0 +1,48 @@
+package usbserial4j.driver;
+
+/**
+ * Transfer counters of a {@link UsbDeviceConnection}, published under
+ * {@code usbserial4j:type=UsbDeviceConnection}. All counts are totals since
+ * the connection was created.
+ */
+public interface UsbTransferMetricsMXBean {
+
+	/** @return the number of bulk IN IRPs completed without error */
+	long getBulkInIrps();
+
+	/** @return the number of bytes received by bulk IN IRPs */
+	long getBulkInBytes();
+
+	/** @return the number of bulk IN IRPs that returned less than they asked for */
+	long getShortReads();
+
+	/** @return the number of bulk OUT IRPs completed without error */
+	long getBulkOutIrps();
+
+	/** @return the number of bytes sent by bulk OUT IRPs */
+	long getBulkOutBytes();
+
+	/** @return the number of interrupt IRPs completed without error */
+	long getInterruptIrps();
+
+	/** @return the number of control transfers submitted */
+	long getControlTransfers();
+
+	/** @return the latencies of the control transfers that succeeded */
+	LatencyHistogram.Snapshot getControlLatency();
+
+	/** @return the number of synchronous transfers whose wait timed out */
+	long getTimeouts();
+
+	/** @return the number of transfers that failed with a stall */
+	long getStalls();
+
+	/** @return the number of transfers that were aborted */
+	long getAborts();
+
+	/** @return the number of transfers that failed because the device was gone */
+	long getDisconnects();
+
+	/** @return the number of transfers that failed for another reason */
+	long getOtherErrors();
+}
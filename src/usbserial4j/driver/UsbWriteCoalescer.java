@@ -0,0 +1,268 @@
+package usbserial4j.driver;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * Collects small writes into one buffer and sends them as a single bulk OUT
+ * transfer, like Nagle's algorithm without waiting for acknowledgements.
+ * <p>
+ * The buffer is sent when the next write would not fit in it, when it is
+ * full, when {@link #flush(int)} is called, or when the maximum delay has
+ * passed since its first byte was written. The deadline is kept by a timer
+ * thread of the coalescer's own, so a device that stalls only delays its own
+ * port; the thread ends while the port is idle. It sends the buffer through
+ * the same path as the writers, and a failure there is reported by the next
+ * write or flush.
+ * </p>
+ * <p>
+ * A write returns once its data is collected. If sending the buffer fails
+ * later, that data is dropped although the write reported it as written.
+ * </p>
+ * <p>
+ * All methods must be called with the write lock of the port held, which
+ * the timer thread takes too.
+ * </p>
+ */
+final class UsbWriteCoalescer {
+
+	/**
+	 * Sends the collected data. Called with the write lock of the port held.
+	 */
+	interface Sink {
+		/**
+		 * @return the number of bytes sent
+		 */
+		int send(byte[] data, int offset, int length, int timeoutMillis) throws IOException;
+	}
+
+	/** How long the timer thread of an idle coalescer is kept. */
+	private static final long TIMER_KEEP_ALIVE_MILLIS = 1000;
+
+	private final Lock mLock;
+	private final Sink mSink;
+	private final UsbPortMetrics mMetrics;
+	private final byte[] mBuffer;
+	private final long mMaxDelayNanos;
+
+	/** Keeps the deadline, or {@code null} without a maximum delay. */
+	private final ScheduledThreadPoolExecutor mTimer;
+
+	/** Number of bytes collected. */
+	private int mLength = 0;
+
+	/** Number of writes collected. */
+	private int mWrites = 0;
+
+	/** When the buffer is due, in {@link System#nanoTime()} time. */
+	private long mDeadlineNanos = 0;
+
+	/** The timeout of the write that started the buffer. */
+	private int mTimeoutMillis = 0;
+
+	/** A failure of the timer thread, thrown by the next write or flush. */
+	private IOException mError = null;
+
+	private boolean mStopped = false;
+
+	private final Runnable mDeadlineTask = new Runnable() {
+		@Override
+		public void run() {
+			mLock.lock();
+			try {
+				if (mStopped || mLength == 0 || System.nanoTime() - mDeadlineNanos < 0) {
+					// Sent already; a later buffer has a task of its own
+					return;
+				}
+				send(mTimeoutMillis);
+			} catch (IOException e) {
+				mError = e;
+			} finally {
+				mLock.unlock();
+			}
+		}
+	};
+
+	/**
+	 * @param lock
+	 *            the write lock of the port
+	 * @param sink
+	 *            sends the collected data
+	 * @param metrics
+	 *            the metrics of the port
+	 * @param maxBytes
+	 *            the size of the buffer, at least 1
+	 * @param maxDelayMicros
+	 *            the time the first byte of a buffer waits at most, or 0 to
+	 *            wait for a full buffer or a flush
+	 */
+	UsbWriteCoalescer(Lock lock, Sink sink, UsbPortMetrics metrics, int maxBytes, int maxDelayMicros) {
+		if (maxBytes < 1) {
+			throw new IllegalArgumentException("Buffer size must be at least 1: " + maxBytes);
+		}
+		mLock = lock;
+		mSink = sink;
+		mMetrics = metrics;
+		mBuffer = new byte[maxBytes];
+		mMaxDelayNanos = TimeUnit.MICROSECONDS.toNanos(maxDelayMicros);
+		mTimer = (mMaxDelayNanos > 0 ? newTimer() : null);
+	}
+
+	/**
+	 * @return the size of the buffer in bytes
+	 */
+	int getMaxBytes() {
+		return mBuffer.length;
+	}
+
+	/**
+	 * @return the time the first byte of a buffer waits at most, in
+	 *         microseconds
+	 */
+	int getMaxDelayMicros() {
+		return (int) TimeUnit.NANOSECONDS.toMicros(mMaxDelayNanos);
+	}
+
+	/**
+	 * @return whether a write of the given length is collected; longer ones
+	 *         are sent on their own after a flush
+	 */
+	boolean accepts(long length) {
+		return length < mBuffer.length;
+	}
+
+	/**
+	 * Collects the given data, which must be accepted.
+	 *
+	 * @throws IOException
+	 *             if sending the data collected earlier failed
+	 */
+	void write(byte[] src, int offset, int length, int timeoutMillis) throws IOException {
+		if (length == 0) {
+			return;
+		}
+		prepare(length, timeoutMillis);
+		System.arraycopy(src, offset, mBuffer, mLength, length);
+		collected(length);
+	}
+
+	/**
+	 * Collects the remaining data of the given buffer, which must be accepted.
+	 * The position of the buffer is advanced to its limit.
+	 *
+	 * @throws IOException
+	 *             if sending the data collected earlier failed
+	 */
+	void write(ByteBuffer src, int timeoutMillis) throws IOException {
+		final int length = src.remaining();
+		if (length == 0) {
+			return;
+		}
+		prepare(length, timeoutMillis);
+		src.get(mBuffer, mLength, length);
+		collected(length);
+	}
+
+	/**
+	 * Makes room for the given number of bytes, starting a new buffer if
+	 * needed.
+	 */
+	private void prepare(int length, int timeoutMillis) throws IOException {
+		throwError();
+		if (mLength > 0 && (mLength + length > mBuffer.length
+				|| (mMaxDelayNanos > 0 && System.nanoTime() - mDeadlineNanos >= 0))) {
+			send(mTimeoutMillis);
+		}
+		if (mLength == 0) {
+			mTimeoutMillis = timeoutMillis;
+			if (mMaxDelayNanos > 0) {
+				mDeadlineNanos = System.nanoTime() + mMaxDelayNanos;
+				mTimer.schedule(mDeadlineTask, mMaxDelayNanos, TimeUnit.NANOSECONDS);
+			}
+		}
+	}
+
+	private void collected(int length) throws IOException {
+		mLength += length;
+		mWrites++;
+		if (mLength == mBuffer.length) {
+			send(mTimeoutMillis);
+		}
+	}
+
+	/**
+	 * Sends the data collected so far.
+	 *
+	 * @param timeoutMillis
+	 *            the timeout of the transfer
+	 * @throws IOException
+	 *             if sending failed now or on the timer thread
+	 */
+	void flush(int timeoutMillis) throws IOException {
+		throwError();
+		if (mLength > 0) {
+			send(timeoutMillis);
+		}
+	}
+
+	/**
+	 * Sends the data collected so far and stops the timer. The coalescer must
+	 * not be used afterwards.
+	 *
+	 * @param timeoutMillis
+	 *            the timeout of the transfer
+	 * @throws IOException
+	 *             if sending failed now or on the timer thread
+	 */
+	void stop(int timeoutMillis) throws IOException {
+		try {
+			flush(timeoutMillis);
+		} finally {
+			mStopped = true;
+			mLength = 0;
+			mWrites = 0;
+			if (mTimer != null) {
+				mTimer.shutdownNow();
+			}
+		}
+	}
+
+	private void send(int timeoutMillis) throws IOException {
+		final int length = mLength;
+		final int writes = mWrites;
+		// The data is gone either way: a failed transfer is not repeated
+		mLength = 0;
+		mWrites = 0;
+		final int sent = mSink.send(mBuffer, 0, length, timeoutMillis);
+		mMetrics.writesCoalesced(writes);
+		if (sent < length) {
+			throw new IOException("Error writing coalesced data, " + sent + " of " + length + " bytes sent");
+		}
+	}
+
+	private void throwError() throws IOException {
+		final IOException error = mError;
+		if (error != null) {
+			mError = null;
+			throw new IOException("Error writing coalesced data", error);
+		}
+	}
+
+	private static ScheduledThreadPoolExecutor newTimer() {
+		final ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "usbserial4j write coalescer");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		timer.setKeepAliveTime(TIMER_KEEP_ALIVE_MILLIS, TimeUnit.MILLISECONDS);
+		timer.allowCoreThreadTimeOut(true);
+		return timer;
+	}
+}
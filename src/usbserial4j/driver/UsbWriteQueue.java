@@ -0,0 +1,436 @@
+package usbserial4j.driver;
+
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+
+import javax.usb.UsbDisconnectedException;
+import javax.usb.UsbEndpoint;
+import javax.usb.UsbException;
+import javax.usb.UsbIrp;
+import javax.usb.UsbNotActiveException;
+import javax.usb.UsbNotOpenException;
+import javax.usb.UsbPipe;
+
+/**
+ * Keeps up to a fixed number of bulk OUT IRPs in flight on an endpoint, so that
+ * consecutive chunks of a write do not each wait for a full USB round trip.
+ * <p>
+ * Data passed to {@link #write(byte[], int, int, int)} is copied into the
+ * buffer of a free IRP and submitted right away; the call only blocks while
+ * the window is full. Since a chunk usually completes after the write that
+ * queued it has returned, a failed chunk is reported by the next call to
+ * {@link #write(byte[], int, int, int)} or {@link #flush(int)}, as a
+ * {@link ChunkException} naming the chunk.
+ * </p>
+ * <p>
+ * A write queues as much as it can and returns the number of bytes it queued.
+ * It returns short if the window stayed full for the whole timeout, or if a
+ * chunk failed after part of the data was queued; that failure is then
+ * thrown by the next call instead. A write only throws if it queued nothing.
+ * </p>
+ * <p>
+ * This class is not thread-safe, callers must serialize access.
+ * </p>
+ */
+class UsbWriteQueue {
+
+	/**
+	 * Signals that a queued chunk was not transferred completely.
+	 */
+	static class ChunkException extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		private final long mChunk;
+		private final int mLength;
+		private final int mActualLength;
+
+		ChunkException(long chunk, int length, int actualLength, Throwable cause) {
+			super("Error writing chunk " + chunk + ": " + actualLength + " of " + length + " bytes written", cause);
+			mChunk = chunk;
+			mLength = length;
+			mActualLength = actualLength;
+		}
+
+		/**
+		 * @return the sequence number of the failed chunk, counted from 0 since
+		 *         the queue was started
+		 */
+		long getChunk() {
+			return mChunk;
+		}
+
+		/**
+		 * @return the number of bytes queued in the chunk
+		 */
+		int getLength() {
+			return mLength;
+		}
+
+		/**
+		 * @return the number of bytes the device accepted
+		 */
+		int getActualLength() {
+			return mActualLength;
+		}
+	}
+
+	private final UsbDeviceConnection mConnection;
+	private final UsbEndpoint mEndpoint;
+	private final UsbIrp[] mIrps;
+	private final long[] mChunkNumbers;
+	private final int mChunkSize;
+
+	private UsbPipe mPipe;
+
+	/** Index of the IRP used for the next chunk. */
+	private int mTail = 0;
+
+	/** Number of submitted IRPs that have not been reaped yet. */
+	private int mInFlight = 0;
+
+	/** Sequence number of the next chunk. */
+	private long mNextChunk = 0;
+
+	/**
+	 * A failure met by a write that had queued data already, thrown by the
+	 * next call.
+	 */
+	private ChunkException mFailure = null;
+
+	/**
+	 * @param connection
+	 *            the connection used to open the pipe of the endpoint
+	 * @param endpoint
+	 *            the bulk OUT endpoint to write to
+	 * @param window
+	 *            the maximum number of IRPs in flight, at least 1
+	 * @param chunkSize
+	 *            the maximum length in bytes of each IRP
+	 */
+	UsbWriteQueue(UsbDeviceConnection connection, UsbEndpoint endpoint, int window, int chunkSize) {
+		if (window < 1) {
+			throw new IllegalArgumentException("Window must be at least 1: " + window);
+		}
+		if (chunkSize < 1) {
+			throw new IllegalArgumentException("Chunk size must be at least 1: " + chunkSize);
+		}
+		mConnection = connection;
+		mEndpoint = endpoint;
+		mIrps = new UsbIrp[window];
+		mChunkNumbers = new long[window];
+		mChunkSize = chunkSize;
+	}
+
+	/**
+	 * @return the maximum number of IRPs in flight
+	 */
+	int getWindow() {
+		return mIrps.length;
+	}
+
+	/**
+	 * @return the maximum length in bytes of each IRP
+	 */
+	int getChunkSize() {
+		return mChunkSize;
+	}
+
+	/**
+	 * Opens the pipe of the endpoint and allocates the IRPs.
+	 *
+	 * @throws IOException
+	 *             if the pipe could not be opened
+	 */
+	void start() throws IOException {
+		mPipe = mConnection.openPipe(mEndpoint);
+		if (mPipe == null) {
+			throw new IOException("Error opening pipe of endpoint " + mEndpoint);
+		}
+
+		for (int i = 0; i < mIrps.length; ++i) {
+			UsbIrp irp = new ParkingUsbIrp(new byte[mChunkSize]);
+			mIrps[i] = irp;
+		}
+		mTail = 0;
+		mInFlight = 0;
+		mFailure = null;
+	}
+
+	/**
+	 * Waits for the chunks in flight to complete and aborts those that did not
+	 * complete in time.
+	 *
+	 * @param timeoutMillis
+	 *            the time to wait for each chunk, or 0 to wait forever
+	 * @throws IOException
+	 *             if a chunk failed or did not complete in time
+	 */
+	void stop(int timeoutMillis) throws IOException {
+		if (mPipe == null) {
+			return;
+		}
+		try {
+			flush(timeoutMillis);
+		} finally {
+			mConnection.cancel(mPipe, this);
+			mPipe = null;
+			mInFlight = 0;
+		}
+	}
+
+	/**
+	 * @return whether a chunk can be queued without waiting for the window
+	 */
+	boolean hasRoom() {
+		// The oldest chunk in flight occupies the tail while the window is full
+		return mPipe != null && (mInFlight < mIrps.length || mIrps[mTail].isComplete());
+	}
+
+	/**
+	 * Queues the given data, split into chunks of at most the chunk size.
+	 *
+	 * @param src
+	 *            the source buffer
+	 * @param offset
+	 *            the index of the first byte in the buffer to write
+	 * @param length
+	 *            the number of bytes to write
+	 * @param timeoutMillis
+	 *            the time to wait for a free IRP while the window is full, or 0
+	 *            to wait forever
+	 * @return the number of bytes queued, which is less than {@code length}
+	 *         if the window stayed full for the whole timeout or a chunk
+	 *         failed after some data was queued
+	 * @throws IOException
+	 *             if no byte could be queued, or if an earlier chunk failed
+	 */
+	int write(byte[] src, int offset, int length, int timeoutMillis) throws IOException {
+		throwFailure();
+		int queued = 0;
+		while (queued < length) {
+			final UsbIrp irp = acquire(timeoutMillis, queued);
+			if (irp == null) {
+				break;
+			}
+			final int chunkLength = Math.min(length - queued, mChunkSize);
+			System.arraycopy(src, offset + queued, irp.getData(), 0, chunkLength);
+			if (!submit(irp, chunkLength, queued)) {
+				break;
+			}
+			queued += chunkLength;
+		}
+		return queued;
+	}
+
+	/**
+	 * Queues the remaining data of the given buffer, split into chunks of at
+	 * most the chunk size. The position of the buffer is advanced by the number
+	 * of bytes queued.
+	 *
+	 * @param src
+	 *            the source buffer, heap or direct
+	 * @param timeoutMillis
+	 *            the time to wait for a free IRP while the window is full, or 0
+	 *            to wait forever
+	 * @return the number of bytes queued
+	 * @throws IOException
+	 *             if no byte could be queued, or if an earlier chunk failed
+	 */
+	int write(ByteBuffer src, int timeoutMillis) throws IOException {
+		throwFailure();
+		return (int) write(src, timeoutMillis, 0);
+	}
+
+	/**
+	 * Queues the remaining data of the given buffers, in order, as one stream.
+	 * The positions of the buffers are advanced by the number of bytes queued
+	 * from each of them.
+	 *
+	 * @param srcs
+	 *            the source buffers, heap or direct
+	 * @param timeoutMillis
+	 *            the time to wait for a free IRP while the window is full, or 0
+	 *            to wait forever
+	 * @return the number of bytes queued
+	 * @throws IOException
+	 *             if no byte could be queued, or if an earlier chunk failed
+	 */
+	long write(ByteBuffer[] srcs, int timeoutMillis) throws IOException {
+		throwFailure();
+		long queued = 0;
+		for (ByteBuffer src : srcs) {
+			queued = write(src, timeoutMillis, queued);
+			if (src.hasRemaining()) {
+				break;
+			}
+		}
+		return queued;
+	}
+
+	/**
+	 * Queues the remaining data of the given buffer after the given number of
+	 * bytes queued by the same write.
+	 *
+	 * @return the number of bytes queued by the write so far
+	 */
+	private long write(ByteBuffer src, int timeoutMillis, long queued) throws IOException {
+		while (src.hasRemaining()) {
+			final UsbIrp irp = acquire(timeoutMillis, queued);
+			if (irp == null) {
+				break;
+			}
+			final int chunkLength = Math.min(src.remaining(), mChunkSize);
+			src.get(irp.getData(), 0, chunkLength);
+			if (!submit(irp, chunkLength, queued)) {
+				((Buffer) src).position(src.position() - chunkLength);
+				break;
+			}
+			queued += chunkLength;
+		}
+		return queued;
+	}
+
+	/**
+	 * Returns the IRP at the tail, waiting for it to be reaped if the window is
+	 * full.
+	 *
+	 * @param queued
+	 *            the number of bytes queued by the write so far
+	 * @return the IRP, or {@code null} if the window stayed full or the oldest
+	 *         chunk failed, and some data has been queued already
+	 */
+	private UsbIrp acquire(int timeoutMillis, long queued) throws IOException {
+		if (mPipe == null) {
+			throw new IOException("Write queue not started");
+		}
+		if (mInFlight == mIrps.length) {
+			// The oldest chunk in flight always occupies the tail
+			final boolean reaped;
+			try {
+				reaped = reap(mTail, timeoutMillis);
+			} catch (ChunkException e) {
+				defer(e, queued);
+				return null;
+			}
+			if (!reaped) {
+				if (queued == 0) {
+					throw new IOException("Timed out waiting for a free write IRP");
+				}
+				return null;
+			}
+		}
+		return mIrps[mTail];
+	}
+
+	/**
+	 * Submits the IRP at the tail.
+	 *
+	 * @param queued
+	 *            the number of bytes queued by the write so far
+	 * @return {@code false} if submitting failed and some data has been queued
+	 *         already
+	 */
+	private boolean submit(UsbIrp irp, int chunkLength, long queued) throws IOException {
+		irp.setOffset(0);
+		irp.setLength(chunkLength);
+		irp.setActualLength(0);
+		irp.setUsbException(null);
+		irp.setComplete(false);
+		mChunkNumbers[mTail] = mNextChunk;
+
+		try {
+			mConnection.submit(mPipe, irp, this);
+		} catch (UsbNotActiveException | UsbNotOpenException | UsbDisconnectedException | UsbException e) {
+			defer(new ChunkException(mNextChunk, chunkLength, 0, e), queued);
+			return false;
+		}
+
+		mNextChunk++;
+		mInFlight++;
+		mTail = (mTail + 1) % mIrps.length;
+		return true;
+	}
+
+	/**
+	 * Throws the given failure, or keeps it for the next call if the write
+	 * has queued data already, so that it can return that count.
+	 */
+	private void defer(ChunkException e, long queued) throws ChunkException {
+		if (queued == 0) {
+			throw e;
+		}
+		mFailure = e;
+	}
+
+	private void throwFailure() throws ChunkException {
+		final ChunkException failure = mFailure;
+		if (failure != null) {
+			mFailure = null;
+			throw failure;
+		}
+	}
+
+	/**
+	 * Waits until all queued chunks have been transferred. This is a barrier:
+	 * when it returns without an exception, every byte queued so far has been
+	 * accepted by the device.
+	 *
+	 * @param timeoutMillis
+	 *            the time to wait for each chunk, or 0 to wait forever
+	 * @throws IOException
+	 *             if a chunk did not complete in time, or if chunks failed; the
+	 *             first failed chunk is thrown and further ones are added as
+	 *             suppressed exceptions
+	 */
+	void flush(int timeoutMillis) throws IOException {
+		IOException failure = mFailure;
+		mFailure = null;
+		while (mInFlight > 0) {
+			final int oldest = (mTail - mInFlight + mIrps.length) % mIrps.length;
+			try {
+				if (!reap(oldest, timeoutMillis)) {
+					IOException e = new IOException("Timed out flushing chunk " + mChunkNumbers[oldest]);
+					if (failure == null) {
+						throw e;
+					}
+					failure.addSuppressed(e);
+					break;
+				}
+			} catch (ChunkException e) {
+				if (failure == null) {
+					failure = e;
+				} else {
+					failure.addSuppressed(e);
+				}
+			}
+		}
+		if (failure != null) {
+			throw failure;
+		}
+	}
+
+	/**
+	 * Waits for the given IRP, which must be the oldest in flight, and releases
+	 * its slot.
+	 *
+	 * @return {@code false} if the IRP did not complete in time
+	 */
+	private boolean reap(int index, int timeoutMillis) throws ChunkException {
+		final UsbIrp irp = mIrps[index];
+		if (!irp.isComplete()) {
+			irp.waitUntilComplete(timeoutMillis);
+			if (!irp.isComplete()) {
+				return false;
+			}
+		}
+		mInFlight--;
+		mConnection.irpCompleted(mEndpoint, irp);
+
+		if (irp.isUsbException() || irp.getActualLength() != irp.getLength()) {
+			throw new ChunkException(mChunkNumbers[index], irp.getLength(), irp.getActualLength(),
+					irp.getUsbException());
+		}
+		return true;
+	}
+}
@@ -0,0 +1,315 @@
+package usbserial4j.emulator;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.usb.UsbAbortException;
+import javax.usb.UsbException;
+import javax.usb.UsbIrp;
+
+/**
+ * The IRP queue of an emulated pipe or of the control endpoint of an emulated
+ * device.
+ * <p>
+ * Like the queues of usb4java, every queue has its own thread, which
+ * processes the IRPs one at a time in the order they were submitted, completes
+ * them and fires the events. The thread is started by the first submission
+ * and ends after being idle for a while, so a large number of idle devices
+ * costs no threads.
+ * </p>
+ */
+final class EmulatedIrpQueue {
+
+	/** Returned by {@link Handler#process} to wait for {@link #wake()}. */
+	static final long NOT_READY = -1;
+
+	/** How long the thread of an idle queue is kept. */
+	private static final long IDLE_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+	/** The length of a full speed frame, the time a NAKed IRP waits to retry. */
+	private static final long FRAME_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+	/**
+	 * The behavior of the emulated endpoint.
+	 */
+	interface Handler {
+		/**
+		 * Tries to process an IRP, filling in its data and actual length.
+		 *
+		 * @param irp
+		 *            the IRP
+		 * @param attempt
+		 *            the number of earlier attempts for the same IRP
+		 * @return 0 if the IRP is complete, the number of nanoseconds to wait
+		 *         before the next attempt, or {@link #NOT_READY} to wait until
+		 *         the queue is woken up
+		 * @throws UsbException
+		 *             the error the IRP completes with
+		 */
+		long process(UsbIrp irp, int attempt) throws UsbException;
+
+		/**
+		 * Called on the queue thread after an IRP completed, with or without
+		 * an error.
+		 *
+		 * @param irp
+		 *            the IRP
+		 */
+		void finish(UsbIrp irp);
+	}
+
+	private final EmulatedUsbDevice mDevice;
+	private final int mAddress;
+	private final Handler mHandler;
+	private final String mName;
+
+	private final ReentrantLock mLock = new ReentrantLock();
+	private final Condition mChanged = mLock.newCondition();
+
+	/** IRPs not started yet. Guarded by {@link #mLock}. */
+	private final ArrayDeque<UsbIrp> mPending = new ArrayDeque<UsbIrp>();
+
+	/** The thread of the queue, or {@code null}. Guarded by {@link #mLock}. */
+	private Thread mThread = null;
+
+	/** The IRP being processed, or {@code null}. Guarded by {@link #mLock}. */
+	private UsbIrp mCurrent = null;
+
+	/** Incremented by {@link #wake()}. Guarded by {@link #mLock}. */
+	private long mWakeups = 0;
+
+	/**
+	 * The error the IRP being processed is ended with, or {@code null}.
+	 * Guarded by {@link #mLock}.
+	 */
+	private UsbException mAbort = null;
+
+	/**
+	 * @param device
+	 *            the device the queue belongs to
+	 * @param address
+	 *            the address of the endpoint, 0 for the control endpoint
+	 * @param handler
+	 *            the behavior of the endpoint
+	 */
+	EmulatedIrpQueue(EmulatedUsbDevice device, int address, Handler handler) {
+		mDevice = device;
+		mAddress = address;
+		mHandler = handler;
+		mName = String.format("%s endpoint 0x%02x", device, address);
+	}
+
+	void submit(UsbIrp irp) {
+		mLock.lock();
+		try {
+			mPending.add(irp);
+			if (mThread == null) {
+				mThread = new Thread(new Runnable() {
+					@Override
+					public void run() {
+						processIrps();
+					}
+				}, mName);
+				mThread.setDaemon(true);
+				mThread.start();
+			} else {
+				mChanged.signalAll();
+			}
+		} finally {
+			mLock.unlock();
+		}
+	}
+
+	/**
+	 * Wakes up the IRP waiting for data, if any, to attempt it again.
+	 */
+	void wake() {
+		mLock.lock();
+		try {
+			mWakeups++;
+			mChanged.signalAll();
+		} finally {
+			mLock.unlock();
+		}
+	}
+
+	/**
+	 * Completes all IRPs with the given error: the queued ones right away and
+	 * the one being processed as soon as it stops waiting. Unless called from
+	 * the queue thread, waits until the one being processed is complete.
+	 *
+	 * @param reason
+	 *            the error
+	 */
+	void abort(UsbException reason) {
+		final ArrayDeque<UsbIrp> aborted;
+		mLock.lock();
+		try {
+			aborted = new ArrayDeque<UsbIrp>(mPending);
+			mPending.clear();
+			if (mCurrent != null) {
+				mAbort = reason;
+				mChanged.signalAll();
+			}
+		} finally {
+			mLock.unlock();
+		}
+
+		for (UsbIrp irp : aborted) {
+			irp.setUsbException(reason);
+			irp.complete();
+			mHandler.finish(irp);
+		}
+
+		mLock.lock();
+		try {
+			while (mCurrent != null && Thread.currentThread() != mThread) {
+				mChanged.awaitUninterruptibly();
+			}
+		} finally {
+			mLock.unlock();
+		}
+	}
+
+	/**
+	 * Completes all IRPs with a {@link UsbAbortException}.
+	 */
+	void abort() {
+		abort(new UsbAbortException("IRP was aborted"));
+	}
+
+	boolean isBusy() {
+		mLock.lock();
+		try {
+			return mCurrent != null || !mPending.isEmpty();
+		} finally {
+			mLock.unlock();
+		}
+	}
+
+	private void processIrps() {
+		while (true) {
+			final UsbIrp irp;
+			mLock.lock();
+			try {
+				long idle = IDLE_NANOS;
+				while (mPending.isEmpty()) {
+					if (idle <= 0) {
+						mThread = null;
+						return;
+					}
+					idle = mChanged.awaitNanos(idle);
+				}
+				irp = mPending.poll();
+				mCurrent = irp;
+				mAbort = null;
+			} catch (InterruptedException e) {
+				mThread = null;
+				return;
+			} finally {
+				mLock.unlock();
+			}
+
+			try {
+				execute(irp);
+			} catch (UsbException e) {
+				irp.setUsbException(e);
+			}
+
+			mLock.lock();
+			try {
+				mCurrent = null;
+				mAbort = null;
+				mChanged.signalAll();
+			} finally {
+				mLock.unlock();
+			}
+			irp.complete();
+			mHandler.finish(irp);
+		}
+	}
+
+	/**
+	 * Processes an IRP, applying the latency and the faults configured on the
+	 * device.
+	 */
+	private void execute(UsbIrp irp) throws UsbException {
+		sleep(mDevice.getIrpLatencyNanos());
+		int attempt = 0;
+		while (true) {
+			mDevice.injectStall(mAddress);
+			if (mDevice.injectNak()) {
+				sleep(FRAME_NANOS);
+				continue;
+			}
+
+			final long wakeups;
+			mLock.lock();
+			try {
+				wakeups = mWakeups;
+			} finally {
+				mLock.unlock();
+			}
+
+			final long result = mHandler.process(irp, attempt++);
+			if (result == 0) {
+				return;
+			} else if (result > 0) {
+				sleep(result);
+			} else {
+				awaitWakeup(wakeups);
+			}
+		}
+	}
+
+	/**
+	 * Waits for the given time, or until the IRP being processed is aborted.
+	 */
+	private void sleep(long nanos) throws UsbException {
+		if (nanos <= 0) {
+			return;
+		}
+		mLock.lock();
+		try {
+			long remaining = nanos;
+			while (mAbort == null && remaining > 0) {
+				remaining = mChanged.awaitNanos(remaining);
+			}
+			checkAbort();
+		} catch (InterruptedException e) {
+			throw new UsbAbortException("Queue thread was interrupted");
+		} finally {
+			mLock.unlock();
+		}
+	}
+
+	/**
+	 * Waits until the queue is woken up after the given number of wakeups, or
+	 * until the IRP being processed is aborted.
+	 */
+	private void awaitWakeup(long wakeups) throws UsbException {
+		mLock.lock();
+		try {
+			while (mAbort == null && mWakeups == wakeups) {
+				mChanged.await();
+			}
+			checkAbort();
+		} catch (InterruptedException e) {
+			throw new UsbAbortException("Queue thread was interrupted");
+		} finally {
+			mLock.unlock();
+		}
+	}
+
+	/**
+	 * Throws the error the IRP being processed is aborted with, if any. Must
+	 * be called with the lock held.
+	 */
+	private void checkAbort() throws UsbException {
+		if (mAbort != null) {
+			throw mAbort;
+		}
+	}
+}
@@ -0,0 +1,89 @@
+package usbserial4j.emulator;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.usb.UsbConfiguration;
+import javax.usb.UsbConfigurationDescriptor;
+import javax.usb.UsbConst;
+
+import org.usb4java.javax.descriptors.SimpleUsbConfigurationDescriptor;
+
+/**
+ * The single, always active configuration of an {@link EmulatedUsbDevice}.
+ */
+public class EmulatedUsbConfiguration implements UsbConfiguration {
+	private final EmulatedUsbDevice mDevice;
+	private final List<EmulatedUsbInterface> mInterfaces = new ArrayList<EmulatedUsbInterface>();
+	private UsbConfigurationDescriptor mDescriptor;
+
+	EmulatedUsbConfiguration(EmulatedUsbDevice device) {
+		mDevice = device;
+		mDescriptor = createDescriptor(0);
+	}
+
+	/**
+	 * Adds an interface. Interfaces must be added before the device is
+	 * shared between threads.
+	 *
+	 * @param interfaceClass
+	 *            the interface class
+	 * @param interfaceSubclass
+	 *            the interface subclass
+	 * @param interfaceProtocol
+	 *            the interface protocol
+	 * @param endpoints
+	 *            the endpoints, each one given as its address, transfer type
+	 *            and maximum packet size
+	 * @return the interface
+	 */
+	public EmulatedUsbInterface addInterface(int interfaceClass, int interfaceSubclass, int interfaceProtocol,
+			int[][] endpoints) {
+		final EmulatedUsbInterface usbInterface = new EmulatedUsbInterface(this, mInterfaces.size(), interfaceClass,
+				interfaceSubclass, interfaceProtocol, endpoints);
+		mInterfaces.add(usbInterface);
+		mDescriptor = createDescriptor(mInterfaces.size());
+		return usbInterface;
+	}
+
+	@Override
+	public boolean isActive() {
+		return true;
+	}
+
+	@Override
+	public List<EmulatedUsbInterface> getUsbInterfaces() {
+		return Collections.unmodifiableList(mInterfaces);
+	}
+
+	@Override
+	public EmulatedUsbInterface getUsbInterface(byte number) {
+		return (number >= 0 && number < mInterfaces.size() ? mInterfaces.get(number) : null);
+	}
+
+	@Override
+	public boolean containsUsbInterface(byte number) {
+		return getUsbInterface(number) != null;
+	}
+
+	@Override
+	public EmulatedUsbDevice getUsbDevice() {
+		return mDevice;
+	}
+
+	@Override
+	public UsbConfigurationDescriptor getUsbConfigurationDescriptor() {
+		return mDescriptor;
+	}
+
+	@Override
+	public String getConfigurationString() {
+		return null;
+	}
+
+	private static UsbConfigurationDescriptor createDescriptor(int numInterfaces) {
+		return new SimpleUsbConfigurationDescriptor((byte) 9, UsbConst.DESCRIPTOR_TYPE_CONFIGURATION, (short) 0,
+				(byte) numInterfaces, (byte) 1, (byte) 0, (byte) 0x80, (byte) 50);
+	}
+}
@@ -0,0 +1,455 @@
+package usbserial4j.emulator;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import javax.usb.UsbConfiguration;
+import javax.usb.UsbConst;
+import javax.usb.UsbControlIrp;
+import javax.usb.UsbDevice;
+import javax.usb.UsbDeviceDescriptor;
+import javax.usb.UsbDisconnectedException;
+import javax.usb.UsbException;
+import javax.usb.UsbIrp;
+import javax.usb.UsbPort;
+import javax.usb.UsbStallException;
+import javax.usb.UsbStringDescriptor;
+import javax.usb.event.UsbDeviceDataEvent;
+import javax.usb.event.UsbDeviceErrorEvent;
+import javax.usb.event.UsbDeviceEvent;
+import javax.usb.event.UsbDeviceListener;
+import javax.usb.util.DefaultUsbControlIrp;
+
+import org.usb4java.javax.descriptors.SimpleUsbDeviceDescriptor;
+
+/**
+ * A software USB device implementing the javax.usb contract, for running the
+ * drivers without hardware.
+ * <p>
+ * Transfers are processed asynchronously, one queue thread per endpoint, and
+ * complete the way they do with usb4java. Subclasses define what the device
+ * does with each transfer; this class takes care of the queues and of the
+ * faults injected into them:
+ * </p>
+ * <ul>
+ * <li>a fixed latency added to every IRP,</li>
+ * <li>NAKs: each attempt of an IRP may be NAKed and retried one frame
+ * later,</li>
+ * <li>stalls, either at random or on the next IRP of a given endpoint,</li>
+ * <li>surprise disconnects, which fail all pending IRPs and every later
+ * use of the device.</li>
+ * </ul>
+ * <p>
+ * Faults may be changed at any time, also while transfers are running.
+ * </p>
+ */
+public class EmulatedUsbDevice implements UsbDevice {
+
+	/** Request number of the standard CLEAR_FEATURE request. */
+	private static final int CLEAR_FEATURE = 0x01;
+
+	/** Feature selector of the endpoint halt feature. */
+	private static final int ENDPOINT_HALT = 0x00;
+
+	private final UsbDeviceDescriptor mDescriptor;
+	private final EmulatedUsbConfiguration mConfiguration;
+	private final List<UsbDeviceListener> mListeners = new CopyOnWriteArrayList<UsbDeviceListener>();
+	private final EmulatedIrpQueue mControlQueue;
+
+	private volatile long mIrpLatencyNanos = 0;
+	private volatile double mNakProbability = 0;
+	private volatile double mStallProbability = 0;
+
+	/** Addresses of the endpoints whose next IRP stalls. Guarded by {@code this}. */
+	private final List<Integer> mStallNext = new ArrayList<Integer>();
+
+	private volatile boolean mDisconnected = false;
+
+	/**
+	 * Creates a device without any configuration.
+	 *
+	 * @param vendorId
+	 *            the vendor id
+	 * @param productId
+	 *            the product id
+	 */
+	public EmulatedUsbDevice(int vendorId, int productId) {
+		this(vendorId, productId, 0, 64, false);
+	}
+
+	/**
+	 * @param vendorId
+	 *            the vendor id
+	 * @param productId
+	 *            the product id
+	 * @param deviceClass
+	 *            the device class
+	 * @param maxPacketSize0
+	 *            the maximum packet size of the control endpoint
+	 * @param configured
+	 *            whether the device has a configuration, to which the
+	 *            subclass adds its interfaces
+	 */
+	protected EmulatedUsbDevice(int vendorId, int productId, int deviceClass, int maxPacketSize0,
+			boolean configured) {
+		mDescriptor = new SimpleUsbDeviceDescriptor((byte) 18, UsbConst.DESCRIPTOR_TYPE_DEVICE, (short) 0x0200,
+				(byte) deviceClass, (byte) 0, (byte) 0, (byte) maxPacketSize0, (short) vendorId, (short) productId,
+				(short) 0x0300, (byte) 0, (byte) 0, (byte) 0, (byte) (configured ? 1 : 0));
+		mConfiguration = (configured ? new EmulatedUsbConfiguration(this) : null);
+		mControlQueue = new EmulatedIrpQueue(this, 0, new EmulatedIrpQueue.Handler() {
+			@Override
+			public long process(UsbIrp irp, int attempt) throws UsbException {
+				return processControl((UsbControlIrp) irp, attempt);
+			}
+
+			@Override
+			public void finish(UsbIrp irp) {
+				fireEvent((UsbControlIrp) irp);
+			}
+		});
+	}
+
+	/**
+	 * Processes a control IRP, on the control queue thread. The default
+	 * implementation clears halted endpoints and stalls every other request.
+	 *
+	 * @param irp
+	 *            the IRP
+	 * @param attempt
+	 *            the number of earlier attempts for the same IRP
+	 * @return 0 if the IRP is complete, the number of nanoseconds to wait
+	 *         before the next attempt, or {@link EmulatedIrpQueue#NOT_READY}
+	 *         to wait until {@link #wake(int)} is called for endpoint 0
+	 * @throws UsbException
+	 *             the error the IRP completes with
+	 */
+	protected long processControl(UsbControlIrp irp, int attempt) throws UsbException {
+		if (irp.bmRequestType() == UsbConst.REQUESTTYPE_RECIPIENT_ENDPOINT && irp.bRequest() == CLEAR_FEATURE
+				&& irp.wValue() == ENDPOINT_HALT) {
+			clearHalt(irp.wIndex() & 0xff);
+			irp.setActualLength(0);
+			return 0;
+		}
+		throw new UsbStallException("Request not supported");
+	}
+
+	/**
+	 * Processes an IRP submitted to a pipe, on the queue thread of the pipe.
+	 * The default implementation stalls.
+	 *
+	 * @param endpoint
+	 *            the endpoint of the pipe
+	 * @param irp
+	 *            the IRP
+	 * @param attempt
+	 *            the number of earlier attempts for the same IRP
+	 * @return 0 if the IRP is complete, the number of nanoseconds to wait
+	 *         before the next attempt, or {@link EmulatedIrpQueue#NOT_READY}
+	 *         to wait until {@link #wake(int)} is called for the endpoint
+	 * @throws UsbException
+	 *             the error the IRP completes with
+	 */
+	protected long processTransfer(EmulatedUsbEndpoint endpoint, UsbIrp irp, int attempt) throws UsbException {
+		throw new UsbStallException("Endpoint not supported");
+	}
+
+	/**
+	 * Wakes up the IRP of the given endpoint that is waiting to be attempted
+	 * again, if any.
+	 *
+	 * @param address
+	 *            the endpoint address, 0 for the control endpoint
+	 */
+	protected void wake(int address) {
+		final EmulatedIrpQueue queue = getQueue(address);
+		if (queue != null) {
+			queue.wake();
+		}
+	}
+
+	/**
+	 * Adds a fixed latency to every IRP, before it is processed.
+	 *
+	 * @param latency
+	 *            the latency, 0 for none
+	 * @param unit
+	 *            the unit of the latency
+	 */
+	public void setIrpLatency(long latency, TimeUnit unit) {
+		mIrpLatencyNanos = unit.toNanos(latency);
+	}
+
+	/**
+	 * Makes the device NAK attempts of IRPs at random. A NAKed IRP is attempted
+	 * again one frame later.
+	 *
+	 * @param probability
+	 *            the probability of each attempt to be NAKed, 0 for never
+	 */
+	public void setNakProbability(double probability) {
+		mNakProbability = checkProbability(probability);
+	}
+
+	/**
+	 * Makes the device stall IRPs at random, on all endpoints.
+	 *
+	 * @param probability
+	 *            the probability of each IRP to stall, 0 for never
+	 */
+	public void setStallProbability(double probability) {
+		mStallProbability = checkProbability(probability);
+	}
+
+	/**
+	 * Makes the next IRP of the given endpoint stall.
+	 *
+	 * @param address
+	 *            the endpoint address, 0 for the control endpoint
+	 */
+	public synchronized void stallNext(int address) {
+		mStallNext.add(address);
+	}
+
+	/**
+	 * Removes the device as if it had been unplugged: every pending IRP fails,
+	 * the device listeners are told and every later use of the device fails
+	 * with a {@link UsbDisconnectedException}. A device cannot be connected
+	 * again; a new one must be attached in its place.
+	 */
+	public void disconnect() {
+		if (mDisconnected) {
+			return;
+		}
+		mDisconnected = true;
+
+		final UsbException reason = new UsbException("Device was disconnected");
+		mControlQueue.abort(reason);
+		if (mConfiguration != null) {
+			for (EmulatedUsbInterface usbInterface : mConfiguration.getUsbInterfaces()) {
+				for (EmulatedUsbEndpoint endpoint : usbInterface.getUsbEndpoints()) {
+					endpoint.getUsbPipe().getQueue().abort(reason);
+				}
+			}
+		}
+
+		final UsbDeviceEvent event = new UsbDeviceEvent(this);
+		for (UsbDeviceListener listener : mListeners) {
+			listener.usbDeviceDetached(event);
+		}
+	}
+
+	public boolean isDisconnected() {
+		return mDisconnected;
+	}
+
+	long getIrpLatencyNanos() {
+		return mIrpLatencyNanos;
+	}
+
+	/**
+	 * @return {@code true} if the next attempt of an IRP is NAKed
+	 */
+	boolean injectNak() {
+		final double probability = mNakProbability;
+		return probability > 0 && ThreadLocalRandom.current().nextDouble() < probability;
+	}
+
+	/**
+	 * Throws a stall if the next IRP of the given endpoint is to stall.
+	 */
+	void injectStall(int address) throws UsbStallException {
+		final double probability = mStallProbability;
+		if (probability > 0 && ThreadLocalRandom.current().nextDouble() < probability) {
+			throw new UsbStallException("Injected stall");
+		}
+		synchronized (this) {
+			if (!mStallNext.isEmpty() && mStallNext.remove(Integer.valueOf(address))) {
+				throw new UsbStallException("Injected stall");
+			}
+		}
+	}
+
+	/**
+	 * Drops the stall set for the next IRP of the given endpoint, as the
+	 * CLEAR_FEATURE(ENDPOINT_HALT) request does.
+	 */
+	synchronized void clearHalt(int address) {
+		mStallNext.remove(Integer.valueOf(address));
+	}
+
+	void checkConnected() {
+		if (mDisconnected) {
+			throw new UsbDisconnectedException("Device was disconnected");
+		}
+	}
+
+	private EmulatedIrpQueue getQueue(int address) {
+		if (address == 0) {
+			return mControlQueue;
+		}
+		if (mConfiguration != null) {
+			for (EmulatedUsbInterface usbInterface : mConfiguration.getUsbInterfaces()) {
+				final EmulatedUsbEndpoint endpoint = usbInterface.getUsbEndpoint((byte) address);
+				if (endpoint != null) {
+					return endpoint.getUsbPipe().getQueue();
+				}
+			}
+		}
+		return null;
+	}
+
+	private static double checkProbability(double probability) {
+		if (probability < 0 || probability > 1) {
+			throw new IllegalArgumentException("Probability out of range: " + probability);
+		}
+		return probability;
+	}
+
+	@Override
+	public UsbPort getParentUsbPort() {
+		checkConnected();
+		return null;
+	}
+
+	@Override
+	public boolean isUsbHub() {
+		return false;
+	}
+
+	@Override
+	public String getManufacturerString() {
+		return null;
+	}
+
+	@Override
+	public String getSerialNumberString() {
+		return null;
+	}
+
+	@Override
+	public String getProductString() {
+		return null;
+	}
+
+	@Override
+	public Object getSpeed() {
+		return UsbConst.DEVICE_SPEED_FULL;
+	}
+
+	@Override
+	public List<UsbConfiguration> getUsbConfigurations() {
+		return (mConfiguration != null ? Collections.<UsbConfiguration> singletonList(mConfiguration)
+				: Collections.<UsbConfiguration> emptyList());
+	}
+
+	@Override
+	public UsbConfiguration getUsbConfiguration(byte number) {
+		return (number == 1 ? mConfiguration : null);
+	}
+
+	@Override
+	public boolean containsUsbConfiguration(byte number) {
+		return getUsbConfiguration(number) != null;
+	}
+
+	@Override
+	public byte getActiveUsbConfigurationNumber() {
+		return (byte) (mConfiguration != null ? 1 : 0);
+	}
+
+	@Override
+	public EmulatedUsbConfiguration getActiveUsbConfiguration() {
+		return mConfiguration;
+	}
+
+	@Override
+	public boolean isConfigured() {
+		return mConfiguration != null;
+	}
+
+	@Override
+	public UsbDeviceDescriptor getUsbDeviceDescriptor() {
+		return mDescriptor;
+	}
+
+	@Override
+	public UsbStringDescriptor getUsbStringDescriptor(byte index) {
+		checkConnected();
+		return null;
+	}
+
+	@Override
+	public String getString(byte index) {
+		checkConnected();
+		return null;
+	}
+
+	@Override
+	public void syncSubmit(UsbControlIrp irp) throws UsbException {
+		asyncSubmit(irp);
+		irp.waitUntilComplete();
+		if (irp.isUsbException()) {
+			throw irp.getUsbException();
+		}
+	}
+
+	@Override
+	public void asyncSubmit(UsbControlIrp irp) {
+		if (irp == null) {
+			throw new IllegalArgumentException("irp must not be null");
+		}
+		checkConnected();
+		mControlQueue.submit(irp);
+	}
+
+	@Override
+	@SuppressWarnings("rawtypes")
+	public void syncSubmit(List list) throws UsbException {
+		for (Object irp : list) {
+			syncSubmit((UsbControlIrp) irp);
+		}
+	}
+
+	@Override
+	@SuppressWarnings("rawtypes")
+	public void asyncSubmit(List list) {
+		for (Object irp : list) {
+			asyncSubmit((UsbControlIrp) irp);
+		}
+	}
+
+	@Override
+	public UsbControlIrp createUsbControlIrp(byte bmRequestType, byte bRequest, short wValue, short wIndex) {
+		return new DefaultUsbControlIrp(bmRequestType, bRequest, wValue, wIndex);
+	}
+
+	@Override
+	public void addUsbDeviceListener(UsbDeviceListener listener) {
+		mListeners.add(listener);
+	}
+
+	@Override
+	public void removeUsbDeviceListener(UsbDeviceListener listener) {
+		mListeners.remove(listener);
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%s %04x:%04x", getClass().getSimpleName(), mDescriptor.idVendor() & 0xffff,
+				mDescriptor.idProduct() & 0xffff);
+	}
+
+	private void fireEvent(UsbControlIrp irp) {
+		for (UsbDeviceListener listener : mListeners) {
+			if (irp.isUsbException()) {
+				listener.errorEventOccurred(new UsbDeviceErrorEvent(this, irp));
+			} else {
+				listener.dataEventOccurred(new UsbDeviceDataEvent(this, irp));
+			}
+		}
+	}
+}
@@ -0,0 +1,75 @@
+package usbserial4j.emulator;
+
+import javax.usb.UsbConst;
+import javax.usb.UsbEndpoint;
+import javax.usb.UsbEndpointDescriptor;
+
+import org.usb4java.javax.descriptors.SimpleUsbEndpointDescriptor;
+
+/**
+ * An endpoint of an {@link EmulatedUsbInterface}, with its {@link EmulatedUsbPipe}.
+ */
+public class EmulatedUsbEndpoint implements UsbEndpoint {
+	private final EmulatedUsbInterface mInterface;
+	private final UsbEndpointDescriptor mDescriptor;
+	private final EmulatedUsbPipe mPipe;
+
+	/**
+	 * @param usbInterface
+	 *            the interface the endpoint belongs to
+	 * @param address
+	 *            the endpoint address, including the direction bit
+	 * @param type
+	 *            the transfer type, one of the {@code ENDPOINT_TYPE}
+	 *            constants of {@link UsbConst}
+	 * @param maxPacketSize
+	 *            the maximum packet size
+	 */
+	EmulatedUsbEndpoint(EmulatedUsbInterface usbInterface, int address, int type, int maxPacketSize) {
+		mInterface = usbInterface;
+		mDescriptor = new SimpleUsbEndpointDescriptor((byte) 7, UsbConst.DESCRIPTOR_TYPE_ENDPOINT,
+				(byte) address, (byte) type, (short) maxPacketSize, (byte) 0);
+		mPipe = new EmulatedUsbPipe(this);
+	}
+
+	EmulatedUsbDevice getDevice() {
+		return mInterface.getUsbConfiguration().getUsbDevice();
+	}
+
+	/**
+	 * @return the endpoint address, including the direction bit
+	 */
+	public int getAddress() {
+		return mDescriptor.bEndpointAddress() & 0xff;
+	}
+
+	@Override
+	public EmulatedUsbInterface getUsbInterface() {
+		return mInterface;
+	}
+
+	@Override
+	public UsbEndpointDescriptor getUsbEndpointDescriptor() {
+		return mDescriptor;
+	}
+
+	@Override
+	public byte getDirection() {
+		return (byte) (mDescriptor.bEndpointAddress() & UsbConst.ENDPOINT_DIRECTION_MASK);
+	}
+
+	@Override
+	public byte getType() {
+		return (byte) (mDescriptor.bmAttributes() & UsbConst.ENDPOINT_TYPE_MASK);
+	}
+
+	@Override
+	public EmulatedUsbPipe getUsbPipe() {
+		return mPipe;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("EmulatedUsbEndpoint 0x%02x", getAddress());
+	}
+}
@@ -0,0 +1,98 @@
+package usbserial4j.emulator;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.usb.UsbDevice;
+import javax.usb.UsbHub;
+import javax.usb.UsbPort;
+
+/**
+ * An emulated {@link UsbHub}. Ports are not emulated: devices are attached to
+ * the hub directly. Attaching and detaching devices here sends no events; use
+ * {@link EmulatedUsbServices} for that.
+ */
+public class EmulatedUsbHub extends EmulatedUsbDevice implements UsbHub {
+
+	/** Device class of hubs. */
+	private static final int HUB_CLASS = 0x09;
+
+	private final boolean mRoot;
+	private final List<UsbDevice> mDevices = new CopyOnWriteArrayList<UsbDevice>();
+
+	/**
+	 * @param root
+	 *            whether this is the virtual root hub
+	 */
+	public EmulatedUsbHub(boolean root) {
+		super(0x1d6b, 0x0002, HUB_CLASS, 64, false);
+		mRoot = root;
+	}
+
+	/**
+	 * Attaches a device to the hub.
+	 *
+	 * @param device
+	 *            the device
+	 * @return the device
+	 */
+	public <T extends UsbDevice> T attach(T device) {
+		mDevices.add(device);
+		return device;
+	}
+
+	/**
+	 * Detaches a device from the hub, without disconnecting it.
+	 *
+	 * @param device
+	 *            the device
+	 * @return {@code true} if the device was attached to the hub
+	 */
+	public boolean detach(UsbDevice device) {
+		return mDevices.remove(device);
+	}
+
+	/**
+	 * Disconnects the hub and every device attached to it.
+	 */
+	@Override
+	public void disconnect() {
+		for (UsbDevice device : mDevices) {
+			if (device instanceof EmulatedUsbDevice) {
+				((EmulatedUsbDevice) device).disconnect();
+			}
+		}
+		super.disconnect();
+	}
+
+	@Override
+	public boolean isUsbHub() {
+		return true;
+	}
+
+	@Override
+	public byte getNumberOfPorts() {
+		return (byte) mDevices.size();
+	}
+
+	@Override
+	public List<UsbPort> getUsbPorts() {
+		return Collections.emptyList();
+	}
+
+	@Override
+	public UsbPort getUsbPort(byte number) {
+		return null;
+	}
+
+	@Override
+	public List<UsbDevice> getAttachedUsbDevices() {
+		return Collections.unmodifiableList(mDevices);
+	}
+
+	@Override
+	public boolean isRootUsbHub() {
+		return mRoot;
+	}
+}
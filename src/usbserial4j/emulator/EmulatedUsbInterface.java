@@ -0,0 +1,133 @@
+package usbserial4j.emulator;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.usb.UsbClaimException;
+import javax.usb.UsbConst;
+import javax.usb.UsbInterface;
+import javax.usb.UsbInterfaceDescriptor;
+import javax.usb.UsbInterfacePolicy;
+
+import org.usb4java.javax.descriptors.SimpleUsbInterfaceDescriptor;
+
+/**
+ * An interface of an {@link EmulatedUsbConfiguration}, with a single setting.
+ */
+public class EmulatedUsbInterface implements UsbInterface {
+	private final EmulatedUsbConfiguration mConfiguration;
+	private final UsbInterfaceDescriptor mDescriptor;
+	private final List<EmulatedUsbEndpoint> mEndpoints = new ArrayList<EmulatedUsbEndpoint>();
+
+	private volatile boolean mClaimed = false;
+
+	EmulatedUsbInterface(EmulatedUsbConfiguration configuration, int number, int interfaceClass, int interfaceSubclass,
+			int interfaceProtocol, int[][] endpoints) {
+		mConfiguration = configuration;
+		mDescriptor = new SimpleUsbInterfaceDescriptor((byte) 9, UsbConst.DESCRIPTOR_TYPE_INTERFACE, (byte) number,
+				(byte) 0, (byte) endpoints.length, (byte) interfaceClass, (byte) interfaceSubclass,
+				(byte) interfaceProtocol, (byte) 0);
+		for (int[] endpoint : endpoints) {
+			mEndpoints.add(new EmulatedUsbEndpoint(this, endpoint[0], endpoint[1], endpoint[2]));
+		}
+	}
+
+	@Override
+	public void claim() throws UsbClaimException {
+		claim(null);
+	}
+
+	@Override
+	public synchronized void claim(UsbInterfacePolicy policy) throws UsbClaimException {
+		getUsbConfiguration().getUsbDevice().checkConnected();
+		if (mClaimed) {
+			throw new UsbClaimException("Interface is already claimed");
+		}
+		mClaimed = true;
+	}
+
+	@Override
+	public synchronized void release() throws UsbClaimException {
+		getUsbConfiguration().getUsbDevice().checkConnected();
+		if (!mClaimed) {
+			throw new UsbClaimException("Interface is not claimed");
+		}
+		mClaimed = false;
+	}
+
+	@Override
+	public boolean isClaimed() {
+		return mClaimed;
+	}
+
+	@Override
+	public boolean isActive() {
+		return mConfiguration.isActive();
+	}
+
+	@Override
+	public int getNumSettings() {
+		return 1;
+	}
+
+	@Override
+	public byte getActiveSettingNumber() {
+		return 0;
+	}
+
+	@Override
+	public UsbInterface getActiveSetting() {
+		return this;
+	}
+
+	@Override
+	public UsbInterface getSetting(byte number) {
+		return (number == 0 ? this : null);
+	}
+
+	@Override
+	public boolean containsSetting(byte number) {
+		return number == 0;
+	}
+
+	@Override
+	public List<UsbInterface> getSettings() {
+		return Collections.<UsbInterface> singletonList(this);
+	}
+
+	@Override
+	public List<EmulatedUsbEndpoint> getUsbEndpoints() {
+		return Collections.unmodifiableList(mEndpoints);
+	}
+
+	@Override
+	public EmulatedUsbEndpoint getUsbEndpoint(byte address) {
+		for (EmulatedUsbEndpoint endpoint : mEndpoints) {
+			if (endpoint.getUsbEndpointDescriptor().bEndpointAddress() == address) {
+				return endpoint;
+			}
+		}
+		return null;
+	}
+
+	@Override
+	public boolean containsUsbEndpoint(byte address) {
+		return getUsbEndpoint(address) != null;
+	}
+
+	@Override
+	public EmulatedUsbConfiguration getUsbConfiguration() {
+		return mConfiguration;
+	}
+
+	@Override
+	public UsbInterfaceDescriptor getUsbInterfaceDescriptor() {
+		return mDescriptor;
+	}
+
+	@Override
+	public String getInterfaceString() {
+		return null;
+	}
+}
@@ -0,0 +1,180 @@
+package usbserial4j.emulator;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.usb.UsbControlIrp;
+import javax.usb.UsbException;
+import javax.usb.UsbIrp;
+import javax.usb.UsbNotClaimedException;
+import javax.usb.UsbNotOpenException;
+import javax.usb.UsbPipe;
+import javax.usb.event.UsbPipeDataEvent;
+import javax.usb.event.UsbPipeErrorEvent;
+import javax.usb.event.UsbPipeListener;
+import javax.usb.util.DefaultUsbControlIrp;
+import javax.usb.util.DefaultUsbIrp;
+
+/**
+ * The pipe of an {@link EmulatedUsbEndpoint}. IRPs are handed to
+ * {@link EmulatedUsbDevice#processTransfer} on the queue thread of the pipe.
+ */
+public class EmulatedUsbPipe implements UsbPipe {
+	private final EmulatedUsbEndpoint mEndpoint;
+	private final List<UsbPipeListener> mListeners = new CopyOnWriteArrayList<UsbPipeListener>();
+	private final EmulatedIrpQueue mQueue;
+
+	private volatile boolean mOpen = false;
+
+	EmulatedUsbPipe(EmulatedUsbEndpoint endpoint) {
+		mEndpoint = endpoint;
+		mQueue = new EmulatedIrpQueue(endpoint.getDevice(), endpoint.getAddress(), new EmulatedIrpQueue.Handler() {
+			@Override
+			public long process(UsbIrp irp, int attempt) throws UsbException {
+				return mEndpoint.getDevice().processTransfer(mEndpoint, irp, attempt);
+			}
+
+			@Override
+			public void finish(UsbIrp irp) {
+				fireEvent(irp);
+			}
+		});
+	}
+
+	EmulatedIrpQueue getQueue() {
+		return mQueue;
+	}
+
+	@Override
+	public synchronized void open() throws UsbException {
+		mEndpoint.getDevice().checkConnected();
+		if (!mEndpoint.getUsbInterface().isClaimed()) {
+			throw new UsbNotClaimedException("Interface is not claimed");
+		}
+		if (mOpen) {
+			throw new UsbException("Pipe is already open");
+		}
+		mOpen = true;
+	}
+
+	@Override
+	public synchronized void close() throws UsbException {
+		mEndpoint.getDevice().checkConnected();
+		checkOpen();
+		if (mQueue.isBusy()) {
+			throw new UsbException("Pipe is still busy");
+		}
+		mOpen = false;
+	}
+
+	@Override
+	public boolean isActive() {
+		return true;
+	}
+
+	@Override
+	public boolean isOpen() {
+		return mOpen;
+	}
+
+	@Override
+	public EmulatedUsbEndpoint getUsbEndpoint() {
+		return mEndpoint;
+	}
+
+	@Override
+	public int syncSubmit(byte[] data) throws UsbException {
+		final UsbIrp irp = asyncSubmit(data);
+		irp.waitUntilComplete();
+		if (irp.isUsbException()) {
+			throw irp.getUsbException();
+		}
+		return irp.getActualLength();
+	}
+
+	@Override
+	public UsbIrp asyncSubmit(byte[] data) throws UsbException {
+		final UsbIrp irp = createUsbIrp();
+		irp.setData(data);
+		asyncSubmit(irp);
+		return irp;
+	}
+
+	@Override
+	public void syncSubmit(UsbIrp irp) throws UsbException {
+		asyncSubmit(irp);
+		irp.waitUntilComplete();
+		if (irp.isUsbException()) {
+			throw irp.getUsbException();
+		}
+	}
+
+	@Override
+	public void asyncSubmit(UsbIrp irp) throws UsbException {
+		if (irp == null) {
+			throw new IllegalArgumentException("irp must not be null");
+		}
+		mEndpoint.getDevice().checkConnected();
+		checkOpen();
+		mQueue.submit(irp);
+	}
+
+	@Override
+	@SuppressWarnings("rawtypes")
+	public void syncSubmit(List list) throws UsbException {
+		for (Object irp : list) {
+			syncSubmit((UsbIrp) irp);
+		}
+	}
+
+	@Override
+	@SuppressWarnings("rawtypes")
+	public void asyncSubmit(List list) throws UsbException {
+		for (Object irp : list) {
+			asyncSubmit((UsbIrp) irp);
+		}
+	}
+
+	@Override
+	public void abortAllSubmissions() {
+		mEndpoint.getDevice().checkConnected();
+		checkOpen();
+		mQueue.abort();
+	}
+
+	@Override
+	public UsbIrp createUsbIrp() {
+		return new DefaultUsbIrp();
+	}
+
+	@Override
+	public UsbControlIrp createUsbControlIrp(byte bmRequestType, byte bRequest, short wValue, short wIndex) {
+		return new DefaultUsbControlIrp(bmRequestType, bRequest, wValue, wIndex);
+	}
+
+	@Override
+	public void addUsbPipeListener(UsbPipeListener listener) {
+		mListeners.add(listener);
+	}
+
+	@Override
+	public void removeUsbPipeListener(UsbPipeListener listener) {
+		mListeners.remove(listener);
+	}
+
+	private void checkOpen() {
+		if (!mOpen) {
+			throw new UsbNotOpenException("Pipe is not open");
+		}
+	}
+
+	private void fireEvent(UsbIrp irp) {
+		for (UsbPipeListener listener : mListeners) {
+			if (irp.isUsbException()) {
+				listener.errorEventOccurred(new UsbPipeErrorEvent(this, irp));
+			} else {
+				listener.dataEventOccurred(new UsbPipeDataEvent(this, irp));
+			}
+		}
+	}
+}
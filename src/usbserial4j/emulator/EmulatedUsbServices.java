@@ -0,0 +1,90 @@
+package usbserial4j.emulator;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.usb.UsbDevice;
+import javax.usb.UsbServices;
+import javax.usb.event.UsbServicesEvent;
+import javax.usb.event.UsbServicesListener;
+
+/**
+ * Emulated javax.usb services: a virtual root hub, and hotplug events for the
+ * devices attached and detached through this class.
+ * <p>
+ * Listeners are called on the thread attaching or detaching the device.
+ * </p>
+ */
+public class EmulatedUsbServices implements UsbServices {
+	private final EmulatedUsbHub mRootHub = new EmulatedUsbHub(true);
+	private final List<UsbServicesListener> mListeners = new CopyOnWriteArrayList<UsbServicesListener>();
+
+	/**
+	 * Plugs a device into a hub and tells the listeners.
+	 *
+	 * @param hub
+	 *            the hub, {@link #getRootUsbHub()} or a hub below it
+	 * @param device
+	 *            the device
+	 * @return the device
+	 */
+	public <T extends UsbDevice> T attach(EmulatedUsbHub hub, T device) {
+		hub.attach(device);
+		final UsbServicesEvent event = new UsbServicesEvent(this, device);
+		for (UsbServicesListener listener : mListeners) {
+			listener.usbDeviceAttached(event);
+		}
+		return device;
+	}
+
+	/**
+	 * Unplugs a device from a hub: the device is disconnected and the
+	 * listeners are told. The devices attached to a hub are disconnected with
+	 * it, but only the hub itself is reported.
+	 *
+	 * @param hub
+	 *            the hub the device is attached to
+	 * @param device
+	 *            the device
+	 */
+	public void detach(EmulatedUsbHub hub, EmulatedUsbDevice device) {
+		if (!hub.detach(device)) {
+			throw new IllegalArgumentException(device + " is not attached to " + hub);
+		}
+		device.disconnect();
+		final UsbServicesEvent event = new UsbServicesEvent(this, device);
+		for (UsbServicesListener listener : mListeners) {
+			listener.usbDeviceDetached(event);
+		}
+	}
+
+	@Override
+	public EmulatedUsbHub getRootUsbHub() {
+		return mRootHub;
+	}
+
+	@Override
+	public void addUsbServicesListener(UsbServicesListener listener) {
+		mListeners.add(listener);
+	}
+
+	@Override
+	public void removeUsbServicesListener(UsbServicesListener listener) {
+		mListeners.remove(listener);
+	}
+
+	@Override
+	public String getApiVersion() {
+		return "1.0.2";
+	}
+
+	@Override
+	public String getImpVersion() {
+		return "0.0.1";
+	}
+
+	@Override
+	public String getImpDescription() {
+		return "usbserial4j device emulator";
+	}
+}
@@ -0,0 +1,441 @@
+package usbserial4j.emulator;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.usb.UsbConst;
+import javax.usb.UsbControlIrp;
+import javax.usb.UsbException;
+import javax.usb.UsbIrp;
+import javax.usb.UsbStallException;
+
+import usbserial4j.util.ByteRingBuffer;
+
+/**
+ * A software PL2303 HX that {@code ProlificSerialDriver} can open like a real
+ * adapter.
+ * <p>
+ * The emulator answers the vendor requests of the initialization handshake,
+ * keeps the line coding set by {@code SET_LINE_REQUEST} and the control lines
+ * set by {@code SET_CONTROL_REQUEST}, and reports the modem status on its
+ * interrupt endpoint once after each initialization and then on every change.
+ * </p>
+ * <p>
+ * By default the serial side is wired as a loopback plug: the bytes written
+ * to the bulk OUT endpoint come back on the bulk IN endpoint, DTR drives DSR
+ * and CD, and RTS drives CTS. Bytes that do not fit into the receive buffer
+ * are lost, like on a real serial line, and counted as overruns. Bulk IN IRPs
+ * are NAKed until there is data to return.
+ * </p>
+ * <p>
+ * When the bandwidth is limited, every bulk OUT IRP takes the time its bytes
+ * need on the wire with the current line coding, and the bytes come back
+ * only then.
+ * </p>
+ */
+public class Pl2303Emulator extends EmulatedUsbDevice {
+
+	/** Vendor id of Prolific. */
+	public static final int VENDOR_ID = 0x067b;
+
+	/** Product id of the PL2303. */
+	public static final int PRODUCT_ID = 0x2303;
+
+	/** Address of the interrupt IN endpoint reporting the modem status. */
+	public static final int STATUS_ENDPOINT = 0x81;
+
+	/** Address of the bulk OUT endpoint. */
+	public static final int WRITE_ENDPOINT = 0x02;
+
+	/** Address of the bulk IN endpoint. */
+	public static final int READ_ENDPOINT = 0x83;
+
+	/** Default capacity of the receive buffer. */
+	public static final int DEFAULT_RECEIVE_BUFFER_SIZE = 64 * 1024;
+
+	/** Carrier detect flag of the status byte. */
+	public static final int STATUS_CD = 0x01;
+
+	/** Data set ready flag of the status byte. */
+	public static final int STATUS_DSR = 0x02;
+
+	/** Ring indicator flag of the status byte. */
+	public static final int STATUS_RI = 0x08;
+
+	/** Clear to send flag of the status byte. */
+	public static final int STATUS_CTS = 0x80;
+
+	private static final int VENDOR_OUT_REQTYPE = (UsbConst.ENDPOINT_DIRECTION_OUT
+			| UsbConst.REQUESTTYPE_TYPE_VENDOR) & 0xff;
+	private static final int VENDOR_IN_REQTYPE = (UsbConst.ENDPOINT_DIRECTION_IN
+			| UsbConst.REQUESTTYPE_TYPE_VENDOR) & 0xff;
+	private static final int CLASS_OUT_REQTYPE = (UsbConst.ENDPOINT_DIRECTION_OUT | UsbConst.REQUESTTYPE_TYPE_CLASS
+			| UsbConst.REQUESTTYPE_RECIPIENT_INTERFACE) & 0xff;
+	private static final int CLASS_IN_REQTYPE = (UsbConst.ENDPOINT_DIRECTION_IN | UsbConst.REQUESTTYPE_TYPE_CLASS
+			| UsbConst.REQUESTTYPE_RECIPIENT_INTERFACE) & 0xff;
+
+	private static final int VENDOR_REQUEST = 0x01;
+	private static final int SET_LINE_REQUEST = 0x20;
+	private static final int GET_LINE_REQUEST = 0x21;
+	private static final int SET_CONTROL_REQUEST = 0x22;
+	private static final int BREAK_REQUEST = 0x23;
+
+	private static final int FLUSH_RX_REQUEST = 0x08;
+	private static final int FLUSH_TX_REQUEST = 0x09;
+
+	/** The vendor write ending the initialization handshake. */
+	private static final int INIT_DONE_REGISTER = 2;
+
+	private static final int CONTROL_DTR = 0x01;
+	private static final int CONTROL_RTS = 0x02;
+
+	private static final int LINE_CODING_LENGTH = 7;
+
+	/** A CDC SERIAL_STATE notification, followed by the status byte. */
+	private static final byte[] STATUS_HEADER = { (byte) 0xa1, 0x20, 0, 0, 0, 0, 2, 0 };
+	private static final int STATUS_LENGTH = 10;
+
+	private final ByteRingBuffer mReceiveBuffer;
+
+	/** Values written by vendor requests. Guarded by {@code this}. */
+	private final Map<Integer, Integer> mRegisters = new HashMap<Integer, Integer>();
+
+	/** Line coding in the format of SET_LINE_REQUEST. Guarded by {@code this}. */
+	private final byte[] mLineCoding = { (byte) 0x80, 0x25, 0, 0, 0, 0, 8 };
+
+	private volatile boolean mInitialized = false;
+	private volatile int mControlLines = 0;
+	private volatile int mExternalStatus = 0;
+	private volatile boolean mLoopback = true;
+	private volatile boolean mBandwidthLimited = false;
+
+	/**
+	 * The last status reported on the interrupt endpoint, or -1 to report
+	 * the next one whatever it is. Only used by the status queue thread and
+	 * the control queue thread, which resets it.
+	 */
+	private volatile int mReportedStatus = -1;
+
+	/** When the wire is free again, in {@link System#nanoTime()} time. */
+	private long mWireFreeAt = 0;
+
+	private final AtomicLong mBytesTransmitted = new AtomicLong();
+	private final AtomicLong mBytesReceived = new AtomicLong();
+	private final AtomicLong mOverruns = new AtomicLong();
+
+	public Pl2303Emulator() {
+		this(DEFAULT_RECEIVE_BUFFER_SIZE);
+	}
+
+	/**
+	 * @param receiveBufferSize
+	 *            the capacity of the receive buffer, a power of two
+	 */
+	public Pl2303Emulator(int receiveBufferSize) {
+		super(VENDOR_ID, PRODUCT_ID, 0, 64, true);
+		mReceiveBuffer = new ByteRingBuffer(receiveBufferSize);
+		getActiveUsbConfiguration().addInterface(0xff, 0, 0, new int[][] {
+				{ STATUS_ENDPOINT, UsbConst.ENDPOINT_TYPE_INTERRUPT, 10 },
+				{ WRITE_ENDPOINT, UsbConst.ENDPOINT_TYPE_BULK, 64 },
+				{ READ_ENDPOINT, UsbConst.ENDPOINT_TYPE_BULK, 64 } });
+	}
+
+	/**
+	 * @return {@code true} once the driver has completed the vendor
+	 *         initialization handshake
+	 */
+	public boolean isInitialized() {
+		return mInitialized;
+	}
+
+	/**
+	 * @return the line coding last set, in the format of
+	 *         {@code SET_LINE_REQUEST}: the baud rate in four little-endian
+	 *         bytes, then the stop bits, parity and data bits
+	 */
+	public synchronized byte[] getLineCoding() {
+		return mLineCoding.clone();
+	}
+
+	public synchronized int getBaudRate() {
+		return (mLineCoding[0] & 0xff) | (mLineCoding[1] & 0xff) << 8 | (mLineCoding[2] & 0xff) << 16
+				| (mLineCoding[3] & 0xff) << 24;
+	}
+
+	public boolean getDTR() {
+		return (mControlLines & CONTROL_DTR) != 0;
+	}
+
+	public boolean getRTS() {
+		return (mControlLines & CONTROL_RTS) != 0;
+	}
+
+	/**
+	 * Sets the modem status lines driven by the far end, in addition to those
+	 * driven by the loopback.
+	 *
+	 * @param status
+	 *            a combination of the {@code STATUS} flags
+	 */
+	public void setExternalStatus(int status) {
+		mExternalStatus = status;
+		wake(STATUS_ENDPOINT);
+	}
+
+	/**
+	 * @return the modem status as reported on the interrupt endpoint
+	 */
+	public int getStatus() {
+		int status = mExternalStatus;
+		if (mLoopback) {
+			final int lines = mControlLines;
+			if ((lines & CONTROL_DTR) != 0) {
+				status |= STATUS_DSR | STATUS_CD;
+			}
+			if ((lines & CONTROL_RTS) != 0) {
+				status |= STATUS_CTS;
+			}
+		}
+		return status;
+	}
+
+	/**
+	 * Sets whether the bytes written come back and the control lines drive
+	 * the status lines. On by default.
+	 *
+	 * @param loopback
+	 *            {@code true} for a loopback plug, {@code false} for an open
+	 *            line
+	 */
+	public void setLoopback(boolean loopback) {
+		mLoopback = loopback;
+		wake(STATUS_ENDPOINT);
+	}
+
+	/**
+	 * Sets whether bulk OUT transfers take the time their bytes need at the
+	 * current baud rate. Off by default.
+	 *
+	 * @param limited
+	 *            {@code true} to limit the bandwidth
+	 */
+	public void setBandwidthLimited(boolean limited) {
+		mBandwidthLimited = limited;
+	}
+
+	/**
+	 * Makes bytes arrive from the far end, as if they had been received on
+	 * the line.
+	 *
+	 * @param data
+	 *            the bytes
+	 * @param offset
+	 *            the index of the first byte
+	 * @param length
+	 *            the number of bytes
+	 */
+	public void receive(byte[] data, int offset, int length) {
+		final int accepted;
+		synchronized (mReceiveBuffer) {
+			accepted = mReceiveBuffer.offer(data, offset, length);
+		}
+		if (accepted < length) {
+			mOverruns.addAndGet(length - accepted);
+		}
+		if (accepted > 0) {
+			wake(READ_ENDPOINT);
+		}
+	}
+
+	/**
+	 * @return the number of bytes accepted on the bulk OUT endpoint
+	 */
+	public long getBytesTransmitted() {
+		return mBytesTransmitted.get();
+	}
+
+	/**
+	 * @return the number of bytes returned on the bulk IN endpoint
+	 */
+	public long getBytesReceived() {
+		return mBytesReceived.get();
+	}
+
+	/**
+	 * @return the number of bytes lost because the receive buffer was full
+	 */
+	public long getOverruns() {
+		return mOverruns.get();
+	}
+
+	@Override
+	protected long processControl(UsbControlIrp irp, int attempt) throws UsbException {
+		final int requestType = irp.bmRequestType() & 0xff;
+		final int request = irp.bRequest() & 0xff;
+		final int value = irp.wValue() & 0xffff;
+		final int index = irp.wIndex() & 0xffff;
+
+		if (requestType == VENDOR_IN_REQTYPE && request == VENDOR_REQUEST) {
+			final Integer register;
+			synchronized (this) {
+				register = mRegisters.get(value);
+			}
+			fill(irp, 0);
+			if (irp.getLength() > 0) {
+				irp.getData()[irp.getOffset()] = (byte) (register != null ? register : 0);
+			}
+			irp.setActualLength(irp.getLength());
+			return 0;
+		}
+
+		if (requestType == VENDOR_OUT_REQTYPE && request == VENDOR_REQUEST) {
+			if (value == FLUSH_RX_REQUEST) {
+				final byte[] discarded = new byte[256];
+				synchronized (mReceiveBuffer) {
+					while (mReceiveBuffer.poll(discarded, 0, discarded.length) > 0) {
+						// Drop everything received so far
+					}
+				}
+			} else if (value != FLUSH_TX_REQUEST) {
+				synchronized (this) {
+					mRegisters.put(value, index);
+				}
+				if (value == INIT_DONE_REGISTER) {
+					mInitialized = true;
+					mReportedStatus = -1;
+					wake(STATUS_ENDPOINT);
+				}
+			}
+			irp.setActualLength(0);
+			return 0;
+		}
+
+		if (requestType == CLASS_OUT_REQTYPE) {
+			switch (request) {
+			case SET_LINE_REQUEST:
+				if (irp.getLength() != LINE_CODING_LENGTH) {
+					throw new UsbStallException("Invalid line coding length: " + irp.getLength());
+				}
+				synchronized (this) {
+					System.arraycopy(irp.getData(), irp.getOffset(), mLineCoding, 0, LINE_CODING_LENGTH);
+				}
+				irp.setActualLength(LINE_CODING_LENGTH);
+				return 0;
+
+			case SET_CONTROL_REQUEST:
+				mControlLines = value & (CONTROL_DTR | CONTROL_RTS);
+				wake(STATUS_ENDPOINT);
+				irp.setActualLength(0);
+				return 0;
+
+			case BREAK_REQUEST:
+				irp.setActualLength(0);
+				return 0;
+			}
+		}
+
+		if (requestType == CLASS_IN_REQTYPE && request == GET_LINE_REQUEST) {
+			final int length = Math.min(irp.getLength(), LINE_CODING_LENGTH);
+			synchronized (this) {
+				System.arraycopy(mLineCoding, 0, irp.getData(), irp.getOffset(), length);
+			}
+			irp.setActualLength(length);
+			return 0;
+		}
+
+		return super.processControl(irp, attempt);
+	}
+
+	@Override
+	protected long processTransfer(EmulatedUsbEndpoint endpoint, UsbIrp irp, int attempt) throws UsbException {
+		switch (endpoint.getAddress()) {
+		case STATUS_ENDPOINT:
+			return processStatus(irp);
+
+		case WRITE_ENDPOINT:
+			return processWrite(irp, attempt);
+
+		case READ_ENDPOINT:
+			return processRead(irp);
+
+		default:
+			return super.processTransfer(endpoint, irp, attempt);
+		}
+	}
+
+	private long processStatus(UsbIrp irp) {
+		final int status = getStatus();
+		if (status == mReportedStatus) {
+			return EmulatedIrpQueue.NOT_READY;
+		}
+		mReportedStatus = status;
+
+		final byte[] data = irp.getData();
+		final int length = Math.min(irp.getLength(), STATUS_LENGTH);
+		for (int i = 0; i < length; ++i) {
+			data[irp.getOffset() + i] = (i < STATUS_HEADER.length ? STATUS_HEADER[i]
+					: i == STATUS_HEADER.length ? (byte) status : 0);
+		}
+		irp.setActualLength(length);
+		return 0;
+	}
+
+	private long processWrite(UsbIrp irp, int attempt) {
+		final int length = irp.getLength();
+		if (mBandwidthLimited && attempt == 0) {
+			final long now = System.nanoTime();
+			mWireFreeAt = Math.max(now, mWireFreeAt) + getWireNanos(length);
+			final long delay = mWireFreeAt - now;
+			if (delay > 0) {
+				return delay;
+			}
+		}
+
+		if (mLoopback) {
+			receive(irp.getData(), irp.getOffset(), length);
+		}
+		mBytesTransmitted.addAndGet(length);
+		irp.setActualLength(length);
+		return 0;
+	}
+
+	private long processRead(UsbIrp irp) {
+		final int length;
+		synchronized (mReceiveBuffer) {
+			length = mReceiveBuffer.poll(irp.getData(), irp.getOffset(), irp.getLength());
+		}
+		if (length == 0 && irp.getLength() > 0) {
+			return EmulatedIrpQueue.NOT_READY;
+		}
+		mBytesReceived.addAndGet(length);
+		irp.setActualLength(length);
+		return 0;
+	}
+
+	/**
+	 * Returns the time the given number of bytes need on the wire: a start
+	 * bit, the data bits, the parity bit if any and the stop bits per byte.
+	 */
+	private long getWireNanos(int length) {
+		final int baudRate;
+		final int tenthBitsPerByte;
+		synchronized (this) {
+			baudRate = getBaudRate();
+			final int stopTenthBits = (mLineCoding[4] == 0 ? 10 : mLineCoding[4] == 1 ? 15 : 20);
+			final int parityBits = (mLineCoding[5] == 0 ? 0 : 1);
+			tenthBitsPerByte = 10 * (1 + mLineCoding[6] + parityBits) + stopTenthBits;
+		}
+		if (baudRate <= 0) {
+			return 0;
+		}
+		return length * tenthBitsPerByte * 100000000L / baudRate;
+	}
+
+	private static void fill(UsbIrp irp, int value) {
+		final byte[] data = irp.getData();
+		for (int i = 0; i < irp.getLength(); ++i) {
+			data[irp.getOffset() + i] = (byte) value;
+		}
+	}
+}
@@ -0,0 +1,77 @@
+package usbserial4j.framing;
+
+/**
+ * Decodes frames in Consistent Overhead Byte Stuffing, each ended by a zero
+ * byte. The code bytes are replaced by the zeros they stand for in place, so
+ * the payload is a slice of the region. Frames without payload are skipped.
+ * A frame whose last block is cut short by the delimiter is malformed.
+ */
+public final class CobsFrameDecoder implements FrameDecoder {
+
+	/** Number of bytes of the region decoded so far. */
+	private int mRead = 0;
+
+	/** Index of the payload, after the skipped empty frames. */
+	private int mStart = 0;
+
+	/** Number of payload bytes decoded so far. */
+	private int mWritten = 0;
+
+	/** Number of data bytes left in the current block. */
+	private int mBlockRemaining = 0;
+
+	/** Whether the current block is followed by a zero, unless it is the last. */
+	private boolean mZeroPending = false;
+
+	private boolean mMalformed = false;
+
+	@Override
+	public int decode(byte[] buffer, int offset, int length) {
+		while (mRead < length) {
+			final int b = buffer[offset + mRead++] & 0xff;
+			if (b == 0) {
+				if (mRead == mStart + 1) {
+					mStart = mRead;
+					continue;
+				}
+				if (mBlockRemaining > 0) {
+					mMalformed = true;
+				}
+				return mRead;
+			}
+
+			if (mBlockRemaining > 0) {
+				buffer[offset + mStart + mWritten++] = (byte) b;
+				mBlockRemaining--;
+			} else {
+				// A code byte: the zero of the previous block goes in its place
+				if (mZeroPending) {
+					buffer[offset + mStart + mWritten++] = 0;
+				}
+				mBlockRemaining = b - 1;
+				mZeroPending = (b != 0xff);
+			}
+		}
+		return 0;
+	}
+
+	@Override
+	public int getFrameOffset() {
+		return mStart;
+	}
+
+	@Override
+	public int getFrameLength() {
+		return (mMalformed ? -1 : mWritten);
+	}
+
+	@Override
+	public void reset() {
+		mRead = 0;
+		mStart = 0;
+		mWritten = 0;
+		mBlockRemaining = 0;
+		mZeroPending = false;
+		mMalformed = false;
+	}
+}
@@ -0,0 +1,66 @@
+package usbserial4j.framing;
+
+/**
+ * Decodes frames that end with a fixed delimiter, such as a line feed or
+ * {@code "\r\n"}. The payload is the data before the delimiter, and may be
+ * empty.
+ */
+public final class DelimiterFrameDecoder implements FrameDecoder {
+
+	private final byte[] mDelimiter;
+
+	/** Number of bytes of the region searched for the delimiter so far. */
+	private int mScanned = 0;
+
+	private int mFrameLength = 0;
+
+	/**
+	 * @param delimiter
+	 *            the bytes that end each frame, at least one
+	 */
+	public DelimiterFrameDecoder(byte... delimiter) {
+		if (delimiter.length == 0) {
+			throw new IllegalArgumentException("Empty delimiter");
+		}
+		mDelimiter = delimiter.clone();
+	}
+
+	@Override
+	public int decode(byte[] buffer, int offset, int length) {
+		final byte last = mDelimiter[mDelimiter.length - 1];
+		// The delimiter may have started in the bytes scanned last time
+		for (int i = Math.max(mScanned, mDelimiter.length - 1); i < length; ++i) {
+			if (buffer[offset + i] == last && endsWithDelimiter(buffer, offset + i)) {
+				mFrameLength = i + 1 - mDelimiter.length;
+				return i + 1;
+			}
+		}
+		mScanned = length;
+		return 0;
+	}
+
+	private boolean endsWithDelimiter(byte[] buffer, int end) {
+		for (int i = 1; i < mDelimiter.length; ++i) {
+			if (buffer[end - i] != mDelimiter[mDelimiter.length - 1 - i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public int getFrameOffset() {
+		return 0;
+	}
+
+	@Override
+	public int getFrameLength() {
+		return mFrameLength;
+	}
+
+	@Override
+	public void reset() {
+		mScanned = 0;
+		mFrameLength = 0;
+	}
+}
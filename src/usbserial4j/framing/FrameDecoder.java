@@ -0,0 +1,55 @@
+package usbserial4j.framing;
+
+/**
+ * Finds the frames of a protocol in a stream of received bytes, for a
+ * {@link FrameReader}.
+ * <p>
+ * The reader calls {@link #decode(byte[], int, int)} with a region that
+ * starts at the first byte of a frame and holds everything received since.
+ * While the frame is incomplete the region only grows between calls, and may
+ * be moved within the buffer as a whole, so a decoder keeps its progress as
+ * positions relative to the start of the region instead of scanning it again.
+ * A decoder may rewrite the bytes it has scanned, for example to remove
+ * escapes in place.
+ * </p>
+ * <p>
+ * Decoders are stateful and not thread-safe; each reader needs its own.
+ * </p>
+ */
+public interface FrameDecoder {
+
+	/**
+	 * Decodes the frame at the start of the region.
+	 *
+	 * @param buffer
+	 *            the buffer holding the region
+	 * @param offset
+	 *            the index of the first byte of the region
+	 * @param length
+	 *            the number of bytes in the region
+	 * @return the number of bytes the complete frame takes up in the region,
+	 *         framing bytes included, or 0 if the frame is not complete yet
+	 */
+	int decode(byte[] buffer, int offset, int length);
+
+	/**
+	 * Returns where the payload of the last complete frame starts.
+	 *
+	 * @return the index of the payload, relative to the start of the region
+	 */
+	int getFrameOffset();
+
+	/**
+	 * Returns the length of the payload of the last complete frame.
+	 *
+	 * @return the length in bytes, or -1 if the frame was malformed and
+	 *         should be dropped
+	 */
+	int getFrameLength();
+
+	/**
+	 * Forgets the progress in the current frame, before the next one is
+	 * decoded or after the reader discarded its data.
+	 */
+	void reset();
+}
@@ -0,0 +1,188 @@
+package usbserial4j.framing;
+
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+
+import usbserial4j.driver.UsbSerialPort;
+
+/**
+ * Reads whole frames from a {@link UsbSerialPort}, as found by a
+ * {@link FrameDecoder}.
+ * <p>
+ * The port reads straight into the free end of a buffer owned by the reader,
+ * and the decoder works on the received bytes in place. Each frame is handed
+ * out as a read-only slice of that buffer, a view that is reused for every
+ * frame, so decoding allocates nothing. A frame that is still incomplete
+ * when the end of the buffer is reached carries over: it is moved to the
+ * start of the buffer, which is the only time data is copied. The buffer
+ * must hold the longest frame; {@link #getCopiedBytes()} tells how much of
+ * the traffic had to be moved.
+ * </p>
+ * <p>
+ * This class is not thread-safe, and the port must not be read by anyone
+ * else while frames are read from it.
+ * </p>
+ */
+public final class FrameReader {
+
+	public static final int DEFAULT_CAPACITY = 64 * 1024;
+
+	private final UsbSerialPort mPort;
+	private final FrameDecoder mDecoder;
+	private final byte[] mBuffer;
+
+	/** The view the port reads into. */
+	private final ByteBuffer mReadView;
+
+	/** The view frames are handed out in. */
+	private final ByteBuffer mFrameView;
+
+	/** Index of the first byte of the current frame. */
+	private int mStart = 0;
+
+	/** Index after the last byte received. */
+	private int mEnd = 0;
+
+	private long mFrames = 0;
+	private long mDroppedFrames = 0;
+	private long mCopiedBytes = 0;
+
+	/**
+	 * Creates a reader with a buffer of {@link #DEFAULT_CAPACITY} bytes.
+	 *
+	 * @param port
+	 *            the open port to read from
+	 * @param decoder
+	 *            the decoder of the protocol
+	 */
+	public FrameReader(UsbSerialPort port, FrameDecoder decoder) {
+		this(port, decoder, DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * @param port
+	 *            the open port to read from
+	 * @param decoder
+	 *            the decoder of the protocol
+	 * @param capacity
+	 *            the size of the buffer in bytes, at least as large as the
+	 *            longest frame with its framing bytes
+	 */
+	public FrameReader(UsbSerialPort port, FrameDecoder decoder, int capacity) {
+		if (capacity < 1) {
+			throw new IllegalArgumentException("Capacity must be at least 1: " + capacity);
+		}
+		mPort = port;
+		mDecoder = decoder;
+		mBuffer = new byte[capacity];
+		mReadView = ByteBuffer.wrap(mBuffer);
+		mFrameView = ByteBuffer.wrap(mBuffer).asReadOnlyBuffer();
+	}
+
+	/**
+	 * Returns the next complete frame, reading from the port as needed.
+	 * Malformed frames are dropped.
+	 *
+	 * @param timeoutMillis
+	 *            the timeout for each read of the port
+	 * @return a read-only view of the payload, between its position and its
+	 *         limit, valid until the next call; or {@code null} if a read
+	 *         timed out before a frame was complete
+	 * @throws IOException
+	 *             if reading failed, or a frame did not fit in the buffer; the
+	 *             data of that frame is discarded
+	 */
+	public ByteBuffer readFrame(int timeoutMillis) throws IOException {
+		while (true) {
+			if (mEnd > mStart) {
+				final int consumed = mDecoder.decode(mBuffer, mStart, mEnd - mStart);
+				if (consumed > 0) {
+					final int frameOffset = mStart + mDecoder.getFrameOffset();
+					final int frameLength = mDecoder.getFrameLength();
+					mStart += consumed;
+					mDecoder.reset();
+					if (frameLength < 0) {
+						mDroppedFrames++;
+						continue;
+					}
+					mFrames++;
+					((Buffer) mFrameView).limit(frameOffset + frameLength).position(frameOffset);
+					return mFrameView;
+				}
+			}
+
+			makeRoom();
+			((Buffer) mReadView).limit(mBuffer.length).position(mEnd);
+			final int numBytesRead = mPort.read(mReadView, timeoutMillis);
+			if (numBytesRead == 0) {
+				return null;
+			}
+			mEnd += numBytesRead;
+		}
+	}
+
+	/**
+	 * Frees the end of the buffer for the next read, moving an incomplete
+	 * frame to the start if it reaches the end.
+	 */
+	private void makeRoom() throws IOException {
+		if (mStart == mEnd) {
+			mStart = 0;
+			mEnd = 0;
+			return;
+		}
+		if (mEnd < mBuffer.length) {
+			return;
+		}
+		if (mStart == 0) {
+			discard();
+			mDroppedFrames++;
+			throw new IOException("Frame longer than the buffer of " + mBuffer.length + " bytes");
+		}
+		final int length = mEnd - mStart;
+		System.arraycopy(mBuffer, mStart, mBuffer, 0, length);
+		mCopiedBytes += length;
+		mStart = 0;
+		mEnd = length;
+	}
+
+	/**
+	 * Discards the data received and not returned as a frame yet, including
+	 * an incomplete frame.
+	 */
+	public void discard() {
+		mStart = 0;
+		mEnd = 0;
+		mDecoder.reset();
+	}
+
+	/**
+	 * @return the number of bytes received and not returned as a frame yet
+	 */
+	public int available() {
+		return mEnd - mStart;
+	}
+
+	/**
+	 * @return the number of frames returned
+	 */
+	public long getFrames() {
+		return mFrames;
+	}
+
+	/**
+	 * @return the number of frames dropped as malformed or too long
+	 */
+	public long getDroppedFrames() {
+		return mDroppedFrames;
+	}
+
+	/**
+	 * @return the number of bytes moved to the start of the buffer because
+	 *         their frame reached its end
+	 */
+	public long getCopiedBytes() {
+		return mCopiedBytes;
+	}
+}
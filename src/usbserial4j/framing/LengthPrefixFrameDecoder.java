@@ -0,0 +1,78 @@
+package usbserial4j.framing;
+
+import java.nio.ByteOrder;
+
+/**
+ * Decodes frames that start with the length of their payload, as an
+ * unsigned integer of 1, 2 or 4 bytes.
+ * <p>
+ * A length above the maximum drops the prefix as a malformed frame, and
+ * decoding resumes with the byte after it.
+ * </p>
+ */
+public final class LengthPrefixFrameDecoder implements FrameDecoder {
+
+	private final int mPrefixLength;
+	private final boolean mBigEndian;
+	private final int mMaxFrameLength;
+
+	private int mFrameLength = 0;
+
+	/**
+	 * @param prefixLength
+	 *            the size of the length field: 1, 2 or 4 bytes
+	 * @param order
+	 *            the byte order of the length field
+	 * @param maxFrameLength
+	 *            the longest payload accepted
+	 */
+	public LengthPrefixFrameDecoder(int prefixLength, ByteOrder order, int maxFrameLength) {
+		if (prefixLength != 1 && prefixLength != 2 && prefixLength != 4) {
+			throw new IllegalArgumentException("Prefix length must be 1, 2 or 4: " + prefixLength);
+		}
+		if (maxFrameLength < 0) {
+			throw new IllegalArgumentException("Negative maximum frame length: " + maxFrameLength);
+		}
+		mPrefixLength = prefixLength;
+		mBigEndian = (order == ByteOrder.BIG_ENDIAN);
+		mMaxFrameLength = maxFrameLength;
+	}
+
+	@Override
+	public int decode(byte[] buffer, int offset, int length) {
+		if (length < mPrefixLength) {
+			return 0;
+		}
+
+		long frameLength = 0;
+		for (int i = 0; i < mPrefixLength; ++i) {
+			final int b = buffer[offset + (mBigEndian ? i : mPrefixLength - 1 - i)] & 0xff;
+			frameLength = (frameLength << 8) | b;
+		}
+
+		if (frameLength > mMaxFrameLength) {
+			mFrameLength = -1;
+			return mPrefixLength;
+		}
+		if (length - mPrefixLength < frameLength) {
+			return 0;
+		}
+		mFrameLength = (int) frameLength;
+		return mPrefixLength + mFrameLength;
+	}
+
+	@Override
+	public int getFrameOffset() {
+		return mPrefixLength;
+	}
+
+	@Override
+	public int getFrameLength() {
+		return mFrameLength;
+	}
+
+	@Override
+	public void reset() {
+		mFrameLength = 0;
+	}
+}
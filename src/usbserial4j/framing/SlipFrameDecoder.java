@@ -0,0 +1,79 @@
+package usbserial4j.framing;
+
+/**
+ * Decodes SLIP frames (RFC 1055). Escapes are removed in place, so the
+ * payload is a slice of the region. Frames without payload, such as the
+ * {@code END} byte senders put before each frame, are skipped. A frame with
+ * an invalid escape is malformed.
+ */
+public final class SlipFrameDecoder implements FrameDecoder {
+
+	public static final byte END = (byte) 0xc0;
+	public static final byte ESC = (byte) 0xdb;
+	public static final byte ESC_END = (byte) 0xdc;
+	public static final byte ESC_ESC = (byte) 0xdd;
+
+	/** Number of bytes of the region decoded so far. */
+	private int mRead = 0;
+
+	/** Index of the payload, after the skipped empty frames. */
+	private int mStart = 0;
+
+	/** Number of payload bytes decoded so far. */
+	private int mWritten = 0;
+
+	private boolean mEscape = false;
+	private boolean mMalformed = false;
+
+	@Override
+	public int decode(byte[] buffer, int offset, int length) {
+		while (mRead < length) {
+			byte b = buffer[offset + mRead++];
+			if (b == END) {
+				if (mWritten == 0 && !mEscape && !mMalformed) {
+					mStart = mRead;
+					continue;
+				}
+				if (mEscape) {
+					mMalformed = true;
+				}
+				return mRead;
+			}
+
+			if (mEscape) {
+				mEscape = false;
+				if (b == ESC_END) {
+					b = END;
+				} else if (b == ESC_ESC) {
+					b = ESC;
+				} else {
+					mMalformed = true;
+				}
+			} else if (b == ESC) {
+				mEscape = true;
+				continue;
+			}
+			buffer[offset + mStart + mWritten++] = b;
+		}
+		return 0;
+	}
+
+	@Override
+	public int getFrameOffset() {
+		return mStart;
+	}
+
+	@Override
+	public int getFrameLength() {
+		return (mMalformed ? -1 : mWritten);
+	}
+
+	@Override
+	public void reset() {
+		mRead = 0;
+		mStart = 0;
+		mWritten = 0;
+		mEscape = false;
+		mMalformed = false;
+	}
+}
@@ -0,0 +1,149 @@
+package usbserial4j.util;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded byte queue for exactly one producer thread and one consumer
+ * thread, neither of which ever blocks or takes a lock.
+ * <p>
+ * The capacity is a power of two so that positions wrap with a mask. The
+ * producer only writes the tail and the consumer only writes the head, so no
+ * compare-and-set is needed. Each side publishes its index with one volatile
+ * store per batch copied, which lets callers that park on an empty (or full)
+ * buffer use a volatile wait flag without missing a wakeup. Each side caches
+ * the other side's index and only reads it again when the cached value says
+ * the buffer is full (or empty).
+ * </p>
+ * <p>
+ * {@link #offer} must only be called from the producer thread and
+ * {@link #poll} only from the consumer thread. {@link #size()} may be called
+ * from any thread and is exact only when both sides are idle.
+ * </p>
+ */
+public final class ByteRingBuffer {
+    private final byte[] mBuffer;
+    private final int mMask;
+
+    /** Total number of bytes consumed. Written by the consumer only. */
+    private final AtomicLong mHead = new AtomicLong();
+
+    /** Total number of bytes produced. Written by the producer only. */
+    private final AtomicLong mTail = new AtomicLong();
+
+    /** The producer's last view of {@link #mHead}. */
+    private long mHeadCache;
+
+    /** The consumer's last view of {@link #mTail}. */
+    private long mTailCache;
+
+    /**
+     * @param capacity the minimum capacity in bytes, rounded up to the next
+     *            power of two
+     */
+    public ByteRingBuffer(int capacity) {
+        if (capacity < 1 || capacity > (1 << 30)) {
+            throw new IllegalArgumentException("Capacity out of range: " + capacity);
+        }
+        final int size = Integer.highestOneBit(capacity - 1) << 1;
+        mBuffer = new byte[Math.max(size, 1)];
+        mMask = mBuffer.length - 1;
+    }
+
+    /**
+     * @return the capacity in bytes, a power of two
+     */
+    public int capacity() {
+        return mBuffer.length;
+    }
+
+    /**
+     * @return the number of bytes available to the consumer
+     */
+    public int size() {
+        return (int) (mTail.get() - mHead.get());
+    }
+
+    /**
+     * Appends as many bytes of the source as fit. Producer only.
+     *
+     * @param src the source array
+     * @param offset the index of the first byte to append
+     * @param length the number of bytes to append
+     * @return the number of bytes appended, 0 if the buffer is full
+     */
+    public int offer(byte[] src, int offset, int length) {
+        final long tail = mTail.get();
+        int free = mBuffer.length - (int) (tail - mHeadCache);
+        if (free < length) {
+            mHeadCache = mHead.get();
+            free = mBuffer.length - (int) (tail - mHeadCache);
+        }
+        final int amount = Math.min(free, length);
+        if (amount == 0) {
+            return 0;
+        }
+
+        final int index = (int) tail & mMask;
+        final int first = Math.min(amount, mBuffer.length - index);
+        System.arraycopy(src, offset, mBuffer, index, first);
+        System.arraycopy(src, offset + first, mBuffer, 0, amount - first);
+        mTail.set(tail + amount);
+        return amount;
+    }
+
+    /**
+     * Removes up to {@code length} bytes into the destination array. Consumer
+     * only.
+     *
+     * @param dest the destination array
+     * @param offset the index of the first byte to fill
+     * @param length the maximum number of bytes to remove
+     * @return the number of bytes removed, 0 if the buffer is empty
+     */
+    public int poll(byte[] dest, int offset, int length) {
+        final long head = mHead.get();
+        final int amount = available(head, length);
+        if (amount == 0) {
+            return 0;
+        }
+
+        final int index = (int) head & mMask;
+        final int first = Math.min(amount, mBuffer.length - index);
+        System.arraycopy(mBuffer, index, dest, offset, first);
+        System.arraycopy(mBuffer, 0, dest, offset + first, amount - first);
+        mHead.set(head + amount);
+        return amount;
+    }
+
+    /**
+     * Removes bytes into the remaining space of the destination buffer and
+     * advances its position. Consumer only.
+     *
+     * @param dest the destination buffer, heap or direct
+     * @return the number of bytes removed, 0 if the buffer is empty
+     */
+    public int poll(ByteBuffer dest) {
+        final long head = mHead.get();
+        final int amount = available(head, dest.remaining());
+        if (amount == 0) {
+            return 0;
+        }
+
+        final int index = (int) head & mMask;
+        final int first = Math.min(amount, mBuffer.length - index);
+        dest.put(mBuffer, index, first);
+        dest.put(mBuffer, 0, amount - first);
+        mHead.set(head + amount);
+        return amount;
+    }
+
+    private int available(long head, int length) {
+        int available = (int) (mTailCache - head);
+        if (available < length) {
+            mTailCache = mTail.get();
+            available = (int) (mTailCache - head);
+        }
+        return Math.min(available, length);
+    }
+}
@@ -4,6 +4,7 @@ import java.util.List;
 
 import javax.usb.UsbConfiguration;
 import javax.usb.UsbDevice;
+import javax.usb.UsbDisconnectedException;
 import javax.usb.UsbInterface;
 
 public class UsbUtil {
@@ -18,4 +19,26 @@ public class UsbUtil {
 		
 		return null;
 	}
+
+	/**
+	 * Tells whether a device is still attached. A detached device refuses
+	 * most calls with a {@link UsbDisconnectedException}, starting with the
+	 * lookup of the port it was attached to.
+	 *
+	 * @param usbDevice
+	 *            the device
+	 * @return {@code false} if the device has been detached
+	 */
+	public static boolean isAttached(UsbDevice usbDevice)
+	{
+		try
+		{
+			usbDevice.getParentUsbPort();
+			return true;
+		}
+		catch (UsbDisconnectedException e)
+		{
+			return false;
+		}
+	}
 }
@@ -0,0 +1,186 @@
+package usbserial4j.driver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import usbserial4j.emulator.Pl2303Emulator;
+
+/**
+ * Checks that transfers on an open port allocate nothing once the pools are
+ * warm, measured with the allocation counter of the thread doing the work.
+ */
+public class SteadyStateAllocationTest {
+	private static final int TRANSFERS = 5000;
+	private static final int ROUNDS = 10;
+	private static final int TIMEOUT = 1000;
+
+	private com.sun.management.ThreadMXBean mThreads;
+	private Pl2303Emulator mDevice;
+	private UsbSerialPort mPort;
+
+	private final byte[] mOut = new byte[64];
+	private final byte[] mIn = new byte[64];
+	private final ByteBuffer mDirectOut = ByteBuffer.allocateDirect(64);
+	private final ByteBuffer mDirectIn = ByteBuffer.allocateDirect(64);
+	private final ByteBuffer[] mGather = { ByteBuffer.allocate(8), ByteBuffer.allocateDirect(8) };
+
+	@Before
+	public void open() throws IOException {
+		final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		assumeTrue(threads instanceof com.sun.management.ThreadMXBean);
+		mThreads = (com.sun.management.ThreadMXBean) threads;
+		assumeTrue(mThreads.isThreadAllocatedMemorySupported());
+		mThreads.setThreadAllocatedMemoryEnabled(true);
+
+		mDevice = new Pl2303Emulator();
+		mPort = new ProlificSerialDriver(mDevice).getPorts().get(0);
+		mPort.open(new UsbDeviceConnection(mDevice));
+	}
+
+	@After
+	public void close() throws IOException {
+		if (mPort != null) {
+			mPort.close();
+		}
+	}
+
+	@Test
+	public void arrayTransfers() throws IOException {
+		assertEquals(0, bytesPerTransfer(new Transfer() {
+			@Override
+			public void run(int i) throws IOException {
+				mPort.write(mOut, TIMEOUT);
+				readFully(mOut.length);
+			}
+		}));
+	}
+
+	@Test
+	public void directTransfers() throws IOException {
+		assertEquals(0, bytesPerTransfer(new Transfer() {
+			@Override
+			public void run(int i) throws IOException {
+				mDirectOut.clear();
+				mPort.write(mDirectOut, TIMEOUT);
+				int read = 0;
+				mDirectIn.clear();
+				while (read < mDirectOut.capacity()) {
+					read += mPort.read(mDirectIn, TIMEOUT);
+				}
+			}
+		}));
+	}
+
+	@Test
+	public void gatheringTransfers() throws IOException {
+		assertEquals(0, bytesPerTransfer(new Transfer() {
+			@Override
+			public void run(int i) throws IOException {
+				mGather[0].clear();
+				mGather[1].clear();
+				mPort.write(mGather, TIMEOUT);
+				readFully(mGather[0].capacity() + mGather[1].capacity());
+			}
+		}));
+	}
+
+	@Test
+	public void controlTransfers() throws IOException {
+		assertEquals(0, bytesPerTransfer(new Transfer() {
+			@Override
+			public void run(int i) throws IOException {
+				mPort.setDTR((i & 1) == 0);
+			}
+		}));
+	}
+
+	@Test
+	public void statusPolling() throws IOException {
+		// Starts polling and waits for the initial status, which is not a change
+		mPort.getRI();
+		final AtomicInteger changes = new AtomicInteger();
+		mPort.addModemStatusListener(new ModemStatusListener() {
+			@Override
+			public void onModemStatusChanged(UsbSerialPort port, int lines, int changed) {
+				changes.incrementAndGet();
+			}
+		});
+		mDevice.setExternalStatus(Pl2303Emulator.STATUS_RI);
+		awaitChanges(changes, 1);
+		final Thread poller = findThread("usbserial4j status poller");
+
+		assertEquals(0, bytesPerTransfer(poller.getId(), new Transfer() {
+			@Override
+			public void run(int i) throws IOException {
+				// Each toggle is reported and dispatched on the poller thread
+				final int expected = changes.get() + 1;
+				mDevice.setExternalStatus((i & 1) == 0 ? 0 : Pl2303Emulator.STATUS_RI);
+				awaitChanges(changes, expected);
+			}
+		}));
+	}
+
+	private interface Transfer {
+		void run(int i) throws IOException;
+	}
+
+	private void readFully(int length) throws IOException {
+		int read = 0;
+		while (read < length) {
+			read += mPort.read(mIn, TIMEOUT);
+		}
+	}
+
+	private static void awaitChanges(AtomicInteger changes, int expected) throws IOException {
+		final long deadline = System.nanoTime() + TIMEOUT * 1000000L;
+		while (changes.get() < expected) {
+			if (System.nanoTime() - deadline > 0) {
+				throw new IOException("Modem status change not reported");
+			}
+			Thread.yield();
+		}
+	}
+
+	private static Thread findThread(String name) {
+		for (Thread thread : Thread.getAllStackTraces().keySet()) {
+			if (name.equals(thread.getName())) {
+				return thread;
+			}
+		}
+		throw new AssertionError("No thread " + name);
+	}
+
+	/**
+	 * Runs the transfer in rounds until the pools are warm and the code is
+	 * compiled, and returns the fewest bytes the current thread allocated per
+	 * transfer in a round, rounded down.
+	 */
+	private long bytesPerTransfer(Transfer transfer) throws IOException {
+		return bytesPerTransfer(Thread.currentThread().getId(), transfer);
+	}
+
+	/**
+	 * Like {@link #bytesPerTransfer(Transfer)}, measuring the given thread.
+	 */
+	private long bytesPerTransfer(long thread, Transfer transfer) throws IOException {
+		long fewest = Long.MAX_VALUE;
+		for (int round = 0; round < ROUNDS && fewest > 0; round++) {
+			final long start = mThreads.getThreadAllocatedBytes(thread);
+			for (int i = 0; i < TRANSFERS; i++) {
+				transfer.run(i);
+			}
+			fewest = Math.min(fewest, (mThreads.getThreadAllocatedBytes(thread) - start) / TRANSFERS);
+		}
+		return fewest;
+	}
+}